@@ -20,7 +20,6 @@ package org.xowl.infra.engine;
 import clojure.lang.Compiler;
 import clojure.lang.*;
 import fr.cenotelie.commons.utils.IOUtils;
-import fr.cenotelie.commons.utils.TextUtils;
 import org.xowl.infra.lang.owl2.IRI;
 import org.xowl.infra.store.Repository;
 import org.xowl.infra.store.execution.EvaluableExpression;
@@ -31,6 +30,8 @@ import org.xowl.infra.store.execution.ExecutionManager;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.*;
 
 /**
@@ -43,6 +44,10 @@ public class ClojureExecutionManager implements ExecutionManager {
      * The number of repositories
      */
     private static int REPOSITORY_COUNT = 0;
+    /**
+     * The maximum number of compiled expressions that are kept, above which the cache is cleared
+     */
+    private static final int EXPRESSIONS_MAX_COUNT = 1024;
 
     /**
      * Gets the next Clojure namespace
@@ -75,6 +80,10 @@ public class ClojureExecutionManager implements ExecutionManager {
      * The Clojure function definitions that are not yet compiled
      */
     private final List<ClojureFunction> cljToBuild;
+    /**
+     * The compiled expressions, by signature (names of the bindings and source of the expression)
+     */
+    private final Map<String, IFn> cljExpressions;
     /**
      * The counter for anonymous functions
      */
@@ -91,6 +100,7 @@ public class ClojureExecutionManager implements ExecutionManager {
         this.cljNamespaceRoot = Namespace.findOrCreate(Symbol.intern(cljNamespace));
         this.cljFunctions = new HashMap<>();
         this.cljToBuild = new ArrayList<>();
+        this.cljExpressions = new HashMap<>();
         this.counter = 0;
     }
 
@@ -108,6 +118,7 @@ public class ClojureExecutionManager implements ExecutionManager {
 
     /**
      * Evaluates a Clojure expression
+     * The expression is compiled once into a function that takes the bindings as parameters.
      *
      * @param bindings   The new contextual bindings
      * @param expression The expression to evaluate
@@ -120,35 +131,16 @@ public class ClojureExecutionManager implements ExecutionManager {
             return null;
         try {
             context.push(bindings);
-            StringBuilder builder = new StringBuilder();
-            builder.append("(ns ");
-            builder.append(cljNamespace);
-            builder.append(" (:require [org.xowl.infra.engine.ClojureBindings :as xowl]))");
-            builder.append(IOUtils.LINE_SEPARATOR);
-            builder.append("(let [");
-            for (Map.Entry<String, Object> binding : context.getAllBindings().entrySet()) {
-                builder.append(binding.getKey());
-                builder.append(" ");
-                Object value = binding.getValue();
-                if (EvaluationUtils.isNumDecimal(value) || EvaluationUtils.isNumInteger(value) || value instanceof Boolean)
-                    builder.append(value.toString());
-                else if (value instanceof IRI) {
-                    builder.append("\"");
-                    builder.append(TextUtils.escapeStringBaseDoubleQuote(((IRI) value).getHasValue()));
-                    builder.append("\"");
-                } else {
-                    builder.append("\"");
-                    builder.append(TextUtils.escapeStringBaseDoubleQuote(value.toString()));
-                    builder.append("\"");
-                }
-                builder.append(" ");
-            }
-            builder.append("] ");
-            builder.append(expression.getSource());
-            builder.append(")");
+            Map<String, Object> allBindings = context.getAllBindings();
+            String[] names = allBindings.keySet().toArray(new String[allBindings.size()]);
+            Arrays.sort(names);
+            Object[] values = new Object[names.length];
+            for (int i = 0; i != names.length; i++)
+                values[i] = toClojure(allBindings.get(names[i]));
             try {
                 Var.pushThreadBindings(RT.map(Compiler.LOADER, ClojureInit.getClassLoader()));
-                return Compiler.load(new StringReader(builder.toString()));
+                IFn function = getCompiled(names, expression);
+                return function.applyTo(RT.seq(values));
             } finally {
                 Var.popThreadBindings();
             }
@@ -157,6 +149,82 @@ public class ClojureExecutionManager implements ExecutionManager {
         }
     }
 
+    /**
+     * Gets the compiled function for an expression
+     * The function takes the values of the bindings as parameters, in the order of their names.
+     *
+     * @param names      The sorted names of the bindings
+     * @param expression The expression to evaluate
+     * @return The compiled function
+     */
+    private IFn getCompiled(String[] names, ClojureExpression expression) {
+        StringBuilder builder = new StringBuilder("(fn [");
+        for (String name : names) {
+            builder.append(name);
+            builder.append(" ");
+        }
+        builder.append("] ");
+        builder.append(expression.getSource());
+        builder.append(")");
+        String signature = builder.toString();
+        synchronized (cljExpressions) {
+            IFn result = cljExpressions.get(signature);
+            if (result != null)
+                return result;
+            String source = "(ns " +
+                    cljNamespace +
+                    " (:require [org.xowl.infra.engine.ClojureBindings :as xowl]))" +
+                    IOUtils.LINE_SEPARATOR +
+                    signature;
+            result = (IFn) Compiler.load(new StringReader(source));
+            if (cljExpressions.size() >= EXPRESSIONS_MAX_COUNT)
+                cljExpressions.clear();
+            cljExpressions.put(signature, result);
+            return result;
+        }
+    }
+
+    /**
+     * Gets the number of compiled expressions that are currently kept
+     *
+     * @return The number of compiled expressions
+     */
+    int getCompiledCount() {
+        synchronized (cljExpressions) {
+            return cljExpressions.size();
+        }
+    }
+
+    /**
+     * Gets the Clojure value for the value of a binding
+     * Numbers and booleans are passed as the Clojure reader would read them when they were inlined in the source:
+     * the integers become longs, or big integers when they do not fit, and the decimals become doubles.
+     * The other values are passed as strings.
+     * A null value, that cannot be inlined in a source, is passed as nil.
+     *
+     * @param value The value of a binding
+     * @return The Clojure value
+     */
+    private static Object toClojure(Object value) {
+        if (value == null)
+            return null;
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        if (value instanceof Float)
+            return ((Float) value).doubleValue();
+        if (value instanceof BigDecimal)
+            return ((BigDecimal) value).doubleValue();
+        if (value instanceof BigInteger) {
+            BigInteger integer = (BigInteger) value;
+            return integer.bitLength() < 64 ? (Object) integer.longValue() : BigInt.fromBigInteger(integer);
+        }
+        if (EvaluationUtils.isNumDecimal(value) || EvaluationUtils.isNumInteger(value) || value instanceof Boolean)
+            return value;
+        if (value instanceof IRI)
+            return ((IRI) value).getHasValue();
+        return value.toString();
+    }
+
     @Override
     public ExecutableFunction getFunction(String functionIRI) {
         return cljFunctions.get(functionIRI);
@@ -40,9 +40,13 @@ import org.xowl.infra.store.storage.StoreFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Testing the execution of xOWL ontologies with Clojure
@@ -174,6 +178,42 @@ public class ExecutionTest {
         Assert.assertEquals("http://xowl.org/infra/engine/tests#s2", ((IRI) result).getHasValue());
     }
 
+    @Test
+    public void testCompiledExpressions() {
+        RepositoryRDF repository = new RepositoryRDF();
+        ClojureExecutionManager manager = (ClojureExecutionManager) repository.getExecutionManager();
+        ClojureExpression expression = new ClojureExpression("(+ x y)");
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("x", 1);
+        bindings.put("y", 2);
+        Assert.assertEquals(3L, manager.eval(bindings, expression));
+        // the compiled function is reused with other values
+        bindings.put("x", 40);
+        Assert.assertEquals(42L, manager.eval(bindings, new ClojureExpression("(+ x y)")));
+        Assert.assertEquals(1, manager.getCompiledCount());
+        // another set of bindings is another function
+        bindings.put("z", 3);
+        Assert.assertEquals(42L, manager.eval(bindings, expression));
+        Assert.assertEquals(2, manager.getCompiledCount());
+    }
+
+    @Test
+    public void testExpressionValues() {
+        RepositoryRDF repository = new RepositoryRDF();
+        ClojureExecutionManager manager = (ClojureExecutionManager) repository.getExecutionManager();
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("x", new BigDecimal("1.5"));
+        Assert.assertEquals(Double.class, manager.eval(bindings, new ClojureExpression("(class x)")));
+        bindings.put("x", new BigInteger("12"));
+        Assert.assertEquals(Long.class, manager.eval(bindings, new ClojureExpression("(class x)")));
+        bindings.put("x", new BigInteger("123456789012345678901234567890"));
+        Assert.assertEquals(clojure.lang.BigInt.class, manager.eval(bindings, new ClojureExpression("(class x)")));
+        bindings.put("x", getIRI("http://xowl.org/infra/engine/tests#a"));
+        Assert.assertEquals("http://xowl.org/infra/engine/tests#a", manager.eval(bindings, new ClojureExpression("x")));
+        bindings.put("x", null);
+        Assert.assertEquals(true, manager.eval(bindings, new ClojureExpression("(nil? x)")));
+    }
+
     /**
      * Gets the IRI object for the specified entity
      *
@@ -123,6 +123,12 @@ public interface ApiV1 {
     ApiError ERROR_PRIVILEGE_NOT_GRANTED = new ApiError(0x000C,
             "The privilege requested to be revoked was not previously granted.",
             ERROR_HELP_PREFIX + "0x000C.html");
+    /**
+     * API error - The database is overloaded and rejected the request
+     */
+    ApiError ERROR_DATABASE_BUSY = new ApiError(0x000D,
+            "The database is overloaded and rejected the request, try again later.",
+            ERROR_HELP_PREFIX + "0x000D.html");
 
     /**
      * API error - Expected query parameters.
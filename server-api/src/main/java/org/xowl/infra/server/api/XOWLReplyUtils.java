@@ -19,6 +19,7 @@ package org.xowl.infra.server.api;
 
 import fr.cenotelie.commons.utils.api.ApiDeserializer;
 import fr.cenotelie.commons.utils.api.Reply;
+import fr.cenotelie.commons.utils.api.ReplyApiError;
 import fr.cenotelie.commons.utils.api.ReplyResult;
 import fr.cenotelie.commons.utils.api.ReplyUtils;
 import fr.cenotelie.commons.utils.http.HttpConstants;
@@ -63,6 +64,11 @@ public class XOWLReplyUtils {
             } else
                 return new HttpResponse(HttpConstants.HTTP_SPARQL_ERROR, HttpConstants.MIME_TEXT_PLAIN, ((ResultFailure) sparqlResult).getMessage());
         }
+        if (reply instanceof ReplyApiError && ((ReplyApiError) reply).getError() == ApiV1.ERROR_DATABASE_BUSY) {
+            // the request may be retried later
+            HttpResponse response = ReplyUtils.toHttpResponse(reply);
+            return new HttpResponse(HttpURLConnection.HTTP_UNAVAILABLE, response.getContentType(), response.getBodyAsString());
+        }
         return ReplyUtils.toHttpResponse(reply);
     }
 
@@ -18,6 +18,7 @@
 package org.xowl.infra.server.remote;
 
 import fr.cenotelie.commons.utils.api.Reply;
+import fr.cenotelie.commons.utils.logging.Logger;
 import fr.cenotelie.hime.redist.ASTNode;
 import org.xowl.infra.server.api.XOWLRule;
 import org.xowl.infra.server.api.XOWLStoredProcedure;
@@ -27,15 +28,19 @@ import org.xowl.infra.server.base.BaseDatabase;
 import org.xowl.infra.store.EntailmentRegime;
 import org.xowl.infra.store.rdf.Quad;
 
+import java.io.InputStream;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 /**
  * Represents a database on a remote xOWL Server
+ * On top of the database API, the remote databases can stream the uploaded content and the quads of SPARQL results,
+ * so that large amounts of data can be transferred without being entirely held in memory.
  *
  * @author Laurent Wouters
  */
-class RemoteDatabase extends BaseDatabase {
+public class RemoteDatabase extends BaseDatabase {
     /**
      * The parent server
      */
@@ -78,6 +83,19 @@ class RemoteDatabase extends BaseDatabase {
         return server.dbSPARQL(identifier, sparql, defaultIRIs, namedIRIs);
     }
 
+    /**
+     * Executes a SPARQL command and streams the result
+     * When the result is made of quads, the reply contains a ResultQuadsStream that decodes them as they are iterated over.
+     * The ResultQuadsStream should be closed when it is not entirely consumed.
+     *
+     * @param sparql The SPARQL command(s)
+     * @param logger The logger for the errors when decoding the quads
+     * @return The protocol reply
+     */
+    public Reply sparqlStream(String sparql, Logger logger) {
+        return server.dbSPARQL(identifier, sparql, logger);
+    }
+
     @Override
     public Reply getEntailmentRegime() {
         return server.dbGetEntailmentRegime(identifier);
@@ -212,4 +230,27 @@ class RemoteDatabase extends BaseDatabase {
     public Reply upload(Collection<Quad> quads) {
         return server.dbUpload(identifier, quads);
     }
+
+    /**
+     * Uploads some content to this database
+     * The content is streamed to the server as it is read from the input, the input is not closed.
+     *
+     * @param syntax The content's syntax
+     * @param input  The stream for the content
+     * @return The protocol reply
+     */
+    public Reply upload(String syntax, InputStream input) {
+        return server.dbUpload(identifier, syntax, input);
+    }
+
+    /**
+     * Uploads quads to this database
+     * The quads are streamed to the server as they are iterated over.
+     *
+     * @param quads The quads to upload
+     * @return The protocol reply
+     */
+    public Reply upload(Iterator<Quad> quads) {
+        return server.dbUpload(identifier, quads);
+    }
 }
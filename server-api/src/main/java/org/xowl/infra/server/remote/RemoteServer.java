@@ -24,6 +24,8 @@ import fr.cenotelie.commons.utils.http.HttpConstants;
 import fr.cenotelie.commons.utils.http.HttpResponse;
 import fr.cenotelie.commons.utils.http.URIUtils;
 import fr.cenotelie.commons.utils.logging.BufferedLogger;
+import fr.cenotelie.commons.utils.logging.Logger;
+import fr.cenotelie.commons.utils.logging.Logging;
 import org.xowl.infra.server.api.*;
 import org.xowl.infra.server.base.BaseStoredProcedure;
 import org.xowl.infra.store.EntailmentRegime;
@@ -31,12 +33,20 @@ import org.xowl.infra.store.Repository;
 import org.xowl.infra.store.rdf.Quad;
 import org.xowl.infra.store.sparql.Command;
 import org.xowl.infra.store.sparql.Result;
-import org.xowl.infra.store.writers.NQuadsSerializer;
+import org.xowl.infra.store.sparql.ResultFailure;
+import org.xowl.infra.store.sparql.ResultQuads;
+import org.xowl.infra.store.sparql.ResultQuadsStream;
+import org.xowl.infra.store.writers.BinaryRDFSerializer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.zip.GZIPOutputStream;
 
@@ -56,6 +66,10 @@ public class RemoteServer implements XOWLServer {
      * The connection to the remote host, if any
      */
     private final HttpConnection connection;
+    /**
+     * The connection for the requests with streamed contents
+     */
+    private final StreamingConnection streaming;
     /**
      * The currently logged-in user
      */
@@ -83,6 +97,7 @@ public class RemoteServer implements XOWLServer {
         }
         this.deserializer = new ApiDeserializer(new RemoteFactory(this));
         this.connection = new HttpConnection(result);
+        this.streaming = new StreamingConnection(result);
         this.currentUser = null;
         this.currentLogin = null;
         this.currentPassword = null;
@@ -508,6 +523,7 @@ public class RemoteServer implements XOWLServer {
 
     /**
      * Executes a SPARQL command
+     * The quads in the result are transferred in the compact binary RDF syntax and then gathered in memory.
      *
      * @param database    The target database
      * @param sparql      The SPARQL command(s)
@@ -520,31 +536,51 @@ public class RemoteServer implements XOWLServer {
             return new ReplyApiError(ApiV1.ERROR_DEFAULT_GRAPH_NOT_SUPPORTED);
         if (namedIRIs != null && !namedIRIs.isEmpty())
             return new ReplyApiError(ApiV1.ERROR_NAMED_GRAPH_NOT_SUPPORTED);
+        BufferedLogger logger = new BufferedLogger();
+        Reply reply = dbSPARQL(database, sparql, logger);
+        if (!(reply instanceof ReplyResult) || !(((ReplyResult) reply).getData() instanceof ResultQuadsStream))
+            return reply;
+        Iterator<Quad> iterator = ((ResultQuadsStream) ((ReplyResult) reply).getData()).getQuads();
+        Collection<Quad> quads = new ArrayList<>();
+        while (iterator.hasNext())
+            quads.add(iterator.next());
+        if (!logger.getErrorMessages().isEmpty())
+            return new ReplyResult<>(new ResultFailure(logger.getErrorsAsString()));
+        return new ReplyResult<>(new ResultQuads(quads));
+    }
+
+    /**
+     * Executes a SPARQL command and streams the result
+     * When the result is made of quads, they are decoded as they are iterated over from the returned ResultQuadsStream,
+     * so that the result is never entirely held in memory.
+     * The ResultQuadsStream should be closed when it is not entirely consumed.
+     *
+     * @param database The target database
+     * @param sparql   The SPARQL command(s)
+     * @param logger   The logger for the errors when decoding the quads
+     * @return The protocol reply
+     */
+    Reply dbSPARQL(String database, String sparql, Logger logger) {
         // not logged in
         if (currentUser == null)
             return ReplyNetworkError.instance();
-        // supposed to be logged-in
-        Reply reply = XOWLReplyUtils.fromHttpResponse(connection.request(
-                "/databases/" + URIUtils.encodeComponent(database) + "/sparql",
-                HttpConstants.METHOD_POST,
-                sparql,
-                Command.MIME_SPARQL_QUERY,
-                Repository.SYNTAX_NQUADS + ", " + Result.SYNTAX_JSON), deserializer);
-        if (reply != ReplyExpiredSession.instance())
-            // not an authentication problem => return this reply
-            return reply;
-        // try to re-login
-        reply = login(currentLogin, currentPassword);
-        if (!reply.isSuccess())
-            // failed => unauthenticated
-            return ReplyUnauthenticated.instance();
-        // now that we are logged-in, retry
-        return XOWLReplyUtils.fromHttpResponse(connection.request(
-                "/databases/" + URIUtils.encodeComponent(database) + "/sparql",
-                HttpConstants.METHOD_POST,
-                sparql,
-                Command.MIME_SPARQL_QUERY,
-                Repository.SYNTAX_NQUADS + ", " + Result.SYNTAX_JSON), deserializer);
+        try {
+            HttpURLConnection request = streaming.open(
+                    "/databases/" + URIUtils.encodeComponent(database) + "/sparql",
+                    HttpConstants.METHOD_POST,
+                    Command.MIME_SPARQL_QUERY,
+                    false,
+                    Repository.SYNTAX_RDF_BINARY + ", " + Repository.SYNTAX_NQUADS + ", " + Result.SYNTAX_JSON,
+                    currentLogin,
+                    currentPassword);
+            try (Writer writer = new OutputStreamWriter(request.getOutputStream(), IOUtils.CHARSET)) {
+                writer.write(sparql);
+            }
+            return streaming.getReply(request, deserializer, logger);
+        } catch (IOException exception) {
+            Logging.get().error(exception);
+            return ReplyNetworkError.instance();
+        }
     }
 
     /**
@@ -1105,6 +1141,7 @@ public class RemoteServer implements XOWLServer {
 
     /**
      * Uploads some content to this database
+     * The content is compressed with gzip as it is sent.
      *
      * @param database The target database
      * @param syntax   The content's syntax
@@ -1112,44 +1149,66 @@ public class RemoteServer implements XOWLServer {
      * @return The protocol reply
      */
     Reply dbUpload(String database, String syntax, String content) {
-        byte[] input;
+        // not logged in
+        if (currentUser == null)
+            return ReplyNetworkError.instance();
         try {
-            ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
-            GZIPOutputStream compressor = new GZIPOutputStream(byteBuffer);
-            input = content.getBytes(IOUtils.CHARSET);
-            compressor.write(input, 0, input.length);
-            compressor.finish();
-            input = byteBuffer.toByteArray();
+            HttpURLConnection request = streaming.open(
+                    "/databases/" + URIUtils.encodeComponent(database),
+                    HttpConstants.METHOD_POST,
+                    syntax,
+                    true,
+                    HttpConstants.MIME_JSON,
+                    currentLogin,
+                    currentPassword);
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(request.getOutputStream(), StreamingConnection.CHUNK_SIZE), IOUtils.CHARSET)) {
+                writer.write(content);
+            }
+            return streaming.getReply(request, deserializer, Logging.get());
         } catch (IOException exception) {
             return new ReplyException(exception);
         }
+    }
+
+    /**
+     * Uploads some content to this database
+     * The content is read from the input and compressed with gzip as it is sent, it is never entirely held in memory.
+     * The input is not closed.
+     *
+     * @param database The target database
+     * @param syntax   The content's syntax
+     * @param input    The stream for the content
+     * @return The protocol reply
+     */
+    Reply dbUpload(String database, String syntax, InputStream input) {
         // not logged in
         if (currentUser == null)
             return ReplyNetworkError.instance();
-        // supposed to be logged-in
-        Reply reply = XOWLReplyUtils.fromHttpResponse(connection.request(
-                "/databases/" + URIUtils.encodeComponent(database),
-                HttpConstants.METHOD_POST,
-                input,
-                syntax,
-                true,
-                HttpConstants.MIME_JSON), deserializer);
-        if (reply != ReplyExpiredSession.instance())
-            // not an authentication problem => return this reply
-            return reply;
-        // try to re-login
-        reply = login(currentLogin, currentPassword);
-        if (!reply.isSuccess())
-            // failed => unauthenticated
-            return ReplyUnauthenticated.instance();
-        // now that we are logged-in, retry
-        return XOWLReplyUtils.fromHttpResponse(connection.request(
-                "/databases/" + URIUtils.encodeComponent(database),
-                HttpConstants.METHOD_POST,
-                input,
-                syntax,
-                true,
-                HttpConstants.MIME_JSON), deserializer);
+        try {
+            HttpURLConnection request = streaming.open(
+                    "/databases/" + URIUtils.encodeComponent(database),
+                    HttpConstants.METHOD_POST,
+                    syntax,
+                    !Repository.SYNTAX_RDF_BINARY.equals(syntax),
+                    HttpConstants.MIME_JSON,
+                    currentLogin,
+                    currentPassword);
+            OutputStream output = request.getOutputStream();
+            if (!Repository.SYNTAX_RDF_BINARY.equals(syntax))
+                // the binary syntax is already compressed
+                output = new GZIPOutputStream(output, StreamingConnection.CHUNK_SIZE);
+            try (OutputStream stream = output) {
+                byte[] buffer = new byte[StreamingConnection.CHUNK_SIZE];
+                int read = input.read(buffer);
+                while (read >= 0) {
+                    stream.write(buffer, 0, read);
+                    read = input.read(buffer);
+                }
+            }
+            return streaming.getReply(request, deserializer, Logging.get());
+        } catch (IOException exception) {
+            return new ReplyException(exception);
+        }
     }
 
     /**
@@ -1160,15 +1219,50 @@ public class RemoteServer implements XOWLServer {
      * @return The protocol reply
      */
     Reply dbUpload(String database, Collection<Quad> quads) {
-        if (connection == null)
+        return dbUpload(database, quads.iterator());
+    }
+
+    /**
+     * Uploads quads to this database
+     * The quads are serialized in the compact binary RDF syntax as they are sent.
+     * When the serialization fails, the request is aborted and none of the quads are committed.
+     *
+     * @param database The target database
+     * @param quads    The quads to upload
+     * @return The protocol reply
+     */
+    Reply dbUpload(String database, Iterator<Quad> quads) {
+        // not logged in
+        if (currentUser == null)
             return ReplyNetworkError.instance();
-        StringWriter writer = new StringWriter();
-        NQuadsSerializer serializer = new NQuadsSerializer(writer);
-        BufferedLogger logger = new BufferedLogger();
-        serializer.serialize(logger, quads.iterator());
-        if (!logger.getErrorMessages().isEmpty())
-            return new ReplyApiError(ApiV1.ERROR_SERIALIZATION_FAILED, logger.getErrorsAsString());
-        return dbUpload(database, writer.toString(), Repository.SYNTAX_NQUADS);
+        try {
+            HttpURLConnection request = streaming.open(
+                    "/databases/" + URIUtils.encodeComponent(database),
+                    HttpConstants.METHOD_POST,
+                    Repository.SYNTAX_RDF_BINARY,
+                    false,
+                    HttpConstants.MIME_JSON,
+                    currentLogin,
+                    currentPassword);
+            BufferedLogger logger = new BufferedLogger();
+            OutputStream output = request.getOutputStream();
+            boolean complete = false;
+            try {
+                new BinaryRDFSerializer(output).serialize(logger, quads);
+                complete = logger.getErrorMessages().isEmpty();
+            } finally {
+                if (!complete)
+                    // closing the output would send the last chunk and the server would commit the partial content
+                    // closing the connection first leaves the body unterminated so that the server rejects it
+                    request.disconnect();
+            }
+            if (!complete)
+                return new ReplyApiError(ApiV1.ERROR_SERIALIZATION_FAILED, logger.getErrorsAsString());
+            output.close();
+            return streaming.getReply(request, deserializer, Logging.get());
+        } catch (IOException exception) {
+            return new ReplyException(exception);
+        }
     }
 
     @Override
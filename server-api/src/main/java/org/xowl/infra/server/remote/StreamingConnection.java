@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.remote;
+
+import fr.cenotelie.commons.utils.Base64;
+import fr.cenotelie.commons.utils.IOUtils;
+import fr.cenotelie.commons.utils.api.ApiDeserializer;
+import fr.cenotelie.commons.utils.api.Reply;
+import fr.cenotelie.commons.utils.api.ReplyResult;
+import fr.cenotelie.commons.utils.http.HttpConstants;
+import fr.cenotelie.commons.utils.http.HttpResponse;
+import fr.cenotelie.commons.utils.logging.Logger;
+import org.xowl.infra.server.api.XOWLReplyUtils;
+import org.xowl.infra.store.Repository;
+import org.xowl.infra.store.loaders.BinaryRDFLoader;
+import org.xowl.infra.store.rdf.Quad;
+import org.xowl.infra.store.sparql.ResultQuadsStream;
+
+import javax.net.ssl.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Represents a connection to a remote xOWL server for the requests with streamed contents
+ * Contrary to the HttpConnection, the request and response bodies are not buffered in memory:
+ * the request body is sent with the chunked transfer encoding as it is produced
+ * and the response body is read from the connection as it is consumed.
+ * The requests are authenticated with the HTTP basic scheme so that they do not depend on a session.
+ * As for the HttpConnection, the certificate of the remote server is not verified, so that self-signed certificates can be used.
+ *
+ * @author Laurent Wouters
+ */
+class StreamingConnection {
+    /**
+     * The size of the chunks for the request bodies
+     */
+    public static final int CHUNK_SIZE = 1 << 16;
+    /**
+     * The header for the accepted content encodings
+     */
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    /**
+     * The gzip content encoding
+     */
+    private static final String ENCODING_GZIP = "gzip";
+
+    /**
+     * The SSL context that accepts all the certificates, if it could be created
+     */
+    private static final SSLContext SSL_CONTEXT = createSSLContext();
+    /**
+     * The verifier that accepts all the host names
+     */
+    private static final HostnameVerifier HOSTNAME_VERIFIER = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    };
+
+    /**
+     * Creates the SSL context that accepts all the certificates
+     *
+     * @return The SSL context, or null if it cannot be created
+     */
+    private static SSLContext createSSLContext() {
+        TrustManager[] trustManagers = new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }};
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers, new SecureRandom());
+            return context;
+        } catch (GeneralSecurityException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * The endpoint of the remote server, including the API prefix
+     */
+    private final String endpoint;
+
+    /**
+     * Initializes this connection
+     *
+     * @param endpoint The endpoint of the remote server, including the API prefix
+     */
+    public StreamingConnection(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Opens a request to the remote server
+     * When a content type is specified, the request has a body that is to be written to the connection's output stream.
+     *
+     * @param uriComplement The complement to the endpoint for the requested resource
+     * @param method        The HTTP method
+     * @param contentType   The type of the request body, or null if there is no body
+     * @param compressed    Whether the request body is compressed with gzip
+     * @param accept        The accepted content types for the response
+     * @param login         The login of the user
+     * @param password      The password of the user
+     * @return The opened connection
+     * @throws IOException When the connection cannot be opened
+     */
+    public HttpURLConnection open(String uriComplement, String method, String contentType, boolean compressed, String accept, String login, String password) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + uriComplement).openConnection();
+        if (connection instanceof HttpsURLConnection && SSL_CONTEXT != null) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(SSL_CONTEXT.getSocketFactory());
+            ((HttpsURLConnection) connection).setHostnameVerifier(HOSTNAME_VERIFIER);
+        }
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setRequestProperty(HttpConstants.HEADER_ACCEPT, accept);
+        connection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        connection.setRequestProperty(HttpConstants.HEADER_AUTHORIZATION, "Basic " + Base64.encodeBase64((login + ":" + password).getBytes(IOUtils.CHARSET)));
+        if (contentType != null) {
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+            connection.setRequestProperty(HttpConstants.HEADER_CONTENT_TYPE, contentType);
+            if (compressed)
+                connection.setRequestProperty(HttpConstants.HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+        }
+        return connection;
+    }
+
+    /**
+     * Gets the API reply for the response to a request
+     * When the response is made of quads in the compact binary RDF syntax, the result is a ResultQuadsStream
+     * that decodes the quads as they are iterated over; otherwise the response body is entirely read.
+     *
+     * @param connection   The connection for the request
+     * @param deserializer The deserializer to use
+     * @param logger       The logger for the errors when decoding streamed quads
+     * @return The API reply
+     * @throws IOException When reading the response failed
+     */
+    public Reply getReply(HttpURLConnection connection, ApiDeserializer deserializer, Logger logger) throws IOException {
+        int code = connection.getResponseCode();
+        String contentType = connection.getContentType();
+        InputStream stream = getResponseStream(connection);
+        if (code == HttpURLConnection.HTTP_OK && stream != null && contentType != null && contentType.startsWith(Repository.SYNTAX_RDF_BINARY)) {
+            Iterator<Quad> quads = new BinaryRDFLoader().iterate(logger, stream);
+            return new ReplyResult<>(new ResultQuadsStream(quads, stream));
+        }
+        String body = null;
+        if (stream != null) {
+            try (InputStream input = stream) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read = input.read(buffer);
+                while (read > 0) {
+                    output.write(buffer, 0, read);
+                    read = input.read(buffer);
+                }
+                if (output.size() > 0)
+                    body = new String(output.toByteArray(), IOUtils.CHARSET);
+            }
+        }
+        return XOWLReplyUtils.fromHttpResponse(new HttpResponse(code, contentType, body), deserializer);
+    }
+
+    /**
+     * Gets the stream for the response body of a request
+     *
+     * @param connection The connection for the request
+     * @return The stream for the response body, or null if there is none
+     * @throws IOException When the stream cannot be opened
+     */
+    private static InputStream getResponseStream(HttpURLConnection connection) throws IOException {
+        InputStream stream = connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+        if (stream == null)
+            return null;
+        if (ENCODING_GZIP.equals(connection.getContentEncoding()))
+            return new GZIPInputStream(stream);
+        return stream;
+    }
+}
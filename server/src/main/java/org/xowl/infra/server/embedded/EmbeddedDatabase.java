@@ -23,6 +23,7 @@ import fr.cenotelie.commons.utils.logging.Logger;
 import org.xowl.infra.server.api.*;
 import org.xowl.infra.server.impl.ControllerDatabase;
 import org.xowl.infra.server.impl.ControllerServer;
+import org.xowl.infra.server.impl.DatabaseBusyException;
 import org.xowl.infra.server.impl.DatabaseImpl;
 import org.xowl.infra.server.impl.UserImpl;
 import org.xowl.infra.store.EntailmentRegime;
@@ -78,14 +79,22 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
 
     @Override
     public Reply sparql(String sparql, List<String> defaultIRIs, List<String> namedIRIs) {
-        Result result = dbController.sparql(sparql, defaultIRIs, namedIRIs, false);
-        return new ReplyResult<>(result);
+        try {
+            Result result = dbController.sparql(sparql, defaultIRIs, namedIRIs, false);
+            return new ReplyResult<>(result);
+        } catch (DatabaseBusyException exception) {
+            return DatabaseBusyException.toReply(logger, exception);
+        }
     }
 
     @Override
     public Reply sparql(Command sparql) {
-        Result result = dbController.sparql(sparql, false);
-        return new ReplyResult<>(result);
+        try {
+            Result result = dbController.sparql(sparql, false);
+            return new ReplyResult<>(result);
+        } catch (DatabaseBusyException exception) {
+            return DatabaseBusyException.toReply(logger, exception);
+        }
     }
 
     @Override
@@ -98,8 +107,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
         try {
             dbController.setEntailmentRegime(regime);
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
         return ReplySuccess.instance();
     }
@@ -159,8 +167,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
             XOWLRule rule = dbController.addRule(content, activate);
             return new ReplyResult<>(rule);
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
     }
 
@@ -175,8 +182,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
             dbController.removeRule(ruleId);
             return ReplySuccess.instance();
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
     }
 
@@ -191,8 +197,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
             dbController.activateRule(ruleId);
             return ReplySuccess.instance();
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
     }
 
@@ -207,8 +212,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
             dbController.deactivateRule(ruleId);
             return ReplySuccess.instance();
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
     }
 
@@ -292,8 +296,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
             Result result = dbController.executeStoredProcedure(procedureId, context, false);
             return new ReplyResult<>(result);
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
     }
 
@@ -306,8 +309,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
                 return new ReplyApiError(ApiV1.ERROR_CONTENT_PARSING_FAILED, logger.getErrorsAsString());
             return ReplySuccess.instance();
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
     }
 
@@ -317,8 +319,7 @@ abstract class EmbeddedDatabase extends DatabaseImpl {
             dbController.upload(quads);
             return ReplySuccess.instance();
         } catch (Exception exception) {
-            logger.error(exception);
-            return new ReplyException(exception);
+            return DatabaseBusyException.toReply(logger, exception);
         }
     }
 }
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.impl;
+
+import fr.cenotelie.commons.utils.collections.Couple;
+import fr.cenotelie.commons.utils.metrics.*;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implements the admission control of the threads that access a database
+ * At most a maximum number of threads are admitted at the same time.
+ * The writing threads are exclusive to each other: at most one writer is admitted at any time, while the readers, that work on snapshots, are admitted concurrently with it.
+ * A writer can then commit or rollback the transaction on the store without touching the changes of another writer.
+ * This exclusivity holds even when there is no limit on the number of admitted threads.
+ * The other threads wait in a bounded queue, with one queue for the reading threads and one for the writing threads.
+ * Waiting threads are admitted in the order of their arrival in each queue, alternating between the two queues so that none can be starved.
+ * A thread is rejected when its queue is full, or when it could not be admitted before its deadline.
+ *
+ * @author Laurent Wouters
+ */
+class AdmissionController {
+    /**
+     * The maximum number of admitted threads
+     */
+    private final int maxThreads;
+    /**
+     * The maximum number of waiting threads in each queue
+     */
+    private final int maxQueue;
+    /**
+     * The maximum time to wait for the admission, in milliseconds
+     */
+    private final long maxWait;
+    /**
+     * The lock for the queues
+     */
+    private final ReentrantLock lock;
+    /**
+     * The queue of the waiting readers
+     */
+    private final Deque<Ticket> queueReaders;
+    /**
+     * The queue of the waiting writers
+     */
+    private final Deque<Ticket> queueWriters;
+    /**
+     * The current number of admitted threads
+     */
+    private int current;
+    /**
+     * Whether a writer is currently admitted
+     */
+    private boolean writerAdmitted;
+    /**
+     * Whether the writers have priority for the next admission
+     */
+    private boolean writersFirst;
+    /**
+     * The total number of admitted threads
+     */
+    private final AtomicLong admittedCount;
+    /**
+     * The total number of rejected threads
+     */
+    private final AtomicLong rejectedCount;
+    /**
+     * The total time spent waiting by the admitted threads, in nanoseconds
+     */
+    private final AtomicLong waitTime;
+    /**
+     * The metric for the number of waiting readers
+     */
+    private final Metric metricQueueReaders;
+    /**
+     * The metric for the number of waiting writers
+     */
+    private final Metric metricQueueWriters;
+    /**
+     * The metric for the number of rejected threads
+     */
+    private final Metric metricRejected;
+    /**
+     * The metric for the average waiting time
+     */
+    private final Metric metricWaitTime;
+    /**
+     * The composite metric for this controller
+     */
+    private final MetricComposite metricAdmission;
+
+    /**
+     * A ticket for a waiting thread
+     */
+    private static class Ticket {
+        /**
+         * The condition signalled when the thread is admitted
+         */
+        public final Condition condition;
+        /**
+         * Whether the thread has been admitted
+         */
+        public boolean admitted;
+
+        /**
+         * Initializes this ticket
+         *
+         * @param condition The condition signalled when the thread is admitted
+         */
+        public Ticket(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * Initializes this controller
+     *
+     * @param name       The name of the controlled database
+     * @param maxThreads The maximum number of admitted threads, or 0 or less for no limit
+     * @param maxQueue   The maximum number of waiting threads in each queue
+     * @param maxWait    The maximum time to wait for the admission, in milliseconds
+     */
+    public AdmissionController(String name, int maxThreads, int maxQueue, long maxWait) {
+        this.maxThreads = maxThreads;
+        this.maxQueue = maxQueue;
+        this.maxWait = maxWait;
+        this.lock = new ReentrantLock();
+        this.queueReaders = new ArrayDeque<>();
+        this.queueWriters = new ArrayDeque<>();
+        this.admittedCount = new AtomicLong(0);
+        this.rejectedCount = new AtomicLong(0);
+        this.waitTime = new AtomicLong(0);
+        this.metricQueueReaders = new MetricBase(AdmissionController.class.getCanonicalName() + "[" + name + "].QueueReaders",
+                "Database " + name + " - Waiting readers",
+                "threads",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"),
+                new Couple<>(Metric.HINT_MAX_VALUE, Integer.toString(maxQueue)));
+        this.metricQueueWriters = new MetricBase(AdmissionController.class.getCanonicalName() + "[" + name + "].QueueWriters",
+                "Database " + name + " - Waiting writers",
+                "threads",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"),
+                new Couple<>(Metric.HINT_MAX_VALUE, Integer.toString(maxQueue)));
+        this.metricRejected = new MetricBase(AdmissionController.class.getCanonicalName() + "[" + name + "].Rejected",
+                "Database " + name + " - Rejected requests",
+                "requests",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricWaitTime = new MetricBase(AdmissionController.class.getCanonicalName() + "[" + name + "].WaitTime",
+                "Database " + name + " - Average waiting time",
+                "ms",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricAdmission = new MetricComposite(AdmissionController.class.getCanonicalName() + "[" + name + "]",
+                "Database " + name + " - Admission control",
+                1000000000,
+                metricQueueReaders, metricQueueWriters, metricRejected, metricWaitTime);
+    }
+
+    /**
+     * Gets the composite metric for this controller
+     *
+     * @return The metric for this controller
+     */
+    public Metric getMetric() {
+        return metricAdmission;
+    }
+
+    /**
+     * Gets a snapshot of the metrics for this controller
+     *
+     * @param timestamp The timestamp to use
+     * @return The snapshot
+     */
+    public MetricSnapshot getMetricSnapshot(long timestamp) {
+        int readers;
+        int writers;
+        lock.lock();
+        try {
+            readers = queueReaders.size();
+            writers = queueWriters.size();
+        } finally {
+            lock.unlock();
+        }
+        long admitted = admittedCount.get();
+        MetricSnapshotComposite snapshot = new MetricSnapshotComposite(timestamp);
+        snapshot.addPart(metricQueueReaders, new MetricSnapshotInt(timestamp, readers));
+        snapshot.addPart(metricQueueWriters, new MetricSnapshotInt(timestamp, writers));
+        snapshot.addPart(metricRejected, new MetricSnapshotLong(timestamp, rejectedCount.get()));
+        snapshot.addPart(metricWaitTime, new MetricSnapshotLong(timestamp, admitted == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitTime.get() / admitted)));
+        return snapshot;
+    }
+
+    /**
+     * When a thread requests to access the database
+     * The thread waits until it is admitted.
+     *
+     * @param isWriter Whether the thread will write to the database
+     * @throws DatabaseBusyException When the thread is rejected
+     */
+    public void enter(boolean isWriter) throws DatabaseBusyException {
+        long start = System.nanoTime();
+        Deque<Ticket> queue = isWriter ? queueWriters : queueReaders;
+        lock.lock();
+        try {
+            // the waiting writers do not block the readers when they only wait for the admitted writer
+            if (hasCapacity() && queueReaders.isEmpty() && (isWriter ? (!writerAdmitted && queueWriters.isEmpty()) : (writerAdmitted || queueWriters.isEmpty()))) {
+                current++;
+                if (isWriter)
+                    writerAdmitted = true;
+                admittedCount.incrementAndGet();
+                return;
+            }
+            if (queue.size() >= maxQueue) {
+                rejectedCount.incrementAndGet();
+                throw new DatabaseBusyException("Too many waiting requests");
+            }
+            Ticket ticket = new Ticket(lock.newCondition());
+            queue.addLast(ticket);
+            long remaining = TimeUnit.MILLISECONDS.toNanos(maxWait);
+            boolean interrupted = false;
+            while (!ticket.admitted && remaining > 0) {
+                try {
+                    remaining = ticket.condition.awaitNanos(remaining);
+                } catch (InterruptedException exception) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (!ticket.admitted) {
+                queue.remove(ticket);
+                rejectedCount.incrementAndGet();
+                // a writer may have been waiting only for this one
+                admitWaiting();
+                throw new DatabaseBusyException("The request could not be admitted in time");
+            }
+            admittedCount.incrementAndGet();
+            waitTime.addAndGet(System.nanoTime() - start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * When an admitted thread is leaving the database
+     *
+     * @param isWriter Whether the thread was admitted as a writer
+     */
+    public void exit(boolean isWriter) {
+        lock.lock();
+        try {
+            current--;
+            if (isWriter)
+                writerAdmitted = false;
+            admitWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets whether another thread can be admitted with respect to the maximum number of threads
+     *
+     * @return Whether another thread can be admitted
+     */
+    private boolean hasCapacity() {
+        return maxThreads <= 0 || current < maxThreads;
+    }
+
+    /**
+     * Admits the waiting threads as long as possible
+     * This method must be called while holding the lock.
+     */
+    private void admitWaiting() {
+        while (hasCapacity()) {
+            boolean canReader = !queueReaders.isEmpty();
+            boolean canWriter = !writerAdmitted && !queueWriters.isEmpty();
+            if (!canReader && !canWriter)
+                return;
+            boolean isWriter = canWriter && (writersFirst || !canReader);
+            writersFirst = !isWriter;
+            Ticket ticket = isWriter ? queueWriters.pollFirst() : queueReaders.pollFirst();
+            ticket.admitted = true;
+            current++;
+            if (isWriter)
+                writerAdmitted = true;
+            ticket.condition.signal();
+        }
+    }
+}
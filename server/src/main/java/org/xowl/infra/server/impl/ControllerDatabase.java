@@ -26,6 +26,7 @@ import fr.cenotelie.commons.utils.logging.Logger;
 import fr.cenotelie.commons.utils.metrics.Metric;
 import fr.cenotelie.commons.utils.metrics.MetricComposite;
 import fr.cenotelie.commons.utils.metrics.MetricSnapshot;
+import fr.cenotelie.commons.utils.metrics.MetricSnapshotComposite;
 import fr.cenotelie.hime.redist.ASTNode;
 import org.xowl.infra.server.api.XOWLDatabaseConfiguration;
 import org.xowl.infra.server.api.XOWLRule;
@@ -35,6 +36,7 @@ import org.xowl.infra.server.base.BaseRule;
 import org.xowl.infra.server.base.BaseStoredProcedure;
 import org.xowl.infra.server.base.BaseStoredProcedureContext;
 import org.xowl.infra.store.*;
+import org.xowl.infra.store.loaders.NQuadsStreamLoader;
 import org.xowl.infra.store.loaders.RDFLoaderResult;
 import org.xowl.infra.store.loaders.SPARQLLoader;
 import org.xowl.infra.store.loaders.xRDFLoader;
@@ -51,7 +53,6 @@ import org.xowl.infra.store.storage.UnsupportedNodeType;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements a controller for a database.
@@ -80,6 +81,22 @@ public class ControllerDatabase implements Closeable {
      * The configuration property for the maximum of concurrent threads
      */
     private static final String CONFIG_MAX_THREADS = "maxThreads";
+    /**
+     * The configuration property for the maximum of waiting threads for reading, and for writing
+     */
+    private static final String CONFIG_MAX_QUEUE = "maxQueue";
+    /**
+     * The configuration property for the maximum time in milliseconds that a thread waits for accessing the database
+     */
+    private static final String CONFIG_MAX_WAIT = "maxWait";
+    /**
+     * The default maximum of waiting threads for reading, and for writing
+     */
+    private static final int DEFAULT_MAX_QUEUE = 64;
+    /**
+     * The default maximum time in milliseconds that a thread waits for accessing the database
+     */
+    private static final int DEFAULT_MAX_WAIT = 30000;
     /**
      * The configuration property for the storage engine
      */
@@ -92,6 +109,14 @@ public class ControllerDatabase implements Closeable {
      * The configuration property for the entailment regime
      */
     private static final String CONFIG_ENTAILMENT = "entailment";
+    /**
+     * The configuration property for the storage of the inferences
+     */
+    private static final String CONFIG_INFERENCES = "inferences";
+    /**
+     * The configuration value for the storage of the inferences specifying that they are persisted
+     */
+    private static final String CONFIG_INFERENCES_PERSISTED = "persisted";
     /**
      * The configuration section for the rules
      */
@@ -139,13 +164,9 @@ public class ControllerDatabase implements Closeable {
      */
     private final Map<String, BaseStoredProcedure> procedures;
     /**
-     * The maximum number of concurrent threads for this database
+     * The admission control for the threads accessing this database
      */
-    private final int maxThreads;
-    /**
-     * The current number of threads on this database
-     */
-    private final AtomicInteger currentThreads;
+    private final AdmissionController admission;
     /**
      * The composite metric for this database
      */
@@ -190,9 +211,14 @@ public class ControllerDatabase implements Closeable {
         }
         this.repository = createRepository(configuration, location);
         this.procedures = new HashMap<>();
-        this.maxThreads = getMaxThreads(defaultMaxThread, configuration);
-        this.currentThreads = new AtomicInteger(0);
-        this.metricDB = new MetricComposite((MetricComposite) repository.getStore().getMetric(), "Database " + location.getAbsolutePath());
+        this.admission = new AdmissionController(this.name,
+                getMaxThreads(defaultMaxThread, configuration),
+                getConfigValue(configuration, CONFIG_MAX_QUEUE, DEFAULT_MAX_QUEUE),
+                getConfigValue(configuration, CONFIG_MAX_WAIT, DEFAULT_MAX_WAIT));
+        this.metricDB = new MetricComposite(ControllerDatabase.class.getCanonicalName() + "[" + this.name + "]",
+                "Database " + location.getAbsolutePath(),
+                1000000000,
+                repository.getStore().getMetric(), admission.getMetric());
         initRepository();
         if (initConfig != null) {
             for (XOWLRule rule : initConfig.getRules()) {
@@ -218,9 +244,14 @@ public class ControllerDatabase implements Closeable {
         this.configuration = loadConfiguration(location);
         this.repository = createRepository(configuration, location);
         this.procedures = new HashMap<>();
-        this.maxThreads = getMaxThreads(defaultMaxThread, configuration);
-        this.currentThreads = new AtomicInteger(0);
-        this.metricDB = new MetricComposite((MetricComposite) repository.getStore().getMetric(), "Database " + location.getAbsolutePath());
+        this.admission = new AdmissionController(this.name,
+                getMaxThreads(defaultMaxThread, configuration),
+                getConfigValue(configuration, CONFIG_MAX_QUEUE, DEFAULT_MAX_QUEUE),
+                getConfigValue(configuration, CONFIG_MAX_WAIT, DEFAULT_MAX_WAIT));
+        this.metricDB = new MetricComposite(ControllerDatabase.class.getCanonicalName() + "[" + this.name + "]",
+                "Database " + location.getAbsolutePath(),
+                1000000000,
+                repository.getStore().getMetric(), admission.getMetric());
         initRepository();
         this.proxy = repository.resolveProxy(Schema.ADMIN_GRAPH_DBS + adminDbName);
     }
@@ -254,9 +285,13 @@ public class ControllerDatabase implements Closeable {
      * @return The repository
      */
     private static RepositoryRDF createRepository(IniDocument configuration, File location) {
-        BaseStore store = Objects.equals(configuration.get(CONFIG_STORAGE), CONFIG_STORAGE_MEMORY) ?
-                StoreFactory.create().inMemory().withReasoning().make() :
-                StoreFactory.create().onDisk(location).withReasoning().make();
+        BaseStore store;
+        if (Objects.equals(configuration.get(CONFIG_STORAGE), CONFIG_STORAGE_MEMORY))
+            store = StoreFactory.create().inMemory().withReasoning().make();
+        else if (Objects.equals(configuration.get(CONFIG_INFERENCES), CONFIG_INFERENCES_PERSISTED))
+            store = StoreFactory.create().onDisk(location).withReasoning().withPersistedInferences().make();
+        else
+            store = StoreFactory.create().onDisk(location).withReasoning().make();
         return new RepositoryRDF(store, IRIMapper.getDefault(), false);
     }
 
@@ -276,6 +311,22 @@ public class ControllerDatabase implements Closeable {
         return value;
     }
 
+    /**
+     * Gets the positive integer value of a configuration property
+     *
+     * @param configuration The current configuration
+     * @param property      The configuration property
+     * @param defaultValue  The default value
+     * @return The value of the property
+     */
+    private static int getConfigValue(IniDocument configuration, String property, int defaultValue) {
+        String value = configuration.get(property);
+        if (value == null)
+            return defaultValue;
+        int result = Integer.parseInt(value);
+        return result <= 0 ? defaultValue : result;
+    }
+
     /**
      * Initializes the repository from configuration
      */
@@ -286,38 +337,32 @@ public class ControllerDatabase implements Closeable {
         for (String rule : configuration.getAll(CONFIG_SECTION_RULES, CONFIG_ACTIVE_RULES)) {
             doActivateRule(rule);
         }
+        // all the rules are re-activated, reconcile the persisted inferences, if any
+        repository.getStore().onReasoningResumed();
+        if (Objects.equals(configuration.get(CONFIG_INFERENCES), CONFIG_INFERENCES_PERSISTED))
+            repository.getStore().commit();
     }
 
 
     /**
-     * When a new threads is touching this database
+     * When a new thread is touching this database
+     * The thread waits until it is admitted by the admission control.
+     * The writers are admitted one at a time, the readers are admitted concurrently with them.
+     *
+     * @param isWriter Whether the thread will write to the database
+     * @throws DatabaseBusyException When the thread is rejected because the database is overloaded
      */
-    private void onThreadEnter() {
-        if (maxThreads <= 0)
-            return;
-        int tries = 0;
-        while (true) {
-            int number = currentThreads.get();
-            if (number < maxThreads && currentThreads.compareAndSet(number, number + 1))
-                return;
-            tries++;
-            if (tries > 50) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException exception) {
-                    exception.printStackTrace();
-                }
-            }
-        }
+    private void onThreadEnter(boolean isWriter) throws DatabaseBusyException {
+        admission.enter(isWriter);
     }
 
     /**
      * When a thread is leaving this database
+     *
+     * @param isWriter Whether the thread was writing to the database
      */
-    private void onThreadExit() {
-        if (maxThreads <= 0)
-            return;
-        currentThreads.decrementAndGet();
+    private void onThreadExit(boolean isWriter) {
+        admission.exit(isWriter);
     }
 
     /**
@@ -344,7 +389,11 @@ public class ControllerDatabase implements Closeable {
      * @return The snapshot
      */
     public MetricSnapshot getMetricSnapshot() {
-        return repository.getStore().getMetricSnapshot(System.nanoTime());
+        long timestamp = System.nanoTime();
+        MetricSnapshotComposite snapshot = new MetricSnapshotComposite(timestamp);
+        snapshot.addPart(repository.getStore().getMetric(), repository.getStore().getMetricSnapshot(timestamp));
+        snapshot.addPart(admission.getMetric(), admission.getMetricSnapshot(timestamp));
+        return snapshot;
     }
 
     /**
@@ -355,31 +404,22 @@ public class ControllerDatabase implements Closeable {
      * @param namedIRIs   The context's named IRIs
      * @param isReadonly  Whether only reading is allowed for this command
      * @return The SPARQL result
+     * @throws DatabaseBusyException When the request is rejected because the database is overloaded
      */
-    public Result sparql(String sparql, List<String> defaultIRIs, List<String> namedIRIs, boolean isReadonly) {
-        onThreadEnter();
-        try {
-            BufferedLogger bufferedLogger = new BufferedLogger();
-            if (defaultIRIs == null)
-                defaultIRIs = Collections.emptyList();
-            if (namedIRIs == null)
-                namedIRIs = Collections.emptyList();
-            SPARQLLoader loader = new SPARQLLoader(repository.getStore(), defaultIRIs, namedIRIs);
-            Command command = loader.load(bufferedLogger, new StringReader(sparql));
-            if (command == null) {
-                // ill-formed request
-                bufferedLogger.error("Failed to parse and load the request");
-                return new ResultFailure(bufferedLogger.getErrorsAsString());
-            }
-            if (command.isUpdateCommand() && isReadonly)
-                return new ResultFailure("Database is read-only");
-            Result result = command.execute(repository);
-            if (command.isUpdateCommand())
-                repository.getStore().commit();
-            return result;
-        } finally {
-            onThreadExit();
+    public Result sparql(String sparql, List<String> defaultIRIs, List<String> namedIRIs, boolean isReadonly) throws DatabaseBusyException {
+        BufferedLogger bufferedLogger = new BufferedLogger();
+        if (defaultIRIs == null)
+            defaultIRIs = Collections.emptyList();
+        if (namedIRIs == null)
+            namedIRIs = Collections.emptyList();
+        SPARQLLoader loader = new SPARQLLoader(repository.getStore(), defaultIRIs, namedIRIs);
+        Command command = loader.load(bufferedLogger, new StringReader(sparql));
+        if (command == null) {
+            // ill-formed request
+            bufferedLogger.error("Failed to parse and load the request");
+            return new ResultFailure(bufferedLogger.getErrorsAsString());
         }
+        return sparql(command, isReadonly);
     }
 
     /**
@@ -388,24 +428,34 @@ public class ControllerDatabase implements Closeable {
      * @param sparql     The SPARQL command(s)
      * @param isReadonly Whether only reading is allowed for this command
      * @return The SPARQL result
+     * @throws DatabaseBusyException When the request is rejected because the database is overloaded
      */
-    public Result sparql(Command sparql, boolean isReadonly) {
-        onThreadEnter();
+    public Result sparql(Command sparql, boolean isReadonly) throws DatabaseBusyException {
+        if (sparql == null) {
+            // ill-formed request
+            BufferedLogger bufferedLogger = new BufferedLogger();
+            bufferedLogger.error("Failed to parse and load the request");
+            return new ResultFailure(bufferedLogger.getErrorsAsString());
+        }
+        if (sparql.isUpdateCommand() && isReadonly)
+            return new ResultFailure("Database is read-only");
+        onThreadEnter(sparql.isUpdateCommand());
         try {
-            if (sparql == null) {
-                // ill-formed request
-                BufferedLogger bufferedLogger = new BufferedLogger();
-                bufferedLogger.error("Failed to parse and load the request");
-                return new ResultFailure(bufferedLogger.getErrorsAsString());
-            }
-            if (sparql.isUpdateCommand() && isReadonly)
-                return new ResultFailure("Database is read-only");
-            Result result = sparql.execute(repository);
-            if (sparql.isUpdateCommand())
+            if (sparql.isUpdateCommand()) {
+                Result result = sparql.execute(repository);
                 repository.getStore().commit();
-            return result;
+                return result;
+            }
+            // the queries read from a snapshot so that they are isolated from the concurrent updates
+            boolean inSnapshot = repository.getStore().beginSnapshot();
+            try {
+                return sparql.execute(repository);
+            } finally {
+                if (inSnapshot)
+                    repository.getStore().endSnapshot();
+            }
         } finally {
-            onThreadExit();
+            onThreadExit(sparql.isUpdateCommand());
         }
     }
 
@@ -424,9 +474,10 @@ public class ControllerDatabase implements Closeable {
      * @param regime The entailment regime
      * @throws IllegalArgumentException When the specified entailment regime cannot be set
      * @throws IOException              When an IO operation fails
+     * @throws DatabaseBusyException    When the request is rejected because the database is overloaded
      */
     public void setEntailmentRegime(EntailmentRegime regime) throws Exception {
-        onThreadEnter();
+        onThreadEnter(true);
         try {
             // try to set the entailment regime
             repository.setEntailmentRegime(regime);
@@ -437,7 +488,7 @@ public class ControllerDatabase implements Closeable {
                 configuration.save((new File(location, REPO_CONF_NAME)));
             }
         } finally {
-            onThreadExit();
+            onThreadExit(true);
         }
     }
 
@@ -509,9 +560,10 @@ public class ControllerDatabase implements Closeable {
      * @return The added rule
      * @throws IOException              When the rule cannot be written
      * @throws IllegalArgumentException When the rule definition is not valid
+     * @throws DatabaseBusyException    When the request is rejected because the database is overloaded
      */
     public XOWLRule addRule(String content, boolean activate) throws IOException, IllegalArgumentException {
-        onThreadEnter();
+        onThreadEnter(true);
         try {
             File folder = new File(location, REPO_RULES);
             if (!folder.exists()) {
@@ -551,7 +603,7 @@ public class ControllerDatabase implements Closeable {
             }
             return new BaseRule(rule.getIRI(), rule.getSource(), activate);
         } finally {
-            onThreadExit();
+            onThreadExit(true);
         }
     }
 
@@ -561,9 +613,10 @@ public class ControllerDatabase implements Closeable {
      * @param iri The name of the rule to remove
      * @throws IOException              When the rule definition cannot be removed
      * @throws IllegalArgumentException When the rule is not in this database
+     * @throws DatabaseBusyException    When the request is rejected because the database is overloaded
      */
     public void removeRule(String iri) throws IOException, IllegalArgumentException {
-        onThreadEnter();
+        onThreadEnter(true);
         try {
             boolean removeFromEngine = false;
             synchronized (configuration) {
@@ -583,7 +636,7 @@ public class ControllerDatabase implements Closeable {
             if (removeFromEngine)
                 repository.getRDFRuleEngine().remove(iri);
         } finally {
-            onThreadExit();
+            onThreadExit(true);
         }
     }
 
@@ -593,9 +646,10 @@ public class ControllerDatabase implements Closeable {
      * @param iri The name of the rule to activate
      * @throws IOException              When the rule definition cannot be read
      * @throws IllegalArgumentException When the rule is not in this database
+     * @throws DatabaseBusyException    When the request is rejected because the database is overloaded
      */
     public void activateRule(String iri) throws IOException, IllegalArgumentException {
-        onThreadEnter();
+        onThreadEnter(true);
         try {
             synchronized (configuration) {
                 if (!configuration.hasValue(CONFIG_SECTION_RULES, CONFIG_ALL_RULES, iri))
@@ -607,7 +661,7 @@ public class ControllerDatabase implements Closeable {
             }
             doActivateRule(iri);
         } finally {
-            onThreadExit();
+            onThreadExit(true);
         }
     }
 
@@ -638,9 +692,10 @@ public class ControllerDatabase implements Closeable {
      * @param iri The name of the rule to deactivate
      * @throws IOException              When the configuration cannot be written
      * @throws IllegalArgumentException When the rule is not in this database
+     * @throws DatabaseBusyException    When the request is rejected because the database is overloaded
      */
     public void deactivateRule(String iri) throws IOException, IllegalArgumentException {
-        onThreadEnter();
+        onThreadEnter(true);
         try {
             synchronized (configuration) {
                 if (!configuration.hasValue(CONFIG_SECTION_RULES, CONFIG_ALL_RULES, iri))
@@ -652,7 +707,7 @@ public class ControllerDatabase implements Closeable {
             }
             repository.getRDFRuleEngine().remove(iri);
         } finally {
-            onThreadExit();
+            onThreadExit(true);
         }
     }
 
@@ -870,12 +925,79 @@ public class ControllerDatabase implements Closeable {
      * @throws Exception When the upload fails
      */
     public void upload(Logger logger, String syntax, String content) throws Exception {
-        onThreadEnter();
+        upload(logger, syntax, new StringReader(content));
+    }
+
+    /**
+     * Uploads some content to this database
+     * For the N-Triples and N-Quads syntaxes, the content is streamed into the store in batches.
+     * When the loading fails, the changes are rolled back.
+     * Because the writers are admitted one at a time, the rollback only discards the changes of this upload.
+     *
+     * @param logger The logger to use
+     * @param syntax The content's syntax
+     * @param reader The reader for the content
+     * @throws Exception             When the upload fails
+     * @throws DatabaseBusyException When the request is rejected because the database is overloaded
+     */
+    public void upload(Logger logger, String syntax, Reader reader) throws Exception {
+        onThreadEnter(true);
+        try {
+            boolean success;
+            switch (syntax) {
+                case Repository.SYNTAX_NTRIPLES:
+                    success = repository.loadStreamed(logger, reader, IRIs.GRAPH_DEFAULT, new NQuadsStreamLoader(repository.getStore(), false)) != null;
+                    break;
+                case Repository.SYNTAX_NQUADS:
+                    success = repository.loadStreamed(logger, reader, IRIs.GRAPH_DEFAULT, new NQuadsStreamLoader(repository.getStore(), true)) != null;
+                    break;
+                default:
+                    success = repository.load(logger, reader, IRIs.GRAPH_DEFAULT, IRIs.GRAPH_DEFAULT, syntax) != null;
+                    break;
+            }
+            if (!success) {
+                repository.getStore().rollback();
+                return;
+            }
+            repository.getStore().commit();
+        } catch (Exception exception) {
+            repository.getStore().rollback();
+            throw exception;
+        } finally {
+            onThreadExit(true);
+        }
+    }
+
+    /**
+     * Uploads some content to this database
+     * The content in the compact binary RDF syntax is streamed into the store,
+     * the other syntaxes are decoded as text.
+     * When the loading fails, the changes are rolled back.
+     * Because the writers are admitted one at a time, the rollback only discards the changes of this upload.
+     *
+     * @param logger The logger to use
+     * @param syntax The content's syntax
+     * @param input  The stream for the content
+     * @throws Exception             When the upload fails
+     * @throws DatabaseBusyException When the request is rejected because the database is overloaded
+     */
+    public void upload(Logger logger, String syntax, InputStream input) throws Exception {
+        if (!Repository.SYNTAX_RDF_BINARY.equals(syntax)) {
+            upload(logger, syntax, new BufferedReader(new InputStreamReader(input, IOUtils.CHARSET)));
+            return;
+        }
+        onThreadEnter(true);
         try {
-            repository.load(logger, new StringReader(content), IRIs.GRAPH_DEFAULT, IRIs.GRAPH_DEFAULT, syntax);
+            if (repository.load(logger, input, IRIs.GRAPH_DEFAULT) == null) {
+                repository.getStore().rollback();
+                return;
+            }
             repository.getStore().commit();
+        } catch (Exception exception) {
+            repository.getStore().rollback();
+            throw exception;
         } finally {
-            onThreadExit();
+            onThreadExit(true);
         }
     }
 
@@ -883,10 +1005,11 @@ public class ControllerDatabase implements Closeable {
      * Uploads quads to this database
      *
      * @param quads The quads to upload
-     * @throws Exception When the upload fails
+     * @throws Exception             When the upload fails
+     * @throws DatabaseBusyException When the request is rejected because the database is overloaded
      */
     public void upload(Collection<Quad> quads) throws Exception {
-        onThreadEnter();
+        onThreadEnter(true);
         try {
             repository.getStore().insert(Changeset.fromAdded(quads));
             repository.getStore().commit();
@@ -894,7 +1017,7 @@ public class ControllerDatabase implements Closeable {
             repository.getStore().rollback();
             throw exception;
         } finally {
-            onThreadExit();
+            onThreadExit(true);
         }
     }
 
@@ -37,6 +37,9 @@ import javax.crypto.Mac;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.InetAddress;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -85,6 +88,10 @@ public class ControllerServer implements Closeable {
      * The map of clients with failed login attempts
      */
     private final Map<InetAddress, ClientLogin> clients;
+    /**
+     * The cached privileges of the users on the databases
+     */
+    private final PrivilegeMatrix privileges;
 
     /**
      * Initializes this controller
@@ -115,10 +122,12 @@ public class ControllerServer implements Closeable {
         this.databases.put(adminDB.getIdentifier(), adminDB);
         this.clients = new HashMap<>();
         this.users = new HashMap<>();
+        this.privileges = new PrivilegeMatrix();
         if (isEmpty)
             initializeAdminDB();
         else
             initializeDatabases();
+        initializePrivileges();
         logger.info("Controller is ready");
     }
 
@@ -161,6 +170,22 @@ public class ControllerServer implements Closeable {
         }
     }
 
+    /**
+     * Initializes the matrix of privileges from the administration database
+     */
+    private void initializePrivileges() {
+        ProxyObject classUser = adminDB.dbController.getRepository().resolveProxy(Schema.ADMIN_USER);
+        for (ProxyObject poUser : classUser.getInstances()) {
+            String user = (String) poUser.getDataValue(Schema.ADMIN_NAME);
+            for (ProxyObject poDB : poUser.getObjectValues(Schema.ADMIN_ADMINOF))
+                privileges.grant(user, (String) poDB.getDataValue(Schema.ADMIN_NAME), XOWLPrivilege.ADMIN);
+            for (ProxyObject poDB : poUser.getObjectValues(Schema.ADMIN_CANWRITE))
+                privileges.grant(user, (String) poDB.getDataValue(Schema.ADMIN_NAME), XOWLPrivilege.WRITE);
+            for (ProxyObject poDB : poUser.getObjectValues(Schema.ADMIN_CANREAD))
+                privileges.grant(user, (String) poDB.getDataValue(Schema.ADMIN_NAME), XOWLPrivilege.READ);
+        }
+    }
+
     /**
      * Creates a new database
      *
@@ -498,8 +523,11 @@ public class ControllerServer implements Closeable {
             if (!IOUtils.deleteFolder(folder)) {
                 logger.error("Failed to delete " + folder.getAbsolutePath());
             }
-            database.dbController.proxy.delete();
-            adminDB.dbController.getRepository().getStore().commit();
+            synchronized (adminDB) {
+                database.dbController.proxy.delete();
+                adminDB.dbController.getRepository().getStore().commit();
+                privileges.removeDatabase(name);
+            }
         }
         return ReplySuccess.instance();
     }
@@ -560,8 +588,12 @@ public class ControllerServer implements Closeable {
             return ReplyNotFound.instance();
         boolean canWrite = checkCanWrite(client, db);
         if (canWrite || checkCanRead(client, db)) {
-            Result result = db.dbController.sparql(sparql, defaultIRIs, namedIRIs, !canWrite);
-            return new ReplyResult<>(result);
+            try {
+                Result result = db.dbController.sparql(sparql, defaultIRIs, namedIRIs, !canWrite);
+                return new ReplyResult<>(result);
+            } catch (DatabaseBusyException exception) {
+                return DatabaseBusyException.toReply(logger, exception);
+            }
         } else {
             return ReplyUnauthorized.instance();
         }
@@ -603,8 +635,7 @@ public class ControllerServer implements Closeable {
             try {
                 db.dbController.setEntailmentRegime(regime);
             } catch (Exception exception) {
-                logger.error(exception);
-                return new ReplyException(exception);
+                return DatabaseBusyException.toReply(logger, exception);
             }
             return ReplySuccess.instance();
         }
@@ -770,8 +801,7 @@ public class ControllerServer implements Closeable {
                 XOWLRule rule = db.dbController.addRule(content, activate);
                 return new ReplyResult<>(rule);
             } catch (Exception exception) {
-                logger.error(exception);
-                return new ReplyException(exception);
+                return DatabaseBusyException.toReply(logger, exception);
             }
         }
         return ReplyUnauthorized.instance();
@@ -796,8 +826,7 @@ public class ControllerServer implements Closeable {
                 db.dbController.removeRule(rule);
                 return ReplySuccess.instance();
             } catch (Exception exception) {
-                logger.error(exception);
-                return new ReplyException(exception);
+                return DatabaseBusyException.toReply(logger, exception);
             }
         }
         return ReplyUnauthorized.instance();
@@ -822,8 +851,7 @@ public class ControllerServer implements Closeable {
                 db.dbController.activateRule(rule);
                 return ReplySuccess.instance();
             } catch (Exception exception) {
-                logger.error(exception);
-                return new ReplyException(exception);
+                return DatabaseBusyException.toReply(logger, exception);
             }
         }
         return ReplyUnauthorized.instance();
@@ -848,8 +876,7 @@ public class ControllerServer implements Closeable {
                 db.dbController.deactivateRule(rule);
                 return ReplySuccess.instance();
             } catch (Exception exception) {
-                logger.error(exception);
-                return new ReplyException(exception);
+                return DatabaseBusyException.toReply(logger, exception);
             }
         }
         return ReplyUnauthorized.instance();
@@ -1011,8 +1038,7 @@ public class ControllerServer implements Closeable {
                 Result result = db.dbController.executeStoredProcedure(procedure, contextDefinition, !canWrite);
                 return new ReplyResult<>(result);
             } catch (Exception exception) {
-                logger.error(exception);
-                return new ReplyException(exception);
+                return DatabaseBusyException.toReply(logger, exception);
             }
         }
         return ReplyUnauthorized.instance();
@@ -1028,6 +1054,20 @@ public class ControllerServer implements Closeable {
      * @return The protocol reply
      */
     public Reply upload(UserImpl client, String database, String syntax, String content) {
+        return upload(client, database, syntax, new StringReader(content));
+    }
+
+    /**
+     * Uploads some content to this database
+     * The content is streamed from the reader into the database.
+     *
+     * @param client   The requesting client
+     * @param database The target database
+     * @param syntax   The content's syntax
+     * @param reader   The reader for the content
+     * @return The protocol reply
+     */
+    public Reply upload(UserImpl client, String database, String syntax, Reader reader) {
         if (client == null)
             return ReplyUnauthenticated.instance();
         DatabaseImpl db = doGetDatabase(database);
@@ -1036,13 +1076,42 @@ public class ControllerServer implements Closeable {
         if (checkCanWrite(client, db)) {
             try {
                 BufferedLogger logger = new BufferedLogger();
-                db.dbController.upload(logger, syntax, content);
+                db.dbController.upload(logger, syntax, reader);
                 if (!logger.getErrorMessages().isEmpty())
                     return new ReplyApiError(ApiV1.ERROR_CONTENT_PARSING_FAILED, logger.getErrorsAsString());
                 return ReplySuccess.instance();
             } catch (Exception exception) {
-                logger.error(exception);
-                return new ReplyException(exception);
+                return DatabaseBusyException.toReply(logger, exception);
+            }
+        }
+        return ReplyUnauthorized.instance();
+    }
+
+    /**
+     * Uploads some content to this database
+     * The content is streamed from the input into the database.
+     *
+     * @param client   The requesting client
+     * @param database The target database
+     * @param syntax   The content's syntax
+     * @param input    The stream for the content
+     * @return The protocol reply
+     */
+    public Reply upload(UserImpl client, String database, String syntax, InputStream input) {
+        if (client == null)
+            return ReplyUnauthenticated.instance();
+        DatabaseImpl db = doGetDatabase(database);
+        if (db == null)
+            return ReplyNotFound.instance();
+        if (checkCanWrite(client, db)) {
+            try {
+                BufferedLogger logger = new BufferedLogger();
+                db.dbController.upload(logger, syntax, input);
+                if (!logger.getErrorMessages().isEmpty())
+                    return new ReplyApiError(ApiV1.ERROR_CONTENT_PARSING_FAILED, logger.getErrorsAsString());
+                return ReplySuccess.instance();
+            } catch (Exception exception) {
+                return DatabaseBusyException.toReply(logger, exception);
             }
         }
         return ReplyUnauthorized.instance();
@@ -1139,6 +1208,7 @@ public class ControllerServer implements Closeable {
         synchronized (adminDB) {
             user.userController.proxy.delete();
             adminDB.dbController.getRepository().getStore().commit();
+            privileges.removeUser(toDelete);
         }
         return ReplySuccess.instance();
     }
@@ -1455,22 +1525,6 @@ public class ControllerServer implements Closeable {
         return null;
     }
 
-    /**
-     * Gets whether a user is granted a privilege on a database
-     *
-     * @param user      The user
-     * @param database  The database
-     * @param privilege The privilege
-     * @return Whether the user is allowed
-     */
-    private boolean checkIsAllowed(ProxyObject user, ProxyObject database, String privilege) {
-        Collection<ProxyObject> dbs;
-        synchronized (adminDB) {
-            dbs = user.getObjectValues(privilege);
-        }
-        return dbs.contains(database);
-    }
-
     /**
      * Gets whether a user can read a database
      *
@@ -1480,9 +1534,7 @@ public class ControllerServer implements Closeable {
      */
     private boolean checkCanRead(UserImpl user, DatabaseImpl database) {
         return checkIsServerAdmin(user)
-                || checkIsAllowed(user.userController.proxy, database.dbController.proxy, Schema.ADMIN_ADMINOF)
-                || checkIsAllowed(user.userController.proxy, database.dbController.proxy, Schema.ADMIN_CANWRITE)
-                || checkIsAllowed(user.userController.proxy, database.dbController.proxy, Schema.ADMIN_CANREAD);
+                || privileges.get(user.getIdentifier(), database.getIdentifier()) != XOWLPrivilege.NONE;
     }
 
     /**
@@ -1494,8 +1546,7 @@ public class ControllerServer implements Closeable {
      */
     private boolean checkCanWrite(UserImpl user, DatabaseImpl database) {
         return checkIsServerAdmin(user)
-                || checkIsAllowed(user.userController.proxy, database.dbController.proxy, Schema.ADMIN_ADMINOF)
-                || checkIsAllowed(user.userController.proxy, database.dbController.proxy, Schema.ADMIN_CANWRITE);
+                || (privileges.get(user.getIdentifier(), database.getIdentifier()) & (XOWLPrivilege.ADMIN | XOWLPrivilege.WRITE)) != 0;
     }
 
     /**
@@ -1507,7 +1558,7 @@ public class ControllerServer implements Closeable {
      */
     private boolean checkCanAdmin(UserImpl user, DatabaseImpl database) {
         return checkIsServerAdmin(user)
-                || checkIsAllowed(user.userController.proxy, database.dbController.proxy, Schema.ADMIN_ADMINOF);
+                || (privileges.get(user.getIdentifier(), database.getIdentifier()) & XOWLPrivilege.ADMIN) != 0;
     }
 
     /**
@@ -1517,7 +1568,7 @@ public class ControllerServer implements Closeable {
      * @return Whether the user is a server administrator
      */
     private boolean checkIsServerAdmin(UserImpl user) {
-        return checkIsAllowed(user.userController.proxy, adminDB.dbController.proxy, Schema.ADMIN_ADMINOF);
+        return (privileges.get(user.getIdentifier(), adminDB.getIdentifier()) & XOWLPrivilege.ADMIN) != 0;
     }
 
     /**
@@ -1536,16 +1587,37 @@ public class ControllerServer implements Closeable {
                 if (dbs.contains(database.dbController.proxy))
                     return new ReplyApiError(ApiV1.ERROR_PRIVILEGE_ALREADY_GRANTED);
                 user.userController.proxy.addValue(privilege, database.dbController.proxy);
+                adminDB.dbController.getRepository().getStore().commit();
+                privileges.grant(user.getIdentifier(), database.getIdentifier(), getPrivilegeFlag(privilege));
             } else {
                 if (!dbs.contains(database.dbController.proxy))
                     return new ReplyApiError(ApiV1.ERROR_PRIVILEGE_NOT_GRANTED);
                 user.userController.proxy.removeValue(privilege, database.dbController.proxy);
+                adminDB.dbController.getRepository().getStore().commit();
+                privileges.revoke(user.getIdentifier(), database.getIdentifier(), getPrivilegeFlag(privilege));
             }
-            adminDB.dbController.getRepository().getStore().commit();
         }
         return ReplySuccess.instance();
     }
 
+    /**
+     * Gets the privilege flag (see XOWLPrivilege) for a privilege property in the administration database
+     *
+     * @param privilege The privilege property
+     * @return The corresponding privilege flag
+     */
+    private static int getPrivilegeFlag(String privilege) {
+        switch (privilege) {
+            case Schema.ADMIN_ADMINOF:
+                return XOWLPrivilege.ADMIN;
+            case Schema.ADMIN_CANWRITE:
+                return XOWLPrivilege.WRITE;
+            case Schema.ADMIN_CANREAD:
+                return XOWLPrivilege.READ;
+        }
+        return XOWLPrivilege.NONE;
+    }
+
     /**
      * The data about a client
      */
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.impl;
+
+import fr.cenotelie.commons.utils.api.Reply;
+import fr.cenotelie.commons.utils.api.ReplyApiError;
+import fr.cenotelie.commons.utils.api.ReplyException;
+import fr.cenotelie.commons.utils.logging.Logger;
+import org.xowl.infra.server.api.ApiV1;
+
+/**
+ * Exception thrown when a request on a database is rejected because the database is overloaded
+ *
+ * @author Laurent Wouters
+ */
+public class DatabaseBusyException extends RuntimeException {
+    /**
+     * Initializes this exception
+     *
+     * @param message The exception's message
+     */
+    public DatabaseBusyException(String message) {
+        super(message);
+    }
+
+    /**
+     * Gets the protocol reply for a request on a database that failed with the specified exception
+     * A request rejected because the database is overloaded is answered with a busy error, other failures are logged.
+     *
+     * @param logger    The logger to use
+     * @param exception The exception
+     * @return The protocol reply
+     */
+    public static Reply toReply(Logger logger, Exception exception) {
+        if (exception instanceof DatabaseBusyException)
+            return new ReplyApiError(ApiV1.ERROR_DATABASE_BUSY);
+        logger.error(exception);
+        return new ReplyException(exception);
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.impl;
+
+import org.xowl.infra.server.api.XOWLPrivilege;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents the in-memory matrix of the privileges granted to the users on the databases
+ * For each user and database, the matrix stores a bit mask of the granted privileges (see XOWLPrivilege).
+ * The matrix is the cache of the privileges stored in the administration database.
+ * Reading the matrix does not require any lock, the updates are serialized.
+ *
+ * @author Laurent Wouters
+ */
+class PrivilegeMatrix {
+    /**
+     * The privileges for each user, then for each database
+     */
+    private final Map<String, Map<String, Integer>> users;
+
+    /**
+     * Initializes this matrix
+     */
+    public PrivilegeMatrix() {
+        this.users = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets the privileges granted to a user on a database
+     *
+     * @param user     The user's name
+     * @param database The database's name
+     * @return The bit mask of the granted privileges
+     */
+    public int get(String user, String database) {
+        Map<String, Integer> databases = users.get(user);
+        if (databases == null)
+            return XOWLPrivilege.NONE;
+        Integer privileges = databases.get(database);
+        return privileges == null ? XOWLPrivilege.NONE : privileges;
+    }
+
+    /**
+     * Grants a privilege to a user on a database
+     *
+     * @param user      The user's name
+     * @param database  The database's name
+     * @param privilege The privilege to grant
+     */
+    public synchronized void grant(String user, String database, int privilege) {
+        Map<String, Integer> databases = users.get(user);
+        if (databases == null) {
+            databases = new ConcurrentHashMap<>();
+            users.put(user, databases);
+        }
+        Integer privileges = databases.get(database);
+        databases.put(database, privileges == null ? privilege : (privileges | privilege));
+    }
+
+    /**
+     * Revokes a privilege from a user on a database
+     *
+     * @param user      The user's name
+     * @param database  The database's name
+     * @param privilege The privilege to revoke
+     */
+    public synchronized void revoke(String user, String database, int privilege) {
+        Map<String, Integer> databases = users.get(user);
+        if (databases == null)
+            return;
+        Integer privileges = databases.get(database);
+        if (privileges == null)
+            return;
+        int remaining = privileges & ~privilege;
+        if (remaining == XOWLPrivilege.NONE)
+            databases.remove(database);
+        else
+            databases.put(database, remaining);
+    }
+
+    /**
+     * Removes all the privileges of a user
+     *
+     * @param user The user's name
+     */
+    public synchronized void removeUser(String user) {
+        users.remove(user);
+    }
+
+    /**
+     * Removes all the privileges on a database
+     *
+     * @param database The database's name
+     */
+    public synchronized void removeDatabase(String database) {
+        for (Map<String, Integer> databases : users.values())
+            databases.remove(database);
+    }
+
+}
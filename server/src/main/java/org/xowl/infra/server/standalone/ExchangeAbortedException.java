@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.standalone;
+
+/**
+ * Exception thrown when a streamed response fails after its headers have been sent
+ * The exception must be propagated out of the HTTP handler so that the HTTP server closes the connection
+ * without terminating the response body, the client then sees a truncated response instead of a complete one.
+ *
+ * @author Laurent Wouters
+ */
+class ExchangeAbortedException extends RuntimeException {
+    /**
+     * Initializes this exception
+     *
+     * @param cause The original failure
+     */
+    public ExchangeAbortedException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -41,8 +41,10 @@ import org.xowl.infra.server.base.BaseStoredProcedure;
 import org.xowl.infra.server.impl.ControllerServer;
 import org.xowl.infra.server.impl.UserImpl;
 import org.xowl.infra.store.EntailmentRegime;
+import org.xowl.infra.store.sparql.Result;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.*;
@@ -371,14 +373,14 @@ class HTTPConnectionApiV1 implements Runnable {
         String contentType = Utils.getRequestContentType(rHeaders);
         if (contentType == null)
             return response(new ReplyApiError(ApiV1.ERROR_EXPECTED_HEADER_CONTENT_TYPE));
-        String body;
-        try {
-            body = Utils.getRequestBody(httpExchange);
+        Reply reply;
+        try (InputStream input = Utils.getRequestStream(httpExchange)) {
+            reply = controller.upload(client, name, contentType, input);
         } catch (IOException exception) {
             Logging.get().error(exception);
             return response(new ReplyApiError(ApiV1.ERROR_FAILED_TO_READ_CONTENT));
         }
-        return response(controller.upload(client, name, contentType, body));
+        return response(reply);
     }
 
     /**
@@ -803,6 +805,19 @@ class HTTPConnectionApiV1 implements Runnable {
      */
     private int response(Reply reply) {
         List<String> acceptTypes = Utils.getAcceptTypes(httpExchange.getRequestHeaders());
+        if (reply instanceof ReplyResult && ((ReplyResult) reply).getData() instanceof Result) {
+            Result sparqlResult = (Result) ((ReplyResult) reply).getData();
+            if (sparqlResult.isSuccess()) {
+                // stream the result to the response
+                Utils.enableCORS(httpExchange.getRequestHeaders(), httpExchange.getResponseHeaders());
+                try {
+                    Utils.sendResult(httpExchange, sparqlResult, acceptTypes);
+                } catch (IOException exception) {
+                    Logging.get().error(exception);
+                }
+                return HttpURLConnection.HTTP_OK;
+            }
+        }
         HttpResponse response = XOWLReplyUtils.toHttpResponse(reply, acceptTypes);
         if (response.getContentType() != null)
             httpExchange.getResponseHeaders().add(HttpConstants.HEADER_CONTENT_TYPE, response.getContentType());
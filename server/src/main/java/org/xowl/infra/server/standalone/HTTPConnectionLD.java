@@ -21,6 +21,7 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpsExchange;
 import fr.cenotelie.commons.utils.IOUtils;
 import fr.cenotelie.commons.utils.api.Reply;
+import fr.cenotelie.commons.utils.api.ReplyResult;
 import fr.cenotelie.commons.utils.http.HttpConstants;
 import fr.cenotelie.commons.utils.http.HttpResponse;
 import fr.cenotelie.commons.utils.logging.Logging;
@@ -28,6 +29,7 @@ import org.xowl.infra.server.ServerConfiguration;
 import org.xowl.infra.server.api.XOWLReplyUtils;
 import org.xowl.infra.server.impl.ControllerServer;
 import org.xowl.infra.server.impl.UserImpl;
+import org.xowl.infra.store.sparql.Result;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -145,6 +147,19 @@ public class HTTPConnectionLD implements Runnable {
      */
     private void response(Reply reply) {
         List<String> acceptTypes = Utils.getAcceptTypes(httpExchange.getRequestHeaders());
+        if (reply instanceof ReplyResult && ((ReplyResult) reply).getData() instanceof Result) {
+            Result sparqlResult = (Result) ((ReplyResult) reply).getData();
+            if (sparqlResult.isSuccess()) {
+                // stream the result to the response
+                Utils.enableCORS(httpExchange.getRequestHeaders(), httpExchange.getResponseHeaders());
+                try {
+                    Utils.sendResult(httpExchange, sparqlResult, acceptTypes);
+                } catch (IOException exception) {
+                    Logging.get().error(exception);
+                }
+                return;
+            }
+        }
         HttpResponse response = XOWLReplyUtils.toHttpResponse(reply, acceptTypes);
         if (response.getContentType() != null)
             httpExchange.getResponseHeaders().add(HttpConstants.HEADER_CONTENT_TYPE, response.getContentType());
@@ -208,6 +208,10 @@ public class HTTPServer implements Closeable {
                 public void handle(HttpExchange httpExchange) throws IOException {
                     try {
                         ((new HTTPConnectionApiV1(controller, httpExchange))).run();
+                    } catch (ExchangeAbortedException exception) {
+                        Logging.get().error(exception);
+                        // let the HTTP server close the connection without completing the response
+                        throw exception;
                     } catch (Exception exception) {
                         Logging.get().error(exception);
                     }
@@ -224,6 +228,10 @@ public class HTTPServer implements Closeable {
                 public void handle(HttpExchange httpExchange) throws IOException {
                     try {
                         ((new HTTPConnectionLD(HTTPServer.this.configuration, controller, httpExchange))).run();
+                    } catch (ExchangeAbortedException exception) {
+                        Logging.get().error(exception);
+                        // let the HTTP server close the connection without completing the response
+                        throw exception;
                     } catch (Exception exception) {
                         Logging.get().error(exception);
                     }
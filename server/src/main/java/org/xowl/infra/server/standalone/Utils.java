@@ -22,17 +22,25 @@ import com.sun.net.httpserver.HttpExchange;
 import fr.cenotelie.commons.utils.IOUtils;
 import fr.cenotelie.commons.utils.collections.Couple;
 import fr.cenotelie.commons.utils.http.HttpConstants;
+import fr.cenotelie.commons.utils.logging.BufferedLogger;
 import fr.cenotelie.commons.utils.logging.Logging;
 import fr.cenotelie.commons.utils.product.Product;
+import org.xowl.infra.store.RDFUtils;
+import org.xowl.infra.store.Repository;
+import org.xowl.infra.store.rdf.Quad;
+import org.xowl.infra.store.sparql.Result;
+import org.xowl.infra.store.sparql.ResultQuads;
+import org.xowl.infra.store.sparql.ResultQuadsStream;
+import org.xowl.infra.store.sparql.ResultUtils;
+import org.xowl.infra.store.writers.BinaryRDFSerializer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.util.*;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Utility APIs for the HTTP server
@@ -40,6 +48,14 @@ import java.util.zip.GZIPInputStream;
  * @author Laurent Wouters
  */
 class Utils {
+    /**
+     * The header for the accepted content encodings
+     */
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    /**
+     * The size of the buffer for the streamed responses
+     */
+    private static final int BUFFER_SIZE = 8192;
     /**
      * The product description for this server
      */
@@ -64,6 +80,22 @@ class Utils {
         return PRODUCT;
     }
 
+    /**
+     * Gets the stream for the request body of the specified request
+     * The body is not buffered in memory, the content is read from the connection as it is consumed.
+     * The stream is decompressed when the content is encoded with gzip.
+     *
+     * @param exchange The exchange
+     * @return The stream for the request body
+     * @throws IOException When the stream cannot be opened
+     */
+    public static InputStream getRequestStream(HttpExchange exchange) throws IOException {
+        InputStream stream = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst(HttpConstants.HEADER_CONTENT_ENCODING)))
+            return new GZIPInputStream(stream);
+        return stream;
+    }
+
     /**
      * Gets the request body of the specified request
      *
@@ -72,11 +104,7 @@ class Utils {
      * @throws IOException When reading failed
      */
     public static String getRequestBody(HttpExchange exchange) throws IOException {
-        try (InputStream stream = exchange.getRequestBody()) {
-            InputStream input = stream;
-            if ("gzip".equals(exchange.getRequestHeaders().getFirst(HttpConstants.HEADER_CONTENT_ENCODING))) {
-                input = new GZIPInputStream(stream);
-            }
+        try (InputStream input = getRequestStream(exchange)) {
             ByteArrayOutputStream output = new ByteArrayOutputStream();
             byte[] buffer = new byte[1024];
             int read = input.read(buffer);
@@ -90,6 +118,78 @@ class Utils {
         }
     }
 
+    /**
+     * Writes a successful SPARQL result as the response body of the specified exchange
+     * The response is sent with the chunked transfer encoding so that the result is serialized directly to the connection.
+     * The quads are sent in the compact binary RDF syntax when it is the preferred type of the client,
+     * otherwise the textual serialization is compressed with gzip when the client accepts it.
+     *
+     * When the serialization fails after the headers have been sent, the response body is left unterminated
+     * and an {@link ExchangeAbortedException} is thrown so that the connection is closed.
+     *
+     * @param exchange    The exchange
+     * @param result      The SPARQL result
+     * @param acceptTypes The accepted content types by order of preference
+     * @throws IOException               When the response headers could not be sent
+     * @throws ExchangeAbortedException When the serialization failed after the headers have been sent
+     */
+    public static void sendResult(HttpExchange exchange, Result result, List<String> acceptTypes) throws IOException {
+        Iterator<Quad> quads = null;
+        if (result instanceof ResultQuads)
+            quads = ((ResultQuads) result).getQuads().iterator();
+        else if (result instanceof ResultQuadsStream)
+            quads = ((ResultQuadsStream) result).getQuads();
+        boolean binary = quads != null && !acceptTypes.isEmpty() && Repository.SYNTAX_RDF_BINARY.equals(acceptTypes.get(0));
+        String syntax = binary ? Repository.SYNTAX_RDF_BINARY : ResultUtils.coerceContentType(result, acceptTypes);
+        // the binary syntax is already compressed
+        boolean compressed = !binary && acceptsGzip(exchange.getRequestHeaders());
+        exchange.getResponseHeaders().add(HttpConstants.HEADER_CONTENT_TYPE, syntax);
+        if (compressed)
+            exchange.getResponseHeaders().add(HttpConstants.HEADER_CONTENT_ENCODING, "gzip");
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+        OutputStream stream;
+        try {
+            stream = compressed ? new GZIPOutputStream(exchange.getResponseBody(), BUFFER_SIZE) : new BufferedOutputStream(exchange.getResponseBody(), BUFFER_SIZE);
+            // the serializers of quads report their failures to the logger
+            BufferedLogger logger = new BufferedLogger();
+            if (binary) {
+                new BinaryRDFSerializer(stream).serialize(logger, quads);
+            } else {
+                Writer writer = new OutputStreamWriter(stream, IOUtils.CHARSET);
+                if (quads != null)
+                    RDFUtils.serialize(writer, logger, quads, syntax);
+                else
+                    result.print(writer, syntax);
+                writer.flush();
+            }
+            if (!logger.getErrorMessages().isEmpty())
+                throw new IOException(logger.getErrorsAsString());
+        } catch (IOException | RuntimeException exception) {
+            // the status is already sent, do not close the stream as this would terminate the body as if it were complete
+            throw new ExchangeAbortedException(exception);
+        }
+        stream.close();
+    }
+
+    /**
+     * Gets whether the client of a request accepts responses compressed with gzip
+     *
+     * @param headers The request headers
+     * @return Whether the client accepts gzip
+     */
+    private static boolean acceptsGzip(Headers headers) {
+        List<String> values = headers.get(HEADER_ACCEPT_ENCODING);
+        if (values == null)
+            return false;
+        for (String value : values) {
+            for (String part : value.split(",")) {
+                if (part.trim().startsWith("gzip"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Gets the content type of a request
      *
@@ -25,8 +25,14 @@ import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.xowl.infra.server.api.XOWLDatabase;
+import org.xowl.infra.server.api.XOWLDatabaseConfiguration;
 import org.xowl.infra.server.api.XOWLUser;
 import org.xowl.infra.server.embedded.EmbeddedServer;
+import org.xowl.infra.store.EntailmentRegime;
+import org.xowl.infra.store.Repository;
+import org.xowl.infra.store.sparql.Result;
+import org.xowl.infra.store.sparql.ResultYesNo;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -117,4 +123,40 @@ public class EmbeddedServerTest {
         Collection<XOWLUser> users = ((ReplyResultCollection<XOWLUser>) reply).getData();
         Assert.assertEquals("Invalid users", 2, users.size());
     }
+
+    @Test
+    public void testUploadStreamed() {
+        Reply reply = server.createDatabase("upload", new XOWLDatabaseConfiguration(true, EntailmentRegime.none));
+        Assert.assertTrue("Failed to create the database", reply.isSuccess());
+        XOWLDatabase database = ((ReplyResult<XOWLDatabase>) reply).getData();
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i != 1000; i++)
+            builder.append("<http://xowl.org/s").append(i).append("> <http://xowl.org/p> <http://xowl.org/o> <http://xowl.org/g> .\n");
+        reply = database.upload(Repository.SYNTAX_NQUADS, builder.toString());
+        Assert.assertTrue("Failed to upload the content", reply.isSuccess());
+        Assert.assertTrue("Expected the first quad", ask(database, "<http://xowl.org/s0>"));
+        Assert.assertTrue("Expected the last quad", ask(database, "<http://xowl.org/s999>"));
+
+        // the content fails after some valid quads, none of them shall remain
+        reply = database.upload(Repository.SYNTAX_NQUADS, "<http://xowl.org/t0> <http://xowl.org/p> <http://xowl.org/o> <http://xowl.org/g> .\n<http://xowl.org/t1> <http://xowl.org/p> .\n");
+        Assert.assertFalse("Expected the upload to fail", reply.isSuccess());
+        Assert.assertFalse("Unexpected quad from the failed upload", ask(database, "<http://xowl.org/t0>"));
+        Assert.assertTrue("Expected the previous content", ask(database, "<http://xowl.org/s0>"));
+    }
+
+    /**
+     * Asks whether a subject is in the test graph of a database
+     *
+     * @param database The database
+     * @param subject  The subject
+     * @return Whether the subject is in the test graph
+     */
+    private static boolean ask(XOWLDatabase database, String subject) {
+        Reply reply = database.sparql("ASK { GRAPH <http://xowl.org/g> { " + subject + " <http://xowl.org/p> <http://xowl.org/o> } }", null, null);
+        Assert.assertTrue("Failed to execute the query", reply.isSuccess());
+        Result result = ((ReplyResult<Result>) reply).getData();
+        Assert.assertTrue("Expected a yes/no result", result instanceof ResultYesNo);
+        return ((ResultYesNo) result).getValue();
+    }
 }
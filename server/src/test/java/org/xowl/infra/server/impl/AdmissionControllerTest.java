@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.impl;
+
+import fr.cenotelie.commons.utils.api.Reply;
+import fr.cenotelie.commons.utils.http.HttpResponse;
+import fr.cenotelie.commons.utils.logging.BufferedLogger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.server.api.XOWLReplyUtils;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for the admission control of the threads accessing a database
+ *
+ * @author Laurent Wouters
+ */
+public class AdmissionControllerTest {
+    /**
+     * A long waiting time for the threads that are expected to be admitted
+     */
+    private static final long WAIT_LONG = 10000;
+    /**
+     * A short waiting time for the threads that are expected to be rejected
+     */
+    private static final long WAIT_SHORT = 100;
+
+    /**
+     * A thread that enters the database, records its admission and leaves
+     */
+    private static class Client extends Thread {
+        /**
+         * The parent controller
+         */
+        private final AdmissionController controller;
+        /**
+         * Whether this is a writer
+         */
+        private final boolean isWriter;
+        /**
+         * The log of the admissions
+         */
+        private final List<String> admissions;
+        /**
+         * Whether the thread has been rejected
+         */
+        public volatile boolean rejected;
+
+        /**
+         * Initializes this client
+         *
+         * @param controller The parent controller
+         * @param isWriter   Whether this is a writer
+         * @param name       The name of this client
+         * @param admissions The log of the admissions
+         */
+        public Client(AdmissionController controller, boolean isWriter, String name, List<String> admissions) {
+            super(name);
+            this.controller = controller;
+            this.isWriter = isWriter;
+            this.admissions = admissions;
+        }
+
+        @Override
+        public void run() {
+            try {
+                controller.enter(isWriter);
+            } catch (DatabaseBusyException exception) {
+                rejected = true;
+                return;
+            }
+            admissions.add(getName());
+            controller.exit(isWriter);
+        }
+    }
+
+    /**
+     * Starts a client and waits until it is waiting for its admission
+     *
+     * @param client The client
+     * @throws InterruptedException When the current thread is interrupted
+     */
+    private static void startWaiting(Client client) throws InterruptedException {
+        client.start();
+        while (client.getState() != Thread.State.TIMED_WAITING) {
+            Assert.assertTrue("The client terminated instead of waiting", client.isAlive());
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testThreadLimit() {
+        AdmissionController controller = new AdmissionController("test", 2, 4, WAIT_SHORT);
+        controller.enter(false);
+        controller.enter(false);
+        long start = System.nanoTime();
+        try {
+            controller.enter(false);
+            Assert.fail("Expected the third thread to be rejected");
+        } catch (DatabaseBusyException exception) {
+            // the thread waited until its deadline
+            Assert.assertTrue((System.nanoTime() - start) / 1000000 >= WAIT_SHORT - 10);
+        }
+        controller.exit(false);
+        controller.enter(false);
+    }
+
+    @Test
+    public void testFairness() throws InterruptedException {
+        AdmissionController controller = new AdmissionController("test", 1, 8, WAIT_LONG);
+        List<String> admissions = Collections.synchronizedList(new ArrayList<String>());
+        controller.enter(false);
+        Client[] clients = new Client[]{
+                new Client(controller, false, "r1", admissions),
+                new Client(controller, false, "r2", admissions),
+                new Client(controller, false, "r3", admissions)
+        };
+        for (Client client : clients)
+            startWaiting(client);
+        controller.exit(false);
+        for (Client client : clients)
+            client.join();
+        // the readers are admitted in the order of their arrival
+        Assert.assertEquals(Arrays.asList("r1", "r2", "r3"), admissions);
+    }
+
+    @Test
+    public void testLanesAlternate() throws InterruptedException {
+        AdmissionController controller = new AdmissionController("test", 1, 8, WAIT_LONG);
+        List<String> admissions = Collections.synchronizedList(new ArrayList<String>());
+        controller.enter(false);
+        Client[] clients = new Client[]{
+                new Client(controller, true, "w1", admissions),
+                new Client(controller, true, "w2", admissions),
+                new Client(controller, false, "r1", admissions),
+                new Client(controller, false, "r2", admissions)
+        };
+        for (Client client : clients)
+            startWaiting(client);
+        controller.exit(false);
+        for (Client client : clients)
+            client.join();
+        // neither queue is starved by the other
+        Assert.assertEquals(Arrays.asList("r1", "w1", "r2", "w2"), admissions);
+    }
+
+    @Test
+    public void testQueueLimitPerLane() throws InterruptedException {
+        AdmissionController controller = new AdmissionController("test", 1, 1, WAIT_LONG);
+        List<String> admissions = Collections.synchronizedList(new ArrayList<String>());
+        controller.enter(false);
+        Client reader = new Client(controller, false, "r1", admissions);
+        startWaiting(reader);
+        // the queue of the readers is full, the rejection is immediate
+        long start = System.nanoTime();
+        try {
+            controller.enter(false);
+            Assert.fail("Expected the reader to be rejected");
+        } catch (DatabaseBusyException exception) {
+            Assert.assertTrue((System.nanoTime() - start) / 1000000 < WAIT_LONG / 2);
+        }
+        // the queue of the writers is separate
+        Client writer = new Client(controller, true, "w1", admissions);
+        startWaiting(writer);
+        controller.exit(false);
+        reader.join();
+        writer.join();
+        Assert.assertFalse(reader.rejected);
+        Assert.assertFalse(writer.rejected);
+        Assert.assertEquals(2, admissions.size());
+    }
+
+    @Test
+    public void testTimeoutIsBusy() {
+        AdmissionController controller = new AdmissionController("test", 1, 4, WAIT_SHORT);
+        controller.enter(true);
+        try {
+            controller.enter(false);
+            Assert.fail("Expected the reader to be rejected");
+        } catch (DatabaseBusyException exception) {
+            // a rejected request is answered with the service unavailable status
+            Reply reply = DatabaseBusyException.toReply(new BufferedLogger(), exception);
+            HttpResponse response = XOWLReplyUtils.toHttpResponse(reply, null);
+            Assert.assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, response.getCode());
+        }
+        controller.exit(true);
+    }
+
+    @Test
+    public void testWriterExclusive() throws InterruptedException {
+        // no limit on the number of threads
+        AdmissionController controller = new AdmissionController("test", 0, 4, WAIT_LONG);
+        List<String> admissions = Collections.synchronizedList(new ArrayList<String>());
+        controller.enter(true);
+        Client writer = new Client(controller, true, "w1", admissions);
+        startWaiting(writer);
+        // the readers are not blocked by the admitted writer, nor by the waiting one
+        controller.enter(false);
+        controller.enter(false);
+        controller.exit(false);
+        controller.exit(false);
+        Assert.assertTrue(admissions.isEmpty());
+        controller.exit(true);
+        writer.join();
+        Assert.assertEquals(Collections.singletonList("w1"), admissions);
+    }
+
+    @Test
+    public void testWriterTimeout() {
+        AdmissionController controller = new AdmissionController("test", 0, 4, WAIT_SHORT);
+        controller.enter(true);
+        try {
+            controller.enter(true);
+            Assert.fail("Expected the second writer to be rejected");
+        } catch (DatabaseBusyException exception) {
+            // expected
+        }
+        controller.exit(true);
+        // the rejected writer did not leave the controller in a busy state
+        controller.enter(true);
+        controller.exit(true);
+    }
+}
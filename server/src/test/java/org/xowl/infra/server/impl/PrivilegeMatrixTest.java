@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.impl;
+
+import fr.cenotelie.commons.utils.api.ReplyUnauthorized;
+import fr.cenotelie.commons.utils.logging.BufferedLogger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.server.ServerConfiguration;
+import org.xowl.infra.server.api.XOWLDatabaseConfiguration;
+import org.xowl.infra.server.api.XOWLPrivilege;
+import org.xowl.infra.store.EntailmentRegime;
+import org.xowl.infra.store.Repository;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tests for the matrix of privileges
+ *
+ * @author Laurent Wouters
+ */
+public class PrivilegeMatrixTest {
+    /**
+     * A triple to upload
+     */
+    private static final String TRIPLE = "<http://xowl.org/s> <http://xowl.org/p> <http://xowl.org/o> .\n";
+
+    @Test
+    public void testGrantRevoke() {
+        PrivilegeMatrix matrix = new PrivilegeMatrix();
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user", "db"));
+        matrix.grant("user", "db", XOWLPrivilege.READ);
+        Assert.assertEquals(XOWLPrivilege.READ, matrix.get("user", "db"));
+        matrix.grant("user", "db", XOWLPrivilege.WRITE);
+        Assert.assertEquals(XOWLPrivilege.READ | XOWLPrivilege.WRITE, matrix.get("user", "db"));
+        // granting twice has no effect
+        matrix.grant("user", "db", XOWLPrivilege.WRITE);
+        Assert.assertEquals(XOWLPrivilege.READ | XOWLPrivilege.WRITE, matrix.get("user", "db"));
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user", "other"));
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("other", "db"));
+
+        matrix.revoke("user", "db", XOWLPrivilege.READ);
+        Assert.assertEquals(XOWLPrivilege.WRITE, matrix.get("user", "db"));
+        // revoking a privilege that is not granted has no effect
+        matrix.revoke("user", "db", XOWLPrivilege.ADMIN);
+        matrix.revoke("user", "other", XOWLPrivilege.ADMIN);
+        matrix.revoke("other", "db", XOWLPrivilege.ADMIN);
+        Assert.assertEquals(XOWLPrivilege.WRITE, matrix.get("user", "db"));
+        matrix.revoke("user", "db", XOWLPrivilege.WRITE);
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user", "db"));
+    }
+
+    @Test
+    public void testRemoveUser() {
+        PrivilegeMatrix matrix = new PrivilegeMatrix();
+        matrix.grant("user1", "db1", XOWLPrivilege.ADMIN);
+        matrix.grant("user1", "db2", XOWLPrivilege.READ);
+        matrix.grant("user2", "db1", XOWLPrivilege.WRITE);
+        matrix.removeUser("user1");
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user1", "db1"));
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user1", "db2"));
+        Assert.assertEquals(XOWLPrivilege.WRITE, matrix.get("user2", "db1"));
+        // a new user with the same name starts without privileges
+        matrix.grant("user1", "db2", XOWLPrivilege.WRITE);
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user1", "db1"));
+        Assert.assertEquals(XOWLPrivilege.WRITE, matrix.get("user1", "db2"));
+    }
+
+    @Test
+    public void testRemoveDatabase() {
+        PrivilegeMatrix matrix = new PrivilegeMatrix();
+        matrix.grant("user1", "db1", XOWLPrivilege.ADMIN);
+        matrix.grant("user1", "db2", XOWLPrivilege.READ);
+        matrix.grant("user2", "db1", XOWLPrivilege.WRITE);
+        matrix.removeDatabase("db1");
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user1", "db1"));
+        Assert.assertEquals(XOWLPrivilege.NONE, matrix.get("user2", "db1"));
+        Assert.assertEquals(XOWLPrivilege.READ, matrix.get("user1", "db2"));
+    }
+
+    @Test
+    public void testInitialLoad() throws Exception {
+        Path p = Files.createTempDirectory("PrivilegeMatrixTest");
+        ServerConfiguration configuration = new ServerConfiguration(p.toAbsolutePath().toString());
+        ControllerServer controller = new ControllerServer(new BufferedLogger(), configuration);
+        try {
+            UserImpl admin = controller.getPrincipal(configuration.getAdminDefaultUser());
+            Assert.assertTrue(controller.createUser(admin, "reader", "test1234567890").isSuccess());
+            Assert.assertTrue(controller.createUser(admin, "writer", "test1234567890").isSuccess());
+            Assert.assertTrue(controller.createUser(admin, "other", "test1234567890").isSuccess());
+            Assert.assertTrue(controller.createDatabase(admin, "db", new XOWLDatabaseConfiguration(false, EntailmentRegime.none)).isSuccess());
+            Assert.assertTrue(controller.grantDatabase(admin, "reader", "db", XOWLPrivilege.READ).isSuccess());
+            Assert.assertTrue(controller.grantDatabase(admin, "writer", "db", XOWLPrivilege.WRITE).isSuccess());
+        } finally {
+            controller.close();
+        }
+
+        // the matrix is rebuilt from the administration database
+        controller = new ControllerServer(new BufferedLogger(), configuration);
+        try {
+            UserImpl reader = controller.getPrincipal("reader");
+            UserImpl writer = controller.getPrincipal("writer");
+            UserImpl other = controller.getPrincipal("other");
+            Assert.assertTrue(controller.sparql(reader, "db", "ASK {}", null, null).isSuccess());
+            Assert.assertTrue(controller.sparql(writer, "db", "ASK {}", null, null).isSuccess());
+            Assert.assertTrue(controller.sparql(other, "db", "ASK {}", null, null) instanceof ReplyUnauthorized);
+            Assert.assertTrue(controller.upload(reader, "db", Repository.SYNTAX_NTRIPLES, TRIPLE) instanceof ReplyUnauthorized);
+            Assert.assertTrue(controller.upload(writer, "db", Repository.SYNTAX_NTRIPLES, TRIPLE).isSuccess());
+        } finally {
+            controller.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.server.standalone;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import fr.cenotelie.commons.utils.IOUtils;
+import fr.cenotelie.commons.utils.http.HttpConstants;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xowl.infra.store.sparql.Result;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for the streamed requests and responses of the HTTP server
+ *
+ * @author Laurent Wouters
+ */
+public class UtilsTest {
+    /**
+     * The size of the streamed content, larger than the buffers on the way
+     */
+    private static final int CONTENT_SIZE = 100000;
+
+    /**
+     * A SPARQL result that prints a fixed number of characters and possibly fails afterward
+     */
+    private static class TestResult implements Result {
+        /**
+         * The number of characters to print
+         */
+        private final int size;
+        /**
+         * Whether to fail after the content has been printed
+         */
+        private final boolean fail;
+
+        /**
+         * Initializes this result
+         *
+         * @param size The number of characters to print
+         * @param fail Whether to fail after the content has been printed
+         */
+        public TestResult(int size, boolean fail) {
+            this.size = size;
+            this.fail = fail;
+        }
+
+        @Override
+        public boolean isFailure() {
+            return false;
+        }
+
+        @Override
+        public boolean isSuccess() {
+            return true;
+        }
+
+        @Override
+        public void print(Writer writer, String syntax) throws IOException {
+            for (int i = 0; i != size; i++)
+                writer.write('a' + (i % 26));
+            if (fail)
+                throw new IOException("Failed to serialize the result");
+        }
+
+        @Override
+        public String serializedString() {
+            return null;
+        }
+
+        @Override
+        public String serializedJSON() {
+            return null;
+        }
+    }
+
+    /**
+     * The HTTP server for the tests
+     */
+    private HttpServer server;
+    /**
+     * The result to send for the next request
+     */
+    private volatile Result result;
+    /**
+     * The content of the last uploaded request body
+     */
+    private volatile String uploaded;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/result", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // as for the handlers of the server, an aborted exchange is propagated to the HTTP server
+                Utils.sendResult(exchange, result, Utils.getAcceptTypes(exchange.getRequestHeaders()));
+                exchange.close();
+            }
+        });
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder builder = new StringBuilder();
+                try (Reader reader = new InputStreamReader(Utils.getRequestStream(exchange), IOUtils.CHARSET)) {
+                    char[] buffer = new char[1024];
+                    int read = reader.read(buffer);
+                    while (read != -1) {
+                        builder.append(buffer, 0, read);
+                        read = reader.read(buffer);
+                    }
+                }
+                uploaded = builder.toString();
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * Opens a connection to the test server
+     *
+     * @param resource The requested resource
+     * @return The connection
+     * @throws IOException When the connection failed
+     */
+    private HttpURLConnection connect(String resource) throws IOException {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + resource);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty(HttpConstants.HEADER_ACCEPT, Result.SYNTAX_JSON);
+        return connection;
+    }
+
+    /**
+     * Reads the full content of a stream
+     *
+     * @param stream The stream
+     * @return The content
+     * @throws IOException When reading failed
+     */
+    private static String read(InputStream stream) throws IOException {
+        try (Reader reader = new InputStreamReader(stream, IOUtils.CHARSET)) {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read = reader.read(buffer);
+            while (read != -1) {
+                builder.append(buffer, 0, read);
+                read = reader.read(buffer);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Gets the expected content for a test result
+     *
+     * @param size The number of characters
+     * @return The expected content
+     */
+    private static String expected(int size) {
+        StringWriter writer = new StringWriter();
+        try {
+            new TestResult(size, false).print(writer, null);
+        } catch (IOException exception) {
+            Assert.fail(exception.getMessage());
+        }
+        return writer.toString();
+    }
+
+    @Test
+    public void testStreamedResponse() throws IOException {
+        result = new TestResult(CONTENT_SIZE, false);
+        HttpURLConnection connection = connect("/result");
+        connection.setRequestProperty(HttpConstants.HEADER_ACCEPT, Result.SYNTAX_CSV);
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        Assert.assertEquals(Result.SYNTAX_CSV, connection.getContentType());
+        Assert.assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+        Assert.assertEquals(expected(CONTENT_SIZE), read(connection.getInputStream()));
+    }
+
+    @Test
+    public void testStreamedResponseCompressed() throws IOException {
+        result = new TestResult(CONTENT_SIZE, false);
+        HttpURLConnection connection = connect("/result");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        Assert.assertEquals(Result.SYNTAX_JSON, connection.getContentType());
+        Assert.assertEquals("gzip", connection.getContentEncoding());
+        Assert.assertEquals(expected(CONTENT_SIZE), read(new GZIPInputStream(connection.getInputStream())));
+    }
+
+    @Test
+    public void testStreamedResponseAborted() throws IOException {
+        result = new TestResult(CONTENT_SIZE, true);
+        HttpURLConnection connection = connect("/result");
+        // the status is sent before the serialization fails
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        try {
+            read(connection.getInputStream());
+            Assert.fail("Expected the response body to be truncated");
+        } catch (IOException exception) {
+            // the body is not terminated
+        }
+    }
+
+    @Test
+    public void testStreamedResponseAbortedCompressed() throws IOException {
+        result = new TestResult(CONTENT_SIZE, true);
+        HttpURLConnection connection = connect("/result");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        try {
+            read(new GZIPInputStream(connection.getInputStream()));
+            Assert.fail("Expected the response body to be truncated");
+        } catch (IOException exception) {
+            // the body is not terminated
+        }
+    }
+
+    @Test
+    public void testStreamedUpload() throws IOException {
+        String content = expected(CONTENT_SIZE);
+        HttpURLConnection connection = connect("/upload");
+        connection.setRequestMethod(HttpConstants.METHOD_POST);
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(1024);
+        try (OutputStream stream = connection.getOutputStream()) {
+            stream.write(content.getBytes(IOUtils.CHARSET));
+        }
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        Assert.assertEquals(content, uploaded);
+    }
+
+    @Test
+    public void testStreamedUploadCompressed() throws IOException {
+        String content = expected(CONTENT_SIZE);
+        HttpURLConnection connection = connect("/upload");
+        connection.setRequestMethod(HttpConstants.METHOD_POST);
+        connection.setRequestProperty(HttpConstants.HEADER_CONTENT_ENCODING, "gzip");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(1024);
+        try (OutputStream stream = new GZIPOutputStream(connection.getOutputStream())) {
+            stream.write(content.getBytes(IOUtils.CHARSET));
+        }
+        Assert.assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        Assert.assertEquals(content, uploaded);
+    }
+}
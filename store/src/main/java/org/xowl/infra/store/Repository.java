@@ -37,6 +37,8 @@ import org.xowl.infra.store.storage.NodeManager;
 import org.xowl.infra.store.writers.*;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.*;
@@ -147,6 +149,14 @@ public abstract class Repository {
      * File extension for the Functional xOWL syntax
      */
     public static final String SYNTAX_XOWL_EXTENSION = ".xowl";
+    /**
+     * Supported compact binary RDF syntax
+     */
+    public static final String SYNTAX_RDF_BINARY = "application/x-xowl-rdf-binary";
+    /**
+     * File extension for the compact binary RDF syntax
+     */
+    public static final String SYNTAX_RDF_BINARY_EXTENSION = ".xrdb";
 
     /**
      * Determines the syntax for the specified resource
@@ -177,6 +187,8 @@ public abstract class Repository {
             return SYNTAX_OWLXML;
         if (resource.endsWith(SYNTAX_XOWL_EXTENSION))
             return SYNTAX_XOWL;
+        if (resource.endsWith(SYNTAX_RDF_BINARY_EXTENSION))
+            return SYNTAX_RDF_BINARY;
         // TODO: try to look into the file to determine the syntax
         return null;
     }
@@ -460,7 +472,45 @@ public abstract class Repository {
      */
     public Ontology load(Logger logger, Reader reader, String resourceIRI, String ontologyIRI, String syntax) throws Exception {
         Resource metadata = loadInput(logger, reader, resourceIRI, ontologyIRI, syntax, new Resource());
-        return metadata.ontology;
+        return metadata == null ? null : metadata.ontology;
+    }
+
+    /**
+     * Streams data in the N-Triples or N-Quads syntaxes from the specified reader into the store, do not resolve the dependencies
+     * Contrary to the load methods that parse the whole content before inserting it at once,
+     * the quads are inserted in batches as they are parsed so that the content is never held in memory.
+     * When the loading fails, the batches that have already been inserted remain in the store,
+     * so that the caller is expected to rollback the store's transaction.
+     *
+     * @param logger      The logger to use
+     * @param reader      The reader to use
+     * @param ontologyIRI The IRI of the ontology for the loaded data
+     * @param loader      The streaming loader to use, for N-Triples or N-Quads
+     * @return The loaded ontology, or null if the loading failed
+     * @throws Exception When an error occurred during the operation
+     */
+    public Ontology loadStreamed(Logger logger, Reader reader, String ontologyIRI, NQuadsStreamLoader loader) throws Exception {
+        Ontology ontology = resolveOntology(ontologyIRI);
+        if (!doLoadRDF(logger, ontology, reader, loader))
+            return null;
+        return ontology;
+    }
+
+    /**
+     * Loads data in the compact binary RDF syntax from the specified stream, do not resolve the dependencies
+     * The quads are streamed into the store.
+     *
+     * @param logger      The logger to use
+     * @param input       The input stream
+     * @param ontologyIRI The IRI of the ontology for the loaded data
+     * @return The loaded ontology, or null if the loading failed
+     * @throws Exception When an error occurred during the operation
+     */
+    public Ontology load(Logger logger, InputStream input, String ontologyIRI) throws Exception {
+        Ontology ontology = resolveOntology(ontologyIRI);
+        if (!doLoadRDF(logger, ontology, input, new BinaryRDFLoader(getNodeManager())))
+            return null;
+        return ontology;
     }
 
     /**
@@ -517,6 +567,8 @@ public abstract class Repository {
                 return loadInputOWL(logger, reader, resourceIRI, metadata, new OWLXMLLoader());
             case SYNTAX_XOWL:
                 return loadInputOWL(logger, reader, resourceIRI, metadata, new xOWLLoader(executionManager));
+            case SYNTAX_RDF_BINARY:
+                throw new IllegalArgumentException("Syntax " + syntax + " must be loaded from a stream");
             default:
                 throw new IllegalArgumentException("Unsupported syntax: " + syntax);
         }
@@ -610,6 +662,17 @@ public abstract class Repository {
         }
     }
 
+    /**
+     * Exports all stored ontologies in the compact binary RDF syntax
+     *
+     * @param logger The logger to use
+     * @param output The output stream
+     * @throws Exception When an error occurred during the operation
+     */
+    public void exportAll(Logger logger, OutputStream output) throws Exception {
+        doExportRDF(logger, new BinaryRDFSerializer(output));
+    }
+
     /**
      * Exports a resource
      *
@@ -663,6 +726,8 @@ public abstract class Repository {
                 throw new IllegalArgumentException("Syntax " + syntax + " is not supported");
             case SYNTAX_XOWL:
                 throw new IllegalArgumentException("Syntax " + syntax + " is not supported");
+            case SYNTAX_RDF_BINARY:
+                throw new IllegalArgumentException("Syntax " + syntax + " must be exported to a stream");
             default:
                 throw new IllegalArgumentException("Unknown syntax: " + syntax);
         }
@@ -721,6 +786,8 @@ public abstract class Repository {
                 throw new IllegalArgumentException("Syntax " + syntax + " is not supported");
             case SYNTAX_XOWL:
                 throw new IllegalArgumentException("Syntax " + syntax + " is not supported");
+            case SYNTAX_RDF_BINARY:
+                throw new IllegalArgumentException("Syntax " + syntax + " must be exported to a stream");
             default:
                 throw new IllegalArgumentException("Unknown syntax: " + syntax);
         }
@@ -736,6 +803,30 @@ public abstract class Repository {
      */
     protected abstract void doLoadRDF(Logger logger, Ontology ontology, RDFLoaderResult input) throws Exception;
 
+    /**
+     * Loads quads by streaming them from an input
+     *
+     * @param logger   The logger to use
+     * @param ontology The containing ontology
+     * @param reader   The input reader
+     * @param loader   The streaming loader to use
+     * @return Whether the operation succeeded
+     * @throws Exception When an error occurred during the operation
+     */
+    protected abstract boolean doLoadRDF(Logger logger, Ontology ontology, Reader reader, NQuadsStreamLoader loader) throws Exception;
+
+    /**
+     * Loads quads by streaming them from a binary input
+     *
+     * @param logger   The logger to use
+     * @param ontology The containing ontology
+     * @param input    The input stream
+     * @param loader   The streaming loader to use
+     * @return Whether the operation succeeded
+     * @throws Exception When an error occurred during the operation
+     */
+    protected abstract boolean doLoadRDF(Logger logger, Ontology ontology, InputStream input, BinaryRDFLoader loader) throws Exception;
+
     /**
      * Loads an ontology as a set of axioms
      *
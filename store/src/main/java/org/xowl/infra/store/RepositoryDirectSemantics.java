@@ -23,6 +23,8 @@ import org.xowl.infra.lang.actions.FunctionExpression;
 import org.xowl.infra.lang.owl2.*;
 import org.xowl.infra.lang.runtime.Entity;
 import org.xowl.infra.lang.runtime.RuntimeFactory;
+import org.xowl.infra.store.loaders.BinaryRDFLoader;
+import org.xowl.infra.store.loaders.NQuadsStreamLoader;
 import org.xowl.infra.store.loaders.OWLLoaderResult;
 import org.xowl.infra.store.loaders.RDFLoaderResult;
 import org.xowl.infra.store.owl.OWLQueryEngine;
@@ -34,6 +36,8 @@ import org.xowl.infra.store.storage.cache.CachedNodes;
 import org.xowl.infra.store.writers.OWLSerializer;
 import org.xowl.infra.store.writers.RDFSerializer;
 
+import java.io.InputStream;
+import java.io.Reader;
 import java.util.*;
 
 /**
@@ -148,6 +152,16 @@ public class RepositoryDirectSemantics extends Repository {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    protected boolean doLoadRDF(Logger logger, Ontology ontology, Reader reader, NQuadsStreamLoader loader) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected boolean doLoadRDF(Logger logger, Ontology ontology, InputStream input, BinaryRDFLoader loader) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     protected void doLoadOWL(Logger logger, Ontology ontology, OWLLoaderResult input) throws Exception {
         for (Axiom axiom : input.getAxioms())
@@ -25,6 +25,8 @@ import fr.cenotelie.commons.utils.logging.Logger;
 import fr.cenotelie.commons.utils.logging.Logging;
 import org.xowl.infra.lang.owl2.Ontology;
 import org.xowl.infra.lang.rules.Rule;
+import org.xowl.infra.store.loaders.BinaryRDFLoader;
+import org.xowl.infra.store.loaders.NQuadsStreamLoader;
 import org.xowl.infra.store.loaders.OWLLoaderResult;
 import org.xowl.infra.store.loaders.RDFLoaderResult;
 import org.xowl.infra.store.loaders.SPARQLLoader;
@@ -42,6 +44,8 @@ import org.xowl.infra.store.storage.UnsupportedNodeType;
 import org.xowl.infra.store.writers.OWLSerializer;
 import org.xowl.infra.store.writers.RDFSerializer;
 
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.*;
 
@@ -383,6 +387,18 @@ public class RepositoryRDF extends Repository {
         }
     }
 
+    @Override
+    protected boolean doLoadRDF(Logger logger, Ontology ontology, Reader reader, NQuadsStreamLoader loader) throws Exception {
+        getGraph(ontology);
+        return loader.load(logger, reader, ontology.getHasIRI().getHasValue(), backend) >= 0;
+    }
+
+    @Override
+    protected boolean doLoadRDF(Logger logger, Ontology ontology, InputStream input, BinaryRDFLoader loader) throws Exception {
+        getGraph(ontology);
+        return loader.load(logger, input, backend) >= 0;
+    }
+
     @Override
     protected void doLoadOWL(Logger logger, Ontology ontology, OWLLoaderResult input) throws Exception {
         Translator translator = new Translator(null, backend);
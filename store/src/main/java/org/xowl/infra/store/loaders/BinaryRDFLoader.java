@@ -0,0 +1,584 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.loaders;
+
+import fr.cenotelie.commons.utils.IOUtils;
+import fr.cenotelie.commons.utils.logging.Logger;
+import org.xowl.infra.store.rdf.*;
+import org.xowl.infra.store.storage.Dataset;
+import org.xowl.infra.store.storage.NodeManager;
+import org.xowl.infra.store.storage.UnsupportedNodeType;
+import org.xowl.infra.store.storage.cache.CachedNodes;
+import org.xowl.infra.store.writers.BinaryRDFSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming loader for the compact binary RDF format, as produced by the BinaryRDFSerializer
+ * The blocks are read and decompressed one at a time and the quads are directly inserted into a dataset
+ * in batches of bounded size, so that the memory used for loading does not depend on the size of the input.
+ * The strings of the dictionary are resolved once into nodes, the quads then only refer to them.
+ * The quads can also be iterated over lazily instead of being inserted into a dataset.
+ * As for the NQuadsStreamLoader, the quads loaded before an error in the input are not removed;
+ * the caller is expected to roll the target dataset back when the loading fails.
+ *
+ * @author Laurent Wouters
+ */
+public class BinaryRDFLoader {
+    /**
+     * The default number of quads in a batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    /**
+     * The number of loaded quads between two reports of progress
+     */
+    private static final long PROGRESS_INTERVAL = 1000000;
+    /**
+     * The maximum ratio between the uncompressed and compressed sizes of a content compressed with deflate
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * The RDF store to create nodes from
+     */
+    private final NodeManager store;
+    /**
+     * The maximum number of quads in a batch
+     */
+    private final int batchSize;
+    /**
+     * The strings of the dictionary
+     */
+    private final List<String> dictionary;
+    /**
+     * The IRI nodes for the strings of the dictionary, resolved on demand
+     */
+    private final List<IRINode> iris;
+    /**
+     * Maps of blanks nodes
+     */
+    private final Map<Long, BlankNode> blanks;
+    /**
+     * The terms of the previous quad
+     */
+    private final Node[] previous;
+    /**
+     * The stream being read
+     */
+    private InputStream stream;
+    /**
+     * The decompressor for the blocks
+     */
+    private Inflater inflater;
+    /**
+     * The buffer for the compressed content of the current block
+     */
+    private byte[] compressed;
+    /**
+     * The uncompressed content of the current block
+     */
+    private byte[] content;
+    /**
+     * The length of the content of the current block
+     */
+    private int length;
+    /**
+     * The current index in the content of the current block
+     */
+    private int index;
+
+    /**
+     * Initializes this loader with its own cache of nodes
+     */
+    public BinaryRDFLoader() {
+        this(new CachedNodes());
+    }
+
+    /**
+     * Initializes this loader
+     *
+     * @param store The RDF store used to create nodes
+     */
+    public BinaryRDFLoader(NodeManager store) {
+        this(store, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Initializes this loader
+     *
+     * @param store     The RDF store used to create nodes
+     * @param batchSize The maximum number of quads in a batch
+     */
+    public BinaryRDFLoader(NodeManager store, int batchSize) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.dictionary = new ArrayList<>();
+        this.iris = new ArrayList<>();
+        this.blanks = new HashMap<>();
+        this.previous = new Node[4];
+        this.compressed = new byte[0];
+        this.content = new byte[BinaryRDFSerializer.DEFAULT_BLOCK_SIZE];
+    }
+
+    /**
+     * Loads the quads from the specified input into a dataset
+     *
+     * @param logger The logger to use
+     * @param input  The input stream
+     * @param target The dataset to insert the quads into
+     * @return The number of loaded quads, or -1 when the loading failed
+     */
+    public long load(Logger logger, InputStream input, Dataset target) {
+        long count = 0;
+        try {
+            open(input);
+            List<Quad> batch = new ArrayList<>(batchSize);
+            while (readBlock()) {
+                while (index < length) {
+                    if (readRecord(batch) && batch.size() >= batchSize) {
+                        count = insert(logger, batch, target, count);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+            count = insert(logger, batch, target, count);
+        } catch (IOException | DataFormatException | UnsupportedNodeType | IllegalArgumentException | ClassCastException exception) {
+            // a class cast exception means that a term is not allowed at its position in a quad
+            logger.error(exception);
+            return -1;
+        } finally {
+            close();
+        }
+        return count;
+    }
+
+    /**
+     * Gets an iterator over the quads in the specified input
+     * The quads are decoded lazily, one block at a time, as the iterator is consumed.
+     * The input is closed when the iterator reaches the end of the input or an error, in which case the error is logged.
+     * This loader must not be used for anything else until the iteration is over.
+     *
+     * @param logger The logger to use
+     * @param input  The input stream
+     * @return The iterator over the quads
+     */
+    public Iterator<Quad> iterate(Logger logger, InputStream input) {
+        return new QuadIterator(logger, input);
+    }
+
+    /**
+     * Iterator over the quads of an input, decoded one block at a time
+     */
+    private class QuadIterator implements Iterator<Quad> {
+        /**
+         * The logger to use
+         */
+        private final Logger logger;
+        /**
+         * The input stream
+         */
+        private final InputStream input;
+        /**
+         * The quads of the current block
+         */
+        private final List<Quad> buffer;
+        /**
+         * The index of the next quad in the buffer
+         */
+        private int next;
+        /**
+         * Whether the header of the input has been read
+         */
+        private boolean started;
+        /**
+         * Whether the end of the input has been reached
+         */
+        private boolean ended;
+
+        /**
+         * Initializes this iterator
+         *
+         * @param logger The logger to use
+         * @param input  The input stream
+         */
+        public QuadIterator(Logger logger, InputStream input) {
+            this.logger = logger;
+            this.input = input;
+            this.buffer = new ArrayList<>();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next >= buffer.size() && !ended)
+                readNextBlock();
+            return next < buffer.size();
+        }
+
+        @Override
+        public Quad next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return buffer.get(next++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Decodes the quads of the next block into the buffer
+         */
+        private void readNextBlock() {
+            buffer.clear();
+            next = 0;
+            try {
+                if (!started) {
+                    started = true;
+                    open(input);
+                }
+                if (!readBlock()) {
+                    end();
+                    return;
+                }
+                while (index < length)
+                    readRecord(buffer);
+            } catch (IOException | DataFormatException | IllegalArgumentException | ClassCastException exception) {
+                logger.error(exception);
+                buffer.clear();
+                end();
+            }
+        }
+
+        /**
+         * Ends the iteration
+         */
+        private void end() {
+            ended = true;
+            close();
+            try {
+                input.close();
+            } catch (IOException exception) {
+                logger.error(exception);
+            }
+        }
+    }
+
+    /**
+     * Starts reading an input and checks its header
+     *
+     * @param input The input stream
+     * @throws IOException When the input is not in the binary RDF format
+     */
+    private void open(InputStream input) throws IOException {
+        stream = input instanceof BufferedInputStream ? input : new BufferedInputStream(input);
+        inflater = new Inflater();
+        for (int i = 0; i != BinaryRDFSerializer.MAGIC.length; i++) {
+            if (read(stream) != BinaryRDFSerializer.MAGIC[i])
+                throw new IOException("The input is not in the binary RDF format");
+        }
+        int version = (int) readVarint(stream);
+        if (version != BinaryRDFSerializer.VERSION)
+            throw new IOException("Unsupported version of the binary RDF format: " + version);
+    }
+
+    /**
+     * Reads and decompresses the next block of the input as the current block
+     *
+     * @return Whether a block was read, false when the end of the input is reached
+     * @throws IOException         When the block is malformed
+     * @throws DataFormatException When the content of the block cannot be decompressed
+     */
+    private boolean readBlock() throws IOException, DataFormatException {
+        int tag = read(stream);
+        if (tag == BinaryRDFSerializer.BLOCK_END)
+            return false;
+        if (tag != BinaryRDFSerializer.BLOCK_DATA)
+            throw new IOException("Unexpected block in the input: " + tag);
+        int contentLength = (int) readVarint(stream);
+        int compressedLength = (int) readVarint(stream);
+        if (contentLength < 0 || compressedLength < 0 || contentLength > (long) compressedLength * MAX_DEFLATE_RATIO)
+            throw new IOException("Corrupted block in the input");
+        // the declared lengths are not trusted beyond the maximum size of the blocks,
+        // the buffers of larger blocks grow with their actual content
+        readCompressed(compressedLength);
+        if (content.length < contentLength)
+            content = new byte[Math.min(contentLength, BinaryRDFSerializer.MAX_BLOCK_SIZE)];
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        length = 0;
+        while (length < contentLength && !inflater.finished()) {
+            if (length == content.length)
+                content = Arrays.copyOf(content, (int) Math.min(contentLength, content.length * 2L));
+            int inflated = inflater.inflate(content, length, Math.min(contentLength, content.length) - length);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                break;
+            length += inflated;
+        }
+        if (length != contentLength)
+            throw new IOException("Corrupted block in the input");
+        index = 0;
+        return true;
+    }
+
+    /**
+     * Reads the compressed content of the current block
+     *
+     * @param count The number of bytes to read
+     * @throws IOException When the end of the stream is reached
+     */
+    private void readCompressed(int count) throws IOException {
+        if (compressed.length < count)
+            compressed = new byte[Math.min(count, BinaryRDFSerializer.MAX_BLOCK_SIZE)];
+        int total = 0;
+        while (total < count) {
+            if (total == compressed.length)
+                compressed = Arrays.copyOf(compressed, (int) Math.min(count, compressed.length * 2L));
+            int read = stream.read(compressed, total, Math.min(count, compressed.length) - total);
+            if (read < 0)
+                throw new EOFException("Unexpected end of the input");
+            total += read;
+        }
+    }
+
+    /**
+     * Releases the resources used for reading an input
+     * The stream itself is not closed.
+     */
+    private void close() {
+        if (inflater != null)
+            inflater.end();
+        inflater = null;
+        stream = null;
+        length = 0;
+        index = 0;
+        dictionary.clear();
+        iris.clear();
+        blanks.clear();
+        Arrays.fill(previous, null);
+    }
+
+    /**
+     * Reads the next record in the current block
+     *
+     * @param batch The current batch of quads
+     * @return Whether the record was a quad, which has been added to the batch
+     * @throws IOException When the record is malformed
+     */
+    private boolean readRecord(List<Quad> batch) throws IOException {
+        int tag = readByte();
+        switch (tag) {
+            case BinaryRDFSerializer.RECORD_STRING:
+                dictionary.add(readString());
+                iris.add(null);
+                return false;
+            case BinaryRDFSerializer.RECORD_RESET:
+                dictionary.clear();
+                iris.clear();
+                return false;
+            case BinaryRDFSerializer.RECORD_QUAD: {
+                SubjectNode subject = (SubjectNode) readTerm(0);
+                Property property = (Property) readTerm(1);
+                Node object = readTerm(2);
+                GraphNode graph = (GraphNode) readTerm(3);
+                batch.add(new Quad(graph, subject, property, object));
+                return true;
+            }
+            default:
+                throw new IOException("Unexpected record in the input: " + tag);
+        }
+    }
+
+    /**
+     * Reads a term of the current quad
+     *
+     * @param position The position of the term in the quad
+     * @return The node for the term
+     * @throws IOException When the term is malformed
+     */
+    private Node readTerm(int position) throws IOException {
+        int tag = readByte();
+        Node result;
+        switch (tag) {
+            case BinaryRDFSerializer.TERM_SAME:
+                result = previous[position];
+                if (result == null)
+                    throw new IOException("Unexpected repeated term in the input");
+                return result;
+            case BinaryRDFSerializer.TERM_IRI:
+                result = getIRI((int) readVarint());
+                break;
+            case BinaryRDFSerializer.TERM_BLANK: {
+                long id = readVarint();
+                BlankNode blank = blanks.get(id);
+                if (blank == null) {
+                    blank = store.getBlankNode();
+                    blanks.put(id, blank);
+                }
+                result = blank;
+                break;
+            }
+            case BinaryRDFSerializer.TERM_LITERAL: {
+                String lexical = readString();
+                String datatype = getString((int) readVarint());
+                String lang = getString((int) readVarint());
+                result = store.getLiteralNode(lexical, datatype, lang);
+                break;
+            }
+            default:
+                throw new IOException("Unexpected term in the input: " + tag);
+        }
+        previous[position] = result;
+        return result;
+    }
+
+    /**
+     * Gets the IRI node for a string of the dictionary
+     *
+     * @param id The identifier of the string
+     * @return The IRI node
+     * @throws IOException When the identifier is not defined
+     */
+    private IRINode getIRI(int id) throws IOException {
+        if (id <= 0 || id > dictionary.size())
+            throw new IOException("Undefined string in the input: " + id);
+        IRINode result = iris.get(id - 1);
+        if (result == null) {
+            result = store.getIRINode(dictionary.get(id - 1));
+            iris.set(id - 1, result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets a string of the dictionary
+     *
+     * @param id The identifier of the string, or 0 for none
+     * @return The string, or null
+     * @throws IOException When the identifier is not defined
+     */
+    private String getString(int id) throws IOException {
+        if (id == 0)
+            return null;
+        if (id < 0 || id > dictionary.size())
+            throw new IOException("Undefined string in the input: " + id);
+        return dictionary.get(id - 1);
+    }
+
+    /**
+     * Inserts a batch of quads
+     *
+     * @param logger The logger to use
+     * @param batch  The batch of quads
+     * @param target The dataset to insert the quads into
+     * @param count  The number of quads loaded so far
+     * @return The new number of loaded quads
+     * @throws UnsupportedNodeType When a node is not supported by the target dataset
+     */
+    private long insert(Logger logger, List<Quad> batch, Dataset target, long count) throws UnsupportedNodeType {
+        if (batch.isEmpty())
+            return count;
+        target.insert(Changeset.fromAdded(batch));
+        long result = count + batch.size();
+        if (result / PROGRESS_INTERVAL != count / PROGRESS_INTERVAL)
+            logger.info("Loaded " + result + " quads");
+        return result;
+    }
+
+    /**
+     * Reads a string in the current block
+     *
+     * @return The string
+     * @throws IOException When the string is malformed
+     */
+    private String readString() throws IOException {
+        int size = (int) readVarint();
+        if (size < 0 || index + size > length)
+            throw new IOException("Unexpected end of block in the input");
+        String result = new String(content, index, size, IOUtils.CHARSET);
+        index += size;
+        return result;
+    }
+
+    /**
+     * Reads a byte in the current block
+     *
+     * @return The byte
+     * @throws IOException When the end of the block is reached
+     */
+    private int readByte() throws IOException {
+        if (index >= length)
+            throw new IOException("Unexpected end of block in the input");
+        return content[index++] & 0xFF;
+    }
+
+    /**
+     * Reads an unsigned varint in the current block
+     *
+     * @return The value
+     * @throws IOException When the end of the block is reached
+     */
+    private long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int value = readByte();
+            result |= (long) (value & 0x7F) << shift;
+            if ((value & 0x80) == 0)
+                return result;
+        }
+        throw new IOException("Malformed varint in the input");
+    }
+
+    /**
+     * Reads a byte from a stream
+     *
+     * @param stream The stream
+     * @return The byte
+     * @throws IOException When the end of the stream is reached
+     */
+    private static int read(InputStream stream) throws IOException {
+        int value = stream.read();
+        if (value < 0)
+            throw new EOFException("Unexpected end of the input");
+        return value;
+    }
+
+    /**
+     * Reads an unsigned varint from a stream
+     *
+     * @param stream The stream
+     * @return The value
+     * @throws IOException When the end of the stream is reached
+     */
+    private static long readVarint(InputStream stream) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int value = read(stream);
+            result |= (long) (value & 0x7F) << shift;
+            if ((value & 0x80) == 0)
+                return result;
+        }
+        throw new IOException("Malformed varint in the input");
+    }
+}
@@ -0,0 +1,488 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.loaders;
+
+import fr.cenotelie.commons.utils.TextUtils;
+import fr.cenotelie.commons.utils.http.URIUtils;
+import fr.cenotelie.commons.utils.logging.Logger;
+import org.xowl.infra.store.Vocabulary;
+import org.xowl.infra.store.rdf.*;
+import org.xowl.infra.store.storage.Dataset;
+import org.xowl.infra.store.storage.NodeManager;
+import org.xowl.infra.store.storage.UnsupportedNodeType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Streaming loader for N-Triples and N-Quads sources
+ * Contrary to the NTriplesLoader and NQuadsLoader, this loader does not build the syntax tree of the whole document.
+ * The input is read line by line and the quads are directly inserted into a dataset in batches of bounded size,
+ * so that the memory used for loading does not depend on the size of the input.
+ * However, the blank nodes must be kept for the whole document because their labels are scoped to the document.
+ * Because the batches are inserted as they are read, the quads loaded before an error in the input are not removed;
+ * the caller is expected to roll the target dataset back when the loading fails.
+ * <p>
+ * For bulk imports, the batches of lines can be parsed in parallel by a pool of threads, when a parallelism is explicitly given.
+ * The parsing threads only produce the lexical terms of the statements,
+ * the nodes are resolved and the quads are inserted by the calling thread, in the order of the input,
+ * so that the node managers and the target dataset are only accessed by a single thread.
+ *
+ * @author Laurent Wouters
+ */
+public class NQuadsStreamLoader {
+    /**
+     * The default number of quads in a batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    /**
+     * The number of loaded quads between two reports of progress
+     */
+    private static final long PROGRESS_INTERVAL = 1000000;
+
+    /**
+     * A lexical term in a statement
+     */
+    private static final class Term {
+        /**
+         * The type of node, as defined in Node
+         */
+        public final int type;
+        /**
+         * The IRI, the blank node label, or the literal's lexical value
+         */
+        public final String value;
+        /**
+         * The literal's datatype, if any
+         */
+        public final String datatype;
+        /**
+         * The literal's language tag, if any
+         */
+        public final String lang;
+
+        /**
+         * Initializes this term
+         *
+         * @param type     The type of node, as defined in Node
+         * @param value    The IRI, the blank node label, or the literal's lexical value
+         * @param datatype The literal's datatype, if any
+         * @param lang     The literal's language tag, if any
+         */
+        public Term(int type, String value, String datatype, String lang) {
+            this.type = type;
+            this.value = value;
+            this.datatype = datatype;
+            this.lang = lang;
+        }
+    }
+
+    /**
+     * Parses a batch of lines into the terms of their statements
+     * A statement is represented by an array of four terms: subject, property, object and graph (or null).
+     */
+    private static final class BatchParser implements Callable<List<Term[]>> {
+        /**
+         * The lines to parse
+         */
+        private final List<String> lines;
+        /**
+         * The number of the first line (1-based)
+         */
+        private final long firstLine;
+        /**
+         * Whether statements may specify their graph (N-Quads)
+         */
+        private final boolean acceptGraphs;
+        /**
+         * The current line
+         */
+        private String line;
+        /**
+         * The current line number (1-based)
+         */
+        private long lineNumber;
+        /**
+         * The current index within the current line
+         */
+        private int index;
+
+        /**
+         * Initializes this parser
+         *
+         * @param lines        The lines to parse
+         * @param firstLine    The number of the first line (1-based)
+         * @param acceptGraphs Whether statements may specify their graph (N-Quads)
+         */
+        public BatchParser(List<String> lines, long firstLine, boolean acceptGraphs) {
+            this.lines = lines;
+            this.firstLine = firstLine;
+            this.acceptGraphs = acceptGraphs;
+        }
+
+        @Override
+        public List<Term[]> call() {
+            List<Term[]> result = new ArrayList<>(lines.size());
+            for (int i = 0; i != lines.size(); i++) {
+                line = lines.get(i);
+                lineNumber = firstLine + i;
+                index = 0;
+                Term[] statement = readStatement();
+                if (statement != null)
+                    result.add(statement);
+            }
+            return result;
+        }
+
+        /**
+         * Reads the statement on the current line
+         *
+         * @return The terms of the statement, or null if the line does not contain a statement
+         */
+        private Term[] readStatement() {
+            skipWhitespaces();
+            if (index >= line.length() || line.charAt(index) == '#')
+                return null;
+            Term[] result = new Term[4];
+            result[0] = readSubject();
+            skipWhitespaces();
+            result[1] = readIRI();
+            skipWhitespaces();
+            result[2] = readObject();
+            skipWhitespaces();
+            if (index < line.length() && line.charAt(index) != '.') {
+                if (!acceptGraphs)
+                    throw error("Expected '.'");
+                result[3] = readSubject();
+                skipWhitespaces();
+            }
+            if (index >= line.length() || line.charAt(index) != '.')
+                throw error("Expected '.'");
+            index++;
+            skipWhitespaces();
+            if (index < line.length() && line.charAt(index) != '#')
+                throw error("Unexpected content after the statement");
+            return result;
+        }
+
+        /**
+         * Reads a subject (or graph label) at the current position
+         *
+         * @return The term
+         */
+        private Term readSubject() {
+            if (index < line.length() && line.charAt(index) == '_')
+                return readBlankNode();
+            return readIRI();
+        }
+
+        /**
+         * Reads an object at the current position
+         *
+         * @return The term
+         */
+        private Term readObject() {
+            if (index < line.length() && line.charAt(index) == '_')
+                return readBlankNode();
+            if (index < line.length() && line.charAt(index) == '"')
+                return readLiteral();
+            return readIRI();
+        }
+
+        /**
+         * Reads an IRI reference at the current position
+         *
+         * @return The term
+         */
+        private Term readIRI() {
+            return new Term(Node.TYPE_IRI, readIRIValue(), null, null);
+        }
+
+        /**
+         * Reads the value of an IRI reference at the current position
+         *
+         * @return The absolute IRI
+         */
+        private String readIRIValue() {
+            if (index >= line.length() || line.charAt(index) != '<')
+                throw error("Expected an IRI");
+            int end = line.indexOf('>', index + 1);
+            if (end < 0)
+                throw error("Unterminated IRI");
+            String value = TextUtils.unescape(line.substring(index + 1, end));
+            if (!URIUtils.isAbsolute(value))
+                throw error("IRI must be absolute");
+            index = end + 1;
+            return value;
+        }
+
+        /**
+         * Reads a blank node at the current position
+         *
+         * @return The term
+         */
+        private Term readBlankNode() {
+            if (index + 1 >= line.length() || line.charAt(index + 1) != ':')
+                throw error("Expected a blank node label");
+            int start = index + 2;
+            int end = start;
+            while (end < line.length() && !isWhitespace(line.charAt(end)) && line.charAt(end) != '<' && line.charAt(end) != '"')
+                end++;
+            // the label cannot end with a '.'
+            while (end > start && line.charAt(end - 1) == '.')
+                end--;
+            if (end == start)
+                throw error("Expected a blank node label");
+            index = end;
+            return new Term(Node.TYPE_BLANK, line.substring(start, end), null, null);
+        }
+
+        /**
+         * Reads a literal at the current position
+         *
+         * @return The term
+         */
+        private Term readLiteral() {
+            int end = index + 1;
+            while (end < line.length() && line.charAt(end) != '"') {
+                if (line.charAt(end) == '\\')
+                    end++;
+                end++;
+            }
+            if (end >= line.length())
+                throw error("Unterminated literal");
+            String value = TextUtils.unescape(line.substring(index + 1, end));
+            index = end + 1;
+            if (index < line.length() && line.charAt(index) == '@') {
+                int start = index + 1;
+                end = start;
+                while (end < line.length() && (Character.isLetterOrDigit(line.charAt(end)) || line.charAt(end) == '-'))
+                    end++;
+                if (end == start)
+                    throw error("Expected a language tag");
+                index = end;
+                return new Term(Node.TYPE_LITERAL, value, Vocabulary.rdfLangString, line.substring(start, end));
+            }
+            if (index + 1 < line.length() && line.charAt(index) == '^' && line.charAt(index + 1) == '^') {
+                index += 2;
+                return new Term(Node.TYPE_LITERAL, value, readIRIValue(), null);
+            }
+            return new Term(Node.TYPE_LITERAL, value, Vocabulary.xsdString, null);
+        }
+
+        /**
+         * Skips the whitespaces at the current position
+         */
+        private void skipWhitespaces() {
+            while (index < line.length() && isWhitespace(line.charAt(index)))
+                index++;
+        }
+
+        /**
+         * Builds an error for the current position
+         *
+         * @param message The error message
+         * @return The error
+         */
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("@" + lineNumber + ":" + (index + 1) + " " + message + ": " + line);
+        }
+    }
+
+    /**
+     * The RDF store to create nodes from
+     */
+    private final NodeManager store;
+    /**
+     * Whether statements may specify their graph (N-Quads)
+     */
+    private final boolean acceptGraphs;
+    /**
+     * The maximum number of quads in a batch
+     */
+    private final int batchSize;
+    /**
+     * The number of threads for parsing the input
+     */
+    private final int parallelism;
+    /**
+     * Maps of blanks nodes
+     */
+    private Map<String, BlankNode> blanks;
+
+    /**
+     * Initializes this loader
+     * The input is parsed by the calling thread.
+     *
+     * @param store        The RDF store used to create nodes
+     * @param acceptGraphs Whether statements may specify their graph (N-Quads), or not (N-Triples)
+     */
+    public NQuadsStreamLoader(NodeManager store, boolean acceptGraphs) {
+        this(store, acceptGraphs, DEFAULT_BATCH_SIZE, 1);
+    }
+
+    /**
+     * Initializes this loader
+     * The input is parsed by the calling thread.
+     *
+     * @param store        The RDF store used to create nodes
+     * @param acceptGraphs Whether statements may specify their graph (N-Quads), or not (N-Triples)
+     * @param batchSize    The maximum number of quads in a batch
+     */
+    public NQuadsStreamLoader(NodeManager store, boolean acceptGraphs, int batchSize) {
+        this(store, acceptGraphs, batchSize, 1);
+    }
+
+    /**
+     * Initializes this loader
+     *
+     * @param store        The RDF store used to create nodes
+     * @param acceptGraphs Whether statements may specify their graph (N-Quads), or not (N-Triples)
+     * @param batchSize    The maximum number of quads in a batch
+     * @param parallelism  The number of threads for parsing the input, 1 to parse in the calling thread, or for example the number of available processors for a bulk import
+     */
+    public NQuadsStreamLoader(NodeManager store, boolean acceptGraphs, int batchSize, int parallelism) {
+        this.store = store;
+        this.acceptGraphs = acceptGraphs;
+        this.batchSize = batchSize;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Loads the quads from the specified input into a dataset
+     *
+     * @param logger   The logger to use
+     * @param reader   The input reader
+     * @param graphIRI The IRI of the graph for the statements that do not specify one
+     * @param target   The dataset to insert the quads into
+     * @return The number of loaded quads, or -1 when the loading failed
+     */
+    public long load(Logger logger, Reader reader, String graphIRI, Dataset target) {
+        blanks = new HashMap<>();
+        GraphNode current = store.getIRINode(graphIRI);
+        ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        // the batches being parsed, at most two per thread so that the memory is bounded
+        Deque<Future<List<Term[]>>> pending = new ArrayDeque<>();
+        long count = 0;
+        try {
+            BufferedReader input = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+            long lineNumber = 1;
+            while (true) {
+                List<String> lines = new ArrayList<>(batchSize);
+                String line = input.readLine();
+                while (line != null) {
+                    lines.add(line);
+                    if (lines.size() >= batchSize)
+                        break;
+                    line = input.readLine();
+                }
+                if (!lines.isEmpty()) {
+                    BatchParser parser = new BatchParser(lines, lineNumber, acceptGraphs);
+                    lineNumber += lines.size();
+                    if (executor == null) {
+                        count = insert(logger, parser.call(), current, target, count);
+                    } else {
+                        pending.add(executor.submit(parser));
+                        if (pending.size() >= parallelism * 2)
+                            count = insert(logger, pending.poll().get(), current, target, count);
+                    }
+                }
+                if (line == null)
+                    break;
+            }
+            while (!pending.isEmpty())
+                count = insert(logger, pending.poll().get(), current, target, count);
+        } catch (ExecutionException exception) {
+            logger.error(exception.getCause());
+            return -1;
+        } catch (IOException | InterruptedException | UnsupportedNodeType | IllegalArgumentException exception) {
+            logger.error(exception);
+            return -1;
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+            blanks = null;
+        }
+        return count;
+    }
+
+    /**
+     * Resolves the nodes of a batch of parsed statements and inserts the quads
+     *
+     * @param logger     The logger to use
+     * @param statements The parsed statements
+     * @param current    The graph for the statements that do not specify one
+     * @param target     The dataset to insert the quads into
+     * @param count      The number of quads loaded so far
+     * @return The new number of loaded quads
+     * @throws UnsupportedNodeType When a node is not supported by the target dataset
+     */
+    private long insert(Logger logger, List<Term[]> statements, GraphNode current, Dataset target, long count) throws UnsupportedNodeType {
+        if (statements.isEmpty())
+            return count;
+        List<Quad> batch = new ArrayList<>(statements.size());
+        for (Term[] statement : statements) {
+            batch.add(new Quad(
+                    statement[3] == null ? current : (GraphNode) resolve(statement[3]),
+                    (SubjectNode) resolve(statement[0]),
+                    (Property) resolve(statement[1]),
+                    resolve(statement[2])));
+        }
+        target.insert(Changeset.fromAdded(batch));
+        long result = count + batch.size();
+        if (result / PROGRESS_INTERVAL != count / PROGRESS_INTERVAL)
+            logger.info("Loaded " + result + " quads");
+        return result;
+    }
+
+    /**
+     * Resolves the RDF node for a term
+     *
+     * @param term A term
+     * @return The RDF node
+     */
+    private Node resolve(Term term) {
+        switch (term.type) {
+            case Node.TYPE_BLANK: {
+                BlankNode blank = blanks.get(term.value);
+                if (blank == null) {
+                    blank = store.getBlankNode();
+                    blanks.put(term.value, blank);
+                }
+                return blank;
+            }
+            case Node.TYPE_LITERAL:
+                return store.getLiteralNode(term.value, term.datatype, term.lang);
+            default:
+                return store.getIRINode(term.value);
+        }
+    }
+
+    /**
+     * Gets whether the specified character is a whitespace between terms
+     *
+     * @param c A character
+     * @return Whether this is a whitespace
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -67,7 +67,7 @@ public class OWLQueryEngine {
     public OWLQueryEngine(BaseStore store, Evaluator evaluator) {
         this.store = store;
         this.evaluator = evaluator;
-        this.rdfEngine = new RDFQueryEngine(store);
+        this.rdfEngine = new RDFQueryEngine(store, store.getStatistics());
         this.graph = new VariableNode("__graph__");
     }
 
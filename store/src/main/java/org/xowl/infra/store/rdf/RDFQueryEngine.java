@@ -17,17 +17,26 @@
 
 package org.xowl.infra.store.rdf;
 
+import fr.cenotelie.commons.utils.collections.Couple;
 import fr.cenotelie.commons.utils.collections.FastBuffer;
+import fr.cenotelie.commons.utils.metrics.*;
 import org.xowl.infra.store.rete.RETENetwork;
 import org.xowl.infra.store.rete.RETERule;
 import org.xowl.infra.store.rete.Token;
 import org.xowl.infra.store.rete.TokenActivable;
 import org.xowl.infra.store.storage.Dataset;
+import org.xowl.infra.store.storage.DatasetStatistics;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a query engine for a RDF store
+ * A query is first evaluated directly against the store.
+ * When it is executed again, a RETE network is built for it so that its solutions are incrementally maintained.
+ * The cached queries are found by their normalized form, so that a query is matched even when its variables are renamed.
+ * The cache is bounded both in number of queries and in number of tokens held by their RETE rules.
  * This structure is thread-safe.
  *
  * @author Laurent Wouters
@@ -37,15 +46,15 @@ public class RDFQueryEngine implements ChangeListener {
      * The number of queries in the cache above which the cache starts to clear itself by removing less used queries
      */
     private static final int CACHE_MAX_SIZE = 64;
+    /**
+     * The total number of tokens in the RETE memories of the cached queries above which the cache starts to clear itself
+     */
+    private static final int CACHE_MAX_TOKENS = 1 << 20;
 
     /**
      * Represents a cached query that continues being executed
      */
     private static class CacheElem implements TokenActivable {
-        /**
-         * The original query
-         */
-        private final RDFQuery query;
         /**
          * The associated RETE rule
          */
@@ -58,18 +67,17 @@ public class RDFQueryEngine implements ChangeListener {
          * The number of times this query has been used
          * The count is approximate in multi-threading environment but this should be good enough
          */
-        private int hitCount;
+        private volatile int hitCount;
 
         /**
          * Initializes this cache element
          *
-         * @param query The original query
+         * @param key The normalized query
          */
-        public CacheElem(RDFQuery query) {
-            this.query = query;
+        public CacheElem(RDFQueryKey key) {
             this.rule = new RETERule(this);
-            this.rule.getPositives().addAll(query.getPositives());
-            this.rule.getNegatives().addAll(query.getNegatives());
+            this.rule.getPositives().addAll(key.getPositives());
+            this.rule.getNegatives().addAll(key.getNegatives());
             this.tokens = new FastBuffer<>(8);
             this.hitCount = 0;
         }
@@ -120,27 +128,26 @@ public class RDFQueryEngine implements ChangeListener {
             }
         }
 
-        /**
-         * Determines whether this cache element matches the specified query
-         *
-         * @param candidate A query candidate
-         * @return true if the candidate matches the query represented by this cache element
-         */
-        public boolean matches(RDFQuery candidate) {
-            return query.equals(candidate);
-        }
-
         /**
          * Gets the current solutions to the query represented by this cache element
+         * The canonical variables in the solutions are renamed to the variables of the specified query.
          *
+         * @param key The normalized query that is executed
          * @return the current solutions
          */
-        public List<RDFPatternSolution> getSolutions() {
+        public List<RDFPatternSolution> getSolutions(RDFQueryKey key) {
             hitCount++;
             List<RDFPatternSolution> results = new ArrayList<>();
-            for (Token token : tokens) {
-                if (token != null)
-                    results.add(new RDFPatternSolution(token.getBindings()));
+            synchronized (tokens) {
+                for (Token token : tokens) {
+                    if (token == null)
+                        continue;
+                    Collection<Couple<VariableNode, Node>> bindings = token.getBindings();
+                    Collection<Couple<VariableNode, Node>> renamed = new ArrayList<>(bindings.size());
+                    for (Couple<VariableNode, Node> binding : bindings)
+                        renamed.add(new Couple<>(key.getVariable(binding.x), binding.y));
+                    results.add(new RDFPatternSolution(renamed));
+                }
             }
             return results;
         }
@@ -247,13 +254,53 @@ public class RDFQueryEngine implements ChangeListener {
      */
     private final RETENetwork rete;
     /**
-     * The cache of queries
+     * The cache of queries, by normalized query
+     */
+    private final Map<RDFQueryKey, CacheElem> cache;
+    /**
+     * The queries that were recently evaluated directly, the most recent last
      */
-    private final List<CacheElem> cache;
+    private final Map<RDFQueryKey, Boolean> recent;
+    /**
+     * The evaluator for the queries that are not in the cache
+     */
+    private final RDFQueryEvaluator evaluator;
     /**
      * The thread-specific engine inputs and outputs
      */
     private final ThreadLocal<EngineIO> threadIO;
+    /**
+     * The number of executions served by the cache
+     */
+    private final AtomicLong hitsCount;
+    /**
+     * The number of executions not served by the cache
+     */
+    private final AtomicLong missesCount;
+    /**
+     * The number of queries evicted from the cache
+     */
+    private final AtomicLong evictionsCount;
+    /**
+     * The metric for the number of cache hits
+     */
+    private final Metric metricHits;
+    /**
+     * The metric for the number of cache misses
+     */
+    private final Metric metricMisses;
+    /**
+     * The metric for the number of evictions from the cache
+     */
+    private final Metric metricEvictions;
+    /**
+     * The metric for the number of cached queries
+     */
+    private final Metric metricSize;
+    /**
+     * The composite metric for this engine
+     */
+    private final MetricComposite metricEngine;
 
     /**
      * Initializes this engine
@@ -261,9 +308,58 @@ public class RDFQueryEngine implements ChangeListener {
      * @param store The RDF store to query
      */
     public RDFQueryEngine(Dataset store) {
+        this(store, null);
+    }
+
+    /**
+     * Initializes this engine
+     *
+     * @param store      The RDF store to query
+     * @param statistics The statistics about the store, or null if there are none
+     */
+    public RDFQueryEngine(Dataset store, DatasetStatistics statistics) {
         this.rete = new RETENetwork(store);
-        this.cache = new ArrayList<>();
+        this.cache = new ConcurrentHashMap<>();
+        this.recent = new LinkedHashMap<RDFQueryKey, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RDFQueryKey, Boolean> eldest) {
+                return size() > CACHE_MAX_SIZE;
+            }
+        };
+        this.evaluator = new RDFQueryEvaluator(store, statistics);
         this.threadIO = new ThreadLocal<>();
+        this.hitsCount = new AtomicLong(0);
+        this.missesCount = new AtomicLong(0);
+        this.evictionsCount = new AtomicLong(0);
+        this.metricHits = new MetricBase(RDFQueryEngine.class.getCanonicalName() + ".Hits",
+                "Query Engine - Cache Hits",
+                "queries",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricMisses = new MetricBase(RDFQueryEngine.class.getCanonicalName() + ".Misses",
+                "Query Engine - Cache Misses",
+                "queries",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricEvictions = new MetricBase(RDFQueryEngine.class.getCanonicalName() + ".Evictions",
+                "Query Engine - Cache Evictions",
+                "queries",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricSize = new MetricBase(RDFQueryEngine.class.getCanonicalName() + ".CachedQueries",
+                "Query Engine - Cached Queries",
+                "queries",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"),
+                new Couple<>(Metric.HINT_MAX_VALUE, Integer.toString(CACHE_MAX_SIZE)));
+        this.metricEngine = new MetricComposite(RDFQueryEngine.class.getCanonicalName() + "@" + Integer.toString(hashCode()),
+                "RDF Query Engine",
+                1000000000,
+                metricHits, metricMisses, metricEvictions, metricSize);
         store.addListener(this);
     }
 
@@ -281,6 +377,30 @@ public class RDFQueryEngine implements ChangeListener {
         return result;
     }
 
+    /**
+     * Gets the composite metric for this engine
+     *
+     * @return The metric for this engine
+     */
+    public Metric getMetric() {
+        return metricEngine;
+    }
+
+    /**
+     * Gets a snapshot of the metrics for this engine
+     *
+     * @param timestamp The timestamp to use
+     * @return The snapshot
+     */
+    public MetricSnapshot getMetricSnapshot(long timestamp) {
+        MetricSnapshotComposite snapshot = new MetricSnapshotComposite(timestamp);
+        snapshot.addPart(metricHits, new MetricSnapshotLong(timestamp, hitsCount.get()));
+        snapshot.addPart(metricMisses, new MetricSnapshotLong(timestamp, missesCount.get()));
+        snapshot.addPart(metricEvictions, new MetricSnapshotLong(timestamp, evictionsCount.get()));
+        snapshot.addPart(metricSize, new MetricSnapshotInt(timestamp, cache.size()));
+        return snapshot;
+    }
+
     /**
      * Executes the specified query and gets the solutions
      *
@@ -288,47 +408,78 @@ public class RDFQueryEngine implements ChangeListener {
      * @return The solutions
      */
     public Collection<RDFPatternSolution> execute(RDFQuery query) {
+        RDFQueryKey key = new RDFQueryKey(query);
         // try from the cache
-
-        CacheElem target = null;
-        synchronized (cache) {
-            for (CacheElem element : cache) {
-                if (element.matches(query)) {
-                    target = element;
-                    break;
-                }
-            }
-        }
+        CacheElem target = cache.get(key);
         if (target != null) {
-            Collection<RDFPatternSolution> result = target.getSolutions();
-            // re-sort the cache by hit count (hottest on top)
-            synchronized (cache) {
-                Collections.sort(cache, new Comparator<CacheElem>() {
-                    @Override
-                    public int compare(CacheElem element1, CacheElem element2) {
-                        return Integer.compare(element2.getHitCount(), element1.getHitCount());
-                    }
-                });
+            hitsCount.incrementAndGet();
+            return target.getSolutions(key);
+        }
+        missesCount.incrementAndGet();
+
+        synchronized (recent) {
+            if (recent.remove(key) == null) {
+                // first time this query is seen, evaluate it directly
+                recent.put(key, Boolean.TRUE);
+                target = null;
+            } else {
+                target = new CacheElem(key);
             }
-            return result;
         }
+        if (target == null)
+            return evaluator.execute(query);
 
         synchronized (cache) {
-            while (cache.size() >= CACHE_MAX_SIZE) {
-                int index = cache.size() - 1;
-                try {
-                    CacheElem toDrop = cache.remove(index);
-                    rete.removeRule(toDrop.getRule());
-                } catch (IndexOutOfBoundsException exception) {
-                    // ignore
+            CacheElem previous = cache.get(key);
+            if (previous != null)
+                // registered by another thread in the meantime
+                return previous.getSolutions(key);
+            evict();
+            // register the new query in the cache
+            cache.put(key, target);
+        }
+        rete.addRule(target.getRule());
+        return target.getSolutions(key);
+    }
+
+    /**
+     * Evicts cached queries until there is room for a new one
+     * The evicted queries are those with the lowest number of hits for the number of tokens they hold.
+     * This method must be called while holding the lock on the cache.
+     */
+    private void evict() {
+        Map<CacheElem, Integer> weights = new HashMap<>();
+        long total = 0;
+        for (CacheElem element : cache.values()) {
+            int weight = 1 + rete.getTokensCount(element.getRule());
+            weights.put(element, weight);
+            total += weight;
+        }
+        while (!weights.isEmpty() && (weights.size() >= CACHE_MAX_SIZE || total > CACHE_MAX_TOKENS)) {
+            CacheElem victim = null;
+            long victimHits = 0;
+            long victimWeight = 0;
+            for (Map.Entry<CacheElem, Integer> entry : weights.entrySet()) {
+                long hits = entry.getKey().getHitCount() + 1;
+                long weight = entry.getValue();
+                if (victim == null || hits * victimWeight < victimHits * weight) {
+                    victim = entry.getKey();
+                    victimHits = hits;
+                    victimWeight = weight;
                 }
             }
-            // build the new query and register it in the cache
-            target = new CacheElem(query);
-            cache.add(target);
+            weights.remove(victim);
+            total -= victimWeight;
+            Iterator<CacheElem> iterator = cache.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == victim) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            rete.removeRule(victim.getRule());
+            evictionsCount.incrementAndGet();
         }
-        rete.addRule(target.getRule());
-        return target.getSolutions();
     }
 
     @Override
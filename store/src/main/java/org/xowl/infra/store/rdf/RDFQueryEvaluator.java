@@ -0,0 +1,412 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.rdf;
+
+import fr.cenotelie.commons.utils.collections.Couple;
+import fr.cenotelie.commons.utils.logging.Logging;
+import org.xowl.infra.store.RDFUtils;
+import org.xowl.infra.store.storage.Dataset;
+import org.xowl.infra.store.storage.DatasetStatistics;
+import org.xowl.infra.store.storage.UnsupportedNodeType;
+
+import java.util.*;
+
+/**
+ * Evaluates RDF queries directly against the indexes of a dataset, without building a RETE network
+ * The positive quads are joined in an order driven by the estimated cardinality of each quad pattern.
+ * The cardinalities are taken from the statistics about the dataset when available, or counted otherwise.
+ * Each join is either performed as an index nested loop (the dataset is queried for each intermediate solution)
+ * or as a hash join (the dataset is queried once for the quad pattern), depending on which is expected to be cheaper.
+ * This structure is thread-safe.
+ *
+ * @author Laurent Wouters
+ */
+public class RDFQueryEvaluator {
+    /**
+     * The assumed reduction of the cardinality of a quad pattern for each of its fields that is bound by a previous join
+     */
+    private static final long BOUND_FIELD_SELECTIVITY = 16;
+
+    /**
+     * The queried dataset
+     */
+    private final Dataset store;
+    /**
+     * The statistics about the queried dataset, if any
+     */
+    private final DatasetStatistics statistics;
+
+    /**
+     * Initializes this evaluator
+     *
+     * @param store The queried dataset
+     */
+    public RDFQueryEvaluator(Dataset store) {
+        this(store, null);
+    }
+
+    /**
+     * Initializes this evaluator
+     *
+     * @param store      The queried dataset
+     * @param statistics The statistics about the queried dataset, or null if there are none
+     */
+    public RDFQueryEvaluator(Dataset store, DatasetStatistics statistics) {
+        this.store = store;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Evaluates the specified query and gets the solutions
+     *
+     * @param query A query
+     * @return The solutions
+     */
+    public Collection<RDFPatternSolution> execute(RDFQuery query) {
+        try {
+            return doExecute(query);
+        } catch (UnsupportedNodeType exception) {
+            Logging.get().error(exception);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Evaluates the specified query and gets the solutions
+     *
+     * @param query A query
+     * @return The solutions
+     * @throws UnsupportedNodeType When a node is not supported by the dataset
+     */
+    private Collection<RDFPatternSolution> doExecute(RDFQuery query) throws UnsupportedNodeType {
+        // allocate a slot for each variable, the variables of the positives first
+        Map<VariableNode, Integer> slots = new HashMap<>();
+        for (Quad pattern : query.getPositives())
+            allocateSlots(pattern, slots);
+        int positiveCount = slots.size();
+        for (Collection<Quad> conjunction : query.getNegatives())
+            for (Quad pattern : conjunction)
+                allocateSlots(pattern, slots);
+        VariableNode[] variables = new VariableNode[slots.size()];
+        for (Map.Entry<VariableNode, Integer> entry : slots.entrySet())
+            variables[entry.getValue()] = entry.getKey();
+
+        // join the positives
+        List<Node[]> rows = new ArrayList<>();
+        rows.add(new Node[variables.length]);
+        List<Quad> remaining = new ArrayList<>(query.getPositives());
+        List<Long> counts = new ArrayList<>(remaining.size());
+        for (Quad pattern : remaining) {
+            long count = estimate(pattern);
+            if (count == 0)
+                // a positive cannot be matched
+                return Collections.emptyList();
+            counts.add(count);
+        }
+        boolean[] bound = new boolean[variables.length];
+        while (!remaining.isEmpty() && !rows.isEmpty()) {
+            int next = getNextPattern(remaining, counts, slots, bound);
+            Quad pattern = remaining.remove(next);
+            long count = counts.remove(next);
+            if (count <= rows.size())
+                rows = joinHash(rows, pattern, slots, bound);
+            else
+                rows = joinIndex(rows, pattern, slots);
+            markBound(pattern, slots, bound);
+        }
+
+        // apply the negatives and build the solutions
+        List<RDFPatternSolution> result = new ArrayList<>(rows.size());
+        for (Node[] row : rows) {
+            boolean excluded = false;
+            for (Collection<Quad> conjunction : query.getNegatives()) {
+                if (exists(new ArrayList<>(conjunction), 0, row, slots)) {
+                    excluded = true;
+                    break;
+                }
+            }
+            if (excluded)
+                continue;
+            List<Couple<VariableNode, Node>> bindings = new ArrayList<>(positiveCount);
+            for (int i = 0; i != positiveCount; i++)
+                bindings.add(new Couple<>(variables[i], row[i]));
+            result.add(new RDFPatternSolution(bindings));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the estimated number of quads matching a quad pattern
+     *
+     * @param pattern A quad pattern
+     * @return The estimated number of matching quads, 0 only if there are none
+     * @throws UnsupportedNodeType When a node is not supported by the dataset
+     */
+    private long estimate(Quad pattern) throws UnsupportedNodeType {
+        if (statistics != null) {
+            long result = statistics.estimate(pattern.getGraph(), pattern.getSubject(), pattern.getProperty(), pattern.getObject());
+            if (result > 0)
+                return result;
+            // confirm the absence of matching quads against the dataset
+        }
+        return store.count(pattern.getGraph(), pattern.getSubject(), pattern.getProperty(), pattern.getObject());
+    }
+
+    /**
+     * Allocates the slots for the variables in a quad pattern
+     *
+     * @param pattern A quad pattern
+     * @param slots   The slots of the variables
+     */
+    private static void allocateSlots(Quad pattern, Map<VariableNode, Integer> slots) {
+        for (QuadField field : QuadField.values()) {
+            VariableNode variable = getVariable(pattern, field);
+            if (variable != null && !slots.containsKey(variable))
+                slots.put(variable, slots.size());
+        }
+    }
+
+    /**
+     * Marks the variables in a quad pattern as bound
+     *
+     * @param pattern A quad pattern
+     * @param slots   The slots of the variables
+     * @param bound   The bound slots
+     */
+    private static void markBound(Quad pattern, Map<VariableNode, Integer> slots, boolean[] bound) {
+        for (QuadField field : QuadField.values()) {
+            VariableNode variable = getVariable(pattern, field);
+            if (variable != null)
+                bound[slots.get(variable)] = true;
+        }
+    }
+
+    /**
+     * Gets the variable in a field of a quad pattern
+     *
+     * @param pattern A quad pattern
+     * @param field   The field
+     * @return The variable, or null if the field does not contain a variable
+     */
+    private static VariableNode getVariable(Quad pattern, QuadField field) {
+        Node node = pattern.getField(field);
+        if (node != null && node.getNodeType() == Node.TYPE_VARIABLE)
+            return (VariableNode) node;
+        return null;
+    }
+
+    /**
+     * Gets the index of the next quad pattern to join, i.e. the one with the lowest estimated cardinality
+     * A quad pattern that shares no variable with the previous joins is only chosen when all of them are in this case.
+     *
+     * @param patterns The remaining quad patterns
+     * @param counts   The number of quads matching each pattern
+     * @param slots    The slots of the variables
+     * @param bound    The bound slots
+     * @return The index of the next quad pattern
+     */
+    private static int getNextPattern(List<Quad> patterns, List<Long> counts, Map<VariableNode, Integer> slots, boolean[] bound) {
+        int result = -1;
+        boolean resultConnected = false;
+        long resultEstimate = Long.MAX_VALUE;
+        for (int i = 0; i != patterns.size(); i++) {
+            int boundFields = 0;
+            for (QuadField field : QuadField.values()) {
+                VariableNode variable = getVariable(patterns.get(i), field);
+                if (variable != null && bound[slots.get(variable)])
+                    boundFields++;
+            }
+            long estimate = counts.get(i);
+            for (int j = 0; j != boundFields; j++)
+                estimate = Math.max(1, estimate / BOUND_FIELD_SELECTIVITY);
+            boolean connected = boundFields > 0;
+            if (result == -1 || (connected && !resultConnected) || (connected == resultConnected && estimate < resultEstimate)) {
+                result = i;
+                resultConnected = connected;
+                resultEstimate = estimate;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Joins the intermediate rows with a quad pattern by querying the dataset for each row
+     *
+     * @param rows    The intermediate rows
+     * @param pattern The quad pattern
+     * @param slots   The slots of the variables
+     * @return The new rows
+     * @throws UnsupportedNodeType When a node is not supported by the dataset
+     */
+    private List<Node[]> joinIndex(List<Node[]> rows, Quad pattern, Map<VariableNode, Integer> slots) throws UnsupportedNodeType {
+        List<Node[]> result = new ArrayList<>();
+        for (Node[] row : rows) {
+            Quad instance = instantiate(pattern, row, slots);
+            if (instance == null)
+                continue;
+            Iterator<Quad> iterator = store.getAll(instance.getGraph(), instance.getSubject(), instance.getProperty(), instance.getObject());
+            while (iterator.hasNext()) {
+                Node[] newRow = match(pattern, iterator.next(), row, slots);
+                if (newRow != null)
+                    result.add(newRow);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Joins the intermediate rows with a quad pattern by querying the dataset once and hashing the matching quads
+     *
+     * @param rows    The intermediate rows
+     * @param pattern The quad pattern
+     * @param slots   The slots of the variables
+     * @param bound   The bound slots
+     * @return The new rows
+     * @throws UnsupportedNodeType When a node is not supported by the dataset
+     */
+    private List<Node[]> joinHash(List<Node[]> rows, Quad pattern, Map<VariableNode, Integer> slots, boolean[] bound) throws UnsupportedNodeType {
+        List<QuadField> keyFields = new ArrayList<>(4);
+        List<Integer> keySlots = new ArrayList<>(4);
+        for (QuadField field : QuadField.values()) {
+            VariableNode variable = getVariable(pattern, field);
+            if (variable != null && bound[slots.get(variable)] && !keySlots.contains(slots.get(variable))) {
+                keyFields.add(field);
+                keySlots.add(slots.get(variable));
+            }
+        }
+        Map<List<Node>, List<Quad>> buckets = new HashMap<>();
+        Iterator<Quad> iterator = store.getAll(pattern.getGraph(), pattern.getSubject(), pattern.getProperty(), pattern.getObject());
+        while (iterator.hasNext()) {
+            Quad quad = iterator.next();
+            // copy the quad as the dataset may reuse the instance
+            quad = new Quad(quad.getGraph(), quad.getSubject(), quad.getProperty(), quad.getObject());
+            List<Node> key = new ArrayList<>(keyFields.size());
+            for (QuadField field : keyFields)
+                key.add(quad.getField(field));
+            List<Quad> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                buckets.put(key, bucket);
+            }
+            bucket.add(quad);
+        }
+        List<Node[]> result = new ArrayList<>();
+        for (Node[] row : rows) {
+            List<Node> key = new ArrayList<>(keySlots.size());
+            for (Integer slot : keySlots)
+                key.add(row[slot]);
+            List<Quad> bucket = buckets.get(key);
+            if (bucket == null)
+                continue;
+            for (Quad quad : bucket) {
+                Node[] newRow = match(pattern, quad, row, slots);
+                if (newRow != null)
+                    result.add(newRow);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines whether a conjunction of quad patterns can be matched for a row
+     *
+     * @param patterns The quad patterns
+     * @param index    The index of the current quad pattern
+     * @param row      The current row
+     * @param slots    The slots of the variables
+     * @return Whether the remaining quad patterns can be matched
+     * @throws UnsupportedNodeType When a node is not supported by the dataset
+     */
+    private boolean exists(List<Quad> patterns, int index, Node[] row, Map<VariableNode, Integer> slots) throws UnsupportedNodeType {
+        if (index == patterns.size())
+            return true;
+        Quad pattern = patterns.get(index);
+        Quad instance = instantiate(pattern, row, slots);
+        if (instance == null)
+            return false;
+        Iterator<Quad> iterator = store.getAll(instance.getGraph(), instance.getSubject(), instance.getProperty(), instance.getObject());
+        while (iterator.hasNext()) {
+            Node[] newRow = match(pattern, iterator.next(), row, slots);
+            if (newRow != null && exists(patterns, index + 1, newRow, slots))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Instantiates a quad pattern with the values bound in a row
+     *
+     * @param pattern The quad pattern
+     * @param row     The row
+     * @param slots   The slots of the variables
+     * @return The instantiated pattern, or null if a bound value cannot be used in its field
+     */
+    private static Quad instantiate(Quad pattern, Node[] row, Map<VariableNode, Integer> slots) {
+        Node graph = instantiate(pattern.getGraph(), row, slots);
+        Node subject = instantiate(pattern.getSubject(), row, slots);
+        Node property = instantiate(pattern.getProperty(), row, slots);
+        Node object = instantiate(pattern.getObject(), row, slots);
+        if (graph != null && (graph.getNodeType() & Node.FLAG_GRAPH) == 0)
+            return null;
+        if (subject != null && (subject.getNodeType() & Node.FLAG_SUBJECT) == 0)
+            return null;
+        if (property != null && (property.getNodeType() & Node.FLAG_PROPERTY) == 0)
+            return null;
+        return new Quad((GraphNode) graph, (SubjectNode) subject, (Property) property, object);
+    }
+
+    /**
+     * Instantiates a node with the values bound in a row
+     *
+     * @param node  The node
+     * @param row   The row
+     * @param slots The slots of the variables
+     * @return The instantiated node
+     */
+    private static Node instantiate(Node node, Node[] row, Map<VariableNode, Integer> slots) {
+        if (node == null || node.getNodeType() != Node.TYPE_VARIABLE)
+            return node;
+        Node value = row[slots.get(node)];
+        return value != null ? value : node;
+    }
+
+    /**
+     * Matches a quad against a quad pattern for a row
+     *
+     * @param pattern The quad pattern
+     * @param quad    The quad
+     * @param row     The current row
+     * @param slots   The slots of the variables
+     * @return The new row, or null if the quad does not match
+     */
+    private static Node[] match(Quad pattern, Quad quad, Node[] row, Map<VariableNode, Integer> slots) {
+        Node[] result = Arrays.copyOf(row, row.length);
+        for (QuadField field : QuadField.values()) {
+            VariableNode variable = getVariable(pattern, field);
+            if (variable == null)
+                continue;
+            int slot = slots.get(variable);
+            Node value = quad.getField(field);
+            if (result[slot] == null)
+                result[slot] = value;
+            else if (!RDFUtils.same(result[slot], value))
+                return null;
+        }
+        return result;
+    }
+}
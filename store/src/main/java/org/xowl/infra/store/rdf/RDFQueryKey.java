@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.rdf;
+
+import java.util.*;
+
+/**
+ * Represents the normalized form of a RDF query that is used as a key for caching the query
+ * The quads of the query are sorted and its variables are renamed to canonical names,
+ * so that two queries that only differ by the names of their variables get equal keys.
+ *
+ * @author Laurent Wouters
+ */
+class RDFQueryKey {
+    /**
+     * The normalized positive quads
+     */
+    private final List<Quad> positives;
+    /**
+     * The normalized negative conjunctions of quads
+     */
+    private final List<Collection<Quad>> negatives;
+    /**
+     * The original variables of the query, for each canonical variable
+     */
+    private final Map<VariableNode, VariableNode> variables;
+    /**
+     * The hash code for this key
+     */
+    private final int hash;
+
+    /**
+     * Initializes this key
+     *
+     * @param query The query to normalize
+     */
+    public RDFQueryKey(RDFQuery query) {
+        this.positives = new ArrayList<>(query.getPositives().size());
+        this.negatives = new ArrayList<>(query.getNegatives().size());
+        this.variables = new HashMap<>();
+        Map<VariableNode, VariableNode> canonicals = new HashMap<>();
+        for (Quad quad : sort(query.getPositives()))
+            positives.add(normalize(quad, canonicals));
+        List<List<Quad>> conjunctions = new ArrayList<>(query.getNegatives().size());
+        for (Collection<Quad> conjunction : query.getNegatives())
+            conjunctions.add(sort(conjunction));
+        Collections.sort(conjunctions, new Comparator<List<Quad>>() {
+            @Override
+            public int compare(List<Quad> conjunction1, List<Quad> conjunction2) {
+                int result = Integer.compare(conjunction1.size(), conjunction2.size());
+                for (int i = 0; result == 0 && i != conjunction1.size(); i++)
+                    result = Integer.compare(signature(conjunction1.get(i)), signature(conjunction2.get(i)));
+                return result;
+            }
+        });
+        for (List<Quad> conjunction : conjunctions) {
+            List<Quad> normalized = new ArrayList<>(conjunction.size());
+            for (Quad quad : conjunction)
+                normalized.add(normalize(quad, canonicals));
+            negatives.add(normalized);
+        }
+        for (Map.Entry<VariableNode, VariableNode> entry : canonicals.entrySet())
+            variables.put(entry.getValue(), entry.getKey());
+        this.hash = 31 * positives.hashCode() + negatives.hashCode();
+    }
+
+    /**
+     * Gets the normalized positive quads
+     *
+     * @return The normalized positive quads
+     */
+    public Collection<Quad> getPositives() {
+        return positives;
+    }
+
+    /**
+     * Gets the normalized negative conjunctions of quads
+     *
+     * @return The normalized negative conjunctions of quads
+     */
+    public Collection<Collection<Quad>> getNegatives() {
+        return negatives;
+    }
+
+    /**
+     * Gets the variable of the original query for the specified canonical variable
+     *
+     * @param canonical A canonical variable in the normalized quads
+     * @return The corresponding variable in the original query
+     */
+    public VariableNode getVariable(VariableNode canonical) {
+        VariableNode result = variables.get(canonical);
+        return result != null ? result : canonical;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RDFQueryKey))
+            return false;
+        RDFQueryKey key = (RDFQueryKey) obj;
+        return key == this || (hash == key.hash && positives.equals(key.positives) && negatives.equals(key.negatives));
+    }
+
+    /**
+     * Sorts the quads of a conjunction on their signatures
+     * The sort is stable so that quads with the same signature keep their original order.
+     *
+     * @param quads The quads to sort
+     * @return The sorted quads
+     */
+    private static List<Quad> sort(Collection<Quad> quads) {
+        List<Quad> result = new ArrayList<>(quads);
+        Collections.sort(result, new Comparator<Quad>() {
+            @Override
+            public int compare(Quad quad1, Quad quad2) {
+                return Integer.compare(signature(quad1), signature(quad2));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Computes the signature of a quad, i.e. a hash that does not depend on the names of the variables
+     *
+     * @param quad A quad
+     * @return The signature
+     */
+    private static int signature(Quad quad) {
+        int result = 5;
+        result = 53 * result + signature(quad.getGraph());
+        result = 53 * result + signature(quad.getSubject());
+        result = 53 * result + signature(quad.getProperty());
+        result = 53 * result + signature(quad.getObject());
+        return result;
+    }
+
+    /**
+     * Computes the signature of a node, i.e. a hash that does not depend on the names of the variables
+     *
+     * @param node A node
+     * @return The signature
+     */
+    private static int signature(Node node) {
+        if (node == null)
+            return 0;
+        if (node.getNodeType() == Node.TYPE_VARIABLE)
+            return 1;
+        return node.hashCode();
+    }
+
+    /**
+     * Normalizes a quad by renaming its variables to their canonical names
+     *
+     * @param quad       The quad to normalize
+     * @param canonicals The canonical variables assigned so far
+     * @return The normalized quad
+     */
+    private static Quad normalize(Quad quad, Map<VariableNode, VariableNode> canonicals) {
+        GraphNode graph = quad.getGraph();
+        SubjectNode subject = quad.getSubject();
+        Property property = quad.getProperty();
+        Node object = quad.getObject();
+        if (graph != null && graph.getNodeType() == Node.TYPE_VARIABLE)
+            graph = normalize((VariableNode) graph, canonicals);
+        if (subject != null && subject.getNodeType() == Node.TYPE_VARIABLE)
+            subject = normalize((VariableNode) subject, canonicals);
+        if (property != null && property.getNodeType() == Node.TYPE_VARIABLE)
+            property = normalize((VariableNode) property, canonicals);
+        if (object != null && object.getNodeType() == Node.TYPE_VARIABLE)
+            object = normalize((VariableNode) object, canonicals);
+        return new Quad(graph, subject, property, object);
+    }
+
+    /**
+     * Gets the canonical variable for a variable of the query
+     *
+     * @param variable   A variable in the query
+     * @param canonicals The canonical variables assigned so far
+     * @return The canonical variable
+     */
+    private static VariableNode normalize(VariableNode variable, Map<VariableNode, VariableNode> canonicals) {
+        VariableNode result = canonicals.get(variable);
+        if (result == null) {
+            result = new VariableNode("v" + Integer.toString(canonicals.size()));
+            canonicals.put(variable, result);
+        }
+        return result;
+    }
+}
@@ -18,10 +18,11 @@
 package org.xowl.infra.store.rete;
 
 import fr.cenotelie.commons.utils.collections.FastBuffer;
-import org.xowl.infra.store.rdf.Quad;
+import org.xowl.infra.store.rdf.*;
 import org.xowl.infra.store.storage.Dataset;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 
 /**
@@ -69,6 +70,47 @@ class AlphaMemory implements FactActivable, FactHolder, AlphaMemoryBucketElement
         return result;
     }
 
+    @Override
+    public Collection<Quad> getFacts(Token token, JoinTest... tests) {
+        // refine the pattern with the values bound in the token so that the store's indexes are used
+        Node graph = pattern.getGraph();
+        Node subject = pattern.getSubject();
+        Node property = pattern.getProperty();
+        Node object = pattern.getObject();
+        boolean refined = false;
+        for (JoinTest test : tests) {
+            if (test == null || !test.useInIndex())
+                continue;
+            Node value = test.getIndex(token);
+            if (value == null)
+                continue;
+            switch (((JoinTestBound) test).getField()) {
+                case GRAPH:
+                    if ((value.getNodeType() & Node.FLAG_GRAPH) == 0)
+                        return Collections.emptyList();
+                    graph = value;
+                    break;
+                case SUBJECT:
+                    if ((value.getNodeType() & Node.FLAG_SUBJECT) == 0)
+                        return Collections.emptyList();
+                    subject = value;
+                    break;
+                case PROPERTY:
+                    if ((value.getNodeType() & Node.FLAG_PROPERTY) == 0)
+                        return Collections.emptyList();
+                    property = value;
+                    break;
+                case VALUE:
+                    object = value;
+                    break;
+            }
+            refined = true;
+        }
+        if (!refined)
+            return getFacts();
+        return new FactCollection(store, new Quad((GraphNode) graph, (SubjectNode) subject, (Property) property, object));
+    }
+
     @Override
     public void addChild(FactActivable node) {
         synchronized (children) {
@@ -46,6 +46,10 @@ class BetaJoinNode extends JoinBase implements FactActivable, TokenActivable {
      * The associated upstream beta memory
      */
     private final TokenHolder betaMem;
+    /**
+     * The hash index of the tokens in the upstream beta memory, if any
+     */
+    private final TokenIndex betaIndex;
     /**
      * The downstream beta memory
      */
@@ -66,6 +70,7 @@ class BetaJoinNode extends JoinBase implements FactActivable, TokenActivable {
         this.betaMem = beta;
         this.alphaMem.addChild(this);
         this.betaMem.addChild(this);
+        this.betaIndex = beta instanceof BetaMemory ? ((BetaMemory) beta).createIndex(tests) : null;
         this.child = new BetaMemory(binders, bindersCount);
     }
 
@@ -84,12 +89,14 @@ class BetaJoinNode extends JoinBase implements FactActivable, TokenActivable {
     public void onDestroy() {
         alphaMem.removeChild(this);
         betaMem.removeChild(this);
+        if (betaIndex != null)
+            ((BetaMemory) betaMem).removeIndex(betaIndex);
         child = null;
     }
 
     @Override
     public void activateToken(Token t) {
-        for (Quad fact : alphaMem.getFacts())
+        for (Quad fact : alphaMem.getFacts(t, test1, test2, test3, test4))
             if (passTests(t, fact))
                 child.activate(t, fact);
     }
@@ -112,14 +119,14 @@ class BetaJoinNode extends JoinBase implements FactActivable, TokenActivable {
 
     @Override
     public void activateFact(Quad fact) {
-        for (Token t : betaMem.getTokens())
+        for (Token t : getTokens(fact))
             if (passTests(t, fact))
                 child.activate(t, fact);
     }
 
     @Override
     public void deactivateFact(Quad fact) {
-        for (Token t : betaMem.getTokens())
+        for (Token t : getTokens(fact))
             if (passTests(t, fact))
                 child.deactivateCouple(t, fact);
     }
@@ -136,6 +143,18 @@ class BetaJoinNode extends JoinBase implements FactActivable, TokenActivable {
             child.deactivateCouples(getJoin(betaMem.getTokens(), facts));
     }
 
+    /**
+     * Gets the tokens in the upstream beta memory that can match the specified fact
+     *
+     * @param fact A fact
+     * @return The candidate tokens
+     */
+    private Collection<Token> getTokens(Quad fact) {
+        if (betaIndex != null)
+            return ((BetaMemory) betaMem).getTokens(betaIndex, fact);
+        return betaMem.getTokens();
+    }
+
     /**
      * Gets an iterator over the couples representing the join operation of the specified tokens and facts
      *
@@ -67,6 +67,10 @@ class BetaMemory implements TokenHolder {
      * The binding operations in this node
      */
     private final Binder[] binders;
+    /**
+     * The hash indexes of the tokens for the downstream join nodes
+     */
+    private final List<TokenIndex> indexes;
 
     /**
      * Initializes this node
@@ -78,6 +82,82 @@ class BetaMemory implements TokenHolder {
         this.store = new HashMap<>();
         this.children = new FastBuffer<>(8);
         this.binders = bindersCount > 0 ? Arrays.copyOf(binders, bindersCount) : null;
+        this.indexes = new ArrayList<>(1);
+    }
+
+    /**
+     * Creates a hash index of the tokens in this memory for the tests of a join node
+     * The index is maintained by this memory as the tokens are added and removed.
+     *
+     * @param tests The tests of the join node
+     * @return The index, or null if none of the tests can be used to build the index
+     */
+    public TokenIndex createIndex(JoinTest... tests) {
+        TokenIndex index = TokenIndex.create(tests);
+        if (index == null)
+            return null;
+        synchronized (store) {
+            for (FastBuffer<Token> tChildren : store.values()) {
+                for (Token token : tChildren) {
+                    if (token != null)
+                        index.add(token);
+                }
+            }
+            indexes.add(index);
+        }
+        return index;
+    }
+
+    /**
+     * Removes a hash index of the tokens in this memory
+     *
+     * @param index The index to remove
+     */
+    public void removeIndex(TokenIndex index) {
+        synchronized (store) {
+            indexes.remove(index);
+        }
+    }
+
+    /**
+     * Gets the tokens in this memory that can match the specified fact, as found by the specified index
+     *
+     * @param index An index of this memory
+     * @param fact  A fact
+     * @return The candidate tokens
+     */
+    public Collection<Token> getTokens(TokenIndex index, Quad fact) {
+        synchronized (store) {
+            return index.get(fact);
+        }
+    }
+
+    /**
+     * Adds a token to the indexes of this memory
+     * The caller must hold the lock on the store.
+     *
+     * @param token The token to add
+     */
+    private void onTokenAdded(Token token) {
+        for (int i = 0; i != indexes.size(); i++)
+            indexes.get(i).add(token);
+    }
+
+    /**
+     * Removes tokens from the indexes of this memory
+     * The caller must hold the lock on the store.
+     *
+     * @param tokens The tokens to remove
+     */
+    private void onTokensRemoved(FastBuffer<Token> tokens) {
+        if (indexes.isEmpty())
+            return;
+        for (Token token : tokens) {
+            if (token == null)
+                continue;
+            for (int i = 0; i != indexes.size(); i++)
+                indexes.get(i).remove(token);
+        }
     }
 
     /**
@@ -150,6 +230,8 @@ class BetaMemory implements TokenHolder {
         }
         synchronized (store) {
             store.clear();
+            for (int i = 0; i != indexes.size(); i++)
+                indexes.get(i).clear();
         }
     }
 
@@ -218,6 +300,7 @@ class BetaMemory implements TokenHolder {
                     // not here, build the child
                     Token child = new Token(token, 0);
                     tChildren.add(child);
+                    onTokenAdded(child);
                     return child;
                 } else {
                     // already here
@@ -233,6 +316,7 @@ class BetaMemory implements TokenHolder {
             binders[i].execute(childToken, fact);
         synchronized (store) {
             tChildren.add(childToken);
+            onTokenAdded(childToken);
         }
         return childToken;
     }
@@ -246,6 +330,8 @@ class BetaMemory implements TokenHolder {
         FastBuffer<Token> tChildren;
         synchronized (store) {
             tChildren = store.remove(token);
+            if (tChildren != null)
+                onTokensRemoved(tChildren);
         }
         if (tChildren == null || tChildren.isEmpty())
             return;
@@ -289,6 +375,7 @@ class BetaMemory implements TokenHolder {
                 tChildren = store.remove(token);
                 if (tChildren == null)
                     continue;
+                onTokensRemoved(tChildren);
                 buffer.addAll(tChildren);
             }
         }
@@ -353,6 +440,10 @@ class BetaMemory implements TokenHolder {
                     if (matches(child, fact)) {
                         buffer.add(child);
                         iterator.remove();
+                        synchronized (store) {
+                            for (int i = 0; i != indexes.size(); i++)
+                                indexes.get(i).remove(child);
+                        }
                     } else {
                         isEmpty = false;
                     }
@@ -361,7 +452,8 @@ class BetaMemory implements TokenHolder {
         }
         if (isEmpty) {
             synchronized (store) {
-                store.remove(token);
+                if (store.remove(token) != null)
+                    onTokensRemoved(tChildren);
             }
         }
     }
@@ -34,6 +34,15 @@ interface FactHolder {
      */
     Collection<Quad> getFacts();
 
+    /**
+     * Gets the facts in this element that can match the specified token for the specified join tests
+     *
+     * @param token A token
+     * @param tests The join tests (array of size 4)
+     * @return The candidate facts
+     */
+    Collection<Quad> getFacts(Token token, JoinTest... tests);
+
     /**
      * Adds a new child to this element
      *
@@ -49,6 +49,15 @@ class JoinTestBound extends JoinTest {
         this.field = field;
     }
 
+    /**
+     * Gets the field of a fact that is tested
+     *
+     * @return The tested field
+     */
+    public QuadField getField() {
+        return field;
+    }
+
     @Override
     public boolean useInIndex() {
         return true;
@@ -232,6 +232,27 @@ public class RETENetwork {
         return result;
     }
 
+    /**
+     * Gets the number of tokens held in the beta memories of the specified rule in this network
+     * This is an estimate of the memory used by the rule.
+     *
+     * @param rule A rule in this network
+     * @return The number of tokens for the rule
+     */
+    public int getTokensCount(RETERule rule) {
+        RuleData data;
+        synchronized (rules) {
+            data = rules.get(rule);
+        }
+        if (data == null)
+            // the rule is not in this network ...
+            return 0;
+        int result = 0;
+        for (JoinData joinData : data.positives)
+            result += joinData.nodeJoin.getChild().getTokens().size();
+        return result;
+    }
+
     /**
      * Gets the join data for the specified RETE rule
      *
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.rete;
+
+import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.Quad;
+
+import java.util.*;
+
+/**
+ * Represents a hash index of the tokens in a beta memory
+ * The tokens are indexed on the values of the variables tested by the bound tests of a join node,
+ * so that the tokens that can match a fact are directly retrieved with the values of the fact.
+ * This structure is NOT thread safe, the beta memory is responsible for the synchronization.
+ *
+ * @author Laurent Wouters
+ */
+class TokenIndex {
+    /**
+     * The tests that are used to build the index
+     */
+    private final JoinTest[] tests;
+    /**
+     * The indexed tokens
+     */
+    private final Map<List<Node>, List<Token>> buckets;
+
+    /**
+     * Initializes this index
+     *
+     * @param tests The tests that are used to build the index
+     */
+    private TokenIndex(JoinTest[] tests) {
+        this.tests = tests;
+        this.buckets = new HashMap<>();
+    }
+
+    /**
+     * Creates an index for the specified join tests
+     *
+     * @param tests The tests of a join node
+     * @return The index, or null if none of the tests can be used to build the index
+     */
+    public static TokenIndex create(JoinTest... tests) {
+        List<JoinTest> indexed = new ArrayList<>(tests.length);
+        for (JoinTest test : tests) {
+            if (test != null && test.useInIndex())
+                indexed.add(test);
+        }
+        if (indexed.isEmpty())
+            return null;
+        return new TokenIndex(indexed.toArray(new JoinTest[indexed.size()]));
+    }
+
+    /**
+     * Adds a token to this index
+     *
+     * @param token The token to add
+     */
+    public void add(Token token) {
+        List<Node> key = getKey(token);
+        List<Token> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>(2);
+            buckets.put(key, bucket);
+        }
+        bucket.add(token);
+    }
+
+    /**
+     * Removes a token from this index
+     *
+     * @param token The token to remove
+     */
+    public void remove(Token token) {
+        List<Node> key = getKey(token);
+        List<Token> bucket = buckets.get(key);
+        if (bucket == null)
+            return;
+        for (int i = 0; i != bucket.size(); i++) {
+            if (bucket.get(i) == token) {
+                bucket.remove(i);
+                break;
+            }
+        }
+        if (bucket.isEmpty())
+            buckets.remove(key);
+    }
+
+    /**
+     * Removes all the tokens from this index
+     */
+    public void clear() {
+        buckets.clear();
+    }
+
+    /**
+     * Gets the tokens that have the same values as the specified fact for the indexed tests
+     *
+     * @param fact A fact
+     * @return The candidate tokens for the fact
+     */
+    public Collection<Token> get(Quad fact) {
+        Node[] values = new Node[tests.length];
+        for (int i = 0; i != tests.length; i++)
+            values[i] = tests[i].getIndex(fact);
+        List<Token> bucket = buckets.get(Arrays.asList(values));
+        if (bucket == null)
+            return Collections.emptyList();
+        return new ArrayList<>(bucket);
+    }
+
+    /**
+     * Gets the key for a token
+     *
+     * @param token A token
+     * @return The key
+     */
+    private List<Node> getKey(Token token) {
+        Node[] values = new Node[tests.length];
+        for (int i = 0; i != tests.length; i++)
+            values[i] = tests[i].getIndex(token);
+        return Arrays.asList(values);
+    }
+}
@@ -20,7 +20,9 @@ package org.xowl.infra.store.sparql;
 import org.xowl.infra.store.RepositoryRDF;
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -53,8 +55,9 @@ public class CommandAsk implements Command {
     @Override
     public Result execute(RepositoryRDF repository) {
         try {
-            Solutions solutions = pattern.eval(new EvalContextRepository(repository));
-            return new ResultYesNo(solutions.size() > 0);
+            // only the first solution is retrieved
+            Iterator<RDFPatternSolution> solutions = pattern.iterate(new EvalContextRepository(repository));
+            return new ResultYesNo(solutions.hasNext());
         } catch (EvaluationException exception) {
             return new ResultFailure(exception.getMessage());
         }
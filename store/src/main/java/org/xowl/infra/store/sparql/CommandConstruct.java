@@ -63,10 +63,11 @@ public class CommandConstruct implements Command {
     public Result execute(RepositoryRDF repository) {
         try {
             EvalContext context = new EvalContextRepository(repository);
-            Solutions solutions = pattern.eval(context);
+            Iterator<RDFPatternSolution> solutions = pattern.iterate(context);
             Collection<Quad> quads = new ArrayList<>();
             VariableResolver resolver = VariableResolveStandard.INSTANCE;
-            for (RDFPatternSolution solution : solutions) {
+            while (solutions.hasNext()) {
+                RDFPatternSolution solution = solutions.next();
                 Map<Node, Node> cache = new HashMap<>();
                 RDFUtils.instantiateQuads(context.getNodes(), context.getEvaluator(), resolver, solution, cache, template, quads, true);
             }
@@ -53,7 +53,7 @@ public class CommandSelect implements Command {
     @Override
     public Result execute(RepositoryRDF repository) {
         try {
-            return new ResultSolutions(pattern.eval(new EvalContextRepository(repository)));
+            return new ResultSolutions(new SolutionsMultiset(pattern.iterate(new EvalContextRepository(repository))));
         } catch (EvaluationException exception) {
             return new ResultFailure(exception.getMessage());
         }
@@ -19,7 +19,9 @@ package org.xowl.infra.store.sparql;
 
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -37,6 +39,16 @@ public interface GraphPattern {
      */
     Solutions eval(EvalContext context) throws EvaluationException;
 
+    /**
+     * Evaluates this pattern as a pipeline that produces the solutions on demand
+     * When the consumer stops retrieving the solutions, the remaining work is not performed.
+     *
+     * @param context The evaluation context
+     * @return An iterator over the solutions
+     * @throws EvaluationException When an error occurs during the evaluation
+     */
+    Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException;
+
     /**
      * Recursively inspect this pattern and its children
      *
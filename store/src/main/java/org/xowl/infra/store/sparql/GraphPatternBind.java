@@ -25,6 +25,7 @@ import org.xowl.infra.store.rdf.RDFPatternSolution;
 import org.xowl.infra.store.rdf.VariableNode;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -75,6 +76,13 @@ public class GraphPatternBind implements GraphPattern {
         }
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        if (origin != null)
+            return Utils.extend(origin.iterate(context), variable, expression, context);
+        return eval(context).iterator();
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
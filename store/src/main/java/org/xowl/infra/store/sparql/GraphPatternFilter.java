@@ -19,7 +19,9 @@ package org.xowl.infra.store.sparql;
 
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -71,6 +73,11 @@ public class GraphPatternFilter implements GraphPattern {
         return Utils.filter(origin.eval(context), expression, context);
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        return Utils.filter(origin.iterate(context), expression, context);
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
@@ -25,6 +25,7 @@ import org.xowl.infra.store.rdf.VariableNode;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -53,6 +54,11 @@ public class GraphPatternInlineData implements GraphPattern {
         return new SolutionsMultiset(data);
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        return eval(context).iterator();
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
@@ -19,7 +19,9 @@ package org.xowl.infra.store.sparql;
 
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -61,6 +63,11 @@ public class GraphPatternLeftJoin implements GraphPattern {
         return Utils.leftJoin(leftSolutions, rightSolutions, expression, context);
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        return Utils.leftJoin(left.iterate(context), right.iterate(context), expression, context);
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
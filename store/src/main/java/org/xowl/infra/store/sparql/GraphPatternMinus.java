@@ -19,7 +19,9 @@ package org.xowl.infra.store.sparql;
 
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -55,6 +57,11 @@ public class GraphPatternMinus implements GraphPattern {
         return Utils.minus(originalSolutions, restrictingSolutions);
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        return Utils.minus(original.iterate(context), restricting.iterate(context));
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
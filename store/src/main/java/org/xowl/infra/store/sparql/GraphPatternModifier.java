@@ -20,9 +20,11 @@ package org.xowl.infra.store.sparql;
 import fr.cenotelie.commons.utils.collections.Couple;
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 import org.xowl.infra.store.rdf.VariableNode;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -139,13 +141,12 @@ public class GraphPatternModifier {
      */
     public Solutions apply(Solutions solutions, EvalContext context) throws EvaluationException {
         Solutions result = solutions;
-        if (!having.isEmpty()) {
-            Expression exp = having.get(0);
-            for (int i = 1; i != having.size(); i++)
-                exp = new ExpressionOperator(ExpressionOperator.Op.BoolAnd, exp, having.get(i));
-            result = Utils.filter(result, exp, context);
-        }
-        if (!order.isEmpty())
+        if (!having.isEmpty())
+            result = Utils.filter(result, getHavingExpression(), context);
+        if (!order.isEmpty() && limit != Integer.MAX_VALUE)
+            // only the first solutions are kept
+            result = Utils.orderBy(result.iterator(), order, getTopCount(), context);
+        else if (!order.isEmpty())
             result = Utils.orderBy(result, order, context);
         if (offset != 0 || limit != Integer.MAX_VALUE)
             result = Utils.slice(result, offset, limit);
@@ -154,6 +155,52 @@ public class GraphPatternModifier {
         return result;
     }
 
+    /**
+     * Applies this modifier to the specified stream of solutions
+     * When there is only an OFFSET and LIMIT, the solutions are sliced on demand so that no more solutions
+     * than necessary are retrieved from the original stream.
+     * When there is an ORDER BY with a LIMIT, only the first ordered solutions are kept while the stream is retrieved.
+     * Otherwise, the stream is fully retrieved before the modifier is applied.
+     *
+     * @param solutions The stream of solutions
+     * @param context   The evaluation context
+     * @return The transformed solutions
+     * @throws EvaluationException When an error occurs during the evaluation
+     */
+    public Iterator<RDFPatternSolution> apply(Iterator<RDFPatternSolution> solutions, EvalContext context) throws EvaluationException {
+        if (!groups.isEmpty() || (!order.isEmpty() && limit == Integer.MAX_VALUE))
+            return apply(new SolutionsMultiset(solutions), context).iterator();
+        Iterator<RDFPatternSolution> result = solutions;
+        if (!having.isEmpty())
+            result = Utils.filter(result, getHavingExpression(), context);
+        if (!order.isEmpty())
+            result = Utils.orderBy(result, order, getTopCount(), context).iterator();
+        if (offset != 0 || limit != Integer.MAX_VALUE)
+            result = Utils.slice(result, offset, limit);
+        return result;
+    }
+
+    /**
+     * Gets the conjunction of the HAVING constraints
+     *
+     * @return The conjunction of the HAVING constraints
+     */
+    private Expression getHavingExpression() {
+        Expression result = having.get(0);
+        for (int i = 1; i != having.size(); i++)
+            result = new ExpressionOperator(ExpressionOperator.Op.BoolAnd, result, having.get(i));
+        return result;
+    }
+
+    /**
+     * Gets the number of ordered solutions to keep for the OFFSET and LIMIT
+     *
+     * @return The number of solutions to keep
+     */
+    private int getTopCount() {
+        return (int) Math.min((long) offset + (long) limit, Integer.MAX_VALUE);
+    }
+
     /**
      * Clones this modifier
      *
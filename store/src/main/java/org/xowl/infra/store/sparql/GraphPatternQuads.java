@@ -23,6 +23,7 @@ import org.xowl.infra.store.rdf.*;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -91,6 +92,38 @@ public class GraphPatternQuads implements GraphPattern {
         return context.getSolutions(pattern);
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(final EvalContext context) throws EvaluationException {
+        if (pattern.getPositives().isEmpty() && pattern.getNegatives().isEmpty())
+            return eval(context).iterator();
+        // the pattern is only matched when the first solution is requested
+        return new Iterator<RDFPatternSolution>() {
+            /**
+             * The iterator over the matched solutions
+             */
+            private Iterator<RDFPatternSolution> inner;
+
+            @Override
+            public boolean hasNext() {
+                if (inner == null)
+                    inner = context.getSolutions(pattern).iterator();
+                return inner.hasNext();
+            }
+
+            @Override
+            public RDFPatternSolution next() {
+                if (inner == null)
+                    inner = context.getSolutions(pattern).iterator();
+                return inner.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
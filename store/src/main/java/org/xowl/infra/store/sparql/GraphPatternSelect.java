@@ -20,10 +20,12 @@ package org.xowl.infra.store.sparql;
 import fr.cenotelie.commons.utils.collections.Couple;
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 import org.xowl.infra.store.rdf.VariableNode;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -110,9 +112,14 @@ public class GraphPatternSelect implements GraphPattern {
 
     @Override
     public Solutions eval(EvalContext context) throws EvaluationException {
-        Solutions solutions = where.eval(context);
+        return new SolutionsMultiset(iterate(context));
+    }
+
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        Iterator<RDFPatternSolution> solutions = where.iterate(context);
         solutions = modifier != null ? modifier.apply(solutions, context) : solutions;
-        solutions = (values != null) ? Utils.join(solutions, values.eval(context)) : solutions;
+        solutions = (values != null) ? Utils.join(solutions, values.iterate(context)) : solutions;
         solutions = (!projection.isEmpty()) ? Utils.project(solutions, projection, context) : solutions;
         solutions = (isDistinct || isReduced) ? Utils.distinct(solutions) : solutions;
         return solutions;
@@ -19,7 +19,9 @@ package org.xowl.infra.store.sparql;
 
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -68,6 +70,11 @@ public class GraphPatternService implements GraphPattern {
         throw new EvaluationException("SERVICE is not supported");
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        return eval(context).iterator();
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
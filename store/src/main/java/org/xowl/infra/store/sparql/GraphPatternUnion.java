@@ -23,6 +23,7 @@ import org.xowl.infra.store.rdf.RDFPatternSolution;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -55,6 +56,14 @@ public class GraphPatternUnion implements GraphPattern {
         return result;
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        List<Iterator<RDFPatternSolution>> iterators = new ArrayList<>(elements.size());
+        for (GraphPattern element : elements)
+            iterators.add(element.iterate(context));
+        return Utils.union(iterators);
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
@@ -19,7 +19,9 @@ package org.xowl.infra.store.sparql;
 
 import org.xowl.infra.store.execution.EvaluationException;
 import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -33,6 +35,11 @@ public class GraphPatternUnmatchable implements GraphPattern {
         return new SolutionsMultiset(0);
     }
 
+    @Override
+    public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+        return eval(context).iterator();
+    }
+
     @Override
     public void inspect(Inspector inspector) {
         inspector.onGraphPattern(this);
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.sparql;
+
+import fr.cenotelie.commons.utils.logging.Logging;
+import org.xowl.infra.store.RDFUtils;
+import org.xowl.infra.store.Repository;
+import org.xowl.infra.store.rdf.Quad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Represents the result of a SPARQL command as a stream of quads
+ * Contrary to the ResultQuads, the quads are not held in memory, they are produced as the result is iterated over.
+ * Hence, this result can only be consumed once, be it through the iterator, by printing or by serializing it.
+ * The result should be closed when it is not entirely consumed so that the underlying source is released.
+ *
+ * @author Laurent Wouters
+ */
+public class ResultQuadsStream implements Result, Closeable {
+    /**
+     * The iterator over the quads
+     */
+    private final Iterator<Quad> quads;
+    /**
+     * The source of the quads
+     */
+    private final Closeable source;
+
+    /**
+     * Gets the iterator over the quads
+     *
+     * @return The iterator over the quads
+     */
+    public Iterator<Quad> getQuads() {
+        return quads;
+    }
+
+    /**
+     * Initializes this result
+     *
+     * @param quads  The iterator over the quads
+     * @param source The source of the quads
+     */
+    public ResultQuadsStream(Iterator<Quad> quads, Closeable source) {
+        this.quads = quads;
+        this.source = source;
+    }
+
+    @Override
+    public boolean isFailure() {
+        return false;
+    }
+
+    @Override
+    public boolean isSuccess() {
+        return true;
+    }
+
+    @Override
+    public void print(Writer writer, String syntax) throws IOException {
+        RDFUtils.serialize(writer, Logging.get(), quads, syntax);
+    }
+
+    @Override
+    public String serializedString() {
+        return RDFUtils.serialize(quads, Repository.SYNTAX_XRDF);
+    }
+
+    @Override
+    public String serializedJSON() {
+        return RDFUtils.serialize(quads, Repository.SYNTAX_JSON);
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
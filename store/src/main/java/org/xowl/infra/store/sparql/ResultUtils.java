@@ -55,7 +55,7 @@ public class ResultUtils {
      * @return The coerced content type
      */
     public static String coerceContentType(Result result, List<String> types) {
-        if (result instanceof ResultQuads) {
+        if (result instanceof ResultQuads || result instanceof ResultQuadsStream) {
             return RDFUtils.coerceContentTypeQuads(types);
         } else {
             if (types == null)
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.sparql;
+
+import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
+import org.xowl.infra.store.rdf.VariableNode;
+
+import java.util.*;
+
+/**
+ * Represents a hash index of the solutions on the right side of a join, left join or minus operation
+ * The solutions are hashed on the values of the variables that are bound in all of them.
+ * The index is lazily built from the source solutions when it is first used.
+ *
+ * @author Laurent Wouters
+ */
+class SolutionsIndex {
+    /**
+     * The source of the solutions, until the index is built
+     */
+    private Iterator<RDFPatternSolution> source;
+    /**
+     * All the indexed solutions
+     */
+    private List<RDFPatternSolution> solutions;
+    /**
+     * The variables bound in all the solutions
+     */
+    private List<VariableNode> variables;
+    /**
+     * The hashed solutions, in their original order within each bucket
+     */
+    private Map<List<Node>, List<RDFPatternSolution>> buckets;
+
+    /**
+     * Initializes this index
+     *
+     * @param source The source of the solutions
+     */
+    public SolutionsIndex(Iterator<RDFPatternSolution> source) {
+        this.source = source;
+    }
+
+    /**
+     * Gets whether this index is empty
+     *
+     * @return Whether this index is empty
+     */
+    public boolean isEmpty() {
+        build();
+        return solutions.isEmpty();
+    }
+
+    /**
+     * Gets the solutions in this index that can be compatible with the specified one
+     * The candidates must still be checked for compatibility.
+     *
+     * @param solution A solution
+     * @return The candidate solutions
+     */
+    public List<RDFPatternSolution> getCandidates(RDFPatternSolution solution) {
+        build();
+        if (variables.isEmpty())
+            return solutions;
+        List<Node> key = new ArrayList<>(variables.size());
+        for (VariableNode variable : variables) {
+            Node value = solution.get(variable);
+            if (value == null)
+                // not bound in the probing solution, all the solutions are candidates
+                return solutions;
+            key.add(value);
+        }
+        List<RDFPatternSolution> bucket = buckets.get(key);
+        return bucket == null ? Collections.<RDFPatternSolution>emptyList() : bucket;
+    }
+
+    /**
+     * Builds this index from the source, if not already done
+     */
+    private void build() {
+        if (source == null)
+            return;
+        solutions = new ArrayList<>();
+        while (source.hasNext()) {
+            RDFPatternSolution solution = source.next();
+            solutions.add(solution);
+            if (variables == null) {
+                variables = new ArrayList<>(solution.getVariables());
+            } else {
+                Iterator<VariableNode> iterator = variables.iterator();
+                while (iterator.hasNext()) {
+                    if (solution.get(iterator.next()) == null)
+                        iterator.remove();
+                }
+            }
+        }
+        source = null;
+        if (variables == null)
+            variables = Collections.emptyList();
+        buckets = new HashMap<>();
+        if (variables.isEmpty())
+            return;
+        for (RDFPatternSolution solution : solutions) {
+            List<Node> key = new ArrayList<>(variables.size());
+            for (VariableNode variable : variables)
+                key.add(solution.get(variable));
+            List<RDFPatternSolution> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                buckets.put(key, bucket);
+            }
+            bucket.add(solution);
+        }
+    }
+}
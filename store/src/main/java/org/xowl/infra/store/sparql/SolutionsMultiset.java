@@ -71,6 +71,17 @@ public class SolutionsMultiset implements Solutions {
             content.add(solution);
     }
 
+    /**
+     * Initializes this set with the remaining solutions of the specified iterator
+     *
+     * @param solutions The solutions to retrieve
+     */
+    public SolutionsMultiset(Iterator<RDFPatternSolution> solutions) {
+        this.content = new ArrayList<>();
+        while (solutions.hasNext())
+            content.add(solutions.next());
+    }
+
     /**
      * Initializes this set as a copy of the specified original
      *
@@ -17,7 +17,11 @@
 
 package org.xowl.infra.store.sparql;
 
+import fr.cenotelie.commons.utils.collections.Adapter;
+import fr.cenotelie.commons.utils.collections.AdaptingIterator;
+import fr.cenotelie.commons.utils.collections.CombiningIterator;
 import fr.cenotelie.commons.utils.collections.Couple;
+import fr.cenotelie.commons.utils.collections.SkippableIterator;
 import org.xowl.infra.store.RDFUtils;
 import org.xowl.infra.store.execution.EvaluableExpression;
 import org.xowl.infra.store.execution.EvaluationException;
@@ -32,6 +36,37 @@ import java.util.*;
  * @author Laurent Wouters
  */
 class Utils {
+    /**
+     * A solution with its precomputed sorting keys
+     */
+    private static class OrderedSolution {
+        /**
+         * The solution
+         */
+        public final RDFPatternSolution solution;
+        /**
+         * The sorting keys for the ordering conditions
+         */
+        public final Double[] keys;
+        /**
+         * The sequence number of the solution in the original order
+         */
+        public final int sequence;
+
+        /**
+         * Initializes this element
+         *
+         * @param solution The solution
+         * @param keys     The sorting keys for the ordering conditions
+         * @param sequence The sequence number of the solution in the original order
+         */
+        public OrderedSolution(RDFPatternSolution solution, Double[] keys, int sequence) {
+            this.solution = solution;
+            this.keys = keys;
+            this.sequence = sequence;
+        }
+    }
+
     /**
      * Clones an RDF node with a possible replacement
      *
@@ -121,6 +156,29 @@ class Utils {
         return result;
     }
 
+    /**
+     * Filters a stream of solutions based on the value of an expression
+     *
+     * @param solutions  The solutions to filter
+     * @param expression The expression used to discriminate
+     * @param context    The evaluation context
+     * @return The filtered solutions, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> filter(Iterator<RDFPatternSolution> solutions, final Expression expression, final EvalContext context) {
+        return new SkippableIterator<>(new AdaptingIterator<>(solutions, new Adapter<RDFPatternSolution, RDFPatternSolution>() {
+            @Override
+            public RDFPatternSolution adapt(RDFPatternSolution element) {
+                try {
+                    if (EvaluationUtils.bool(EvaluationUtils.primitive(expression.eval(context, element))))
+                        return element;
+                } catch (EvaluationException exception) {
+                    // do nothing
+                }
+                return null;
+            }
+        }));
+    }
+
     /**
      * Performs the join of two solution sets.
      * A solution is in the joined set is the merged solution of a solution on the left and another on the right.
@@ -131,15 +189,43 @@ class Utils {
      * @return The join set
      */
     public static Solutions join(Solutions left, Solutions right) {
-        SolutionsMultiset result = new SolutionsMultiset((left.size() == 0 ? 1 : left.size()) * (right.size() == 0 ? 1 : right.size()));
-        for (RDFPatternSolution l : left) {
-            for (RDFPatternSolution r : right) {
-                RDFPatternSolution j = merge(l, r);
-                if (j != null)
-                    result.add(j);
+        if (left.size() == 0 || right.size() == 0)
+            return new SolutionsMultiset();
+        return new SolutionsMultiset(join(left.iterator(), right.iterator()));
+    }
+
+    /**
+     * Performs the join of two streams of solutions.
+     * The solutions on the right are hashed on the values of the variables they all bind,
+     * so that each solution on the left is only merged with the candidate solutions on the right.
+     * The solutions on the right are only retrieved when the first solution on the left is.
+     *
+     * @param left  The solutions on the left
+     * @param right The solutions on the right
+     * @return The joined solutions, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> join(Iterator<RDFPatternSolution> left, Iterator<RDFPatternSolution> right) {
+        final SolutionsIndex index = new SolutionsIndex(right);
+        return new AdaptingIterator<>(new CombiningIterator<>(left, new Adapter<RDFPatternSolution, Iterator<RDFPatternSolution>>() {
+            @Override
+            public Iterator<RDFPatternSolution> adapt(RDFPatternSolution element) {
+                List<RDFPatternSolution> result = null;
+                for (RDFPatternSolution r : index.getCandidates(element)) {
+                    RDFPatternSolution j = merge(element, r);
+                    if (j != null) {
+                        if (result == null)
+                            result = new ArrayList<>();
+                        result.add(j);
+                    }
+                }
+                return result == null ? Collections.<RDFPatternSolution>emptyIterator() : result.iterator();
             }
-        }
-        return result;
+        }), new Adapter<Couple<RDFPatternSolution, RDFPatternSolution>, RDFPatternSolution>() {
+            @Override
+            public RDFPatternSolution adapt(Couple<RDFPatternSolution, RDFPatternSolution> element) {
+                return element.y;
+            }
+        });
     }
 
     /**
@@ -154,29 +240,41 @@ class Utils {
      * @return The join set
      */
     public static Solutions leftJoin(Solutions left, Solutions right, Expression expression, EvalContext context) {
-        SolutionsMultiset result = new SolutionsMultiset((left.size() == 0 ? 1 : left.size()) * (right.size() == 0 ? 1 : right.size()));
-        for (RDFPatternSolution l : left) {
-            if (right.size() == 0) {
-                result.add(l);
-            } else {
-                RDFPatternSolution match = null;
-                for (RDFPatternSolution r : right) {
-                    if (compatible(l, r)) {
+        if (left.size() == 0 || right.size() == 0)
+            return new SolutionsMultiset(left);
+        return new SolutionsMultiset(leftJoin(left.iterator(), right.iterator(), expression, context));
+    }
+
+    /**
+     * Performs the left join of two streams of solutions.
+     * The solutions on the right are hashed on the values of the variables they all bind.
+     *
+     * @param left       The solutions on the left
+     * @param right      The solutions on the right
+     * @param expression The expression for the value
+     * @param context    The evaluation context
+     * @return The joined solutions, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> leftJoin(Iterator<RDFPatternSolution> left, Iterator<RDFPatternSolution> right, final Expression expression, final EvalContext context) {
+        final SolutionsIndex index = new SolutionsIndex(right);
+        return new AdaptingIterator<>(left, new Adapter<RDFPatternSolution, RDFPatternSolution>() {
+            @Override
+            public RDFPatternSolution adapt(RDFPatternSolution element) {
+                for (RDFPatternSolution r : index.getCandidates(element)) {
+                    if (compatible(element, r)) {
                         boolean value = false;
-                        RDFPatternSolution merge = merge(l, r);
+                        RDFPatternSolution merge = merge(element, r);
                         try {
                             value = EvaluationUtils.bool(EvaluationUtils.primitive(expression.eval(context, merge)));
                         } catch (EvaluationException exception) {
                             // do nothing
                         }
-                        match = value ? merge : l;
-                        break;
+                        return value ? merge : element;
                     }
                 }
-                result.add(match != null ? match : l);
+                return element;
             }
-        }
-        return result;
+        });
     }
 
     /**
@@ -195,6 +293,47 @@ class Utils {
         return result;
     }
 
+    /**
+     * Performs the union of streams of solutions.
+     *
+     * @param elements The streams of solutions
+     * @return The solutions of the union, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> union(final List<Iterator<RDFPatternSolution>> elements) {
+        return new Iterator<RDFPatternSolution>() {
+            /**
+             * The remaining streams of solutions
+             */
+            private final Iterator<Iterator<RDFPatternSolution>> streams = elements.iterator();
+            /**
+             * The current stream of solutions
+             */
+            private Iterator<RDFPatternSolution> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (!streams.hasNext())
+                        return false;
+                    current = streams.next();
+                }
+                return true;
+            }
+
+            @Override
+            public RDFPatternSolution next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                current.remove();
+            }
+        };
+    }
+
     /**
      * Performs the set difference between a left set of solution and a right set of solutions.
      * The result is the subset of solutions on the left that are not compatible with a solution on the right.
@@ -204,19 +343,31 @@ class Utils {
      * @return The difference
      */
     public static Solutions minus(Solutions left, Solutions right) {
-        SolutionsMultiset result = new SolutionsMultiset(left.size());
-        for (RDFPatternSolution l : left) {
-            boolean match = false;
-            for (RDFPatternSolution r : right) {
-                if (compatible(l, r)) {
-                    match = true;
-                    break;
+        if (left.size() == 0 || right.size() == 0)
+            return new SolutionsMultiset(left);
+        return new SolutionsMultiset(minus(left.iterator(), right.iterator()));
+    }
+
+    /**
+     * Performs the set difference between two streams of solutions.
+     * The solutions on the right are hashed on the values of the variables they all bind.
+     *
+     * @param left  The solutions on the left
+     * @param right The solutions on the right
+     * @return The solutions on the left that are not compatible with a solution on the right, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> minus(Iterator<RDFPatternSolution> left, Iterator<RDFPatternSolution> right) {
+        final SolutionsIndex index = new SolutionsIndex(right);
+        return new SkippableIterator<>(new AdaptingIterator<>(left, new Adapter<RDFPatternSolution, RDFPatternSolution>() {
+            @Override
+            public RDFPatternSolution adapt(RDFPatternSolution element) {
+                for (RDFPatternSolution r : index.getCandidates(element)) {
+                    if (compatible(element, r))
+                        return null;
                 }
+                return element;
             }
-            if (!match)
-                result.add(l);
-        }
-        return result;
+        }));
     }
 
     /**
@@ -259,6 +410,24 @@ class Utils {
         return result;
     }
 
+    /**
+     * Extends a stream of solutions with a new binding
+     *
+     * @param solutions  The original solutions
+     * @param variable   The variable to bind
+     * @param expression The expression for the value
+     * @param context    The evaluation context
+     * @return The new query solutions, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> extend(Iterator<RDFPatternSolution> solutions, final VariableNode variable, final Expression expression, final EvalContext context) {
+        return new AdaptingIterator<>(solutions, new Adapter<RDFPatternSolution, RDFPatternSolution>() {
+            @Override
+            public RDFPatternSolution adapt(RDFPatternSolution element) {
+                return extend(element, variable, expression, context);
+            }
+        });
+    }
+
     /**
      * Orders a set of solutions
      *
@@ -298,7 +467,7 @@ class Utils {
             @Override
             public int compare(Couple<RDFPatternSolution, Double> item1, Couple<RDFPatternSolution, Double> item2) {
                 if (item1.y == null) {
-                    if (item2 != null)
+                    if (item2.y != null)
                         return isDescending ? 1 : -1;
                     return 0;
                 } else if (item2.y == null) {
@@ -323,6 +492,7 @@ class Utils {
             }
         }
         if (indexCurrent < last - 1) {
+            orderByComputeKey(buffer, indexCurrent, last, expression, context);
             orderBy(buffer, indexCurrent, last, conditions, ci + 1, context);
         }
     }
@@ -337,22 +507,89 @@ class Utils {
      * @param context    The evaluation context
      */
     private static void orderByComputeKey(Couple<RDFPatternSolution, Double>[] buffer, int first, int last, Expression expression, EvalContext context) {
-        for (int i = first; i != last; i++) {
-            try {
-                Double key;
-                Object value = EvaluationUtils.primitive(expression.eval(context, buffer[i].x));
-                if (EvaluationUtils.isNumInteger(value)) {
-                    key = (double) EvaluationUtils.integer(value);
-                } else if (EvaluationUtils.isNumDecimal(value)) {
-                    key = EvaluationUtils.decimal(value);
-                } else {
-                    key = null;
+        for (int i = first; i != last; i++)
+            buffer[i].y = orderByKey(buffer[i].x, expression, context);
+    }
+
+    /**
+     * Computes the sorting key of a solution
+     *
+     * @param solution   The solution
+     * @param expression The expression to use for the computation of the key
+     * @param context    The evaluation context
+     * @return The key, or null if the expression does not evaluate to a number
+     */
+    private static Double orderByKey(RDFPatternSolution solution, Expression expression, EvalContext context) {
+        try {
+            Object value = EvaluationUtils.primitive(expression.eval(context, solution));
+            if (EvaluationUtils.isNumInteger(value))
+                return (double) EvaluationUtils.integer(value);
+            if (EvaluationUtils.isNumDecimal(value))
+                return EvaluationUtils.decimal(value);
+            return null;
+        } catch (EvaluationException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Orders a stream of solutions and only keeps the first ones
+     * The sorting keys are computed once for each solution and a bounded heap retains the best solutions so far,
+     * so that at most the specified number of solutions are kept in memory.
+     * Solutions with equal keys are kept in their original order.
+     *
+     * @param solutions  The original solutions
+     * @param conditions The ordering conditions
+     * @param count      The maximum number of solutions to keep
+     * @param context    The evaluation context
+     * @return The first ordered solutions
+     */
+    public static Solutions orderBy(Iterator<RDFPatternSolution> solutions, final List<Couple<Expression, Boolean>> conditions, int count, EvalContext context) {
+        SolutionsMultiset result = new SolutionsMultiset();
+        if (count <= 0)
+            return result;
+        Comparator<OrderedSolution> comparator = new Comparator<OrderedSolution>() {
+            @Override
+            public int compare(OrderedSolution item1, OrderedSolution item2) {
+                for (int i = 0; i != item1.keys.length; i++) {
+                    boolean isDescending = conditions.get(i).y;
+                    Double key1 = item1.keys[i];
+                    Double key2 = item2.keys[i];
+                    if (key1 == null) {
+                        if (key2 != null)
+                            return isDescending ? 1 : -1;
+                    } else if (key2 == null) {
+                        return isDescending ? -1 : 1;
+                    } else {
+                        int c = key1.compareTo(key2);
+                        if (c != 0)
+                            return isDescending ? -c : c;
+                    }
                 }
-                buffer[i].y = key;
-            } catch (EvaluationException exception) {
-                buffer[i].y = null;
+                return Integer.compare(item1.sequence, item2.sequence);
+            }
+        };
+        // the head of the heap is the worst retained solution
+        PriorityQueue<OrderedSolution> heap = new PriorityQueue<>(Math.min(count, 1024), Collections.reverseOrder(comparator));
+        int sequence = 0;
+        while (solutions.hasNext()) {
+            RDFPatternSolution solution = solutions.next();
+            Double[] keys = new Double[conditions.size()];
+            for (int i = 0; i != keys.length; i++)
+                keys[i] = orderByKey(solution, conditions.get(i).x, context);
+            OrderedSolution candidate = new OrderedSolution(solution, keys, sequence++);
+            if (heap.size() < count) {
+                heap.add(candidate);
+            } else if (comparator.compare(candidate, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(candidate);
             }
         }
+        OrderedSolution[] buffer = heap.toArray(new OrderedSolution[heap.size()]);
+        Arrays.sort(buffer, comparator);
+        for (int i = 0; i != buffer.length; i++)
+            result.add(buffer[i].solution);
+        return result;
     }
 
     /**
@@ -435,25 +672,59 @@ class Utils {
      */
     private static Solutions projectSimple(Solutions solutions, List<Couple<VariableNode, Expression>> projection, EvalContext context) throws EvaluationException {
         SolutionsMultiset result = new SolutionsMultiset(solutions.size());
-        for (RDFPatternSolution solution : solutions) {
-            List<Couple<VariableNode, Node>> bindings = new ArrayList<>();
-            for (Couple<VariableNode, Expression> projector : projection) {
-                if (projector.y != null) {
-                    Object value = null;
-                    try {
-                        value = projector.y.eval(context, solution);
-                    } catch (EvaluationException exception) {
-                        // do nothing
-                    }
-                    Node valueNode = RDFUtils.getRDF(context.getNodes(), value);
-                    bindings.add(new Couple<>(projector.x, valueNode));
-                } else {
-                    bindings.add(new Couple<>(projector.x, solution.get(projector.x)));
+        for (RDFPatternSolution solution : solutions)
+            result.add(project(solution, projection, context));
+        return result;
+    }
+
+    /**
+     * Projects a stream of solutions onto new bindings
+     * In the case of aggregates, the stream is fully retrieved before the projection.
+     *
+     * @param solutions  the original solutions
+     * @param projection The projection variables
+     * @param context    The evaluation context
+     * @return The projected solutions, produced on demand
+     * @throws EvaluationException When an error occurs during the evaluation
+     */
+    public static Iterator<RDFPatternSolution> project(Iterator<RDFPatternSolution> solutions, final List<Couple<VariableNode, Expression>> projection, final EvalContext context) throws EvaluationException {
+        for (Couple<VariableNode, Expression> projector : projection) {
+            if (projector.y != null && projector.y.containsAggregate())
+                return projectAggregates(new SolutionsMultiset(solutions), projection, context).iterator();
+        }
+        return new AdaptingIterator<>(solutions, new Adapter<RDFPatternSolution, RDFPatternSolution>() {
+            @Override
+            public RDFPatternSolution adapt(RDFPatternSolution element) {
+                return project(element, projection, context);
+            }
+        });
+    }
+
+    /**
+     * Projects a single solution onto new bindings, in the simple case without aggregates
+     *
+     * @param solution   the original solution
+     * @param projection The projection variables
+     * @param context    The evaluation context
+     * @return The projected solution
+     */
+    private static RDFPatternSolution project(RDFPatternSolution solution, List<Couple<VariableNode, Expression>> projection, EvalContext context) {
+        List<Couple<VariableNode, Node>> bindings = new ArrayList<>();
+        for (Couple<VariableNode, Expression> projector : projection) {
+            if (projector.y != null) {
+                Object value = null;
+                try {
+                    value = projector.y.eval(context, solution);
+                } catch (EvaluationException exception) {
+                    // do nothing
                 }
+                Node valueNode = RDFUtils.getRDF(context.getNodes(), value);
+                bindings.add(new Couple<>(projector.x, valueNode));
+            } else {
+                bindings.add(new Couple<>(projector.x, solution.get(projector.x)));
             }
-            result.add(new RDFPatternSolution(bindings));
         }
-        return result;
+        return new RDFPatternSolution(bindings);
     }
 
     /**
@@ -466,6 +737,25 @@ class Utils {
         return new SolutionsMultiset(solutions, true);
     }
 
+    /**
+     * Gets the distinct solutions from the specified stream
+     *
+     * @param solutions A stream of original solutions
+     * @return The distinct solutions, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> distinct(Iterator<RDFPatternSolution> solutions) {
+        final List<RDFPatternSolution> known = new ArrayList<>();
+        return new SkippableIterator<>(new AdaptingIterator<>(solutions, new Adapter<RDFPatternSolution, RDFPatternSolution>() {
+            @Override
+            public RDFPatternSolution adapt(RDFPatternSolution element) {
+                if (known.contains(element))
+                    return null;
+                known.add(element);
+                return element;
+            }
+        }));
+    }
+
     /**
      * Gets the reduced solutions from the specified original set
      *
@@ -502,6 +792,52 @@ class Utils {
         return result;
     }
 
+    /**
+     * Slices the specified stream of solutions
+     * No more solutions are retrieved from the original stream once the slice is complete.
+     *
+     * @param solutions The original solutions
+     * @param start     The index of the first solution to include in the slice
+     * @param length    The length of the slice
+     * @return The resulting solutions, produced on demand
+     */
+    public static Iterator<RDFPatternSolution> slice(final Iterator<RDFPatternSolution> solutions, final int start, final int length) {
+        return new Iterator<RDFPatternSolution>() {
+            /**
+             * The number of solutions still to be skipped
+             */
+            private int skipped = start;
+            /**
+             * The number of solutions still to be produced
+             */
+            private int remaining = length;
+
+            @Override
+            public boolean hasNext() {
+                if (remaining <= 0)
+                    return false;
+                while (skipped > 0 && solutions.hasNext()) {
+                    solutions.next();
+                    skipped--;
+                }
+                return skipped <= 0 && solutions.hasNext();
+            }
+
+            @Override
+            public RDFPatternSolution next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                remaining--;
+                return solutions.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     /**
      * Determines whether two solutions are compatible.
      * Two solutions are compatible iff for all variables bound by both solution, their value is the same.
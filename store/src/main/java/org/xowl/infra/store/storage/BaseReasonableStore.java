@@ -17,6 +17,7 @@
 
 package org.xowl.infra.store.storage;
 
+import fr.cenotelie.commons.utils.logging.Logging;
 import fr.cenotelie.commons.utils.metrics.Metric;
 import fr.cenotelie.commons.utils.metrics.MetricSnapshot;
 import org.xowl.infra.lang.owl2.AnonymousIndividual;
@@ -26,13 +27,14 @@ import org.xowl.infra.store.execution.EvaluableExpression;
 import org.xowl.infra.store.execution.ExecutionManager;
 import org.xowl.infra.store.rdf.*;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 
 /**
  * Represents a data store that is composed of a backend store for ground data and a volatile store for data coming from reasoning facilities
+ * When the volatile store is persisted, the inferred quads it contains when this store is open are resumed:
+ * until the reasoning rules have all been re-activated, re-derived quads are matched against the persisted ones
+ * instead of being inserted again, so that the closure is not re-materialized.
+ * The persisted quads that are not re-derived are then removed, see {@link #onReasoningResumed()}.
  *
  * @author Laurent Wouters
  */
@@ -57,6 +59,11 @@ class BaseReasonableStore extends BaseStore {
      * The graph for meta data
      */
     protected final GraphNode graphMeta;
+    /**
+     * When resuming persisted inferences, the number of persisted derivations of each quad that are not re-derived yet
+     * This is null when not resuming.
+     */
+    private Map<Quad, Long> resumedCredits;
 
     /**
      * Initializes this store
@@ -64,11 +71,90 @@ class BaseReasonableStore extends BaseStore {
      * @param ground The store for the ground data
      */
     public BaseReasonableStore(BaseStore ground) {
+        this(ground, new InMemoryStore());
+    }
+
+    /**
+     * Initializes this store
+     *
+     * @param ground     The store for the ground data
+     * @param inferences The store for the volatile data, it may contain persisted inferences
+     */
+    public BaseReasonableStore(BaseStore ground, BaseStore inferences) {
         this.groundStore = ground;
-        this.volatileStore = new InMemoryStore();
+        this.volatileStore = inferences;
         this.aggregate = new AggregateDataset(groundStore, volatileStore);
         this.graphInference = volatileStore.getIRINode(IRIs.GRAPH_INFERENCE);
         this.graphMeta = volatileStore.getIRINode(IRIs.GRAPH_META);
+        if (volatileStore.count() > 0)
+            this.resumedCredits = new HashMap<>();
+    }
+
+    @Override
+    public void onReasoningResumed() {
+        Map<Quad, Long> credits = resumedCredits;
+        resumedCredits = null;
+        if (credits == null)
+            return;
+        // remove the persisted derivations that were not re-derived
+        List<Quad> stale = new ArrayList<>();
+        try {
+            Iterator<Quad> iterator = volatileStore.getAll();
+            while (iterator.hasNext()) {
+                Quad quad = iterator.next();
+                Quad key = new Quad(quad.getGraph(), quad.getSubject(), quad.getProperty(), quad.getObject());
+                Long credit = credits.get(key);
+                long count = credit != null ? credit : volatileStore.getMultiplicity(key);
+                for (long i = 0; i < count; i++)
+                    stale.add(key);
+            }
+            if (!stale.isEmpty())
+                insertVolatile(Changeset.fromRemoved(stale));
+        } catch (UnsupportedNodeType exception) {
+            Logging.get().error(exception);
+        }
+    }
+
+    /**
+     * When resuming persisted inferences, matches a quad to be added in the volatile store against the persisted derivations
+     *
+     * @param quad The quad to be added
+     * @return Whether the quad is a persisted derivation and must not be added again
+     * @throws UnsupportedNodeType When the quad's nodes are not supported
+     */
+    private boolean resume(Quad quad) throws UnsupportedNodeType {
+        if (resumedCredits == null)
+            return false;
+        Quad key = new Quad(quad.getGraph(), quad.getSubject(), quad.getProperty(), quad.getObject());
+        Long credit = resumedCredits.get(key);
+        long value = credit != null ? credit : volatileStore.getMultiplicity(key);
+        if (value <= 0) {
+            // this is a new derivation
+            resumedCredits.put(key, 0L);
+            return false;
+        }
+        resumedCredits.put(key, value - 1);
+        return true;
+    }
+
+    /**
+     * Inserts a changeset in the volatile store
+     *
+     * @param changeset The changeset to insert
+     * @throws UnsupportedNodeType When a quad's nodes are not supported
+     */
+    private void insertVolatile(Changeset changeset) throws UnsupportedNodeType {
+        if (resumedCredits != null && !changeset.getAdded().isEmpty()) {
+            List<Quad> added = new ArrayList<>(changeset.getAdded().size());
+            for (Quad quad : changeset.getAdded()) {
+                if (!resume(quad))
+                    added.add(quad);
+            }
+            if (added.isEmpty() && changeset.getRemoved().isEmpty())
+                return;
+            changeset = Changeset.fromAddedRemoved(added, changeset.getRemoved());
+        }
+        volatileStore.insert(changeset);
     }
 
     public Metric getMetric() {
@@ -100,11 +186,29 @@ class BaseReasonableStore extends BaseStore {
         return r1 && r2;
     }
 
+    @Override
+    public boolean beginSnapshot() {
+        if (!groundStore.beginSnapshot())
+            return false;
+        // the inferences are isolated only when they are persisted
+        volatileStore.beginSnapshot();
+        return true;
+    }
+
+    @Override
+    public void endSnapshot() {
+        volatileStore.endSnapshot();
+        groundStore.endSnapshot();
+    }
+
     @Override
     public void close() throws Exception {
-        // the volatile store is probably an in-memory store, closing it do nothing so this does not throw an exception
-        volatileStore.close();
-        groundStore.close();
+        // the volatile store may persist the inferences, make sure the ground store is closed anyway
+        try {
+            volatileStore.close();
+        } finally {
+            groundStore.close();
+        }
     }
 
     @Override
@@ -228,7 +332,7 @@ class BaseReasonableStore extends BaseStore {
         }
 
         if (addedAllVolatile && removedAllVolatile) {
-            volatileStore.insert(changeset);
+            insertVolatile(changeset);
             return;
         }
         if (addedAllGround && removedAllGround) {
@@ -239,7 +343,7 @@ class BaseReasonableStore extends BaseStore {
         boolean addedIsHandled = true;
         if (addedIsVolatile.length > 0) {
             if (addedAllVolatile) {
-                volatileStore.insert(Changeset.fromAdded(changeset.getAdded()));
+                insertVolatile(Changeset.fromAdded(changeset.getAdded()));
             } else if (addedAllGround) {
                 groundStore.insert(Changeset.fromAdded(changeset.getAdded()));
             } else {
@@ -250,7 +354,7 @@ class BaseReasonableStore extends BaseStore {
         boolean removedIsHandled = true;
         if (removedIsVolatile.length > 0) {
             if (removedAllVolatile) {
-                volatileStore.insert(Changeset.fromRemoved(changeset.getRemoved()));
+                insertVolatile(Changeset.fromRemoved(changeset.getRemoved()));
             } else if (removedAllGround) {
                 groundStore.insert(Changeset.fromRemoved(changeset.getRemoved()));
             } else {
@@ -275,12 +379,12 @@ class BaseReasonableStore extends BaseStore {
 
         if (addedForVolatile != null) {
             if (removedForVolatile != null) {
-                volatileStore.insert(Changeset.fromAddedRemoved(addedForVolatile, removedForVolatile));
+                insertVolatile(Changeset.fromAddedRemoved(addedForVolatile, removedForVolatile));
             } else {
-                volatileStore.insert(Changeset.fromRemoved(addedForVolatile));
+                insertVolatile(Changeset.fromRemoved(addedForVolatile));
             }
         } else if (removedForVolatile != null) {
-            volatileStore.insert(Changeset.fromRemoved(removedForVolatile));
+            insertVolatile(Changeset.fromRemoved(removedForVolatile));
         }
 
         if (addedForGround != null) {
@@ -296,17 +400,19 @@ class BaseReasonableStore extends BaseStore {
 
     @Override
     public void add(Quad quad) throws UnsupportedNodeType {
-        if (RDFUtils.same(graphInference, quad.getGraph()) || RDFUtils.same(graphMeta, quad.getGraph()))
-            volatileStore.add(quad);
-        else
+        if (RDFUtils.same(graphInference, quad.getGraph()) || RDFUtils.same(graphMeta, quad.getGraph())) {
+            if (!resume(quad))
+                volatileStore.add(quad);
+        } else
             groundStore.add(quad);
     }
 
     @Override
     public void add(GraphNode graph, SubjectNode subject, Property property, Node value) throws UnsupportedNodeType {
-        if (RDFUtils.same(graphInference, graph) || RDFUtils.same(graphMeta, graph))
-            volatileStore.add(graph, subject, property, value);
-        else
+        if (RDFUtils.same(graphInference, graph) || RDFUtils.same(graphMeta, graph)) {
+            if (!resume(new Quad(graph, subject, property, value)))
+                volatileStore.add(graph, subject, property, value);
+        } else
             groundStore.add(graph, subject, property, value);
     }
 
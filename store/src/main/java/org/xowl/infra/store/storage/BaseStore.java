@@ -62,6 +62,23 @@ public abstract class BaseStore implements Dataset, NodeManager, AutoCloseable {
         return new MetricSnapshotComposite(timestamp);
     }
 
+    /**
+     * Gets the catalog of statistics about the quads in this store, if any
+     *
+     * @return The statistics, or null if this store does not maintain them
+     */
+    public DatasetStatistics getStatistics() {
+        return null;
+    }
+
+    /**
+     * Notifies this store that the reasoning rules have all been re-activated after it was open
+     * A store that persists its inferences uses this to reconcile the persisted inferences with the re-derived ones.
+     */
+    public void onReasoningResumed() {
+        // do nothing
+    }
+
     /**
      * Sets the execution manager to use
      *
@@ -90,6 +107,24 @@ public abstract class BaseStore implements Dataset, NodeManager, AutoCloseable {
         return true;
     }
 
+    /**
+     * Begins reading from a snapshot of the last committed version of this store, for the current thread
+     * The reads of the thread are then isolated from the concurrent changes until the snapshot ends.
+     * The snapshots may be nested.
+     *
+     * @return Whether the store supports snapshots, otherwise the reads are not isolated and endSnapshot must not be called
+     */
+    public boolean beginSnapshot() {
+        return false;
+    }
+
+    /**
+     * Ends reading from the current snapshot for the current thread
+     */
+    public void endSnapshot() {
+        // do nothing
+    }
+
     @Override
     public void close() throws Exception {
         // do nothing
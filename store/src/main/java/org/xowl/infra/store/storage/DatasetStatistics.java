@@ -0,0 +1,682 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage;
+
+import org.xowl.infra.store.Vocabulary;
+import org.xowl.infra.store.rdf.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Represents a catalog of statistics about the quads in a dataset
+ * The catalog is incrementally maintained as a listener of the dataset's changes.
+ * It holds the exact number of quads per graph, per property and per class (for the rdf:type property),
+ * as well as sketches of the distinct subjects and objects for each property.
+ * The sketches are HyperLogLog estimators that only grow when quads are removed,
+ * so that the distinct counts are over-estimated after removals until the catalog is rebuilt.
+ * This structure is thread-safe.
+ *
+ * @author Laurent Wouters
+ */
+public class DatasetStatistics implements ChangeListener {
+    /**
+     * The magic number at the beginning of a serialized catalog
+     */
+    private static final int MAGIC_NUMBER = 0x78535441;
+    /**
+     * The version of the serialization format
+     */
+    private static final int VERSION = 1;
+    /**
+     * The number of bits of a hash used to select a register in a sketch
+     */
+    private static final int SKETCH_PRECISION = 10;
+    /**
+     * The number of registers in a sketch
+     */
+    private static final int SKETCH_SIZE = 1 << SKETCH_PRECISION;
+
+    /**
+     * Represents a HyperLogLog sketch for estimating the number of distinct values
+     */
+    private static final class Sketch {
+        /**
+         * The registers of this sketch
+         */
+        private final byte[] registers;
+
+        /**
+         * Initializes this sketch
+         */
+        public Sketch() {
+            this.registers = new byte[SKETCH_SIZE];
+        }
+
+        /**
+         * Adds a value to this sketch
+         *
+         * @param hash The 64-bits hash of the value
+         */
+        public void add(long hash) {
+            int index = (int) (hash >>> (64 - SKETCH_PRECISION));
+            long remainder = (hash << SKETCH_PRECISION) | (1L << (SKETCH_PRECISION - 1));
+            byte rank = (byte) (Long.numberOfLeadingZeros(remainder) + 1);
+            if (rank > registers[index])
+                registers[index] = rank;
+        }
+
+        /**
+         * Gets the estimated number of distinct values added to this sketch
+         *
+         * @return The estimated number of distinct values
+         */
+        public long estimate() {
+            return estimate(registers);
+        }
+
+        /**
+         * Gets the estimated number of distinct values added to this sketch or another one
+         *
+         * @param sketch Another sketch
+         * @return The estimated number of distinct values in the union
+         */
+        public long estimateUnion(Sketch sketch) {
+            byte[] union = new byte[SKETCH_SIZE];
+            for (int i = 0; i != SKETCH_SIZE; i++)
+                union[i] = (byte) Math.max(registers[i], sketch.registers[i]);
+            return estimate(union);
+        }
+
+        /**
+         * Gets the estimated number of distinct values for the specified registers
+         *
+         * @param registers The registers
+         * @return The estimated number of distinct values
+         */
+        private static long estimate(byte[] registers) {
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i != SKETCH_SIZE; i++) {
+                sum += 1.0 / (1L << registers[i]);
+                if (registers[i] == 0)
+                    zeros++;
+            }
+            double alpha = 0.7213 / (1 + 1.079 / SKETCH_SIZE);
+            double result = alpha * SKETCH_SIZE * SKETCH_SIZE / sum;
+            if (result <= 2.5 * SKETCH_SIZE && zeros > 0)
+                // small range correction
+                result = SKETCH_SIZE * Math.log((double) SKETCH_SIZE / zeros);
+            return Math.round(result);
+        }
+    }
+
+    /**
+     * Represents the statistics for a property
+     */
+    private static final class PropertyStatistics {
+        /**
+         * The number of quads with the property
+         */
+        public long count;
+        /**
+         * The sketch of the distinct subjects
+         */
+        public final Sketch subjects;
+        /**
+         * The sketch of the distinct objects
+         */
+        public final Sketch objects;
+
+        /**
+         * Initializes these statistics
+         */
+        public PropertyStatistics() {
+            this.count = 0;
+            this.subjects = new Sketch();
+            this.objects = new Sketch();
+        }
+    }
+
+    /**
+     * The total number of quads
+     */
+    private long total;
+    /**
+     * The number of quads for each graph
+     */
+    private final Map<String, Long> graphs;
+    /**
+     * The statistics for each property
+     */
+    private final Map<String, PropertyStatistics> properties;
+    /**
+     * The number of instances for each class
+     */
+    private final Map<String, Long> classes;
+    /**
+     * The sketch of the distinct subjects in the dataset
+     */
+    private Sketch subjects;
+    /**
+     * The sketch of the distinct objects in the dataset
+     */
+    private Sketch objects;
+    /**
+     * Whether the statistics changed since they were last saved
+     */
+    private boolean isDirty;
+
+    /**
+     * Initializes an empty catalog
+     */
+    public DatasetStatistics() {
+        this.graphs = new HashMap<>();
+        this.properties = new HashMap<>();
+        this.classes = new HashMap<>();
+        this.subjects = new Sketch();
+        this.objects = new Sketch();
+    }
+
+    /**
+     * Gets the total number of quads
+     *
+     * @return The total number of quads
+     */
+    public synchronized long count() {
+        return total;
+    }
+
+    /**
+     * Gets the number of quads in a graph
+     *
+     * @param graph A graph
+     * @return The number of quads in the graph
+     */
+    public synchronized long countGraph(GraphNode graph) {
+        String key = getKey(graph);
+        Long result = key == null ? null : graphs.get(key);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Gets the number of quads with a property
+     *
+     * @param property A property
+     * @return The number of quads with the property
+     */
+    public synchronized long countProperty(Property property) {
+        PropertyStatistics statistics = getStatistics(property);
+        return statistics == null ? 0 : statistics.count;
+    }
+
+    /**
+     * Gets the number of instances of a class, i.e. the number of rdf:type quads with the class as object
+     *
+     * @param classe A class
+     * @return The number of instances
+     */
+    public synchronized long countInstances(Node classe) {
+        String key = getKey(classe);
+        Long result = key == null ? null : classes.get(key);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Gets the estimated number of distinct subjects, for a property or in the whole dataset
+     *
+     * @param property A property, or null for the whole dataset
+     * @return The estimated number of distinct subjects
+     */
+    public synchronized long estimateSubjects(Property property) {
+        if (property == null)
+            return Math.min(subjects.estimate(), total);
+        PropertyStatistics statistics = getStatistics(property);
+        return statistics == null ? 0 : Math.min(statistics.subjects.estimate(), statistics.count);
+    }
+
+    /**
+     * Gets the estimated number of distinct objects, for a property or in the whole dataset
+     *
+     * @param property A property, or null for the whole dataset
+     * @return The estimated number of distinct objects
+     */
+    public synchronized long estimateObjects(Property property) {
+        if (property == null)
+            return Math.min(objects.estimate(), total);
+        PropertyStatistics statistics = getStatistics(property);
+        return statistics == null ? 0 : Math.min(statistics.objects.estimate(), statistics.count);
+    }
+
+    /**
+     * Gets the estimated number of subjects that have both properties
+     *
+     * @param property1 A property
+     * @param property2 Another property
+     * @return The estimated number of subjects with both properties
+     */
+    public synchronized long estimateCoOccurrence(Property property1, Property property2) {
+        PropertyStatistics statistics1 = getStatistics(property1);
+        PropertyStatistics statistics2 = getStatistics(property2);
+        if (statistics1 == null || statistics2 == null)
+            return 0;
+        long subjects1 = Math.min(statistics1.subjects.estimate(), statistics1.count);
+        long subjects2 = Math.min(statistics2.subjects.estimate(), statistics2.count);
+        long union = statistics1.subjects.estimateUnion(statistics2.subjects);
+        return Math.max(0, Math.min(subjects1 + subjects2 - union, Math.min(subjects1, subjects2)));
+    }
+
+    /**
+     * Gets the estimated number of quads matching the specified pattern
+     * A null or variable node matches any value.
+     * The estimate is 0 only when the graph, property or class in the pattern do not appear in the dataset.
+     *
+     * @param graph    A filtering graph
+     * @param subject  A filtering subject
+     * @param property A filtering property
+     * @param object   A filtering object
+     * @return The estimated number of matching quads
+     */
+    public synchronized long estimate(GraphNode graph, SubjectNode subject, Property property, Node object) {
+        if (total == 0)
+            return 0;
+        boolean graphBound = isBound(graph);
+        boolean subjectBound = isBound(subject);
+        boolean objectBound = isBound(object);
+        PropertyStatistics statistics = isBound(property) ? getStatistics(property) : null;
+        if (isBound(property) && statistics == null && getKey(property) != null)
+            return 0;
+        double result = statistics != null ? statistics.count : total;
+        if (graphBound) {
+            String key = getKey(graph);
+            Long count = key == null ? null : graphs.get(key);
+            if (count == null)
+                return 0;
+            result = result * count / total;
+        }
+        if (subjectBound) {
+            long distinct = statistics != null ? Math.min(statistics.subjects.estimate(), statistics.count) : Math.min(subjects.estimate(), total);
+            result /= Math.max(1, distinct);
+        }
+        if (objectBound) {
+            if (statistics != null && isTypeProperty(property) && getKey(object) != null) {
+                Long count = classes.get(getKey(object));
+                if (count == null)
+                    return 0;
+                result = result * count / statistics.count;
+            } else {
+                long distinct = statistics != null ? Math.min(statistics.objects.estimate(), statistics.count) : Math.min(objects.estimate(), total);
+                result /= Math.max(1, distinct);
+            }
+        }
+        return Math.max(1, Math.round(result));
+    }
+
+    /**
+     * Gets whether these statistics changed since they were last saved or loaded
+     *
+     * @return Whether these statistics changed
+     */
+    public synchronized boolean isDirty() {
+        return isDirty;
+    }
+
+    /**
+     * Resets these statistics
+     */
+    public synchronized void clear() {
+        total = 0;
+        graphs.clear();
+        properties.clear();
+        classes.clear();
+        subjects = new Sketch();
+        objects = new Sketch();
+        isDirty = true;
+    }
+
+    /**
+     * Rebuilds these statistics from the content of a dataset
+     *
+     * @param dataset The dataset
+     */
+    public synchronized void rebuild(Dataset dataset) {
+        clear();
+        Iterator<Quad> iterator = dataset.getAll();
+        while (iterator.hasNext()) {
+            Quad quad = iterator.next();
+            if (quad != null)
+                onQuadAdded(quad);
+        }
+    }
+
+    /**
+     * Loads these statistics from a file
+     *
+     * @param file The file to load from
+     * @throws IOException When the file cannot be read or is not a valid catalog
+     */
+    public synchronized void load(File file) throws IOException {
+        clear();
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (stream.readInt() != MAGIC_NUMBER || stream.readInt() != VERSION)
+                throw new IOException("Invalid statistics file " + file.getAbsolutePath());
+            total = stream.readLong();
+            int count = stream.readInt();
+            for (int i = 0; i != count; i++)
+                graphs.put(readString(stream), stream.readLong());
+            count = stream.readInt();
+            for (int i = 0; i != count; i++) {
+                String key = readString(stream);
+                PropertyStatistics statistics = new PropertyStatistics();
+                statistics.count = stream.readLong();
+                stream.readFully(statistics.subjects.registers);
+                stream.readFully(statistics.objects.registers);
+                properties.put(key, statistics);
+            }
+            count = stream.readInt();
+            for (int i = 0; i != count; i++)
+                classes.put(readString(stream), stream.readLong());
+            stream.readFully(subjects.registers);
+            stream.readFully(objects.registers);
+        } catch (IOException exception) {
+            clear();
+            throw exception;
+        }
+        isDirty = false;
+    }
+
+    /**
+     * Saves these statistics to a file
+     * The file is first written aside and then moved in place, so that it is never partially written.
+     *
+     * @param file The file to save to
+     * @throws IOException When the file cannot be written
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            stream.writeInt(MAGIC_NUMBER);
+            stream.writeInt(VERSION);
+            stream.writeLong(total);
+            stream.writeInt(graphs.size());
+            for (Map.Entry<String, Long> entry : graphs.entrySet()) {
+                writeString(stream, entry.getKey());
+                stream.writeLong(entry.getValue());
+            }
+            stream.writeInt(properties.size());
+            for (Map.Entry<String, PropertyStatistics> entry : properties.entrySet()) {
+                writeString(stream, entry.getKey());
+                stream.writeLong(entry.getValue().count);
+                stream.write(entry.getValue().subjects.registers);
+                stream.write(entry.getValue().objects.registers);
+            }
+            stream.writeInt(classes.size());
+            for (Map.Entry<String, Long> entry : classes.entrySet()) {
+                writeString(stream, entry.getKey());
+                stream.writeLong(entry.getValue());
+            }
+            stream.write(subjects.registers);
+            stream.write(objects.registers);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        isDirty = false;
+    }
+
+    @Override
+    public void onIncremented(Quad quad) {
+        // the multiplicity of quads is not tracked
+    }
+
+    @Override
+    public void onDecremented(Quad quad) {
+        // the multiplicity of quads is not tracked
+    }
+
+    @Override
+    public synchronized void onAdded(Quad quad) {
+        onQuadAdded(quad);
+    }
+
+    @Override
+    public synchronized void onRemoved(Quad quad) {
+        onQuadRemoved(quad);
+    }
+
+    @Override
+    public synchronized void onChange(Changeset changeset) {
+        for (Quad quad : changeset.getAdded())
+            onQuadAdded(quad);
+        for (Quad quad : changeset.getRemoved())
+            onQuadRemoved(quad);
+    }
+
+    /**
+     * Updates these statistics for a new quad
+     *
+     * @param quad The new quad
+     */
+    private void onQuadAdded(Quad quad) {
+        isDirty = true;
+        total++;
+        increment(graphs, getKey(quad.getGraph()), 1);
+        long subjectHash = hash(quad.getSubject());
+        long objectHash = hash(quad.getObject());
+        subjects.add(subjectHash);
+        objects.add(objectHash);
+        String key = getKey(quad.getProperty());
+        if (key != null) {
+            PropertyStatistics statistics = properties.get(key);
+            if (statistics == null) {
+                statistics = new PropertyStatistics();
+                properties.put(key, statistics);
+            }
+            statistics.count++;
+            statistics.subjects.add(subjectHash);
+            statistics.objects.add(objectHash);
+            if (isTypeProperty(quad.getProperty()))
+                increment(classes, getKey(quad.getObject()), 1);
+        }
+    }
+
+    /**
+     * Updates these statistics for a removed quad
+     *
+     * @param quad The removed quad
+     */
+    private void onQuadRemoved(Quad quad) {
+        isDirty = true;
+        total = Math.max(0, total - 1);
+        increment(graphs, getKey(quad.getGraph()), -1);
+        String key = getKey(quad.getProperty());
+        if (key != null) {
+            PropertyStatistics statistics = properties.get(key);
+            if (statistics != null) {
+                statistics.count--;
+                if (statistics.count <= 0)
+                    properties.remove(key);
+            }
+            if (isTypeProperty(quad.getProperty()))
+                increment(classes, getKey(quad.getObject()), -1);
+        }
+    }
+
+    /**
+     * Gets the statistics for a property
+     *
+     * @param property A property
+     * @return The statistics, or null if there are none
+     */
+    private PropertyStatistics getStatistics(Property property) {
+        String key = getKey(property);
+        return key == null ? null : properties.get(key);
+    }
+
+    /**
+     * Increments a counter in a map
+     *
+     * @param map   The map of counters
+     * @param key   The key of the counter
+     * @param delta The increment
+     */
+    private static void increment(Map<String, Long> map, String key, long delta) {
+        if (key == null)
+            return;
+        Long value = map.get(key);
+        long result = (value == null ? 0 : value) + delta;
+        if (result <= 0)
+            map.remove(key);
+        else
+            map.put(key, result);
+    }
+
+    /**
+     * Gets whether a node is bound, i.e. neither null or a variable
+     *
+     * @param node A node
+     * @return Whether the node is bound
+     */
+    private static boolean isBound(Node node) {
+        return node != null && node.getNodeType() != Node.TYPE_VARIABLE;
+    }
+
+    /**
+     * Gets whether a property is rdf:type
+     *
+     * @param property A property
+     * @return Whether this is rdf:type
+     */
+    private static boolean isTypeProperty(Property property) {
+        return property.getNodeType() == Node.TYPE_IRI && Vocabulary.rdfType.equals(((IRINode) property).getIRIValue());
+    }
+
+    /**
+     * Gets the key of a graph, property or class node in the catalog
+     *
+     * @param node A node
+     * @return The key, or null if the node is not tracked
+     */
+    private static String getKey(Node node) {
+        if (node == null)
+            return null;
+        switch (node.getNodeType()) {
+            case Node.TYPE_IRI:
+                return ((IRINode) node).getIRIValue();
+            case Node.TYPE_BLANK:
+                return "_:" + Long.toString(((BlankNode) node).getBlankID());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Computes a 64-bits hash of a node that is stable across executions
+     *
+     * @param node A node
+     * @return The hash
+     */
+    private static long hash(Node node) {
+        switch (node.getNodeType()) {
+            case Node.TYPE_IRI:
+                return hash(1, ((IRINode) node).getIRIValue());
+            case Node.TYPE_BLANK:
+                return mix(((BlankNode) node).getBlankID() * 31 + 2);
+            case Node.TYPE_LITERAL: {
+                LiteralNode literal = (LiteralNode) node;
+                long result = hash(3, literal.getLexicalValue());
+                result = hash(result, literal.getDatatype());
+                return hash(result, literal.getLangTag());
+            }
+            case Node.TYPE_ANONYMOUS:
+                return hash(4, ((AnonymousNode) node).getNodeID());
+            default:
+                return mix(node.hashCode());
+        }
+    }
+
+    /**
+     * Combines a hash with a string (FNV-1a)
+     *
+     * @param seed  The current hash
+     * @param value The string value, may be null
+     * @return The new hash
+     */
+    private static long hash(long seed, String value) {
+        long result = 0xcbf29ce484222325L ^ seed;
+        if (value != null) {
+            for (int i = 0; i != value.length(); i++) {
+                result ^= value.charAt(i);
+                result *= 0x100000001b3L;
+            }
+        }
+        return mix(result);
+    }
+
+    /**
+     * Mixes the bits of a hash so that they are evenly distributed
+     *
+     * @param value The hash
+     * @return The mixed hash
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Writes a string to a stream
+     *
+     * @param stream The stream
+     * @param value  The string
+     * @throws IOException When writing failed
+     */
+    private static void writeString(DataOutputStream stream, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    /**
+     * Reads a string from a stream
+     *
+     * @param stream The stream
+     * @return The string
+     * @throws IOException When reading failed
+     */
+    private static String readString(DataInputStream stream) throws IOException {
+        int length = stream.readInt();
+        if (length < 0)
+            throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        stream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
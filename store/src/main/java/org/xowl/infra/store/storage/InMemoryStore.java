@@ -42,6 +42,10 @@ class InMemoryStore extends BaseStore {
      * The store for the dataset
      */
     private final CachedDataset dataset;
+    /**
+     * The statistics about the dataset
+     */
+    private final DatasetStatistics statistics;
 
     /**
      * Initializes this store
@@ -49,6 +53,13 @@ class InMemoryStore extends BaseStore {
     public InMemoryStore() {
         nodes = new CachedNodes();
         dataset = new CachedDataset();
+        statistics = new DatasetStatistics();
+        dataset.addListener(statistics);
+    }
+
+    @Override
+    public DatasetStatistics getStatistics() {
+        return statistics;
     }
 
     public void setExecutionManager(ExecutionManager executionManager) {
@@ -25,9 +25,11 @@ import org.xowl.infra.store.execution.EvaluableExpression;
 import org.xowl.infra.store.execution.ExecutionManager;
 import org.xowl.infra.store.rdf.*;
 import org.xowl.infra.store.storage.cache.CachedNodes;
+import org.xowl.infra.store.storage.persistent.FileStoreConfig;
 import org.xowl.infra.store.storage.persistent.PersistedDataset;
 import org.xowl.infra.store.storage.persistent.PersistedNodes;
 import org.xowl.infra.store.storage.persistent.StorageException;
+import org.xowl.infra.store.storage.persistent.WriteAheadLog;
 
 import java.io.File;
 import java.io.IOException;
@@ -38,10 +40,21 @@ import java.util.Iterator;
  * Concrete implementation of a persisted data store.
  * This class is NOT thread safe.
  * This store uses a cache mechanism to improve its performance.
+ * The changes to the backing files are committed through a write-ahead log,
+ * so that a commit is atomic and the uncommitted changes can be rolled back.
  *
  * @author Laurent Wouters
  */
 class OnDiskStore extends BaseStore {
+    /**
+     * The name of the file for the statistics about the quads
+     */
+    private static final String FILE_STATISTICS = "quads-statistics";
+
+    /**
+     * The write-ahead log for the backing files
+     */
+    private final WriteAheadLog log;
     /**
      * The store for the nodes
      */
@@ -58,6 +71,18 @@ class OnDiskStore extends BaseStore {
      * The caching dataset
      */
     private final OnDiskStoreCache cacheDataset;
+    /**
+     * The statistics about the dataset
+     */
+    private final DatasetStatistics statistics;
+    /**
+     * The file for the statistics, saved alongside the quads
+     */
+    private final File statisticsFile;
+    /**
+     * Whether this store is in readonly mode
+     */
+    private final boolean isReadonly;
 
     /**
      * Initializes this store
@@ -68,12 +93,85 @@ class OnDiskStore extends BaseStore {
      * @throws StorageException When the storage is in a bad state
      */
     public OnDiskStore(File directory, boolean isReadonly) throws IOException, StorageException {
-        persistedNodes = new PersistedNodes(directory, isReadonly);
-        persistedDataset = new PersistedDataset(persistedNodes, directory, isReadonly);
+        this(directory, isReadonly, new FileStoreConfig());
+    }
+
+    /**
+     * Initializes this store
+     *
+     * @param directory  The parent directory containing the backing files
+     * @param isReadonly Whether this store is in readonly mode
+     * @param config     The configuration for the backing files
+     * @throws IOException      When the backing files cannot be accessed
+     * @throws StorageException When the storage is in a bad state
+     */
+    public OnDiskStore(File directory, boolean isReadonly, FileStoreConfig config) throws IOException, StorageException {
+        this(directory, isReadonly, config, OnDiskStoreCache.DEFAULT_MAX_CACHED_QUADS);
+    }
+
+    /**
+     * Initializes this store
+     *
+     * @param directory      The parent directory containing the backing files
+     * @param isReadonly     Whether this store is in readonly mode
+     * @param config         The configuration for the backing files
+     * @param maxCachedQuads The maximum total number of quads cached in memory
+     * @throws IOException      When the backing files cannot be accessed
+     * @throws StorageException When the storage is in a bad state
+     */
+    public OnDiskStore(File directory, boolean isReadonly, FileStoreConfig config, long maxCachedQuads) throws IOException, StorageException {
+        log = new WriteAheadLog(directory, isReadonly);
+        FileStoreConfig loggedConfig = new FileStoreConfig(config).withLog(log);
+        persistedNodes = new PersistedNodes(directory, isReadonly, loggedConfig);
+        persistedDataset = new PersistedDataset(persistedNodes, directory, isReadonly, loggedConfig);
         cacheNodes = new CachedNodes();
-        cacheDataset = new OnDiskStoreCache(persistedDataset);
+        cacheDataset = new OnDiskStoreCache(persistedDataset, maxCachedQuads);
+        statistics = new DatasetStatistics();
+        statisticsFile = new File(directory, FILE_STATISTICS);
+        this.isReadonly = isReadonly;
+        loadStatistics();
+        cacheDataset.addListener(statistics);
         metricStore.addPart(persistedNodes.getMetric());
         metricStore.addPart(persistedDataset.getMetric());
+        metricStore.addPart(cacheDataset.getMetric());
+        // commit the initialization of the structures
+        log.commit();
+    }
+
+    /**
+     * Loads the statistics about the dataset from their file
+     * The statistics are rebuilt from the persisted quads when the file is missing or does not match the quads.
+     */
+    private void loadStatistics() {
+        if (statisticsFile.exists()) {
+            try {
+                statistics.load(statisticsFile);
+                if (statistics.count() == persistedDataset.count())
+                    return;
+            } catch (IOException exception) {
+                Logging.get().error(exception);
+            }
+        }
+        statistics.rebuild(persistedDataset);
+        saveStatistics();
+    }
+
+    /**
+     * Saves the statistics about the dataset to their file, if they changed
+     */
+    private void saveStatistics() {
+        if (isReadonly || !statistics.isDirty())
+            return;
+        try {
+            statistics.save(statisticsFile);
+        } catch (IOException exception) {
+            Logging.get().error(exception);
+        }
+    }
+
+    @Override
+    public DatasetStatistics getStatistics() {
+        return statistics;
     }
 
     @Override
@@ -81,6 +179,7 @@ class OnDiskStore extends BaseStore {
         MetricSnapshotComposite snapshot = new MetricSnapshotComposite(timestamp);
         snapshot.addPart(persistedNodes.getMetric(), persistedNodes.getMetricSnapshot(timestamp));
         snapshot.addPart(persistedDataset.getMetric(), persistedDataset.getMetricSnapshot(timestamp));
+        snapshot.addPart(cacheDataset.getMetric(), cacheDataset.getMetricSnapshot(timestamp));
         return snapshot;
     }
 
@@ -94,17 +193,69 @@ class OnDiskStore extends BaseStore {
 
     @Override
     public boolean commit() {
-        boolean success = persistedNodes.flush();
-        success &= persistedDataset.flush();
-        return success;
+        try {
+            log.commit();
+            saveStatistics();
+            return true;
+        } catch (StorageException exception) {
+            Logging.get().error(exception);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean rollback() {
+        try {
+            log.rollback();
+            return true;
+        } catch (StorageException exception) {
+            Logging.get().error(exception);
+            return false;
+        } finally {
+            // the cached data may reflect the rolled back changes
+            persistedNodes.clearCaches();
+            cacheDataset.invalidate();
+            // revert to the statistics of the committed quads
+            if (statistics.isDirty())
+                loadStatistics();
+        }
+    }
+
+    @Override
+    public boolean beginSnapshot() {
+        log.beginSnapshot();
+        return true;
+    }
+
+    @Override
+    public void endSnapshot() {
+        log.endSnapshot();
+    }
+
+    /**
+     * Gets the dataset to read from for the current thread
+     * The readers of snapshots bypass the cache because it reflects the uncommitted changes.
+     *
+     * @return The dataset to read from
+     */
+    private Dataset reader() {
+        return log.isInSnapshot() ? persistedDataset : cacheDataset;
     }
 
     @Override
     public void close() throws Exception {
         Exception toThrow = null;
+        try {
+            // the uncommitted changes are discarded
+            log.close();
+        } catch (Exception exception) {
+            toThrow = exception;
+        }
         try {
             persistedNodes.close();
         } catch (Exception exception) {
+            if (toThrow != null)
+                Logging.get().error(toThrow);
             toThrow = exception;
         }
         try {
@@ -130,57 +281,57 @@ class OnDiskStore extends BaseStore {
 
     @Override
     public long getMultiplicity(Quad quad) throws UnsupportedNodeType {
-        return cacheDataset.getMultiplicity(quad);
+        return reader().getMultiplicity(quad);
     }
 
     @Override
     public long getMultiplicity(GraphNode graph, SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        return cacheDataset.getMultiplicity(graph, subject, property, object);
+        return reader().getMultiplicity(graph, subject, property, object);
     }
 
     @Override
     public Iterator<Quad> getAll() {
-        return cacheDataset.getAll();
+        return reader().getAll();
     }
 
     @Override
     public Iterator<Quad> getAll(GraphNode graph) throws UnsupportedNodeType {
-        return cacheDataset.getAll(graph);
+        return reader().getAll(graph);
     }
 
     @Override
     public Iterator<Quad> getAll(SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        return cacheDataset.getAll(subject, property, object);
+        return reader().getAll(subject, property, object);
     }
 
     @Override
     public Iterator<Quad> getAll(GraphNode graph, SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        return cacheDataset.getAll(graph, subject, property, object);
+        return reader().getAll(graph, subject, property, object);
     }
 
     @Override
     public Collection<GraphNode> getGraphs() {
-        return cacheDataset.getGraphs();
+        return reader().getGraphs();
     }
 
     @Override
     public long count() {
-        return cacheDataset.count();
+        return reader().count();
     }
 
     @Override
     public long count(GraphNode graph) throws UnsupportedNodeType {
-        return cacheDataset.count(graph);
+        return reader().count(graph);
     }
 
     @Override
     public long count(SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        return cacheDataset.count(subject, property, object);
+        return reader().count(subject, property, object);
     }
 
     @Override
     public long count(GraphNode graph, SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        return cacheDataset.count(graph, subject, property, object);
+        return reader().count(graph, subject, property, object);
     }
 
 
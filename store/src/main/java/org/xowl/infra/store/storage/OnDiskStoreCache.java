@@ -17,7 +17,9 @@
 
 package org.xowl.infra.store.storage;
 
+import fr.cenotelie.commons.utils.collections.Couple;
 import fr.cenotelie.commons.utils.logging.Logging;
+import fr.cenotelie.commons.utils.metrics.*;
 import org.xowl.infra.store.execution.ExecutionManager;
 import org.xowl.infra.store.rdf.*;
 import org.xowl.infra.store.storage.cache.CachedDataset;
@@ -25,13 +27,25 @@ import org.xowl.infra.store.storage.impl.DatasetImpl;
 import org.xowl.infra.store.storage.impl.MQuad;
 import org.xowl.infra.store.storage.persistent.PersistedDataset;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents the caching part of a a on-disk persistent data store
+ * The cache materializes the quads of the recently used subjects and graphs.
+ * The cache is bounded in its number of entries and in its total number of cached quads.
+ * When a bound is exceeded, the least recently used entries are evicted, the subjects first.
+ * Subjects and graphs that have more quads than a threshold are not materialized,
+ * the queries on them go to the persisted dataset.
+ * The insertion and removal of single quads are applied to the cached datasets in place (write-through),
+ * while the bulk operations, including the insertion of batches of quads, invalidate the affected entries.
+ * <p>
+ * The cached datasets are not thread-safe, they are only written and read while holding the lock on their entry.
+ * The quads returned by a query on a cached dataset are materialized so that they can be iterated without the lock.
  *
  * @author Laurent Wouters
  */
@@ -44,19 +58,113 @@ class OnDiskStoreCache extends DatasetImpl {
      * The maximum number of cached graphs
      */
     private static final int MAX_CACHED_GRAPHS = 4;
+    /**
+     * The divisor of the total number of cached quads for the maximum number of quads in a single cached dataset
+     * A single dataset may then use at most a quarter of the budget, so that it does not evict all the other entries.
+     */
+    private static final int DATASET_QUADS_DIVISOR = 4;
+    /**
+     * The default maximum total number of cached quads
+     */
+    public static final long DEFAULT_MAX_CACHED_QUADS = 1 << 18;
+
+    /**
+     * Represents an entry in the cache
+     * The cached dataset is guarded by the lock on the entry.
+     */
+    private static class Entry {
+        /**
+         * The cached dataset, or null if the dataset is too large to be cached
+         */
+        public final CachedDataset dataset;
+        /**
+         * The number of quads in the dataset
+         * Guarded by the cache lock
+         */
+        public long size;
+
+        /**
+         * Initializes this entry
+         *
+         * @param dataset The cached dataset, or null if the dataset is too large to be cached
+         * @param size    The number of quads in the dataset
+         */
+        public Entry(CachedDataset dataset, long size) {
+            this.dataset = dataset;
+            this.size = size;
+        }
+    }
 
     /**
      * The base persisted dataset
      */
     private final PersistedDataset persisted;
     /**
-     * Collection of the cached subjects
+     * The maximum total number of cached quads
+     */
+    private final long maxCachedQuads;
+    /**
+     * The maximum number of quads in a single cached dataset
+     */
+    private final long maxDatasetQuads;
+    /**
+     * The cached subjects, in the order of their last use
+     */
+    private final LinkedHashMap<SubjectNode, Entry> cachedSubjects;
+    /**
+     * The cached graphs, in the order of their last use
+     */
+    private final LinkedHashMap<GraphNode, Entry> cachedGraphs;
+    /**
+     * The current total number of cached quads
+     * Guarded by the cache lock
+     */
+    private long cachedQuads;
+    /**
+     * The number of changes applied to the cache, for the loaders of entries to detect the concurrent changes
+     * Guarded by the cache lock
+     */
+    private long changes;
+    /**
+     * The number of lookups that found a cached entry
+     */
+    private final AtomicLong hits;
+    /**
+     * The number of lookups that did not find a cached entry
+     */
+    private final AtomicLong misses;
+    /**
+     * The number of evicted entries
+     */
+    private final AtomicLong evictions;
+    /**
+     * The number of datasets that were too large to be cached
      */
-    private final ConcurrentHashMap<SubjectNode, CachedDataset> cachedSubjects;
+    private final AtomicLong refusals;
     /**
-     * Collection of the cached graphs
+     * The composite metric for this cache
      */
-    private final ConcurrentHashMap<GraphNode, CachedDataset> cachedGraphs;
+    private final MetricComposite metricCache;
+    /**
+     * The metric for the number of hits
+     */
+    private final Metric metricHits;
+    /**
+     * The metric for the number of misses
+     */
+    private final Metric metricMisses;
+    /**
+     * The metric for the number of evictions
+     */
+    private final Metric metricEvictions;
+    /**
+     * The metric for the number of refused datasets
+     */
+    private final Metric metricRefusals;
+    /**
+     * The metric for the number of cached quads
+     */
+    private final Metric metricQuads;
 
     /**
      * Initializes this cache
@@ -64,61 +172,229 @@ class OnDiskStoreCache extends DatasetImpl {
      * @param persisted The base persisted dataset
      */
     public OnDiskStoreCache(PersistedDataset persisted) {
+        this(persisted, DEFAULT_MAX_CACHED_QUADS);
+    }
+
+    /**
+     * Initializes this cache
+     *
+     * @param persisted      The base persisted dataset
+     * @param maxCachedQuads The maximum total number of cached quads
+     */
+    public OnDiskStoreCache(PersistedDataset persisted, long maxCachedQuads) {
         this.persisted = persisted;
-        this.cachedSubjects = new ConcurrentHashMap<>(MAX_CACHED_SUBJECTS);
-        this.cachedGraphs = new ConcurrentHashMap<>(MAX_CACHED_GRAPHS);
+        this.maxCachedQuads = maxCachedQuads;
+        this.maxDatasetQuads = maxCachedQuads / DATASET_QUADS_DIVISOR;
+        this.cachedSubjects = new LinkedHashMap<>(MAX_CACHED_SUBJECTS, 0.75f, true);
+        this.cachedGraphs = new LinkedHashMap<>(MAX_CACHED_GRAPHS, 0.75f, true);
+        this.cachedQuads = 0;
+        this.changes = 0;
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+        this.refusals = new AtomicLong(0);
+        this.metricHits = new MetricBase(OnDiskStoreCache.class.getCanonicalName() + ".Hits",
+                "Store Cache - Hits",
+                "lookups",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricMisses = new MetricBase(OnDiskStoreCache.class.getCanonicalName() + ".Misses",
+                "Store Cache - Misses",
+                "lookups",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricEvictions = new MetricBase(OnDiskStoreCache.class.getCanonicalName() + ".Evictions",
+                "Store Cache - Evictions",
+                "entries",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricRefusals = new MetricBase(OnDiskStoreCache.class.getCanonicalName() + ".Refusals",
+                "Store Cache - Datasets too large to be cached",
+                "entries",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"));
+        this.metricQuads = new MetricBase(OnDiskStoreCache.class.getCanonicalName() + ".Quads",
+                "Store Cache - Cached quads",
+                "quads",
+                1000000000,
+                new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
+                new Couple<>(Metric.HINT_MIN_VALUE, "0"),
+                new Couple<>(Metric.HINT_MAX_VALUE, Long.toString(maxCachedQuads)));
+        this.metricCache = new MetricComposite(OnDiskStoreCache.class.getCanonicalName() + "@" + Integer.toString(hashCode()),
+                "Store Cache",
+                1000000000,
+                metricHits, metricMisses, metricEvictions, metricRefusals, metricQuads);
+    }
+
+    /**
+     * Gets the composite metric for this cache
+     *
+     * @return The metric for this cache
+     */
+    public Metric getMetric() {
+        return metricCache;
+    }
+
+    /**
+     * Gets a snapshot of the metrics for this cache
+     *
+     * @param timestamp The timestamp to use
+     * @return The snapshot
+     */
+    public MetricSnapshot getMetricSnapshot(long timestamp) {
+        long quads;
+        synchronized (this) {
+            quads = cachedQuads;
+        }
+        MetricSnapshotComposite snapshot = new MetricSnapshotComposite(timestamp);
+        snapshot.addPart(metricHits, new MetricSnapshotLong(timestamp, hits.get()));
+        snapshot.addPart(metricMisses, new MetricSnapshotLong(timestamp, misses.get()));
+        snapshot.addPart(metricEvictions, new MetricSnapshotLong(timestamp, evictions.get()));
+        snapshot.addPart(metricRefusals, new MetricSnapshotLong(timestamp, refusals.get()));
+        snapshot.addPart(metricQuads, new MetricSnapshotLong(timestamp, quads));
+        return snapshot;
     }
 
     /**
      * Gets the cache for a subject
      *
      * @param subject The subject node
+     * @return The cached entry, or null if the subject is too large to be cached or was changed while being loaded
      */
-    private CachedDataset getCache(SubjectNode subject) {
-        CachedDataset dataset = cachedSubjects.get(subject);
-        if (dataset != null)
-            return dataset;
-
-        dataset = new CachedDataset();
+    private Entry getCache(SubjectNode subject) {
+        long stamp;
+        synchronized (this) {
+            Entry entry = cachedSubjects.get(subject);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.dataset != null ? entry : null;
+            }
+            stamp = changes;
+        }
+        misses.incrementAndGet();
+        Entry entry;
         try {
-            Iterator<Quad> iterator = persisted.getAll(null, subject, null, null);
-            while (iterator.hasNext())
-                dataset.add(iterator.next());
+            entry = load(persisted.getAll(null, subject, null, null));
         } catch (UnsupportedNodeType exception) {
             Logging.get().error(exception);
+            entry = new Entry(new CachedDataset(), 0);
+        }
+        synchronized (this) {
+            Entry old = cachedSubjects.get(subject);
+            if (old != null)
+                return old.dataset != null ? old : null;
+            if (stamp != changes)
+                // the loaded quads may not reflect the concurrent changes
+                return null;
+            cachedSubjects.put(subject, entry);
+            onCached(entry);
         }
-        CachedDataset old = cachedSubjects.putIfAbsent(subject, dataset);
-        return old != null ? old : dataset;
+        return entry.dataset != null ? entry : null;
     }
 
     /**
      * Gets the cache for a graph
      *
      * @param graph The graph
+     * @return The cached entry, or null if the graph is too large to be cached or was changed while being loaded
      */
-    private CachedDataset getCache(GraphNode graph) {
-        CachedDataset dataset = cachedGraphs.get(graph);
-        if (dataset != null)
-            return dataset;
-
-        dataset = new CachedDataset();
+    private Entry getCache(GraphNode graph) {
+        long stamp;
+        synchronized (this) {
+            Entry entry = cachedGraphs.get(graph);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.dataset != null ? entry : null;
+            }
+            stamp = changes;
+        }
+        misses.incrementAndGet();
+        Entry entry;
         try {
-            Iterator<Quad> iterator = persisted.getAll(graph);
-            while (iterator.hasNext())
-                dataset.add(iterator.next());
+            entry = load(persisted.getAll(graph));
         } catch (UnsupportedNodeType exception) {
             Logging.get().error(exception);
+            entry = new Entry(new CachedDataset(), 0);
+        }
+        synchronized (this) {
+            Entry old = cachedGraphs.get(graph);
+            if (old != null)
+                return old.dataset != null ? old : null;
+            if (stamp != changes)
+                // the loaded quads may not reflect the concurrent changes
+                return null;
+            cachedGraphs.put(graph, entry);
+            onCached(entry);
+        }
+        return entry.dataset != null ? entry : null;
+    }
+
+    /**
+     * Materializes the quads of a dataset
+     * The materialization stops as soon as the number of quads exceeds the threshold for a single dataset.
+     *
+     * @param quads The quads to materialize
+     * @return The entry for the cache
+     */
+    private Entry load(Iterator<Quad> quads) {
+        CachedDataset dataset = new CachedDataset();
+        long size = 0;
+        while (quads.hasNext()) {
+            if (size >= maxDatasetQuads) {
+                refusals.incrementAndGet();
+                // remember that the dataset is too large
+                return new Entry(null, 0);
+            }
+            dataset.add(quads.next());
+            size++;
+        }
+        return new Entry(dataset, size);
+    }
+
+    /**
+     * When an entry has been added to the cache, evicts the least recently used entries until the cache is within its bounds
+     * The caller must hold the lock on this cache.
+     *
+     * @param entry The new entry
+     */
+    private void onCached(Entry entry) {
+        cachedQuads += entry.size;
+        evict(cachedSubjects, MAX_CACHED_SUBJECTS, entry);
+        evict(cachedGraphs, MAX_CACHED_GRAPHS, entry);
+    }
+
+    /**
+     * Evicts the least recently used entries in a collection of cached entries
+     * The caller must hold the lock on this cache.
+     *
+     * @param entries    The cached entries
+     * @param maxEntries The maximum number of entries in the collection
+     * @param newEntry   The new entry that must be kept
+     */
+    private void evict(LinkedHashMap<?, Entry> entries, int maxEntries, Entry newEntry) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && (entries.size() > maxEntries || cachedQuads > maxCachedQuads)) {
+            Entry entry = iterator.next();
+            if (entry == newEntry)
+                continue;
+            iterator.remove();
+            cachedQuads -= entry.size;
+            evictions.incrementAndGet();
         }
-        CachedDataset old = cachedGraphs.putIfAbsent(graph, dataset);
-        return old != null ? old : dataset;
     }
 
     /**
      * Invalidates the entire cache
      */
-    private void invalidate() {
+    synchronized void invalidate() {
+        changes++;
         cachedSubjects.clear();
         cachedGraphs.clear();
+        cachedQuads = 0;
     }
 
     /**
@@ -126,8 +402,11 @@ class OnDiskStoreCache extends DatasetImpl {
      *
      * @param subject The updated subject
      */
-    private void invalidate(SubjectNode subject) {
-        cachedSubjects.remove(subject);
+    private synchronized void invalidate(SubjectNode subject) {
+        changes++;
+        Entry entry = cachedSubjects.remove(subject);
+        if (entry != null)
+            cachedQuads -= entry.size;
     }
 
     /**
@@ -135,8 +414,11 @@ class OnDiskStoreCache extends DatasetImpl {
      *
      * @param graph The updated graph
      */
-    private void invalidate(GraphNode graph) {
-        cachedGraphs.remove(graph);
+    private synchronized void invalidate(GraphNode graph) {
+        changes++;
+        Entry entry = cachedGraphs.remove(graph);
+        if (entry != null)
+            cachedQuads -= entry.size;
     }
 
     @Override
@@ -147,23 +429,98 @@ class OnDiskStoreCache extends DatasetImpl {
     @Override
     public int doAddQuad(GraphNode graph, SubjectNode subject, Property property, Node value) throws UnsupportedNodeType {
         int result = persisted.doAddQuad(graph, subject, property, value);
-        if (result == ADD_RESULT_NEW) {
-            invalidate(subject);
-            invalidate(graph);
-        }
+        if (result != ADD_RESULT_UNKNOWN)
+            onQuadChanged(graph, subject, property, value, true, result == ADD_RESULT_NEW);
         return result;
     }
 
+    @Override
+    public int[] doAddQuads(Collection<Quad> quads) throws UnsupportedNodeType {
+        int[] results = persisted.doAddQuads(quads);
+        int index = 0;
+        for (Quad quad : quads) {
+            if (results[index++] != ADD_RESULT_UNKNOWN) {
+                invalidate(quad.getSubject());
+                invalidate(quad.getGraph());
+            }
+        }
+        return results;
+    }
+
     @Override
     public int doRemoveQuad(GraphNode graph, SubjectNode subject, Property property, Node value) throws UnsupportedNodeType {
         int result = persisted.doRemoveQuad(graph, subject, property, value);
-        if (result >= REMOVE_RESULT_REMOVED) {
-            invalidate(subject);
-            invalidate(graph);
-        }
+        if (result != REMOVE_RESULT_NOT_FOUND)
+            onQuadChanged(graph, subject, property, value, false, result >= REMOVE_RESULT_REMOVED);
         return result;
     }
 
+    /**
+     * When a single instance of a quad has been inserted into or removed from the persisted dataset
+     * The change is applied to the cached datasets for the subject and the graph, if any.
+     *
+     * @param graph     The graph containing the quad
+     * @param subject   The quad subject node
+     * @param property  The quad property
+     * @param value     The quad value
+     * @param isAdd     Whether the quad was inserted, or removed
+     * @param isChanged Whether the quad itself was inserted or removed, as opposed to its multiplicity being changed
+     */
+    private synchronized void onQuadChanged(GraphNode graph, SubjectNode subject, Property property, Node value, boolean isAdd, boolean isChanged) {
+        changes++;
+        Entry entrySubject = cachedSubjects.get(subject);
+        if (entrySubject != null && !apply(entrySubject, graph, subject, property, value, isAdd, isChanged)) {
+            cachedSubjects.remove(subject);
+            cachedQuads -= entrySubject.size;
+        }
+        Entry entryGraph = cachedGraphs.get(graph);
+        if (entryGraph != null && !apply(entryGraph, graph, subject, property, value, isAdd, isChanged)) {
+            cachedGraphs.remove(graph);
+            cachedQuads -= entryGraph.size;
+        }
+        if (isAdd && isChanged) {
+            evict(cachedSubjects, MAX_CACHED_SUBJECTS, null);
+            evict(cachedGraphs, MAX_CACHED_GRAPHS, null);
+        }
+    }
+
+    /**
+     * Applies the insertion or the removal of a single instance of a quad to a cached entry
+     * The caller must hold the lock on this cache, the dataset is modified while holding the lock on the entry.
+     *
+     * @param entry     The cached entry
+     * @param graph     The graph containing the quad
+     * @param subject   The quad subject node
+     * @param property  The quad property
+     * @param value     The quad value
+     * @param isAdd     Whether the quad was inserted, or removed
+     * @param isChanged Whether the quad itself was inserted or removed, as opposed to its multiplicity being changed
+     * @return Whether the entry can be kept, false if it must be dropped
+     */
+    private boolean apply(Entry entry, GraphNode graph, SubjectNode subject, Property property, Node value, boolean isAdd, boolean isChanged) {
+        if (entry.dataset == null)
+            // the dataset is too large to be cached, nothing to update
+            return true;
+        try {
+            synchronized (entry) {
+                if (isAdd)
+                    entry.dataset.doAddQuad(graph, subject, property, value);
+                else
+                    entry.dataset.doRemoveQuad(graph, subject, property, value);
+            }
+        } catch (UnsupportedNodeType exception) {
+            Logging.get().error(exception);
+            return false;
+        }
+        if (isChanged) {
+            long delta = isAdd ? 1 : -1;
+            entry.size += delta;
+            cachedQuads += delta;
+        }
+        // drop the dataset when it has grown too large
+        return entry.size <= maxDatasetQuads;
+    }
+
     @Override
     public void doRemoveQuads(GraphNode graph, SubjectNode subject, Property property, Node value, List<MQuad> bufferDecremented, List<MQuad> bufferRemoved) throws UnsupportedNodeType {
         persisted.doRemoveQuads(graph, subject, property, value, bufferDecremented, bufferRemoved);
@@ -224,21 +581,31 @@ class OnDiskStoreCache extends DatasetImpl {
 
     @Override
     public long getMultiplicity(GraphNode graph, SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        CachedDataset cache = getCache(subject);
-        return cache.getMultiplicity(graph, subject, property, object);
+        Entry cache = getCache(subject);
+        if (cache == null)
+            return persisted.getMultiplicity(graph, subject, property, object);
+        synchronized (cache) {
+            return cache.dataset.getMultiplicity(graph, subject, property, object);
+        }
     }
 
     @Override
     public Iterator<Quad> getAll(GraphNode graph, SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        if (subject != null && subject.getNodeType() != Node.TYPE_VARIABLE) {
-            CachedDataset cache = getCache(subject);
-            return cache.getAll(graph, subject, property, object);
-        } else if (graph != null && graph.getNodeType() != Node.TYPE_VARIABLE) {
-            CachedDataset cache = getCache(graph);
-            return cache.getAll(graph, subject, property, object);
-        } else {
+        Entry cache = null;
+        if (subject != null && subject.getNodeType() != Node.TYPE_VARIABLE)
+            cache = getCache(subject);
+        else if (graph != null && graph.getNodeType() != Node.TYPE_VARIABLE)
+            cache = getCache(graph);
+        if (cache == null)
             return persisted.getAll(graph, subject, property, object);
+        // materialize the quads so that they are not iterated concurrently with a change to the dataset
+        List<Quad> result = new ArrayList<>();
+        synchronized (cache) {
+            Iterator<Quad> iterator = cache.dataset.getAll(graph, subject, property, object);
+            while (iterator.hasNext())
+                result.add(iterator.next());
         }
+        return result.iterator();
     }
 
     @Override
@@ -248,14 +615,15 @@ class OnDiskStoreCache extends DatasetImpl {
 
     @Override
     public long count(GraphNode graph, SubjectNode subject, Property property, Node object) throws UnsupportedNodeType {
-        if (subject != null && subject.getNodeType() != Node.TYPE_VARIABLE) {
-            CachedDataset cache = getCache(subject);
-            return cache.count(graph, subject, property, object);
-        } else if (graph != null && graph.getNodeType() != Node.TYPE_VARIABLE) {
-            CachedDataset cache = getCache(graph);
-            return cache.count(graph, subject, property, object);
-        } else {
+        Entry cache = null;
+        if (subject != null && subject.getNodeType() != Node.TYPE_VARIABLE)
+            cache = getCache(subject);
+        else if (graph != null && graph.getNodeType() != Node.TYPE_VARIABLE)
+            cache = getCache(graph);
+        if (cache == null)
             return persisted.count(graph, subject, property, object);
+        synchronized (cache) {
+            return cache.dataset.count(graph, subject, property, object);
         }
     }
 }
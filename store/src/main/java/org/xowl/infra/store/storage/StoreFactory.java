@@ -18,6 +18,7 @@
 package org.xowl.infra.store.storage;
 
 import fr.cenotelie.commons.utils.logging.Logging;
+import org.xowl.infra.store.storage.persistent.FileStoreConfig;
 import org.xowl.infra.store.storage.persistent.StorageException;
 
 import java.io.File;
@@ -31,6 +32,11 @@ import java.util.UUID;
  * @author Laurent Wouters
  */
 public class StoreFactory {
+    /**
+     * The name of the directory for the persisted inferences, within the location of an on-disk storage
+     */
+    private static final String INFERENCES_DIRECTORY = "inferences";
+
     /**
      * The primary type of storage
      */
@@ -66,12 +72,26 @@ public class StoreFactory {
          * When reasoning is explicitly supported, the volatile inferred quads will never be committed to the primary storage
          */
         private boolean supportReasoning;
+        /**
+         * Whether the inferred quads shall be persisted alongside an on-disk primary storage
+         */
+        private boolean persistInferences;
+        /**
+         * The configuration of the backing files for an on-disk storage
+         */
+        private final FileStoreConfig fileConfig;
+        /**
+         * The maximum total number of quads cached in memory for an on-disk storage
+         */
+        private long maxCachedQuads;
 
         /**
          * Initializes this configuration element
          */
         public Config() {
             primaryStorage = StorageType.InMemory;
+            fileConfig = new FileStoreConfig();
+            maxCachedQuads = OnDiskStoreCache.DEFAULT_MAX_CACHED_QUADS;
         }
 
         /**
@@ -107,6 +127,43 @@ public class StoreFactory {
             return this;
         }
 
+        /**
+         * Sets the maximum number of blocks that can be loaded at the same time for each backing file
+         * This only makes sense with on-disk storage.
+         *
+         * @param maxLoadedBlocks The maximum number of loaded blocks
+         * @return This configuration element
+         */
+        public Config withLoadedBlocks(int maxLoadedBlocks) {
+            fileConfig.withLoadedBlocks(maxLoadedBlocks);
+            return this;
+        }
+
+        /**
+         * Accesses the backing files through memory-mapped segments
+         * This lets the operating system cache the pages of the files and avoids copying them into heap buffers.
+         * The on-disk layout is the same so that existing files can be open either way.
+         * This only makes sense with on-disk storage.
+         *
+         * @return This configuration element
+         */
+        public Config memoryMapped() {
+            fileConfig.mapped();
+            return this;
+        }
+
+        /**
+         * Sets the maximum total number of quads cached in memory
+         * This only makes sense with on-disk storage.
+         *
+         * @param maxCachedQuads The maximum number of cached quads
+         * @return This configuration element
+         */
+        public Config withCachedQuads(long maxCachedQuads) {
+            this.maxCachedQuads = maxCachedQuads;
+            return this;
+        }
+
         /**
          * Activates the support of reasoning
          * When reasoning is explicitly supported, the volatile inferred quads will never be committed to the primary storage
@@ -118,6 +175,19 @@ public class StoreFactory {
             return this;
         }
 
+        /**
+         * Persists the inferred quads in an on-disk store next to the primary storage
+         * When the store is open again, the persisted inferences are resumed instead of being re-derived.
+         * The reasoning rules must then be re-activated, after which {@link BaseStore#onReasoningResumed()} must be called.
+         * This only makes sense with on-disk storage and the support of reasoning.
+         *
+         * @return This configuration element
+         */
+        public Config withPersistedInferences() {
+            persistInferences = true;
+            return this;
+        }
+
         /**
          * Makes the store
          *
@@ -133,7 +203,7 @@ public class StoreFactory {
                     try {
                         if (location == null)
                             location = Files.createTempDirectory(UUID.randomUUID().toString()).toFile();
-                        primary = new OnDiskStore(location, isReadonly);
+                        primary = new OnDiskStore(location, isReadonly, fileConfig, maxCachedQuads);
                     } catch (IOException | StorageException exception) {
                         Logging.get().error(exception);
                         return null;
@@ -142,8 +212,27 @@ public class StoreFactory {
                 }
             }
             BaseStore result = primary;
-            if (supportReasoning)
-                result = new BaseReasonableStore(result);
+            if (supportReasoning) {
+                if (persistInferences && primaryStorage == StorageType.OnDisk) {
+                    try {
+                        File directory = new File(location, INFERENCES_DIRECTORY);
+                        if (!directory.exists() && !directory.mkdirs())
+                            throw new IOException("Failed to create directory " + directory.getAbsolutePath());
+                        BaseStore inferences = new OnDiskStore(directory, isReadonly, fileConfig, maxCachedQuads);
+                        result = new BaseReasonableStore(result, inferences);
+                    } catch (IOException | StorageException exception) {
+                        Logging.get().error(exception);
+                        try {
+                            primary.close();
+                        } catch (Exception exception2) {
+                            Logging.get().error(exception2);
+                        }
+                        return null;
+                    }
+                } else {
+                    result = new BaseReasonableStore(result);
+                }
+            }
             return result;
         }
     }
@@ -164,8 +164,10 @@ public abstract class DatasetImpl implements Dataset {
         Collection<Quad> added = new ArrayList<>();
         Collection<Quad> removed = new ArrayList<>();
         try {
+            int[] results = doAddQuads(changeset.getAdded());
+            int index = 0;
             for (Quad quad : changeset.getAdded()) {
-                int result = doAddQuad(quad.getGraph(), quad.getSubject(), quad.getProperty(), quad.getObject());
+                int result = results[index++];
                 if (result == ADD_RESULT_NEW) {
                     added.add(quad);
                     if (isFunctionDefinition(quad.getSubject(), quad.getProperty(), quad.getObject()))
@@ -419,6 +421,36 @@ public abstract class DatasetImpl implements Dataset {
      */
     public abstract int doAddQuad(GraphNode graph, SubjectNode subject, Property property, Node value) throws UnsupportedNodeType;
 
+    /**
+     * Executes the insertion of a single instance of multiple quads into this store.
+     * Either all the quads are inserted, or none when one of them is not supported.
+     * By default, the quads are inserted one by one.
+     *
+     * @param quads The quads to insert
+     * @return The operation results, in the iteration order of the quads
+     * @throws UnsupportedNodeType When a specified node is unsupported
+     */
+    public int[] doAddQuads(Collection<Quad> quads) throws UnsupportedNodeType {
+        int[] results = new int[quads.size()];
+        int index = 0;
+        try {
+            for (Quad quad : quads) {
+                results[index] = doAddQuad(quad.getGraph(), quad.getSubject(), quad.getProperty(), quad.getObject());
+                index++;
+            }
+        } catch (UnsupportedNodeType exception) {
+            // rollback the previously inserted quads
+            Iterator<Quad> iterator = quads.iterator();
+            for (int i = 0; i != index; i++) {
+                Quad quad = iterator.next();
+                if (results[i] >= ADD_RESULT_INCREMENT)
+                    doRemoveQuad(quad.getGraph(), quad.getSubject(), quad.getProperty(), quad.getObject());
+            }
+            throw exception;
+        }
+        return results;
+    }
+
     /**
      * Executes the removal operation of a single instance of a quad from this store
      *
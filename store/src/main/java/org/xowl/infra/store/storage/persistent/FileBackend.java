@@ -23,21 +23,30 @@ import fr.cenotelie.commons.utils.metrics.*;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a single file for storage
+ * The implementations differ in how they provide the blocks of the file for the accesses.
+ * <p>
+ * When the file is logged, its changes are only written to it when they are committed through the write-ahead log.
+ * Dirty blocks that are reclaimed before then have their images written to the log instead of the file.
+ * <p>
+ * The file then always contains the last committed version, so that the readers of a snapshot of this version
+ * read the blocks with uncommitted changes from the file.
+ * Before a commit overwrites blocks in the file, their previous images are kept for the readers of older snapshots.
  *
  * @author Laurent Wouters
  */
-class FileBackend implements IOBackend, Closeable {
-    /**
-     * The maximum number of loaded blocks
-     */
-    private static final int FILE_MAX_LOADED_BLOCKS = 1024;
+abstract class FileBackend implements IOBackend, Closeable {
     /**
      * The mask for the index of a block
      */
@@ -46,56 +55,85 @@ class FileBackend implements IOBackend, Closeable {
     /**
      * The backend is ready for IO
      */
-    private static final int STATE_READY = 0;
+    protected static final int STATE_READY = 0;
     /**
      * The backend is flushing
      */
-    private static final int STATE_FLUSHING = 1;
+    protected static final int STATE_FLUSHING = 1;
     /**
      * The backend is reclaiming some block
      */
-    private static final int STATE_RECLAIMING = 2;
+    protected static final int STATE_RECLAIMING = 2;
     /**
      * The file is now closed
      */
-    private static final int STATE_CLOSED = 3;
+    protected static final int STATE_CLOSED = 3;
 
+    /**
+     * The file location
+     */
+    protected final File file;
     /**
      * The file name
      */
-    private final String fileName;
+    protected final String fileName;
     /**
      * Whether the file is in readonly mode
      */
-    private final boolean isReadonly;
+    protected final boolean isReadonly;
     /**
      * The file channel
      */
-    private final FileChannel channel;
+    protected final FileChannel channel;
     /**
      * The access manager for this file
      */
     private final IOAccessManager accessManager;
     /**
-     * The loaded blocks in this file
+     * The total size of this file
      */
-    private final FileBlockTS[] blocks;
+    protected final AtomicInteger size;
     /**
-     * The number of currently loaded blocks
+     * The state of this file backend
      */
-    private final AtomicInteger blockCount;
+    protected final AtomicInteger state;
     /**
-     * The total size of this file
+     * The write-ahead log for this file, if any
      */
-    private final AtomicInteger size;
+    protected final WriteAheadLog log;
     /**
-     * The current time
+     * The blocks whose latest image is in the log and not in the file, mapped to the offset of the image in the log
+     * Only modified when the file is logged and the backend is flushing or reclaiming.
      */
-    private final AtomicLong time;
+    private final Map<Integer, Long> logBlocks;
     /**
-     * The state of this file backend
+     * The previous images of the blocks overwritten by commits, for the readers of snapshots
+     * Only used when the file is logged.
+     */
+    private final FileBlockVersions versions;
+    /**
+     * The number of write-backs of committed or rolled back changes in progress
+     * Guarded by the versions.
      */
-    private final AtomicInteger state;
+    private volatile int writeBacks;
+    /**
+     * The number of write-backs that started or finished, for the readers of snapshots to detect them
+     */
+    private volatile long writeBackEpoch;
+    /**
+     * The size of this file as of the last commit through the log, or as of its opening when it is not logged
+     * The content of the file up to this size must be in the file, the blocks beyond are newly allocated.
+     */
+    private volatile int committedSize;
+    /**
+     * The images appended to the log for the commit in progress, mapped to their offset in the log, for the location of the blocks
+     * Only modified by the commits, which are serialized by the log.
+     */
+    private Map<Integer, Long> loggedImages;
+    /**
+     * The size of this file when the images for the commit in progress were appended to the log
+     */
+    private int loggedSize;
     /**
      * The composite metric for this file
      */
@@ -129,36 +167,47 @@ class FileBackend implements IOBackend, Closeable {
     /**
      * Initializes this data file
      *
-     * @param file       The file location
-     * @param isReadonly Whether this store is in readonly mode
+     * @param file            The file location
+     * @param isReadonly      Whether this store is in readonly mode
+     * @param maxLoadedBlocks The maximum number of blocks that can be loaded at the same time
+     * @param log             The write-ahead log for this file, or null if the file is not logged
      * @throws StorageException When the initialization failed
      */
-    public FileBackend(File file, boolean isReadonly) throws StorageException {
+    protected FileBackend(File file, boolean isReadonly, int maxLoadedBlocks, WriteAheadLog log) throws StorageException {
+        this.file = file;
         this.fileName = file.getAbsolutePath();
-        this.isReadonly = isReadonly;
-        this.channel = newChannel(file, isReadonly);
+        this.isReadonly = isReadonly || (file.exists() && !file.canWrite());
+        this.channel = newChannel(file, this.isReadonly);
         this.accessManager = new IOAccessManager(this);
-        this.blocks = new FileBlockTS[FILE_MAX_LOADED_BLOCKS];
-        for (int i = 0; i != FILE_MAX_LOADED_BLOCKS; i++)
-            this.blocks[i] = new FileBlockTS();
-        this.blockCount = new AtomicInteger(0);
         this.size = new AtomicInteger(initSize());
-        this.time = new AtomicLong(Long.MIN_VALUE + 1);
         this.state = new AtomicInteger(STATE_READY);
+        this.log = log;
+        this.logBlocks = log != null ? new ConcurrentHashMap<>(log.getBlocksFor(file)) : null;
+        this.versions = log != null ? new FileBlockVersions() : null;
+        this.writeBacks = 0;
+        this.writeBackEpoch = 0;
+        this.committedSize = size.get();
+        this.loggedImages = new TreeMap<>();
+        this.loggedSize = committedSize;
+        if (logBlocks != null) {
+            // the log may have committed blocks beyond the end of the file
+            for (int location : logBlocks.keySet())
+                extendSizeTo(location + FileBlock.BLOCK_SIZE);
+        }
         this.metricTotalBlocks = new MetricBase(FileBackend.class.getCanonicalName() + ".LoadedBlocks",
                 "File - Total Loaded Blocks",
                 "blocks",
                 1000000000,
                 new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
                 new Couple<>(Metric.HINT_MIN_VALUE, "0"),
-                new Couple<>(Metric.HINT_MAX_VALUE, Integer.toString(FILE_MAX_LOADED_BLOCKS)));
+                new Couple<>(Metric.HINT_MAX_VALUE, Integer.toString(maxLoadedBlocks)));
         this.metricDirtyBlocks = new MetricBase(FileBackend.class.getCanonicalName() + ".DirtyBlocks",
                 "File - Total Dirty Blocks",
                 "blocks",
                 1000000000,
                 new Couple<>(Metric.HINT_IS_NUMERIC, "true"),
                 new Couple<>(Metric.HINT_MIN_VALUE, "0"),
-                new Couple<>(Metric.HINT_MAX_VALUE, Integer.toString(FILE_MAX_LOADED_BLOCKS)));
+                new Couple<>(Metric.HINT_MAX_VALUE, Integer.toString(maxLoadedBlocks)));
         this.metricContention = new MetricBase(FileBackend.class.getCanonicalName() + ".Contention",
                 "File - Thread Contention (Mean number of tries)",
                 "tries",
@@ -193,18 +242,27 @@ class FileBackend implements IOBackend, Closeable {
      * @return The snapshot
      */
     public MetricSnapshot getMetricSnapshot(long timestamp) {
-        int dirty = 0;
-        for (int i = 0; i != blockCount.get(); i++) {
-            if (blocks[i].isDirty)
-                dirty++;
-        }
         MetricSnapshotComposite snapshot = new MetricSnapshotComposite(timestamp);
-        snapshot.addPart(metricTotalBlocks, new MetricSnapshotInt(timestamp, blockCount.get()));
-        snapshot.addPart(metricDirtyBlocks, new MetricSnapshotInt(timestamp, dirty));
+        snapshot.addPart(metricTotalBlocks, new MetricSnapshotInt(timestamp, getLoadedBlockCount()));
+        snapshot.addPart(metricDirtyBlocks, new MetricSnapshotInt(timestamp, getDirtyBlockCount()));
         accessManager.getStatistics(timestamp, snapshot, metricContention, metricTotalAccesses);
         return snapshot;
     }
 
+    /**
+     * Gets the number of currently loaded blocks
+     *
+     * @return The number of currently loaded blocks
+     */
+    protected abstract int getLoadedBlockCount();
+
+    /**
+     * Gets the number of currently dirty blocks
+     *
+     * @return The number of currently dirty blocks
+     */
+    protected abstract int getDirtyBlockCount();
+
     /**
      * Gets the current size of the file channel
      *
@@ -225,7 +283,7 @@ class FileBackend implements IOBackend, Closeable {
      * @param newSize The new size
      * @return The final size
      */
-    private int extendSizeTo(int newSize) {
+    protected int extendSizeTo(int newSize) {
         while (true) {
             int current = size.get();
             int target = Math.max(current, newSize);
@@ -234,15 +292,6 @@ class FileBackend implements IOBackend, Closeable {
         }
     }
 
-    /**
-     * Ticks the time of this file
-     *
-     * @return The new time
-     */
-    private long tick() {
-        return time.incrementAndGet();
-    }
-
     /**
      * Get the file channel for this file
      *
@@ -253,8 +302,6 @@ class FileBackend implements IOBackend, Closeable {
      */
     private static FileChannel newChannel(File file, boolean isReadonly) throws StorageException {
         try {
-            if (file.exists() && !file.canWrite())
-                isReadonly = true;
             return isReadonly
                     ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
                     : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
@@ -265,30 +312,261 @@ class FileBackend implements IOBackend, Closeable {
 
     /**
      * Flushes any outstanding changes to the backend file
+     * When the file is logged, this does nothing because the changes are written when they are committed through the log.
      *
      * @throws StorageException When an IO operation failed
      */
     public void flush() throws StorageException {
+        if (log != null)
+            return;
+        doFlush();
+    }
+
+    /**
+     * Writes all the dirty blocks to the backend file and forces the file to the disk
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    protected abstract void doFlush() throws StorageException;
+
+    /**
+     * Writes the dirty blocks of a newly created file directly to it, even when the file is logged
+     * The content of a new file is not needed for a recovery, so that it can be written without being committed.
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    void flushCreated() throws StorageException {
+        acquireFlushing();
+        try {
+            writeBlocks();
+            channel.force(true);
+            committedSize = size.get();
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to write back to " + fileName);
+        } finally {
+            state.set(STATE_READY);
+        }
+    }
+
+    /**
+     * Loads the content of a block
+     * When the latest image of the block is in the log, it is read from there.
+     *
+     * @param block The block to load
+     * @throws IOException When an IO error occurs
+     */
+    void readBlock(FileBlock block) throws IOException {
+        Long offset = logBlocks != null ? logBlocks.get(block.location) : null;
+        if (offset != null)
+            log.readBlock(offset, block.buffer);
+        else
+            block.load(channel, committedSize);
+    }
+
+    /**
+     * Writes back the content of a dirty block that is being reclaimed
+     * When the file is logged, the image of the block is appended to the log instead of being written to the file.
+     *
+     * @param block The block to write
+     * @throws IOException      When an IO error occurs
+     * @throws StorageException When the log cannot be written to
+     */
+    void writeBlock(FileBlock block) throws IOException, StorageException {
+        if (log == null) {
+            block.serialize(channel);
+        } else if (block.isDirty) {
+            logBlocks.put(block.location, log.appendBlock(file, block.location, block.buffer));
+            block.isDirty = false;
+        }
+    }
+
+    /**
+     * Acquires the exclusive use of this backend for an operation on all its blocks
+     *
+     * @throws StorageException When the file is closed
+     */
+    protected void acquireFlushing() throws StorageException {
         while (true) {
             int s = state.get();
             if (s == STATE_CLOSED)
                 throw new StorageException("The file is closed");
-            if (!state.compareAndSet(STATE_READY, STATE_FLUSHING))
-                continue;
-            for (int i = 0; i != blockCount.get(); i++) {
-                blocks[i].flush(channel);
-            }
-            try {
-                channel.force(true);
-            } catch (IOException exception) {
-                throw new StorageException(exception, "Failed to write back to " + fileName);
-            } finally {
-                state.set(STATE_READY);
+            if (state.compareAndSet(STATE_READY, STATE_FLUSHING))
+                return;
+        }
+    }
+
+    /**
+     * Appends the image of a block to the log when it is dirty
+     * The block is no longer dirty, its latest image is then read from the log until it is written back.
+     * The caller must have the exclusive use of this backend.
+     *
+     * @param block The block to log
+     * @throws StorageException When an IO operation failed
+     */
+    protected void logBlock(FileBlockTS block) throws StorageException {
+        long offset = block.log(log, file);
+        if (offset >= 0)
+            logBlocks.put(block.location, offset);
+    }
+
+    /**
+     * Appends the images of the dirty blocks to the log
+     * This is the first step of a commit through the log.
+     * The images to be written back for the commit are those in the log at this time, including the ones of the reclaimed blocks.
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    void logChanges() throws StorageException {
+        acquireFlushing();
+        try {
+            logBlocks();
+            loggedImages = new TreeMap<>(logBlocks);
+            loggedSize = size.get();
+        } finally {
+            state.set(STATE_READY);
+        }
+    }
+
+    /**
+     * When the changes of this file are about to be written to it, after being committed or rolled back in the log
+     * The readers of snapshots wait until the end of the write-back.
+     */
+    void beginWriteBack() {
+        synchronized (versions) {
+            writeBacks++;
+            writeBackEpoch++;
+        }
+    }
+
+    /**
+     * When the changes of this file have been written to it
+     */
+    void endWriteBack() {
+        synchronized (versions) {
+            writeBacks--;
+            writeBackEpoch++;
+            versions.notifyAll();
+        }
+    }
+
+    /**
+     * Drops the previous images of the blocks that are no longer used by the snapshots
+     *
+     * @param oldest The oldest version of the snapshots that are still read, or Long.MAX_VALUE when there is none
+     */
+    void pruneVersions(long oldest) {
+        versions.prune(oldest);
+    }
+
+    /**
+     * When the changes of this file have been committed in the log
+     * The images appended for the commit are then written to the file, in the order of their location, without forcing it.
+     * The changes made since the images were appended are not written, they belong to the next commit.
+     *
+     * @param imagesVersion The previous committed version for which the images of the overwritten blocks must be kept, or -1
+     * @throws StorageException When an IO operation failed
+     */
+    void onLogCommitted(long imagesVersion) throws StorageException {
+        acquireFlushing();
+        try {
+            if (imagesVersion >= 0)
+                saveImages(imagesVersion);
+            ByteBuffer buffer = ByteBuffer.allocate(FileBlock.BLOCK_SIZE);
+            for (Map.Entry<Integer, Long> entry : loggedImages.entrySet()) {
+                log.readBlock(entry.getValue(), buffer);
+                buffer.position(0);
+                int total = 0;
+                while (total < FileBlock.BLOCK_SIZE)
+                    total += channel.write(buffer, entry.getKey() + total);
+                // a block reclaimed since then has a more recent image in the log
+                if (entry.getValue().equals(logBlocks.get(entry.getKey())))
+                    logBlocks.remove(entry.getKey());
             }
-            return;
+            loggedImages = new TreeMap<>();
+            committedSize = loggedSize;
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to write back to " + fileName);
+        } finally {
+            state.set(STATE_READY);
         }
     }
 
+    /**
+     * Keeps the current images of the blocks that are about to be overwritten in the file by a commit
+     * The caller must have the exclusive use of this backend.
+     *
+     * @param version The previous committed version, i.e. the one in the file
+     * @throws IOException When an IO error occurs
+     */
+    private void saveImages(long version) throws IOException {
+        for (int location : loggedImages.keySet()) {
+            // the blocks beyond the committed size are not part of the previous version
+            if (location >= committedSize || versions.has(location, version))
+                continue;
+            FileBlock image = new FileBlock(location, ByteBuffer.allocate(FileBlock.BLOCK_SIZE));
+            image.load(channel, committedSize);
+            versions.put(location, version, image.buffer.array());
+        }
+    }
+
+    /**
+     * When the outstanding changes of this file have been rolled back in the log
+     * The affected blocks are then reloaded from the file.
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    void onLogRolledBack() throws StorageException {
+        acquireFlushing();
+        try {
+            Set<Integer> reclaimed = new HashSet<>(logBlocks.keySet());
+            logBlocks.clear();
+            loggedImages = new TreeMap<>();
+            size.set(committedSize);
+            revertBlocks(reclaimed, committedSize);
+        } finally {
+            state.set(STATE_READY);
+        }
+    }
+
+    /**
+     * Forces the file to the disk
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    void force() throws StorageException {
+        try {
+            channel.force(true);
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to write back to " + fileName);
+        }
+    }
+
+    /**
+     * Appends the images of the dirty blocks to the log, see logBlock
+     * The caller must have the exclusive use of this backend.
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    protected abstract void logBlocks() throws StorageException;
+
+    /**
+     * Writes the dirty blocks to the file, without forcing it
+     * The caller must have the exclusive use of this backend.
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    protected abstract void writeBlocks() throws StorageException;
+
+    /**
+     * Reverts the loaded blocks that have outstanding changes to their content in the file
+     * The caller must have the exclusive use of this backend.
+     *
+     * @param reclaimed The locations of the blocks that were reclaimed with outstanding changes
+     * @param fileSize  The committed size of the file
+     * @throws StorageException When an IO operation failed
+     */
+    protected abstract void revertBlocks(Set<Integer> reclaimed, int fileSize) throws StorageException;
+
     /**
      * Accesses the content of this file through an access element
      * An access must be within the boundaries of a block.
@@ -315,7 +593,13 @@ class FileBackend implements IOBackend, Closeable {
      */
     protected IOAccess access(int index, int length, boolean writable, FileBlockTS block) throws StorageException {
         IOAccess access = accessManager.get(index, length, !isReadonly && writable, block);
-        block.use(block.location, tick());
+        block.use(block.location);
+        try {
+            access.setupIOData(getElementFor(access, block));
+        } catch (StorageException exception) {
+            access.close();
+            throw exception;
+        }
         return access;
     }
 
@@ -330,141 +614,110 @@ class FileBackend implements IOBackend, Closeable {
      * @return The corresponding block
      * @throws StorageException When an IO error occurs
      */
-    protected FileBlockTS getBlockFor(int index) throws StorageException {
-        int targetLocation = index & INDEX_MASK_UPPER;
-        if (blockCount.get() < FILE_MAX_LOADED_BLOCKS)
-            return getBlockWhenNotFull(targetLocation);
-        else
-            return getBlockWhenFull(targetLocation);
+    protected abstract FileBlockTS getBlockFor(int index) throws StorageException;
+
+    @Override
+    public IOElement onAccessRequested(IOAccess access) throws StorageException {
+        FileBlockTS block = getBlockFor(access.getLocation());
+        try {
+            return getElementFor(access, block);
+        } catch (StorageException exception) {
+            block.release();
+            throw exception;
+        }
+    }
+
+    @Override
+    public void onAccessTerminated(IOAccess access, IOElement element) throws StorageException {
+        // the images read from snapshots are not shared
+        if (element instanceof FileBlockTS)
+            ((FileBlockTS) element).release();
     }
 
     /**
-     * Acquires the block for the specified index in this file when the pool of blocks is not full yet
+     * Gets the IO element that supports an access, with respect to the snapshot read by the current thread, if any
+     * When the current block is not used for the access, it is released.
      *
-     * @param targetLocation The location of the requested block in this file
-     * @return The corresponding block
-     * @throws StorageException When an IO error occurs
+     * @param access The access
+     * @param block  The current block at the location of the access, in use for the access
+     * @return The supporting IO element
+     * @throws StorageException When an IO operation failed
      */
-    private FileBlockTS getBlockWhenNotFull(int targetLocation) throws StorageException {
-        // try to allocate one of the free block
-        int count = blockCount.get();
-        while (count < FILE_MAX_LOADED_BLOCKS) {
-            // look for the block
-            for (int i = 0; i != count; i++) {
-                // is this the block we are looking for?
-                if (blocks[i].getLocation() == targetLocation && blocks[i].use(targetLocation, tick())) {
-                    // yes and we locked it
-                    return blocks[i];
-                }
+    private IOElement getElementFor(IOAccess access, FileBlockTS block) throws StorageException {
+        if (log == null || isReadonly)
+            return block;
+        long snapshot = log.getSnapshotVersion();
+        if (snapshot < 0)
+            return block;
+        if (access.writable)
+            throw new StorageException("Cannot write to " + fileName + " while reading from a snapshot");
+        while (true) {
+            long epoch = writeBackEpoch;
+            if (writeBacks > 0) {
+                waitForWriteBacks();
+                continue;
             }
-            // get the last block
-            FileBlockTS target = blocks[count];
-            // try to reserve it
-            switch (target.reserve(targetLocation, channel, size.get(), tick())) {
-                case FileBlockTS.RESERVE_RESULT_READY:
-                    // same block and location, but another thread ...
-                    if (target.use(targetLocation, tick()))
-                        return target;
-                    break;
-                case FileBlockTS.RESERVE_RESULT_OK:
-                    // reserved by this thread for the location
-                    // update the file data
-                    blockCount.incrementAndGet();
-                    extendSizeTo(Math.max(size.get(), targetLocation + FileBlock.BLOCK_SIZE));
-                    if (target.use(targetLocation, tick()))
-                        return target;
-                    break;
+            FileBlock result = getCommittedBlock(block, snapshot);
+            // retry when a write-back started in the meantime
+            if (epoch == writeBackEpoch) {
+                if (result != block)
+                    block.release();
+                return result;
             }
-            // retry with the next block
-            count = blockCount.get();
         }
-        // now the pool if full ... fallback
-        return getBlockWhenNotFound(targetLocation);
     }
 
     /**
-     * Acquires the block for the specified index in this file when the pool of blocks is full
-     * This method attempts a full scan of the allocated block to find the corresponding one.
-     * If this fails, is falls back to the reclaiming an existing one.
+     * Gets the content of a block at the version of a snapshot
      *
-     * @param targetLocation The location of the requested block in this file
-     * @return The corresponding block
-     * @throws StorageException When an IO error occurs
+     * @param block    The current block
+     * @param snapshot The committed version of the snapshot
+     * @return The block with the content at the version
+     * @throws StorageException When an IO operation failed
      */
-    private FileBlockTS getBlockWhenFull(int targetLocation) throws StorageException {
-        for (int i = 0; i != FILE_MAX_LOADED_BLOCKS; i++) {
-            // is this the block we are looking for?
-            if (blocks[i].getLocation() == targetLocation && blocks[i].use(targetLocation, tick())) {
-                // yes and we locked it
-                return blocks[i];
-            }
+    private FileBlock getCommittedBlock(FileBlockTS block, long snapshot) throws StorageException {
+        FileBlock result = versions.get(block.location, snapshot);
+        if (result != null)
+            // the block has been overwritten by a commit since the snapshot
+            return result;
+        if (!block.isDirty && !logBlocks.containsKey(block.location))
+            // the block has no uncommitted change
+            return block;
+        // the block has uncommitted changes, its committed content is in the file
+        result = new FileBlock(block.location, ByteBuffer.allocate(FileBlock.BLOCK_SIZE));
+        try {
+            result.load(channel, committedSize);
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to read block at 0x" + Integer.toHexString(block.location));
         }
-        return getBlockWhenNotFound(targetLocation);
+        return result;
     }
 
     /**
-     * Acquires the block for the specified index in this file when previous attempts to find a corresponding block failed
-     * This method will reclaim the oldest block when an already provisioned block for the location is not found.
+     * Waits for the write-backs in progress to finish
      *
-     * @param targetLocation The location of the requested block in this file
-     * @return The corresponding block
-     * @throws StorageException When an IO error occurs
-     */
-    private FileBlockTS getBlockWhenNotFound(int targetLocation) throws StorageException {
-        while (true) {
-            int s = state.get();
-            if (s == STATE_CLOSED)
-                throw new StorageException("The file is closed");
-            if (state.compareAndSet(STATE_READY, STATE_RECLAIMING))
-                break;
-        }
-
-        // lookup and reclaim the oldest block
-        while (true) {
-            // keep track of the oldest block
-            int oldestIndex = -1;
-            long oldestTime = Long.MAX_VALUE;
-            long oldestLocation = -1;
-            for (int i = 0; i != FILE_MAX_LOADED_BLOCKS; i++) {
-                // is this the block we are looking for?
-                if (blocks[i].getLocation() == targetLocation && blocks[i].use(targetLocation, tick())) {
-                    // yes and we locked it
-                    state.set(STATE_READY);
-                    return blocks[i];
-                }
-                // is this the oldest block?
-                long t = blocks[i].getLastHit();
-                if (t < oldestTime) {
-                    oldestIndex = i;
-                    oldestTime = t;
-                    oldestLocation = blocks[i].getLocation();
-                }
-            }
-            // we did not find the block, try to reclaim the oldest one
-            FileBlockTS target = blocks[oldestIndex];
-            if (target.getLastHit() == oldestTime // the time did not change
-                    && target.getLocation() == oldestLocation // still the same location
-                    && target.reclaim(targetLocation, channel, size.get(), tick()) // try to reclaim
-                    ) {
-                // update the file data
-                extendSizeTo(Math.max(size.get(), targetLocation + FileBlock.BLOCK_SIZE));
-                if (target.use(targetLocation, tick())) {
-                    // we got the block
-                    state.set(STATE_READY);
-                    return target;
+     * @throws StorageException When the thread is interrupted
+     */
+    private void waitForWriteBacks() throws StorageException {
+        synchronized (versions) {
+            while (writeBacks > 0) {
+                try {
+                    versions.wait();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new StorageException(exception, "Interrupted while reading " + fileName);
                 }
             }
         }
     }
 
-    @Override
-    public IOElement onAccessRequested(IOAccess access) throws StorageException {
-        return getBlockFor(access.getLocation());
-    }
-
-    @Override
-    public void onAccessTerminated(IOAccess access, IOElement element) throws StorageException {
-        ((FileBlockTS) element).release();
+    /**
+     * Event when this backend is being closed, before its channel is closed
+     *
+     * @throws IOException When an IO error occurred
+     */
+    protected void onClose() throws IOException {
+        // by default, do nothing
     }
 
     @Override
@@ -476,6 +729,16 @@ class FileBackend implements IOBackend, Closeable {
             if (state.compareAndSet(STATE_READY, STATE_CLOSED))
                 break;
         }
-        channel.close();
+        try {
+            if (log != null) {
+                log.unregister(this);
+                if (!isReadonly)
+                    // the committed changes must be on the disk before the log is truncated
+                    channel.force(true);
+            }
+            onClose();
+        } finally {
+            channel.close();
+        }
     }
 }
@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage.persistent;
+
+import fr.cenotelie.commons.utils.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents a single file for storage whose blocks are loaded into a bounded pool of heap buffers
+ * Blocks are read from the file when they are first accessed and written back when they are reclaimed or flushed.
+ * When the file is logged, reclaimed dirty blocks are written to the log instead.
+ * <p>
+ * When the file is not logged, a background writer can trickle the dirty blocks to the file,
+ * so that a flush only has to write the few remaining ones before forcing the file to the disk.
+ * Dirty blocks are written in the order of their location and contiguous ones are written together.
+ *
+ * @author Laurent Wouters
+ */
+class FileBackendBuffered extends FileBackend {
+    /**
+     * The maximum number of contiguous blocks that are written together
+     */
+    private static final int MAX_WRITE_RUN = 64;
+
+    /**
+     * The loaded blocks in this file
+     */
+    private final FileBlockTS[] blocks;
+    /**
+     * The index of the loaded blocks, from their location to their slot in the pool
+     */
+    private final FileBlockIndex blockIndex;
+    /**
+     * The number of currently loaded blocks
+     */
+    private final AtomicInteger blockCount;
+    /**
+     * The position of the clock hand for the reclaiming of blocks
+     * Only used when the backend is in the reclaiming state
+     */
+    private int clockHand;
+    /**
+     * The interval in milliseconds between two passes of the background writer
+     */
+    private final int writerInterval;
+    /**
+     * The background writer for the dirty blocks, if any
+     */
+    private final Thread writer;
+    /**
+     * The lock for stopping the background writer
+     */
+    private final Object writerLock;
+    /**
+     * Whether the background writer shall stop
+     */
+    private boolean writerStopped;
+
+    /**
+     * Initializes this data file
+     *
+     * @param file            The file location
+     * @param isReadonly      Whether this store is in readonly mode
+     * @param maxLoadedBlocks The maximum number of blocks that can be loaded at the same time
+     * @throws StorageException When the initialization failed
+     */
+    public FileBackendBuffered(File file, boolean isReadonly, int maxLoadedBlocks) throws StorageException {
+        this(file, isReadonly, maxLoadedBlocks, null);
+    }
+
+    /**
+     * Initializes this data file
+     *
+     * @param file            The file location
+     * @param isReadonly      Whether this store is in readonly mode
+     * @param maxLoadedBlocks The maximum number of blocks that can be loaded at the same time
+     * @param log             The write-ahead log for this file, or null if the file is not logged
+     * @throws StorageException When the initialization failed
+     */
+    public FileBackendBuffered(File file, boolean isReadonly, int maxLoadedBlocks, WriteAheadLog log) throws StorageException {
+        this(file, isReadonly, maxLoadedBlocks, log, 0);
+    }
+
+    /**
+     * Initializes this data file
+     *
+     * @param file            The file location
+     * @param isReadonly      Whether this store is in readonly mode
+     * @param maxLoadedBlocks The maximum number of blocks that can be loaded at the same time
+     * @param log             The write-ahead log for this file, or null if the file is not logged
+     * @param writerInterval  The interval in milliseconds between two passes of the background writer, or 0 to disable it, ignored when the file is logged
+     * @throws StorageException When the initialization failed
+     */
+    public FileBackendBuffered(File file, boolean isReadonly, int maxLoadedBlocks, WriteAheadLog log, int writerInterval) throws StorageException {
+        super(file, isReadonly, checkLoadedBlocks(maxLoadedBlocks), log);
+        this.blocks = new FileBlockTS[maxLoadedBlocks];
+        for (int i = 0; i != maxLoadedBlocks; i++)
+            this.blocks[i] = new FileBlockTS();
+        this.blockIndex = new FileBlockIndex(maxLoadedBlocks);
+        this.blockCount = new AtomicInteger(0);
+        this.clockHand = 0;
+        this.writerInterval = writerInterval;
+        // the dirty blocks of a logged file cannot be written before they are committed
+        this.writer = (writerInterval > 0 && log == null && !this.isReadonly) ? new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, FileBackendBuffered.class.getCanonicalName() + ".Writer[" + fileName + "]") : null;
+        this.writerLock = new Object();
+        this.writerStopped = false;
+        if (writer != null) {
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Checks the maximum number of loaded blocks
+     *
+     * @param maxLoadedBlocks The maximum number of blocks that can be loaded at the same time
+     * @return The checked value
+     * @throws StorageException When the value is invalid
+     */
+    private static int checkLoadedBlocks(int maxLoadedBlocks) throws StorageException {
+        if (maxLoadedBlocks <= 0)
+            throw new StorageException("Invalid number of loaded blocks: " + maxLoadedBlocks);
+        return maxLoadedBlocks;
+    }
+
+    @Override
+    protected int getLoadedBlockCount() {
+        return blockCount.get();
+    }
+
+    @Override
+    protected int getDirtyBlockCount() {
+        int dirty = 0;
+        for (int i = 0; i != blockCount.get(); i++) {
+            if (blocks[i].isDirty)
+                dirty++;
+        }
+        return dirty;
+    }
+
+    @Override
+    protected void doFlush() throws StorageException {
+        while (true) {
+            int s = state.get();
+            if (s == STATE_CLOSED)
+                throw new StorageException("The file is closed");
+            if (!state.compareAndSet(STATE_READY, STATE_FLUSHING))
+                continue;
+            try {
+                writeDirtyBlocks(true);
+                channel.force(true);
+            } catch (IOException exception) {
+                throw new StorageException(exception, "Failed to write back to " + fileName);
+            } finally {
+                state.set(STATE_READY);
+            }
+            return;
+        }
+    }
+
+    @Override
+    protected void logBlocks() throws StorageException {
+        for (int i = 0; i != blockCount.get(); i++) {
+            logBlock(blocks[i]);
+        }
+    }
+
+    @Override
+    protected void writeBlocks() throws StorageException {
+        writeDirtyBlocks(true);
+    }
+
+    /**
+     * Writes the dirty blocks to the file, without forcing it
+     * The dirty blocks are written in the order of their location and contiguous ones are written with a single gathering write.
+     * A block that is locked is never held while waiting for another one so that the threads using the blocks cannot be blocked.
+     *
+     * @param wait Whether to wait for the blocks that are in use, otherwise they are left for a later pass
+     * @return The number of written blocks
+     * @throws StorageException When an IO operation failed
+     */
+    private int writeDirtyBlocks(boolean wait) throws StorageException {
+        // sort the dirty blocks by location, the slot of a block is in the lower half of its key
+        int count = blockCount.get();
+        long[] keys = new long[count];
+        int dirty = 0;
+        for (int i = 0; i != count; i++) {
+            if (blocks[i].isDirty)
+                keys[dirty++] = ((long) blocks[i].getLocation() << 32) | i;
+        }
+        if (dirty == 0)
+            return 0;
+        Arrays.sort(keys, 0, dirty);
+
+        FileBlockTS[] run = new FileBlockTS[MAX_WRITE_RUN];
+        int runLength = 0;
+        int written = 0;
+        for (int i = 0; i != dirty; i++) {
+            int location = (int) (keys[i] >>> 32);
+            FileBlockTS block = blocks[(int) keys[i]];
+            if (!block.tryLock(location)) {
+                if (!wait || !block.isDirty)
+                    continue;
+                // write the current run before waiting for this block
+                written += writeRun(run, runLength);
+                runLength = 0;
+                if (!block.lock(location))
+                    continue;
+            }
+            if (runLength > 0 && (runLength == MAX_WRITE_RUN || location != run[0].location + runLength * FileBlock.BLOCK_SIZE)) {
+                written += writeRun(run, runLength);
+                runLength = 0;
+            }
+            run[runLength++] = block;
+        }
+        written += writeRun(run, runLength);
+        return written;
+    }
+
+    /**
+     * Writes a run of contiguous locked blocks to the file and unlocks them
+     *
+     * @param run    The blocks to write, sorted by location
+     * @param length The number of blocks in the run
+     * @return The number of written blocks
+     * @throws StorageException When an IO operation failed
+     */
+    private int writeRun(FileBlockTS[] run, int length) throws StorageException {
+        if (length == 0)
+            return 0;
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[length];
+            for (int i = 0; i != length; i++) {
+                buffers[i] = run[i].buffer;
+                buffers[i].position(0);
+            }
+            long remaining = (long) length * FileBlock.BLOCK_SIZE;
+            // the gathering writes use the position of the channel
+            synchronized (channel) {
+                channel.position(run[0].location);
+                while (remaining > 0)
+                    remaining -= channel.write(buffers);
+            }
+            for (int i = 0; i != length; i++)
+                run[i].isDirty = false;
+            return length;
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to write blocks at 0x" + Integer.toHexString(run[0].location));
+        } finally {
+            for (int i = 0; i != length; i++)
+                run[i].unlock();
+        }
+    }
+
+    /**
+     * Runs the background writer until it is stopped
+     * Each pass writes the dirty blocks that are not in use at this time.
+     */
+    private void runWriter() {
+        while (true) {
+            synchronized (writerLock) {
+                if (writerStopped)
+                    return;
+                try {
+                    writerLock.wait(writerInterval);
+                } catch (InterruptedException exception) {
+                    return;
+                }
+                if (writerStopped)
+                    return;
+            }
+            try {
+                writeDirtyBlocks(false);
+            } catch (StorageException exception) {
+                Logging.get().error(exception);
+            }
+        }
+    }
+
+    @Override
+    protected void onClose() throws IOException {
+        if (writer == null)
+            return;
+        synchronized (writerLock) {
+            writerStopped = true;
+            writerLock.notifyAll();
+        }
+        try {
+            // the thread is not interrupted while writing because this would close the channel
+            writer.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    protected void revertBlocks(Set<Integer> reclaimed, int fileSize) throws StorageException {
+        for (int i = 0; i != blockCount.get(); i++) {
+            FileBlockTS block = blocks[i];
+            if (block.isDirty || block.location >= fileSize || reclaimed.contains(block.location))
+                block.revert(this, fileSize);
+        }
+    }
+
+    @Override
+    protected FileBlockTS getBlockFor(int index) throws StorageException {
+        int targetLocation = index & INDEX_MASK_UPPER;
+        // lookup the index of the loaded blocks
+        int slot = blockIndex.get(targetLocation);
+        if (slot >= 0 && blocks[slot].use(targetLocation))
+            // the block is loaded and we locked it
+            return blocks[slot];
+        return getBlockWhenNotFound(targetLocation);
+    }
+
+    /**
+     * Acquires the block for the specified index in this file when the lookup in the index of the loaded blocks failed
+     * This method serializes the loading of blocks and is the only one that modifies the index of the loaded blocks.
+     * When the pool of blocks is not full, a free block is used for the location.
+     * Otherwise, a block is reclaimed using the CLOCK (second chance) policy.
+     *
+     * @param targetLocation The location of the requested block in this file
+     * @return The corresponding block
+     * @throws StorageException When an IO error occurs
+     */
+    private FileBlockTS getBlockWhenNotFound(int targetLocation) throws StorageException {
+        while (true) {
+            int s = state.get();
+            if (s == STATE_CLOSED)
+                throw new StorageException("The file is closed");
+            if (state.compareAndSet(STATE_READY, STATE_RECLAIMING))
+                break;
+        }
+
+        try {
+            // look again, another thread may have loaded the block in the meantime
+            int slot = blockIndex.get(targetLocation);
+            if (slot >= 0) {
+                if (blocks[slot].use(targetLocation))
+                    return blocks[slot];
+                // the entry is stale, drop it
+                blockIndex.remove(targetLocation);
+            }
+
+            int count = blockCount.get();
+            if (count < blocks.length) {
+                // the pool is not full yet, use the next free block
+                FileBlockTS target = blocks[count];
+                blockCount.set(count + 1);
+                target.reserve(targetLocation, this, size.get());
+                return onBlockLoaded(target, count, targetLocation);
+            }
+
+            // the pool is full, reclaim a block
+            while (true) {
+                slot = clockHand;
+                clockHand = (clockHand + 1) % blocks.length;
+                FileBlockTS target = blocks[slot];
+                if (target.clearReference())
+                    // the block has been hit recently, give it a second chance
+                    continue;
+                int oldLocation = target.getLocation();
+                // when the write-back fails, the block keeps its location and its content, so it stays in the index
+                if (target.reclaim(targetLocation, this, size.get())) {
+                    blockIndex.remove(oldLocation);
+                    return onBlockLoaded(target, slot, targetLocation);
+                }
+                // the block is in use, try the next one
+            }
+        } finally {
+            state.set(STATE_READY);
+        }
+    }
+
+    /**
+     * When a block has been loaded for a new location
+     *
+     * @param block          The loaded block
+     * @param slot           The slot of the block in the pool
+     * @param targetLocation The location of the requested block in this file
+     * @return The corresponding block
+     * @throws StorageException When an IO error occurs
+     */
+    private FileBlockTS onBlockLoaded(FileBlockTS block, int slot, int targetLocation) throws StorageException {
+        extendSizeTo(targetLocation + FileBlock.BLOCK_SIZE);
+        blockIndex.put(targetLocation, slot);
+        if (!block.use(targetLocation))
+            throw new StorageException("Failed to use the block loaded at 0x" + Integer.toHexString(targetLocation));
+        return block;
+    }
+}
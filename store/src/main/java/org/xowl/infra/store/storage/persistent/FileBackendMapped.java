@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Represents a single file for storage that is accessed through memory-mapped segments
+ * The file is mapped by segments of contiguous blocks, as they are accessed.
+ * The blocks are views onto the mapped segments so that accesses do not copy the data
+ * and the caching of the pages is left to the operating system.
+ * The on-disk layout is the same as for the other backends.
+ * <p>
+ * A segment is mapped by extents that never go beyond the end of the file, except when the file grows.
+ * In this case, the new extent only extends the file by a small step of blocks.
+ * The file is truncated back to its effective size and the mappings are released when the backend is closed.
+ * When the file is logged, the segments are privately mapped so that the changes only reach the file when committed.
+ *
+ * @author Laurent Wouters
+ */
+class FileBackendMapped extends FileBackend {
+    /**
+     * The number of bits to use in order to represent an index within a segment
+     */
+    private static final int SEGMENT_INDEX_LENGTH = 24;
+    /**
+     * The size of a segment in bytes
+     */
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_INDEX_LENGTH;
+    /**
+     * The mask for the index within a segment
+     */
+    private static final int SEGMENT_MASK_LOWER = SEGMENT_SIZE - 1;
+    /**
+     * The number of blocks in a segment
+     */
+    private static final int SEGMENT_BLOCKS = SEGMENT_SIZE / FileBlock.BLOCK_SIZE;
+    /**
+     * The maximum number of segments in a file
+     */
+    private static final int SEGMENT_MAX_COUNT = 1 << (31 - SEGMENT_INDEX_LENGTH);
+    /**
+     * The size in bytes of the step by which a mapping extends the file when it grows
+     */
+    private static final int GROWTH_SIZE = 64 * FileBlock.BLOCK_SIZE;
+
+    /**
+     * Represents a mapped segment of the file
+     */
+    private static class Segment {
+        /**
+         * The location of the segment in the file
+         */
+        public final int location;
+        /**
+         * The mapped extents of this segment
+         * The extents are only modified while the file is in the reclaiming state.
+         */
+        public final List<MappedByteBuffer> buffers;
+        /**
+         * The blocks in this segment, null when the block is not mapped yet
+         */
+        public final AtomicReferenceArray<FileBlockTS> blocks;
+
+        /**
+         * Initializes this segment
+         *
+         * @param location The location of the segment in the file
+         */
+        public Segment(int location) {
+            this.location = location;
+            this.buffers = new ArrayList<>();
+            this.blocks = new AtomicReferenceArray<>(SEGMENT_BLOCKS);
+        }
+
+        /**
+         * Adds a mapped extent to this segment
+         * The blocks that are already mapped keep their previous view.
+         *
+         * @param offset The offset of the extent within this segment
+         * @param buffer The mapped buffer for the extent
+         */
+        public void addExtent(int offset, MappedByteBuffer buffer) {
+            buffers.add(buffer);
+            int count = buffer.capacity() / FileBlock.BLOCK_SIZE;
+            int first = offset / FileBlock.BLOCK_SIZE;
+            for (int i = 0; i != count; i++) {
+                if (blocks.get(first + i) != null)
+                    continue;
+                ByteBuffer view = buffer.duplicate();
+                view.position(i * FileBlock.BLOCK_SIZE);
+                view.limit((i + 1) * FileBlock.BLOCK_SIZE);
+                blocks.set(first + i, new FileBlockTS(location + offset + i * FileBlock.BLOCK_SIZE, view.slice()));
+            }
+        }
+    }
+
+    /**
+     * The mapped segments of this file
+     */
+    private final AtomicReferenceArray<Segment> segments;
+    /**
+     * The number of mapped segments
+     */
+    private final AtomicInteger segmentCount;
+
+    /**
+     * Initializes this data file
+     *
+     * @param file       The file location
+     * @param isReadonly Whether this store is in readonly mode
+     * @throws StorageException When the initialization failed
+     */
+    public FileBackendMapped(File file, boolean isReadonly) throws StorageException {
+        this(file, isReadonly, null);
+    }
+
+    /**
+     * Initializes this data file
+     *
+     * @param file       The file location
+     * @param isReadonly Whether this store is in readonly mode
+     * @param log        The write-ahead log for this file, or null if the file is not logged
+     * @throws StorageException When the initialization failed
+     */
+    public FileBackendMapped(File file, boolean isReadonly, WriteAheadLog log) throws StorageException {
+        super(file, isReadonly, SEGMENT_MAX_COUNT * SEGMENT_BLOCKS, log);
+        this.segments = new AtomicReferenceArray<>(SEGMENT_MAX_COUNT);
+        this.segmentCount = new AtomicInteger(0);
+    }
+
+    @Override
+    protected int getLoadedBlockCount() {
+        int count = 0;
+        for (int i = 0; i != SEGMENT_MAX_COUNT; i++) {
+            Segment segment = segments.get(i);
+            if (segment == null)
+                continue;
+            for (int j = 0; j != SEGMENT_BLOCKS; j++) {
+                if (segment.blocks.get(j) != null)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    protected int getDirtyBlockCount() {
+        int dirty = 0;
+        for (int i = 0; i != SEGMENT_MAX_COUNT; i++) {
+            Segment segment = segments.get(i);
+            if (segment == null)
+                continue;
+            for (int j = 0; j != SEGMENT_BLOCKS; j++) {
+                FileBlockTS block = segment.blocks.get(j);
+                if (block != null && block.isDirty)
+                    dirty++;
+            }
+        }
+        return dirty;
+    }
+
+    @Override
+    protected void doFlush() throws StorageException {
+        acquireFlushing();
+        try {
+            for (int i = 0; i != SEGMENT_MAX_COUNT; i++) {
+                Segment segment = segments.get(i);
+                if (segment == null)
+                    continue;
+                boolean isDirty = false;
+                for (int j = 0; j != SEGMENT_BLOCKS; j++) {
+                    FileBlockTS block = segment.blocks.get(j);
+                    if (block == null)
+                        continue;
+                    isDirty |= block.isDirty;
+                    block.isDirty = false;
+                }
+                if (isDirty) {
+                    for (MappedByteBuffer buffer : segment.buffers)
+                        buffer.force();
+                }
+            }
+        } finally {
+            state.set(STATE_READY);
+        }
+    }
+
+    @Override
+    protected void logBlocks() throws StorageException {
+        for (int i = 0; i != SEGMENT_MAX_COUNT; i++) {
+            Segment segment = segments.get(i);
+            if (segment == null)
+                continue;
+            for (int j = 0; j != SEGMENT_BLOCKS; j++) {
+                FileBlockTS block = segment.blocks.get(j);
+                if (block != null)
+                    logBlock(block);
+            }
+        }
+    }
+
+    @Override
+    protected void writeBlocks() throws StorageException {
+        for (int i = 0; i != SEGMENT_MAX_COUNT; i++) {
+            Segment segment = segments.get(i);
+            if (segment == null)
+                continue;
+            for (int j = 0; j != SEGMENT_BLOCKS; j++) {
+                FileBlockTS block = segment.blocks.get(j);
+                if (block != null)
+                    block.flush(channel);
+            }
+        }
+    }
+
+    @Override
+    protected void revertBlocks(Set<Integer> reclaimed, int fileSize) throws StorageException {
+        for (int i = 0; i != SEGMENT_MAX_COUNT; i++) {
+            Segment segment = segments.get(i);
+            if (segment == null)
+                continue;
+            for (int j = 0; j != SEGMENT_BLOCKS; j++) {
+                // blocks are never reclaimed, the logged ones have outstanding changes as well as the dirty ones
+                FileBlockTS block = segment.blocks.get(j);
+                if (block != null && (block.isDirty || reclaimed.contains(block.location)))
+                    block.revert(this, fileSize);
+            }
+        }
+    }
+
+    @Override
+    protected FileBlockTS getBlockFor(int index) throws StorageException {
+        int targetLocation = index & INDEX_MASK_UPPER;
+        int segmentIndex = targetLocation >>> SEGMENT_INDEX_LENGTH;
+        int blockIndex = (targetLocation & SEGMENT_MASK_LOWER) >>> FileBlock.BLOCK_INDEX_LENGTH;
+        Segment segment = segments.get(segmentIndex);
+        FileBlockTS block = segment != null ? segment.blocks.get(blockIndex) : null;
+        if (block == null)
+            block = mapBlock(segmentIndex, blockIndex);
+        if (!block.use(targetLocation))
+            throw new StorageException("Failed to use the block at 0x" + Integer.toHexString(targetLocation));
+        extendSizeTo(targetLocation + FileBlock.BLOCK_SIZE);
+        return block;
+    }
+
+    /**
+     * Maps the extent of a segment that contains the specified block
+     * The extent goes up to the end of the file, or up to a growth step beyond the block when it is after the end of the file.
+     * The mapping of extents is serialized with the flushing of the file.
+     *
+     * @param segmentIndex The index of the segment
+     * @param blockIndex   The index of the block within the segment
+     * @return The mapped block
+     * @throws StorageException When an IO error occurs
+     */
+    private FileBlockTS mapBlock(int segmentIndex, int blockIndex) throws StorageException {
+        while (true) {
+            int s = state.get();
+            if (s == STATE_CLOSED)
+                throw new StorageException("The file is closed");
+            if (state.compareAndSet(STATE_READY, STATE_RECLAIMING))
+                break;
+        }
+        int location = segmentIndex << SEGMENT_INDEX_LENGTH;
+        int offset = blockIndex << FileBlock.BLOCK_INDEX_LENGTH;
+        try {
+            Segment segment = segments.get(segmentIndex);
+            if (segment == null) {
+                segment = new Segment(location);
+                segments.set(segmentIndex, segment);
+                segmentCount.incrementAndGet();
+            }
+            FileBlockTS block = segment.blocks.get(blockIndex);
+            if (block != null)
+                // mapped by another thread in the meantime
+                return block;
+            long available = Math.min(SEGMENT_SIZE, channel.size() - location) & INDEX_MASK_UPPER;
+            MappedByteBuffer buffer;
+            if (isReadonly) {
+                if (available < offset + FileBlock.BLOCK_SIZE)
+                    throw new StorageException("Out of bounds access at 0x" + Integer.toHexString(location + offset) + " in read-only file " + fileName);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, location + offset, available - offset);
+            } else {
+                long end = Math.min(SEGMENT_SIZE, Math.max(available, offset + GROWTH_SIZE));
+                buffer = channel.map(log != null ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_WRITE, location + offset, end - offset);
+            }
+            segment.addExtent(offset, buffer);
+            return segment.blocks.get(blockIndex);
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to map the block at 0x" + Integer.toHexString(location + offset) + " in " + fileName);
+        } finally {
+            state.set(STATE_READY);
+        }
+    }
+
+    /**
+     * Releases the mapped extents of this file
+     * The buffers are explicitly unmapped when the platform allows it, otherwise they are left to the garbage collector.
+     */
+    private void unmapAll() {
+        for (int i = 0; i != SEGMENT_MAX_COUNT; i++) {
+            Segment segment = segments.getAndSet(i, null);
+            if (segment == null)
+                continue;
+            for (MappedByteBuffer buffer : segment.buffers)
+                unmap(buffer);
+            segment.buffers.clear();
+        }
+        segmentCount.set(0);
+    }
+
+    /**
+     * Unmaps a buffer
+     *
+     * @param buffer The buffer to unmap
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method methodCleaner = buffer.getClass().getMethod("cleaner");
+            methodCleaner.setAccessible(true);
+            Object cleaner = methodCleaner.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception exception) {
+            // the platform does not allow it, the mapping is released when the buffer is collected
+        }
+    }
+
+    @Override
+    protected void onClose() throws IOException {
+        boolean mapped = segmentCount.get() > 0;
+        // the mappings must be released before the file is truncated
+        unmapAll();
+        if (!isReadonly && mapped)
+            // drop the part of the last extent that extends beyond the effective size
+            channel.truncate(size.get());
+    }
+}
@@ -51,9 +51,9 @@ class FileBlock implements AutoCloseable, IOElement {
      */
     protected int location;
     /**
-     * The timestamp for the last time this block was hit
+     * Whether this block has been hit since the last time it was considered for eviction
      */
-    protected long lastHit;
+    protected volatile boolean isReferenced;
     /**
      * Whether this block is dirty
      */
@@ -69,12 +69,24 @@ class FileBlock implements AutoCloseable, IOElement {
     }
 
     /**
-     * Gets the timestamp for the last time this block was hit
+     * Gets whether this block has been hit since the last time it was considered for eviction
      *
-     * @return The timestamp for the last time this block was hit
+     * @return Whether this block has been hit since the last time it was considered for eviction
      */
-    public long getLastHit() {
-        return lastHit;
+    public boolean isReferenced() {
+        return isReferenced;
+    }
+
+    /**
+     * Clears the reference flag of this block
+     *
+     * @return Whether the block was referenced
+     */
+    public boolean clearReference() {
+        if (!isReferenced)
+            return false;
+        isReferenced = false;
+        return true;
     }
 
     /**
@@ -83,32 +95,55 @@ class FileBlock implements AutoCloseable, IOElement {
     public FileBlock() {
         this.buffer = null;
         this.location = -1;
-        this.lastHit = Long.MIN_VALUE;
+        this.isReferenced = false;
         this.isDirty = false;
     }
 
     /**
-     * Touches this block
+     * Initializes this structure for a standalone image of a block
      *
-     * @param time The current time
+     * @param location The location of the block in the parent file
+     * @param buffer   The buffer that contains the image
+     */
+    public FileBlock(int location, ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.location = location;
+        this.isReferenced = false;
+        this.isDirty = false;
+    }
+
+    /**
+     * Touches this block
      */
-    protected void touch(long time) {
-        lastHit = Math.max(lastHit, time);
+    protected void touch() {
+        if (!isReferenced)
+            isReferenced = true;
     }
 
     /**
      * Loads this block using the specified file channel
+     * The part of the block beyond the end of the file is zeroed when it is also beyond the specified limit.
+     * This happens for a newly allocated block when a block after this one has been written to the file, but not this one.
      *
      * @param channel The file channel to read from
-     * @throws IOException When an IO error occurs
+     * @param limit   The size of the content that must be in the file, i.e. the committed size of the file
+     * @throws IOException When an IO error occurs, or when the file ends before the limit
      */
-    protected void load(FileChannel channel) throws IOException {
+    protected void load(FileChannel channel, int limit) throws IOException {
         int total = 0;
         buffer.position(0);
         while (total < BLOCK_SIZE) {
             int read = channel.read(buffer, location + total);
-            if (read == -1)
-                throw new IOException("Unexpected end of stream");
+            if (read == -1) {
+                if (location + total < limit)
+                    throw new IOException("Unexpected end of stream");
+                while (total < BLOCK_SIZE) {
+                    int length = Math.min(ZEROES.length, BLOCK_SIZE - total);
+                    buffer.put(ZEROES, 0, length);
+                    total += length;
+                }
+                return;
+            }
             total += read;
         }
     }
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage.persistent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Represents an index of the loaded blocks of a file, mapping the location of a block to its slot in the pool of blocks
+ * This structure is an open-addressed hash table with linear probing.
+ * Each entry is a single long composed of:
+ * - int: the location of the block in the file
+ * - int: the slot of the block in the pool
+ * <p>
+ * This structure has a single-writer, multiple-readers semantic.
+ * Lookups are lock-free and can be performed concurrently with a modification.
+ * Modifications (put and remove) must be serialized by the caller.
+ * A lookup may then observe a stale entry, so that the caller must always verify the location of the block it gets.
+ *
+ * @author Laurent Wouters
+ */
+class FileBlockIndex {
+    /**
+     * The value of an empty entry
+     */
+    private static final long ENTRY_EMPTY = -1L;
+    /**
+     * The value of an entry that has been removed
+     */
+    private static final long ENTRY_TOMBSTONE = -2L;
+    /**
+     * The golden ratio constant for multiplicative hashing
+     */
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
+    /**
+     * The current entries
+     */
+    private volatile AtomicLongArray entries;
+    /**
+     * The number of live entries
+     * Only used by the writer
+     */
+    private int count;
+    /**
+     * The number of tombstones
+     * Only used by the writer
+     */
+    private int tombstones;
+
+    /**
+     * Initializes this index
+     *
+     * @param capacity The maximum number of blocks to be indexed
+     */
+    public FileBlockIndex(int capacity) {
+        this.entries = newTable(capacity);
+        this.count = 0;
+        this.tombstones = 0;
+    }
+
+    /**
+     * Creates a new table of entries for the specified capacity
+     * The table is kept at least half empty so that probing sequences remain short.
+     *
+     * @param capacity The maximum number of blocks to be indexed
+     * @return The new table
+     */
+    private static AtomicLongArray newTable(int capacity) {
+        int size = 16;
+        while (size < capacity * 2)
+            size <<= 1;
+        AtomicLongArray result = new AtomicLongArray(size);
+        for (int i = 0; i != size; i++)
+            result.set(i, ENTRY_EMPTY);
+        return result;
+    }
+
+    /**
+     * Gets the initial probing position for a location
+     *
+     * @param location The location of a block
+     * @param mask     The mask for the current table
+     * @return The initial probing position
+     */
+    private static int hash(int location, int mask) {
+        return ((location >>> FileBlock.BLOCK_INDEX_LENGTH) * HASH_MULTIPLIER) & mask;
+    }
+
+    /**
+     * Gets the location stored in an entry
+     *
+     * @param entry The entry
+     * @return The location
+     */
+    private static int locationOf(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    /**
+     * Gets the slot stored in an entry
+     *
+     * @param entry The entry
+     * @return The slot
+     */
+    private static int slotOf(long entry) {
+        return (int) (entry & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Gets the slot of the block loaded for the specified location
+     *
+     * @param location The location of a block
+     * @return The slot of the block, or -1 if the block is not loaded
+     */
+    public int get(int location) {
+        AtomicLongArray table = entries;
+        int mask = table.length() - 1;
+        int index = hash(location, mask);
+        for (int i = 0; i <= mask; i++) {
+            long entry = table.get(index);
+            if (entry == ENTRY_EMPTY)
+                return -1;
+            if (entry != ENTRY_TOMBSTONE && locationOf(entry) == location)
+                return slotOf(entry);
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Registers the slot for a location
+     * The location must not be already registered.
+     *
+     * @param location The location of a block
+     * @param slot     The slot of the block
+     */
+    public void put(int location, int slot) {
+        AtomicLongArray table = entries;
+        int mask = table.length() - 1;
+        int index = hash(location, mask);
+        while (true) {
+            long entry = table.get(index);
+            if (entry == ENTRY_EMPTY || entry == ENTRY_TOMBSTONE) {
+                if (entry == ENTRY_TOMBSTONE)
+                    tombstones--;
+                table.set(index, ((long) location << 32) | (slot & 0xFFFFFFFFL));
+                count++;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the registered slot for a location
+     *
+     * @param location The location of a block
+     */
+    public void remove(int location) {
+        AtomicLongArray table = entries;
+        int mask = table.length() - 1;
+        int index = hash(location, mask);
+        for (int i = 0; i <= mask; i++) {
+            long entry = table.get(index);
+            if (entry == ENTRY_EMPTY)
+                return;
+            if (entry != ENTRY_TOMBSTONE && locationOf(entry) == location) {
+                table.set(index, ENTRY_TOMBSTONE);
+                count--;
+                tombstones++;
+                if ((count + tombstones) * 4 > table.length() * 3)
+                    rebuild();
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Rebuilds the table of entries in order to get rid of the tombstones
+     * The new table is published at once so that concurrent readers see either the old or the new table.
+     */
+    private void rebuild() {
+        AtomicLongArray table = entries;
+        AtomicLongArray result = new AtomicLongArray(table.length());
+        int mask = result.length() - 1;
+        for (int i = 0; i != result.length(); i++)
+            result.set(i, ENTRY_EMPTY);
+        for (int i = 0; i != table.length(); i++) {
+            long entry = table.get(i);
+            if (entry == ENTRY_EMPTY || entry == ENTRY_TOMBSTONE)
+                continue;
+            int index = hash(locationOf(entry), mask);
+            while (result.get(index) != ENTRY_EMPTY)
+                index = (index + 1) & mask;
+            result.set(index, entry);
+        }
+        tombstones = 0;
+        entries = result;
+    }
+}
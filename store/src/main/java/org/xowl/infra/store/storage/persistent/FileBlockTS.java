@@ -17,6 +17,7 @@
 
 package org.xowl.infra.store.storage.persistent;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -39,6 +40,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  * | Free         | The block is not assigned to a location in the file        |
  * | Reserved     | The block is reserved for a location and being initialized |
  * | Reclaiming   | The block is begin reclaimed for reuse                     |
+ * | Writing      | The block is being written back to the file                |
  * | Ready        | The block is ready for read and write operations           |
  * | InUse(n)     | The block is used for IO operations by n threads           |
  * +--------------+------------------------------------------------------------+
@@ -53,6 +55,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * | release:         | InUse(1)     --&gt; Ready            |
  * | reclaim:         | Ready --&gt; Reclaiming --&gt; Ready |
  * | flush:           | Ready --&gt; Reclaiming --&gt; Ready |
+ * | log:             | Ready --&gt; Reclaiming --&gt; Ready |
+ * | revert:          | Ready --&gt; Reclaiming --&gt; Ready |
+ * | lock:            | Ready        --&gt; Writing          |
+ * | unlock:          | Writing      --&gt; Ready            |
  * +------------------+--------------------------------------+
  *
  * @author Laurent Wouters
@@ -70,14 +76,18 @@ class FileBlockTS extends FileBlock {
      * The block is begin reclaimed for reuse
      */
     private static final int BLOCK_STATE_RECLAIMING = 2;
+    /**
+     * The block is being written back to the file, its location does not change
+     */
+    private static final int BLOCK_STATE_WRITING = 3;
     /**
      * The block exists and is ready for IO
      */
-    private static final int BLOCK_STATE_READY = 3;
+    private static final int BLOCK_STATE_READY = 4;
     /**
      * The block is used by one or more users in a shared manner
      */
-    private static final int BLOCK_STATE_IN_USE = 4;
+    private static final int BLOCK_STATE_IN_USE = 5;
 
     /**
      * When reserving the block, the block was free and successfully reserved
@@ -110,6 +120,8 @@ class FileBlockTS extends FileBlock {
                 return "READY";
             case BLOCK_STATE_RECLAIMING:
                 return "RECLAIMING";
+            case BLOCK_STATE_WRITING:
+                return "WRITING";
             case BLOCK_STATE_IN_USE:
                 return "IN_USE(1)";
             default:
@@ -129,24 +141,36 @@ class FileBlockTS extends FileBlock {
         this.state = new AtomicInteger(BLOCK_STATE_FREE);
     }
 
+    /**
+     * Initializes this structure for a block that remains bound to the same location for its whole lifetime
+     * The block is immediately ready for use.
+     *
+     * @param location The location of the block
+     * @param buffer   The buffer that backs the block
+     */
+    public FileBlockTS(int location, ByteBuffer buffer) {
+        this.location = location;
+        this.buffer = buffer;
+        this.state = new AtomicInteger(BLOCK_STATE_READY);
+    }
+
     /**
      * Tries to reserve this block
      *
      * @param location The location for the block
-     * @param channel  The originating file channel
+     * @param backend  The originating file backend
      * @param fileSize The current size of the file
-     * @param time     The current time
      * @return The reservation status
      * @throws StorageException When an IO error occurs
      */
-    public int reserve(int location, FileChannel channel, int fileSize, long time) throws StorageException {
+    public int reserve(int location, FileBackend backend, int fileSize) throws StorageException {
         while (true) {
             int current = state.get();
             if (current >= BLOCK_STATE_READY) {
                 // the block was made ready by another thread
                 if (this.location != location)
                     return RESERVE_RESULT_FAIL;
-                touch(time);
+                touch();
                 return RESERVE_RESULT_READY;
             }
             if (current == BLOCK_STATE_RESERVED) {
@@ -161,7 +185,7 @@ class FileBlockTS extends FileBlock {
                     // woops, too late
                     continue;
                 // the block was free and is now reserved
-                doSetup(location, channel, fileSize, time);
+                doSetup(location, backend, fileSize);
                 state.compareAndSet(BLOCK_STATE_RESERVED, BLOCK_STATE_READY);
                 return RESERVE_RESULT_OK;
             }
@@ -172,18 +196,17 @@ class FileBlockTS extends FileBlock {
      * Initializes this block for use
      *
      * @param location The location for the block
-     * @param channel  The originating file channel
+     * @param backend  The originating file backend
      * @param fileSize The current size of the file
-     * @param time     The current time
      */
-    private void doSetup(int location, FileChannel channel, int fileSize, long time) throws StorageException {
+    private void doSetup(int location, FileBackend backend, int fileSize) throws StorageException {
         this.location = location;
         if (this.buffer == null)
             this.buffer = ByteBuffer.allocate(BLOCK_SIZE);
         this.isDirty = false;
         if (this.location < fileSize) {
             try {
-                load(channel);
+                backend.readBlock(this);
             } catch (IOException exception) {
                 state.set(BLOCK_STATE_READY);
                 throw new StorageException(exception, "Failed to read block at 0x" + Long.toHexString(location));
@@ -191,18 +214,17 @@ class FileBlockTS extends FileBlock {
         } else {
             zeroes();
         }
-        touch(time);
+        touch();
     }
 
     /**
      * Attempt to get a shared use of this block for the specified expected location
      *
      * @param location The expected location for this block
-     * @param time     The current time
      * @return true if the shared use is granted, false if the effective location of this block was not the expected one
      * @throws StorageException When the block is in a bad state
      */
-    public boolean use(int location, long time) throws StorageException {
+    public boolean use(int location) throws StorageException {
         while (true) {
             int current = state.get();
             switch (current) {
@@ -214,10 +236,15 @@ class FileBlockTS extends FileBlock {
                     break;
                 case BLOCK_STATE_RECLAIMING:
                     return false;
+                case BLOCK_STATE_WRITING:
+                    if (this.location != location)
+                        return false;
+                    // wait for the block to be written
+                    break;
                 case BLOCK_STATE_READY: {
                     if (state.compareAndSet(BLOCK_STATE_READY, BLOCK_STATE_IN_USE)) {
                         if (this.location == location) {
-                            touch(time);
+                            touch();
                             return true;
                         }
                         // this is the wrong location, release the block and fail
@@ -229,7 +256,7 @@ class FileBlockTS extends FileBlock {
                 default: {
                     if (state.compareAndSet(current, current + 1)) {
                         if (this.location == location) {
-                            touch(time);
+                            touch();
                             return true;
                         }
                         // this is the wrong location, release the block and fail
@@ -263,22 +290,24 @@ class FileBlockTS extends FileBlock {
      * Tries to reclaims this block for another location
      *
      * @param location The location for the block
-     * @param channel  The originating file channel
+     * @param backend  The originating file backend
      * @param fileSize The current size of the file
-     * @param time     The current time
      * @return Whether the block was reclaimed
      * @throws StorageException When an IO error occurs
      */
-    public boolean reclaim(int location, FileChannel channel, int fileSize, long time) throws StorageException {
+    public boolean reclaim(int location, FileBackend backend, int fileSize) throws StorageException {
         if (!state.compareAndSet(BLOCK_STATE_READY, BLOCK_STATE_RECLAIMING))
             return false;
         try {
-            serialize(channel);
+            backend.writeBlock(this);
         } catch (IOException exception) {
             state.set(BLOCK_STATE_READY);
             throw new StorageException(exception, "Failed to write block at 0x" + Long.toHexString(location));
+        } catch (StorageException exception) {
+            state.set(BLOCK_STATE_READY);
+            throw exception;
         }
-        doSetup(location, channel, fileSize, time);
+        doSetup(location, backend, fileSize);
         state.set(BLOCK_STATE_READY);
         return true;
     }
@@ -306,6 +335,95 @@ class FileBlockTS extends FileBlock {
         }
     }
 
+    /**
+     * Appends the image of this block to a write-ahead log when it is dirty
+     * The block is no longer dirty afterwards, a change made after this point is part of the next image.
+     *
+     * @param log  The write-ahead log
+     * @param file The originating file
+     * @return The offset of the image in the log, or -1 if the block was not dirty
+     * @throws StorageException When an IO error occurs
+     */
+    public long log(WriteAheadLog log, File file) throws StorageException {
+        if (!isDirty)
+            // not dirty at this time, do nothing
+            return -1;
+        while (true) {
+            if (state.compareAndSet(BLOCK_STATE_READY, BLOCK_STATE_RECLAIMING))
+                break;
+        }
+        try {
+            long offset = log.appendBlock(file, location, buffer);
+            isDirty = false;
+            return offset;
+        } finally {
+            state.set(BLOCK_STATE_READY);
+        }
+    }
+
+    /**
+     * Reverts this block to its content in the backend file, dropping any outstanding change
+     *
+     * @param backend  The originating file backend
+     * @param fileSize The committed size of the file
+     * @throws StorageException When an IO error occurs
+     */
+    public void revert(FileBackend backend, int fileSize) throws StorageException {
+        while (true) {
+            if (state.compareAndSet(BLOCK_STATE_READY, BLOCK_STATE_RECLAIMING))
+                break;
+        }
+        doSetup(location, backend, fileSize);
+        state.set(BLOCK_STATE_READY);
+    }
+
+    /**
+     * Tries to lock this block for writing it back to the file, when it is dirty
+     * This does not wait when the block is in use.
+     *
+     * @param location The expected location for this block
+     * @return Whether the block is dirty at the expected location and is now locked
+     */
+    public boolean tryLock(int location) {
+        if (!isDirty || !state.compareAndSet(BLOCK_STATE_READY, BLOCK_STATE_WRITING))
+            return false;
+        if (!isDirty || this.location != location) {
+            // the block has been written or reclaimed in the meantime
+            state.set(BLOCK_STATE_READY);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Locks this block for writing it back to the file, when it is dirty
+     * This waits for the block to be released when it is in use.
+     *
+     * @param location The expected location for this block
+     * @return Whether the block is dirty at the expected location and is now locked
+     */
+    public boolean lock(int location) {
+        if (!isDirty)
+            return false;
+        while (true) {
+            if (state.compareAndSet(BLOCK_STATE_READY, BLOCK_STATE_WRITING))
+                break;
+        }
+        if (!isDirty || this.location != location) {
+            // the block has been written or reclaimed in the meantime
+            state.set(BLOCK_STATE_READY);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unlocks this block after it has been written back to the file
+     */
+    public void unlock() {
+        state.set(BLOCK_STATE_READY);
+    }
+
     @Override
     public void close() throws StorageException {
         release();
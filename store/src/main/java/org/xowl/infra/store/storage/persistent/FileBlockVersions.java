@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage.persistent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents the images of the blocks of a file at previous committed versions, for the readers of snapshots
+ * The image of a block for a version is its content as of this version, before it was overwritten by a later commit.
+ * A reader of the snapshot at a version uses the image with the lowest version that is greater or equal,
+ * because the block did not change between the two versions.
+ * When there is no such image, the block did not change since the snapshot.
+ *
+ * @author Laurent Wouters
+ */
+class FileBlockVersions {
+    /**
+     * An image of a block at a version
+     */
+    private static class Image {
+        /**
+         * The committed version of the image
+         */
+        public final long version;
+        /**
+         * The content of the block
+         */
+        public final byte[] content;
+
+        /**
+         * Initializes this image
+         *
+         * @param version The committed version of the image
+         * @param content The content of the block
+         */
+        public Image(long version, byte[] content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    /**
+     * The images for each location, sorted by increasing version
+     */
+    private final Map<Integer, List<Image>> images;
+    /**
+     * The total number of images
+     */
+    private volatile int count;
+
+    /**
+     * Initializes this structure
+     */
+    public FileBlockVersions() {
+        this.images = new HashMap<>();
+        this.count = 0;
+    }
+
+    /**
+     * Gets the total number of images
+     *
+     * @return The total number of images
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets whether there is an image of a block for the specified version
+     *
+     * @param location The location of the block
+     * @param version  The committed version
+     * @return Whether there is an image
+     */
+    public synchronized boolean has(int location, long version) {
+        List<Image> list = images.get(location);
+        return list != null && list.get(list.size() - 1).version == version;
+    }
+
+    /**
+     * Adds the image of a block at a version
+     * The version must be greater than the ones of the images already saved for the block.
+     *
+     * @param location The location of the block
+     * @param version  The committed version
+     * @param content  The content of the block at this version
+     */
+    public synchronized void put(int location, long version, byte[] content) {
+        List<Image> list = images.get(location);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            images.put(location, list);
+        }
+        list.add(new Image(version, content));
+        count++;
+    }
+
+    /**
+     * Gets the image of a block for a reader of the snapshot at a version
+     *
+     * @param location The location of the block
+     * @param version  The committed version of the snapshot
+     * @return The image, or null if the block did not change since the version
+     */
+    public FileBlock get(int location, long version) {
+        if (count == 0)
+            return null;
+        synchronized (this) {
+            List<Image> list = images.get(location);
+            if (list == null)
+                return null;
+            for (Image image : list) {
+                if (image.version >= version)
+                    return new FileBlock(location, ByteBuffer.wrap(image.content));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Drops the images that are no longer used by the readers
+     *
+     * @param oldest The oldest version of the snapshots that are still read, or Long.MAX_VALUE when there is none
+     */
+    public synchronized void prune(long oldest) {
+        if (count == 0)
+            return;
+        int remaining = 0;
+        Iterator<List<Image>> iterator = images.values().iterator();
+        while (iterator.hasNext()) {
+            List<Image> list = iterator.next();
+            Iterator<Image> iteratorImages = list.iterator();
+            while (iteratorImages.hasNext()) {
+                if (iteratorImages.next().version < oldest)
+                    iteratorImages.remove();
+            }
+            if (list.isEmpty())
+                iterator.remove();
+            remaining += list.size();
+        }
+        count = remaining;
+    }
+}
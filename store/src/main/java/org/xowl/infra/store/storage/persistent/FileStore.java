@@ -71,6 +71,10 @@ class FileStore implements AutoCloseable {
      * Whether this store is in readonly mode
      */
     private final boolean isReadonly;
+    /**
+     * The configuration for the backing files
+     */
+    private final FileStoreConfig config;
     /**
      * The state of this store
      */
@@ -89,21 +93,35 @@ class FileStore implements AutoCloseable {
      * @throws StorageException When the storage is unsupported
      */
     public FileStore(File directory, String name, boolean isReadonly) throws StorageException {
+        this(directory, name, isReadonly, new FileStoreConfig());
+    }
+
+    /**
+     * Initializes this store
+     *
+     * @param directory  The directory containing the backing files
+     * @param name       The common name of the files backing this store
+     * @param isReadonly Whether this store is in readonly mode
+     * @param config     The configuration for the backing files
+     * @throws StorageException When the storage is unsupported
+     */
+    public FileStore(File directory, String name, boolean isReadonly, FileStoreConfig config) throws StorageException {
         this.directory = directory;
         this.name = name;
         this.files = new ArrayList<>();
         this.isReadonly = isReadonly;
+        this.config = config;
         int index = 0;
         File candidate = new File(directory, getNameFor(name, index));
         while (candidate.exists()) {
-            FileStoreFile child = new FileStoreFile(candidate, isReadonly, false);
+            FileStoreFile child = new FileStoreFile(candidate, isReadonly, false, config);
             files.add(child);
             index++;
             candidate = new File(directory, getNameFor(name, index));
         }
         if (files.isEmpty() && !isReadonly) {
             // initializes
-            FileStoreFile first = new FileStoreFile(candidate, false, false);
+            FileStoreFile first = new FileStoreFile(candidate, false, false, config);
             files.add(first);
         }
         this.state = new AtomicInteger(STATE_READY);
@@ -125,6 +143,16 @@ class FileStore implements AutoCloseable {
         return files.size() == 1 && files.get(0).getSize() <= FileBlock.BLOCK_SIZE;
     }
 
+    /**
+     * Gets whether this store is backed by at least one file
+     * A store in readonly mode is not backed by any file when its files do not exist.
+     *
+     * @return Whether this store is backed by at least one file
+     */
+    public boolean isBacked() {
+        return !files.isEmpty();
+    }
+
     /**
      * Gets the composite metric for this store
      *
@@ -181,6 +209,8 @@ class FileStore implements AutoCloseable {
 
     /**
      * Removes all data from this store
+     * When the files are logged, their removal is recorded in the log so that they are not restored by a replay.
+     * However, the files are removed immediately so that the removal cannot be rolled back.
      */
     public void clear() {
         if (isReadonly)
@@ -196,6 +226,13 @@ class FileStore implements AutoCloseable {
                 Logging.get().error(exception);
             }
             File target = new File(directory, getNameFor(name, i));
+            if (config.getLog() != null) {
+                try {
+                    config.getLog().appendRemove(target);
+                } catch (StorageException exception) {
+                    Logging.get().error(exception);
+                }
+            }
             if (!target.delete()) {
                 Logging.get().error("Failed to delete file " + target.getAbsolutePath());
             }
@@ -203,7 +240,7 @@ class FileStore implements AutoCloseable {
         files.clear();
         metricStore.clearParts();
         try {
-            FileStoreFile first = new FileStoreFile(new File(directory, getNameFor(name, 0)), false, false);
+            FileStoreFile first = new FileStoreFile(new File(directory, getNameFor(name, 0)), false, false, config);
             files.add(first);
         } catch (StorageException exception) {
             Logging.get().error(exception);
@@ -276,7 +313,7 @@ class FileStore implements AutoCloseable {
             }
             // allocate a new file
             try {
-                FileStoreFile file = new FileStoreFile(new File(directory, getNameFor(name, files.size())), false, false);
+                FileStoreFile file = new FileStoreFile(new File(directory, getNameFor(name, files.size())), false, false, config);
                 files.add(file);
                 metricStore.addPart(file.getMetric());
                 state.set(STATE_READY);
@@ -317,7 +354,7 @@ class FileStore implements AutoCloseable {
             }
             // allocate a new file
             try {
-                FileStoreFile file = new FileStoreFile(new File(directory, getNameFor(name, files.size())), false, false);
+                FileStoreFile file = new FileStoreFile(new File(directory, getNameFor(name, files.size())), false, false, config);
                 files.add(file);
                 metricStore.addPart(file.getMetric());
                 state.set(STATE_READY);
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage.persistent;
+
+/**
+ * The configuration of the files backing a persisted store
+ * The configuration does not change the on-disk layout of the files,
+ * so that files written with a configuration can be open with any other.
+ *
+ * @author Laurent Wouters
+ */
+public class FileStoreConfig {
+    /**
+     * The default maximum number of blocks that can be loaded at the same time for each backing file
+     */
+    public static final int DEFAULT_MAX_LOADED_BLOCKS = 1024;
+    /**
+     * The default interval in milliseconds between two passes of the background writer of dirty blocks
+     */
+    public static final int DEFAULT_WRITER_INTERVAL = 200;
+
+    /**
+     * Whether the backing files are accessed through memory-mapped segments
+     */
+    private boolean isMapped;
+    /**
+     * The maximum number of blocks that can be loaded at the same time for each backing file
+     * This is only used when the files are not memory-mapped.
+     */
+    private int maxLoadedBlocks;
+    /**
+     * The interval in milliseconds between two passes of the background writer of dirty blocks, or 0 if there is none
+     * This is only used when the files are neither memory-mapped, nor logged.
+     */
+    private int writerInterval;
+    /**
+     * The write-ahead log through which the changes to the backing files are committed, if any
+     */
+    private WriteAheadLog log;
+
+    /**
+     * Initializes this configuration with the default values
+     */
+    public FileStoreConfig() {
+        this.isMapped = false;
+        this.maxLoadedBlocks = DEFAULT_MAX_LOADED_BLOCKS;
+        this.writerInterval = DEFAULT_WRITER_INTERVAL;
+        this.log = null;
+    }
+
+    /**
+     * Initializes this configuration as a copy of another one
+     *
+     * @param origin The original configuration
+     */
+    public FileStoreConfig(FileStoreConfig origin) {
+        this.isMapped = origin.isMapped;
+        this.maxLoadedBlocks = origin.maxLoadedBlocks;
+        this.writerInterval = origin.writerInterval;
+        this.log = origin.log;
+    }
+
+    /**
+     * Gets whether the backing files are accessed through memory-mapped segments
+     *
+     * @return Whether the backing files are accessed through memory-mapped segments
+     */
+    public boolean isMapped() {
+        return isMapped;
+    }
+
+    /**
+     * Gets the maximum number of blocks that can be loaded at the same time for each backing file
+     *
+     * @return The maximum number of loaded blocks
+     */
+    public int getMaxLoadedBlocks() {
+        return maxLoadedBlocks;
+    }
+
+    /**
+     * Gets the interval in milliseconds between two passes of the background writer of dirty blocks
+     *
+     * @return The interval, or 0 if there is no background writer
+     */
+    public int getWriterInterval() {
+        return writerInterval;
+    }
+
+    /**
+     * Gets the write-ahead log through which the changes to the backing files are committed
+     *
+     * @return The write-ahead log, or null if the backing files are not logged
+     */
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    /**
+     * Accesses the backing files through memory-mapped segments instead of loaded blocks
+     *
+     * @return This configuration
+     */
+    public FileStoreConfig mapped() {
+        this.isMapped = true;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of blocks that can be loaded at the same time for each backing file
+     *
+     * @param maxLoadedBlocks The maximum number of loaded blocks
+     * @return This configuration
+     */
+    public FileStoreConfig withLoadedBlocks(int maxLoadedBlocks) {
+        this.maxLoadedBlocks = maxLoadedBlocks;
+        return this;
+    }
+
+    /**
+     * Sets the interval in milliseconds between two passes of the background writer of dirty blocks
+     * The background writer continuously writes the dirty blocks back to the file so that a flush has less to write.
+     * It only runs for the files that are not logged, the logged files are written to only when the changes are committed.
+     *
+     * @param writerInterval The interval, or 0 to disable the background writer
+     * @return This configuration
+     */
+    public FileStoreConfig withWriterInterval(int writerInterval) {
+        this.writerInterval = writerInterval;
+        return this;
+    }
+
+    /**
+     * Commits the changes to the backing files through a write-ahead log
+     * The backing files are then only written to when the changes are committed in the log.
+     *
+     * @param log The write-ahead log
+     * @return This configuration
+     */
+    public FileStoreConfig withLog(WriteAheadLog log) {
+        this.log = log;
+        return this;
+    }
+}
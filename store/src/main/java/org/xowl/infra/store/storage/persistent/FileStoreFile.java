@@ -17,7 +17,12 @@
 
 package org.xowl.infra.store.storage.persistent;
 
+import fr.cenotelie.commons.utils.metrics.Metric;
+import fr.cenotelie.commons.utils.metrics.MetricSnapshot;
+
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 
 /**
  * Represents a persisted binary file used for storing objects
@@ -37,10 +42,11 @@ import java.io.File;
  * <p>
  * This structure is thread-safe and uses a lock-free synchronization scheme.
  * When IO operations consists of reading, writing and removing entries in pages, this structure ensures the consistency of the book-keeping data.
+ * The blocks of the file are provided by a backend that is selected through the store configuration.
  *
  * @author Laurent Wouters
  */
-class FileStoreFile extends FileBackend {
+class FileStoreFile implements Closeable {
     /**
      * Magic identifier of the type of store
      */
@@ -84,6 +90,11 @@ class FileStoreFile extends FileBackend {
      */
     public static final int FILE_OBJECT_MAX_SIZE = FileBlock.BLOCK_SIZE - FILE_OBJECT_HEADER_SIZE;
 
+    /**
+     * The backend providing the blocks of this file
+     */
+    private final FileBackend backend;
+
     /**
      * Initializes this data file
      *
@@ -93,11 +104,86 @@ class FileStoreFile extends FileBackend {
      * @throws StorageException When the initialization failed
      */
     public FileStoreFile(File file, boolean isReadonly, boolean noInit) throws StorageException {
-        super(file, isReadonly);
+        this(file, isReadonly, noInit, new FileStoreConfig());
+    }
+
+    /**
+     * Initializes this data file
+     *
+     * @param file       The file location
+     * @param isReadonly Whether this store is in readonly mode
+     * @param noInit     Whether to skip the file initialization
+     * @param config     The configuration for the file
+     * @throws StorageException When the initialization failed
+     */
+    public FileStoreFile(File file, boolean isReadonly, boolean noInit, FileStoreConfig config) throws StorageException {
+        WriteAheadLog log = config.getLog();
+        // a file with committed blocks in the log that were not replayed is read through loaded blocks
+        this.backend = config.isMapped() && (log == null || !log.hasBlocksFor(file))
+                ? new FileBackendMapped(file, isReadonly, log)
+                : new FileBackendBuffered(file, isReadonly, config.getMaxLoadedBlocks(), log, config.getWriterInterval());
+        if (log != null)
+            log.register(backend);
         if (!noInit)
             initialize(isReadonly, file.getAbsolutePath());
     }
 
+    /**
+     * Gets the size of this file
+     *
+     * @return The size of this file
+     */
+    public long getSize() {
+        return backend.getSize();
+    }
+
+    /**
+     * Gets the composite metric for this file
+     *
+     * @return The metric for this file
+     */
+    public Metric getMetric() {
+        return backend.getMetric();
+    }
+
+    /**
+     * Gets a snapshot of the metrics for this file
+     *
+     * @param timestamp The timestamp to use
+     * @return The snapshot
+     */
+    public MetricSnapshot getMetricSnapshot(long timestamp) {
+        return backend.getMetricSnapshot(timestamp);
+    }
+
+    /**
+     * Flushes any outstanding changes to the backend file
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    public void flush() throws StorageException {
+        backend.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        backend.close();
+    }
+
+    /**
+     * Accesses the content of this file through an access element
+     * An access must be within the boundaries of a block.
+     *
+     * @param index    The index within this file of the reserved area for the access
+     * @param length   The length of the reserved area for the access
+     * @param writable Whether the access shall allow writing
+     * @return The access element
+     * @throws StorageException When the requested access cannot be fulfilled
+     */
+    public IOAccess access(int index, int length, boolean writable) throws StorageException {
+        return backend.access(index, length, writable);
+    }
+
     /**
      * Initializes this file
      *
@@ -116,7 +202,7 @@ class FileStoreFile extends FileBackend {
                 access.writeInt(FileBlock.BLOCK_SIZE);
                 access.writeInt((char) 0);
             }
-            flush();
+            backend.flushCreated();
         } else {
             // file is not empty, verify the header
             try (IOAccess access = access(0, FILE_PREAMBLE_HEADER_SIZE, false)) {
@@ -139,9 +225,9 @@ class FileStoreFile extends FileBackend {
      * @throws StorageException When an IO operation fails
      */
     public IOAccess access(int index, boolean writable) throws StorageException {
-        try (FileBlockTS block = getBlockFor(index)) {
+        try (FileBlockTS block = backend.getBlockFor(index)) {
             int length = block.readChar(index - 2);
-            return access(index, length, writable, block);
+            return backend.access(index, length, writable, block);
         }
     }
 
@@ -229,10 +315,10 @@ class FileStoreFile extends FileBackend {
         int freeSpace = access.seek(8).readInt();
         int target = freeSpace;
         freeSpace += size + FILE_OBJECT_HEADER_SIZE;
-        if ((freeSpace & INDEX_MASK_UPPER) != (target & INDEX_MASK_UPPER)) {
+        if ((freeSpace & FileBackend.INDEX_MASK_UPPER) != (target & FileBackend.INDEX_MASK_UPPER)) {
             // not the same block, the object would be split between blocks
             // go to the next block entirely
-            target = freeSpace & INDEX_MASK_UPPER;
+            target = freeSpace & FileBackend.INDEX_MASK_UPPER;
             freeSpace = target + size + FILE_OBJECT_HEADER_SIZE;
         }
         if (freeSpace > FILE_MAX_SIZE)
@@ -268,15 +354,15 @@ class FileStoreFile extends FileBackend {
      * @throws StorageException When an IO operation fails
      */
     public void free(int index, int length) throws StorageException {
-        try (FileBlockTS preamble = getBlockFor(0)) {
+        try (FileBlockTS preamble = backend.getBlockFor(0)) {
             // get the number of pools
             int poolCount;
-            try (IOAccess access1 = access(12, 4, true, preamble)) {
+            try (IOAccess access1 = backend.access(12, 4, true, preamble)) {
                 poolCount = access1.readInt();
 
                 if (poolCount > 0) {
                     // at last one pool, try to find the corresponding size
-                    try (IOAccess access2 = access(FILE_PREAMBLE_HEADER_SIZE, poolCount * FILE_PREAMBLE_ENTRY_SIZE, true, preamble)) {
+                    try (IOAccess access2 = backend.access(FILE_PREAMBLE_HEADER_SIZE, poolCount * FILE_PREAMBLE_ENTRY_SIZE, true, preamble)) {
                         for (int i = 0; i != poolCount; i++) {
                             int poolSize = access2.readInt();
                             int poolHead = access2.readInt();
@@ -306,7 +392,7 @@ class FileStoreFile extends FileBackend {
                     access2.writeInt(0);
                 }
                 // write the pool data
-                try (IOAccess access2 = access(FILE_PREAMBLE_HEADER_SIZE, poolCount * FILE_PREAMBLE_ENTRY_SIZE, true, preamble)) {
+                try (IOAccess access2 = backend.access(FILE_PREAMBLE_HEADER_SIZE, poolCount * FILE_PREAMBLE_ENTRY_SIZE, true, preamble)) {
                     access2.writeInt(length);
                     access2.writeInt(index - 2);
                 }
@@ -22,50 +22,43 @@ import fr.cenotelie.commons.utils.metrics.Metric;
 import fr.cenotelie.commons.utils.metrics.MetricSnapshotComposite;
 import fr.cenotelie.commons.utils.metrics.MetricSnapshotLong;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Manages the concurrent accesses onto a single IO backend
- * This structure is thread safe and lock-free.
+ * This structure is thread safe.
+ * Two accesses conflict when their spans overlap and one of them allows writing.
+ * The active accesses are partitioned by block into stripes, each stripe being protected by its own latch,
+ * so that accesses on different blocks never contend with each other.
+ * An access that conflicts with an active one waits until the latter is terminated.
  *
  * @author Laurent Wouters
  */
 class IOAccessManager {
     /**
-     * The size of the access pool
+     * The number of stripes
+     * This is a power of 2 that scales with the number of available processors.
      */
-    private static final int ACCESSES_POOL_SIZE = 64;
+    private static final int STRIPES_COUNT = Integer.highestOneBit(Math.max(64, Runtime.getRuntime().availableProcessors() * 8) - 1) << 1;
     /**
-     * The index of the head of the list of active accesses
+     * The mask for the index of a stripe
      */
-    private static final int ACTIVE_HEAD_ID = 0;
-    /**
-     * The index of the tail of the list of active accesses
-     */
-    private static final int ACTIVE_TAIL_ID = 1;
-    /**
-     * The maximum number of concurrent threads
-     */
-    private static final int THREAD_POOL_SIZE = 16;
+    private static final int STRIPES_MASK = STRIPES_COUNT - 1;
 
     /**
      * Represents an access managed by this structure
      */
     private class Access extends IOAccess {
         /**
-         * The identifier of this access
+         * The index of the first stripe for this access
          */
-        private final int identifier;
-
+        private int stripeFirst;
         /**
-         * Initializes this element
-         *
-         * @param identifier The identifier of this access
+         * The index of the last stripe for this access
+         * When it is lower than the first one, the range of stripes wraps around.
          */
-        protected Access(int identifier) {
-            this.identifier = identifier;
-        }
+        private int stripeLast;
 
         @Override
         public void close() {
@@ -74,43 +67,35 @@ class IOAccessManager {
     }
 
     /**
-     * The backend element that is protected by this manager
-     */
-    private final IOBackend backend;
-    /**
-     * The pool of existing accesses in the manager
-     */
-    private final Access[] accesses;
-    /**
-     * The current number of accesses in the pool
+     * Represents a stripe of active accesses
      */
-    private final AtomicInteger accessesCount;
-    /**
-     * The state of the accesses managed by this structure
-     * The state of an access is composed of:
-     * - int: key (access location)
-     * - byte: access state (0=free, 1=active, 2=logically removed, 3=returning)
-     * - byte: when returning: bit-field for remaining touching threads
-     * - byte: when returning: bit-field for remaining touching threads
-     * - byte: the index of the next active access
-     */
-    private final AtomicLongArray accessesState;
-    /**
-     * The bit-field of current threads touching the list
-     */
-    private final AtomicInteger accessesThreads;
-    /**
-     * The pool of free threads identifiers
-     */
-    private final AtomicInteger threads;
+    private static class Stripe {
+        /**
+         * The active accesses in this stripe
+         */
+        public final List<Access> actives = new ArrayList<>();
+        /**
+         * The number of threads waiting on this stripe
+         */
+        public int waiting;
+        /**
+         * The total number of accesses registered in this stripe
+         */
+        public long totalAccesses;
+        /**
+         * The total number of tries for the accesses registered in this stripe
+         */
+        public long totalTries;
+    }
+
     /**
-     * The total number of accesses
+     * The backend element that is protected by this manager
      */
-    private long totalAccesses;
+    private final IOBackend backend;
     /**
-     * The total number of tries for all accesses
+     * The stripes of active accesses
      */
-    private long totalTries;
+    private final Stripe[] stripes;
 
     /**
      * Gets the current statistics for this file
@@ -121,11 +106,20 @@ class IOAccessManager {
      * @param metricAccesses   The metric for the number of accesses
      */
     public void getStatistics(long timestamp, MetricSnapshotComposite snapshot, Metric metricContention, Metric metricAccesses) {
+        long totalAccesses = 0;
+        long totalTries = 0;
+        for (int i = 0; i != STRIPES_COUNT; i++) {
+            Stripe stripe = stripes[i];
+            synchronized (stripe) {
+                totalAccesses += stripe.totalAccesses;
+                totalTries += stripe.totalTries;
+                stripe.totalAccesses = 0;
+                stripe.totalTries = 0;
+            }
+        }
         long contention = totalAccesses == 0 ? 1 : totalTries / totalAccesses;
         snapshot.addPart(metricContention, new MetricSnapshotLong(timestamp, contention));
         snapshot.addPart(metricAccesses, new MetricSnapshotLong(timestamp, totalAccesses));
-        totalTries = 0;
-        totalAccesses = 0;
     }
 
     /**
@@ -135,388 +129,9 @@ class IOAccessManager {
      */
     public IOAccessManager(IOBackend backend) {
         this.backend = backend;
-        this.accesses = new Access[ACCESSES_POOL_SIZE];
-        this.accesses[ACTIVE_HEAD_ID] = new Access(ACTIVE_HEAD_ID);
-        this.accesses[ACTIVE_HEAD_ID].setupIOData(0, 0, false);
-        this.accesses[ACTIVE_TAIL_ID] = new Access(ACTIVE_TAIL_ID);
-        this.accesses[ACTIVE_TAIL_ID].setupIOData(Integer.MAX_VALUE, 0, false);
-        this.accessesCount = new AtomicInteger(2);
-        this.accessesState = new AtomicLongArray(ACCESSES_POOL_SIZE);
-        this.accessesState.set(ACTIVE_HEAD_ID, 0x0000000001000001L);
-        this.accessesState.set(ACTIVE_TAIL_ID, 0x7FFFFFFF01000001L);
-        this.accessesThreads = new AtomicInteger(0);
-        this.threads = new AtomicInteger(0x00FFFF);
-        this.totalAccesses = 0;
-        this.totalTries = 0;
-    }
-
-    /**
-     * Unsigned promotion of an integer to a long
-     * Replacement for Integer.toUnsignedLong when using JDK 7
-     *
-     * @param i The integer
-     * @return The resulting long
-     */
-    private static long ul(int i) {
-        return (long) i & 0xFFFFFFFFL;
-    }
-
-    /**
-     * Gets the key for an access in the specified state
-     *
-     * @param state The state of an access
-     * @return The key for the access
-     */
-    private static int stateKey(long state) {
-        return (int) (state >>> 32);
-    }
-
-    /**
-     * Gets whether the state of an access indicates that the access is free
-     *
-     * @param state The state of an access
-     * @return Whether the access is free
-     */
-    private static boolean stateIsFree(long state) {
-        return (state & 0x00000000FF000000L) == 0x0000000000000000L;
-    }
-
-    /**
-     * Gets whether the state of an access indicates that the access is active
-     *
-     * @param state The state of an access
-     * @return Whether the access is active
-     */
-    private static boolean stateIsActive(long state) {
-        return (state & 0x00000000FF000000L) == 0x0000000001000000;
-    }
-
-    /**
-     * Gets whether the state of an access indicates that the access is being returned to the free access list
-     *
-     * @param state The state of an access
-     * @return Whether the access is being returned
-     */
-    private static boolean stateIsReturning(long state) {
-        return (state & 0x00000000FF000000L) == 0x0000000003000000;
-    }
-
-    /**
-     * When returning an access, gets the threads that can touch this access
-     *
-     * @param state The state of an access
-     * @return The threads that can touch this access
-     */
-    private static int stateThreads(long state) {
-        return (int) ((state & 0x0000000000FFFF00L) >>> 8);
-    }
-
-    /**
-     * Gets the index of the next active access
-     *
-     * @param state The state of an access
-     * @return The index of the next active access
-     */
-    private static int stateActiveNext(long state) {
-        return (int) (state & 0x00000000000000FFL);
-    }
-
-    /**
-     * Gets an active state for an access with the specified key
-     *
-     * @param key The new key for the access
-     * @return The new state
-     */
-    private static long stateSetActive(int key) {
-        return ul(key) << 32 | 0x0000000001000000L;
-    }
-
-    /**
-     * Gets the marked version of the state for the specified one
-     *
-     * @param state The initial state of an access
-     * @return The equivalent marked state
-     */
-    private static long stateSetLogicallyRemoved(long state) {
-        return (state & 0xFFFFFFFF00FFFFFFL) | 0x0000000002000000L;
-    }
-
-    /**
-     * Gets the version of the state representing a returning access
-     *
-     * @param state          The initial state of an access
-     * @param currentThreads The current threads accessing the active list
-     * @return The equivalent returning state
-     */
-    private static long stateSetReturning(long state, int currentThreads) {
-        return (state & 0xFFFFFFFF000000FFL) | 0x0000000003000000L | ul(currentThreads) << 8;
-    }
-
-    /**
-     * Gets the version of the state representing a free access
-     *
-     * @param state The initial state of an access
-     * @return The equivalent free state
-     */
-    private static long stateSetFree(long state) {
-        return (state & 0xFFFFFFFF00FFFFFFL);
-    }
-
-    /**
-     * Gets the new state when removing a thread as potentially touching the access
-     *
-     * @param state            The initial state of an access
-     * @param threadIdentifier The identifier of the thread to remove
-     * @return The new state
-     */
-    private static long stateRemoveThread(long state, int threadIdentifier) {
-        return state & ~(ul(threadIdentifier) << 8);
-    }
-
-    /**
-     * Gets the new state with a new value for the next active access
-     *
-     * @param state The initial state of an access
-     * @param next  The index of the next active access
-     * @return The new state
-     */
-    private static long stateSetNextActive(long state, int next) {
-        return (state & 0xFFFFFFFFFFFFFF00L) | ul(next);
-    }
-
-    /**
-     * Gets a identifier for this thread
-     *
-     * @return The identifier for this thread
-     */
-    private int getThreadId() {
-        while (true) {
-            int mask = threads.get();
-            for (int i = 0; i != THREAD_POOL_SIZE; i++) {
-                int id = (1 << i);
-                if ((mask & id) == id) {
-                    // the identifier is available
-                    int newMask = mask & ~id;
-                    if (threads.compareAndSet(mask, newMask))
-                        // reserved the identifier
-                        return id;
-                    // the mask has changed
-                    break;
-                }
-            }
-        }
-    }
-
-    /**
-     * Returns a thread identifier when no longer required
-     *
-     * @param threadIdentifier The identifier to return
-     */
-    private void returnThreadId(int threadIdentifier) {
-        while (true) {
-            int mask = threads.get();
-            if (threads.compareAndSet(mask, mask | threadIdentifier))
-                return;
-        }
-    }
-
-    /**
-     * Registers the specified thread as accessing the list of active accesses
-     *
-     * @param threadIdentifier The identifier of this thread
-     */
-    private void beginActiveAccess(int threadIdentifier) {
-        while (true) {
-            int mask = accessesThreads.get();
-            if (mask == -1)
-                // the access is locked out
-                continue;
-            if (accessesThreads.compareAndSet(mask, mask | threadIdentifier))
-                return;
-        }
-    }
-
-    /**
-     * Unregisters the specified thread as accessing the list of active accesses
-     *
-     * @param threadIdentifier The identifier of this thread
-     */
-    private void endActiveAccess(int threadIdentifier) {
-        while (true) {
-            int mask = accessesThreads.get();
-            if (mask == -1)
-                // the access is locked out
-                continue;
-            if (accessesThreads.compareAndSet(mask, mask & ~threadIdentifier))
-                return;
-        }
-    }
-
-    /**
-     * Prevents the registering and un-registering of threads accessing the list of active accesses
-     *
-     * @return The current threads on the list of active accesses
-     */
-    private int lockActiveAccesses() {
-        while (true) {
-            int mask = accessesThreads.get();
-            if (mask == -1)
-                // the access is locked out
-                continue;
-            if (accessesThreads.compareAndSet(mask, -1))
-                return mask;
-        }
-    }
-
-    /**
-     * Re-enable the registering and un-registering of threads accessing the list of active accesses
-     *
-     * @param threads The current threads on the list of active accesses
-     */
-    private void unlockActiveAccesses(int threads) {
-        accessesThreads.compareAndSet(-1, threads);
-    }
-
-    /**
-     * Searches the left and right node in the list for a place to insert the specified access and tries to insert the specified access
-     *
-     * @param toInsert The access to be inserted
-     * @param key      The key to insert at
-     * @return Whether the attempt is successful
-     */
-    private boolean listSearchAndInsert(int toInsert, int key) {
-        Access accessToInsert = accesses[toInsert];
-
-        // find the left node
-        int leftNode;
-        long leftNodeState;
-        int rightNode;
-        int currentNode = ACTIVE_HEAD_ID;
-        long currentNodeState = accessesState.get(currentNode);
-        while (true) {
-            leftNode = currentNode;
-            leftNodeState = currentNodeState;
-            currentNode = stateActiveNext(currentNodeState);
-            currentNodeState = accessesState.get(currentNode);
-            if (!stateIsActive(currentNodeState))
-                return false;
-            Access accessCurrentNode = accesses[currentNode];
-            if ((accessToInsert.writable || accessCurrentNode.writable) && !accessToInsert.disjoints(accessCurrentNode))
-                // there is a write overlap
-                return false;
-            if (key < stateKey(currentNodeState))
-                break;
-        }
-        rightNode = currentNode;
-
-        // look for overlap after the insertion point
-        while (true) {
-            currentNode = stateActiveNext(currentNodeState);
-            currentNodeState = accessesState.get(currentNode);
-            if (!stateIsActive(currentNodeState))
-                return false;
-            if (stateKey(currentNodeState) >= key + accessToInsert.length)
-                break;
-            Access accessCurrentNode = accesses[currentNode];
-            if ((accessToInsert.writable || accessCurrentNode.writable) && !accessToInsert.disjoints(accessCurrentNode))
-                // there is a write overlap
-                return false;
-        }
-
-        // setup the access to insert
-        long toInsertState = accessesState.get(toInsert);
-        accessesState.set(toInsert, stateSetNextActive(toInsertState, rightNode));
-        // try to insert
-        return (accessesState.compareAndSet(leftNode, leftNodeState, stateSetNextActive(leftNodeState, toInsert)));
-    }
-
-    /**
-     * Inserts an access into the list of live accesses
-     * The method returns only when the access is safely inserted, i.e. there is no blocking access
-     *
-     * @param toInsert The access to be inserted
-     * @param key      The key to insert at
-     * @return The number of tries
-     */
-    private int listInsert(int toInsert, int key) {
-        int threadIdentifier = getThreadId();
-        int count = 1;
-        while (true) {
-            beginActiveAccess(threadIdentifier);
-            boolean success = listSearchAndInsert(toInsert, key);
-            endActiveAccess(threadIdentifier);
-            poolCleanup(threadIdentifier);
-            if (success)
-                break;
-            count++;
-        }
-        returnThreadId(threadIdentifier);
-        return count;
-    }
-
-    /**
-     * Searches the left and right node in the list for the access to be removed and try to mark it as removed
-     *
-     * @param toRemove The access to be removed
-     * @return Whether the attempt is successful
-     */
-    private boolean listSearchAndRemove(int toRemove) {
-        // find the left node
-        int leftNode;
-        long leftNodeState;
-        int currentNode = ACTIVE_HEAD_ID;
-        long currentNodeState = accessesState.get(currentNode);
-        while (true) {
-            leftNode = currentNode;
-            leftNodeState = currentNodeState;
-            currentNode = stateActiveNext(currentNodeState);
-            if (currentNode == toRemove)
-                break;
-            currentNodeState = accessesState.get(currentNode);
-            if (!stateIsActive(currentNodeState))
-                return false;
-        }
-
-        // mark as logically deleted
-        long oldState = accessesState.get(toRemove);
-        long newState = stateSetLogicallyRemoved(oldState);
-        if (!accessesState.compareAndSet(toRemove, oldState, newState))
-            return false;
-        oldState = newState;
-
-        // try to remove from the list
-        if (!accessesState.compareAndSet(leftNode, leftNodeState, stateSetNextActive(leftNodeState, stateActiveNext(oldState))))
-            return false;
-
-        // no-longer reachable from the list's head
-        // mark the access as returning provided the clearance of current threads
-        int currentThreads = lockActiveAccesses();
-        newState = stateSetReturning(oldState, currentThreads);
-        accessesState.compareAndSet(toRemove, oldState, newState);
-        unlockActiveAccesses(currentThreads);
-        return true;
-    }
-
-    /**
-     * Removes an access from the list of live accesses
-     *
-     * @param toRemove The access to be removed
-     * @return The number of tries
-     */
-    private int listRemove(int toRemove) {
-        int threadIdentifier = getThreadId();
-        int count = 1;
-        while (true) {
-            beginActiveAccess(threadIdentifier);
-            boolean success = listSearchAndRemove(toRemove);
-            endActiveAccess(threadIdentifier);
-            poolCleanup(threadIdentifier);
-            if (success)
-                break;
-            count++;
-        }
-        returnThreadId(threadIdentifier);
-        return count;
+        this.stripes = new Stripe[STRIPES_COUNT];
+        for (int i = 0; i != STRIPES_COUNT; i++)
+            this.stripes[i] = new Stripe();
     }
 
     /**
@@ -529,13 +144,12 @@ class IOAccessManager {
      * @throws StorageException When an IO error occurs
      */
     public IOAccess get(int location, int length, boolean writable) throws StorageException {
-        Access access = newAccess(location);
-        access.setupIOData(location, length, writable);
-        onAccess(listInsert(access.identifier, location));
+        Access access = newAccess(location, length, writable);
+        acquire(access);
         try {
             access.setupIOData(backend.onAccessRequested(access));
         } catch (StorageException exception) {
-            onAccess(listRemove(access.identifier));
+            release(access);
             throw exception;
         }
         return access;
@@ -551,10 +165,9 @@ class IOAccessManager {
      * @return The new access, or null if it cannot be obtained
      */
     public IOAccess get(int location, int length, boolean writable, IOElement element) {
-        Access access = newAccess(location);
-        access.setupIOData(location, length, writable);
+        Access access = newAccess(location, length, writable);
         access.setupIOData(element);
-        onAccess(listInsert(access.identifier, location));
+        acquire(access);
         return access;
     }
 
@@ -569,86 +182,137 @@ class IOAccessManager {
         } catch (StorageException exception) {
             Logging.get().error(exception);
         }
-        onAccess(listRemove(access.identifier));
+        release(access);
     }
 
     /**
-     * Resolves a free access object
+     * Creates a new access for the specified span
      *
-     * @param key The key for the access
-     * @return A free access object
+     * @param location The location of the span within the backend
+     * @param length   The length of the allowed span
+     * @param writable Whether the access allows writing
+     * @return The new access
      */
-    private Access newAccess(int key) {
-        int count = accessesCount.get();
-        while (count < ACCESSES_POOL_SIZE) {
-            // the pool is not full, try to grow it
-            if (accessesCount.compareAndSet(count, count + 1)) {
-                accesses[count] = new Access(count);
-                accessesState.set(count, stateSetActive(key));
-                return accesses[count];
-            }
-            count = accessesCount.get();
+    private Access newAccess(int location, int length, boolean writable) {
+        Access access = new Access();
+        access.setupIOData(location, length, writable);
+        int blockFirst = location >>> FileBlock.BLOCK_INDEX_LENGTH;
+        int blockLast = (location + Math.max(length, 1) - 1) >>> FileBlock.BLOCK_INDEX_LENGTH;
+        if (blockLast - blockFirst >= STRIPES_MASK) {
+            // the access covers all the stripes
+            access.stripeFirst = 0;
+            access.stripeLast = STRIPES_MASK;
+        } else {
+            access.stripeFirst = blockFirst & STRIPES_MASK;
+            access.stripeLast = blockLast & STRIPES_MASK;
+        }
+        return access;
+    }
+
+    /**
+     * Registers an access in all its stripes
+     * The stripes are always acquired by increasing index so that two accesses cannot wait for each other.
+     * The method returns only when the access is safely registered, i.e. there is no conflicting access.
+     *
+     * @param access The access to register
+     */
+    private void acquire(Access access) {
+        if (access.stripeFirst <= access.stripeLast) {
+            for (int i = access.stripeFirst; i <= access.stripeLast; i++)
+                acquire(stripes[i], access);
+        } else {
+            // the range of stripes wraps around
+            for (int i = 0; i <= access.stripeLast; i++)
+                acquire(stripes[i], access);
+            for (int i = access.stripeFirst; i <= STRIPES_MASK; i++)
+                acquire(stripes[i], access);
         }
+    }
 
-        // the pool is full
-        while (true) {
-            for (int i = 2; i != ACCESSES_POOL_SIZE; i++) {
-                long state = accessesState.get(i);
-                if (stateIsFree(state)) {
-                    long newState = stateSetActive(key);
-                    if (accessesState.compareAndSet(i, state, newState))
-                        return accesses[i];
+    /**
+     * Registers an access in a stripe
+     * The method returns only when there is no conflicting access in this stripe.
+     *
+     * @param stripe The stripe
+     * @param access The access to register
+     */
+    private static void acquire(Stripe stripe, Access access) {
+        boolean interrupted = false;
+        synchronized (stripe) {
+            int tries = 1;
+            while (conflicts(stripe, access)) {
+                tries++;
+                stripe.waiting++;
+                try {
+                    stripe.wait();
+                } catch (InterruptedException exception) {
+                    // the access cannot be given up here, keep waiting
+                    interrupted = true;
+                } finally {
+                    stripe.waiting--;
                 }
             }
+            stripe.actives.add(access);
+            stripe.totalAccesses++;
+            stripe.totalTries += tries;
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     /**
-     * Collects the returning accesses that are no longer touched by a thread
+     * Gets whether an access conflicts with the active accesses in a stripe
      *
-     * @param threadIdentifier The identifier of this thread
+     * @param stripe The stripe
+     * @param access The access to register
+     * @return Whether there is a conflict
      */
-    private void poolCleanup(int threadIdentifier) {
-        int count = accessesCount.get();
-        for (int i = 2; i < count; i++) {
-            long state = accessesState.get(i);
-            if (stateIsReturning(state) && (stateThreads(state) & threadIdentifier) == threadIdentifier)
-                onAccessReturning(threadIdentifier, i, state);
+    private static boolean conflicts(Stripe stripe, Access access) {
+        for (int i = 0; i != stripe.actives.size(); i++) {
+            Access active = stripe.actives.get(i);
+            if ((access.writable || active.writable) && !access.disjoints(active))
+                // there is a write overlap
+                return true;
         }
+        return false;
     }
 
     /**
-     * When a returning access touched by this thread is found while cleaning up the pool
+     * Unregisters an access from all its stripes
      *
-     * @param threadIdentifier The identifier of this thread
-     * @param accessIdentifier The identifier of the access
-     * @param currentState     The supposed current state of the access
+     * @param access The access to unregister
      */
-    private void onAccessReturning(int threadIdentifier, int accessIdentifier, long currentState) {
-        // remove the mark for the current thread
-        while (true) {
-            long newState = stateRemoveThread(currentState, threadIdentifier);
-            boolean success = accessesState.compareAndSet(accessIdentifier, currentState, newState);
-            if (success) {
-                currentState = newState;
-                break;
-            }
-            currentState = accessesState.get(accessIdentifier);
+    private void release(Access access) {
+        if (access.stripeFirst <= access.stripeLast) {
+            for (int i = access.stripeFirst; i <= access.stripeLast; i++)
+                release(stripes[i], access);
+        } else {
+            for (int i = 0; i <= access.stripeLast; i++)
+                release(stripes[i], access);
+            for (int i = access.stripeFirst; i <= STRIPES_MASK; i++)
+                release(stripes[i], access);
         }
-        if (stateThreads(currentState) != 0)
-            // more threads can still touch this access
-            return;
-        // no more thread can touch this node, return the access as free again
-        accessesState.set(accessIdentifier, stateSetFree(currentState));
     }
 
     /**
-     * Updates the contention statistics when an access is required
+     * Unregisters an access from a stripe
      *
-     * @param tries The number of tries that it took to perform the access initialization or closure
+     * @param stripe The stripe
+     * @param access The access to unregister
      */
-    private void onAccess(int tries) {
-        totalAccesses++;
-        totalTries += tries;
+    private static void release(Stripe stripe, Access access) {
+        synchronized (stripe) {
+            List<Access> actives = stripe.actives;
+            for (int i = actives.size() - 1; i >= 0; i--) {
+                if (actives.get(i) == access) {
+                    // swap with the last one
+                    actives.set(i, actives.get(actives.size() - 1));
+                    actives.remove(actives.size() - 1);
+                    break;
+                }
+            }
+            if (stripe.waiting > 0)
+                stripe.notifyAll();
+        }
     }
 }
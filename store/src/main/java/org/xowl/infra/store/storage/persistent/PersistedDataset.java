@@ -20,7 +20,9 @@ package org.xowl.infra.store.storage.persistent;
 import fr.cenotelie.commons.utils.collections.*;
 import fr.cenotelie.commons.utils.logging.Logging;
 import fr.cenotelie.commons.utils.metrics.Metric;
+import fr.cenotelie.commons.utils.metrics.MetricComposite;
 import fr.cenotelie.commons.utils.metrics.MetricSnapshot;
+import fr.cenotelie.commons.utils.metrics.MetricSnapshotComposite;
 import org.xowl.infra.store.rdf.*;
 import org.xowl.infra.store.storage.UnsupportedNodeType;
 import org.xowl.infra.store.storage.impl.DatasetImpl;
@@ -28,9 +30,13 @@ import org.xowl.infra.store.storage.impl.MQuad;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a persisted RDF dataset
@@ -42,6 +48,10 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * The suffix for the index file
      */
     private static final String FILE_DATA = "quads";
+    /**
+     * The suffix for the file of secondary indexes
+     */
+    private static final String FILE_INDEX = "quads-index";
     /**
      * The size in bytes of a quad entry
      * long: next node in list
@@ -86,6 +96,26 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * Entry for the literal map data
      */
     private static final long DATA_MAP_INDEX_BLANK_ENTRY = DATA_MAP_INDEX_IRI_ENTRY + PersistedMap.HEAD_SIZE + FileStoreFile.FILE_OBJECT_HEADER_SIZE;
+    /**
+     * Entry for the property index map data, in the file of secondary indexes
+     */
+    private static final long INDEX_MAP_PROPERTY_ENTRY = FileBlock.BLOCK_SIZE + FileStoreFile.FILE_OBJECT_HEADER_SIZE;
+    /**
+     * Entry for the object index map data, in the file of secondary indexes
+     */
+    private static final long INDEX_MAP_OBJECT_ENTRY = INDEX_MAP_PROPERTY_ENTRY + PersistedMap.HEAD_SIZE + FileStoreFile.FILE_OBJECT_HEADER_SIZE;
+    /**
+     * Entry for the state of the secondary indexes, in the file of secondary indexes
+     */
+    private static final long INDEX_STATE_ENTRY = INDEX_MAP_OBJECT_ENTRY + PersistedMap.HEAD_SIZE + FileStoreFile.FILE_OBJECT_HEADER_SIZE;
+    /**
+     * Marker for the state of the secondary indexes when they are completely built
+     */
+    private static final long INDEX_STATE_BUILT = 0x7849445842554C54L;
+    /**
+     * Marker for the state of the secondary indexes when they are not completely built yet
+     */
+    private static final long INDEX_STATE_PENDING = 0;
 
     /**
      * Iterator over the quad node in a bucket
@@ -139,9 +169,9 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
     }
 
     /**
-     * Iterator over the subject nodes in a graph index
+     * Iterator over the subject nodes in an index on graphs, properties or objects
      */
-    private static class GraphQNodeIterator implements Iterator<Long> {
+    private static class IndexQNodeIterator implements Iterator<Long> {
         /**
          * The backend
          */
@@ -171,9 +201,9 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
          * Initializes the iterator
          *
          * @param backend The backend
-         * @param entry   The first entry of the graph index
+         * @param entry   The first entry of the index
          */
-        public GraphQNodeIterator(FileStore backend, long entry) {
+        public IndexQNodeIterator(FileStore backend, long entry) {
             this.backend = backend;
             this.keyEntry = entry;
             this.index = -1;
@@ -238,6 +268,37 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         }
     }
 
+    /**
+     * A bucket in an index that can be used to iterate over candidate subjects
+     */
+    private static class IndexBucket {
+        /**
+         * The store for the entries of the index
+         */
+        public final FileStore pages;
+        /**
+         * The first entry of the bucket, or KEY_NULL if the bucket is empty
+         */
+        public final long entry;
+        /**
+         * The number of subjects in the bucket
+         */
+        public final long size;
+
+        /**
+         * Initializes this bucket
+         *
+         * @param pages The store for the entries of the index
+         * @param entry The first entry of the bucket, or KEY_NULL if the bucket is empty
+         * @param size  The number of subjects in the bucket
+         */
+        public IndexBucket(FileStore pages, long entry, long size) {
+            this.pages = pages;
+            this.entry = entry;
+            this.size = size;
+        }
+    }
+
     /**
      * The persisted nodes associated to this dataset
      */
@@ -266,6 +327,24 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * The index map for blank graphs
      */
     private final PersistedMap mapIndexGraphBlank;
+    /**
+     * The backing store for the secondary indexes on properties and objects
+     */
+    private final FileStore indexStore;
+    /**
+     * The index map for properties, or null if the secondary indexes are not available
+     * Nodes of different types may have the same key, in which case their index entries are merged.
+     */
+    private final PersistedMap mapIndexProperty;
+    /**
+     * The index map for objects, or null if the secondary indexes are not available
+     * Nodes of different types may have the same key, in which case their index entries are merged.
+     */
+    private final PersistedMap mapIndexObject;
+    /**
+     * The composite metric for this dataset
+     */
+    private final MetricComposite metricDataset;
     /**
      * A temporary key to the previous quad node entry
      */
@@ -274,6 +353,10 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * A temporary key to the quad node entry for a subject
      */
     private long bufferQNSubject;
+    /**
+     * A temporary key to the quad node entry for the property of a subject
+     */
+    private long bufferQNProperty;
 
     /**
      * Initializes this dataset
@@ -284,8 +367,21 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * @throws StorageException When the storage is in a bad state
      */
     public PersistedDataset(PersistedNodes nodes, File directory, boolean isReadonly) throws StorageException {
+        this(nodes, directory, isReadonly, new FileStoreConfig());
+    }
+
+    /**
+     * Initializes this dataset
+     *
+     * @param nodes      The persisted nodes associated to this dataset
+     * @param directory  The parent directory containing the backing files
+     * @param isReadonly Whether this store is in readonly mode
+     * @param config     The configuration for the backing files
+     * @throws StorageException When the storage is in a bad state
+     */
+    public PersistedDataset(PersistedNodes nodes, File directory, boolean isReadonly, FileStoreConfig config) throws StorageException {
         this.nodes = nodes;
-        this.store = new FileStore(directory, FILE_DATA, isReadonly);
+        this.store = new FileStore(directory, FILE_DATA, isReadonly, config);
         PersistedMap tempMapSubjectIRI;
         PersistedMap tempMapSubjectBlank;
         PersistedMap tempMapSubjectAnon;
@@ -309,6 +405,115 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         mapSubjectAnon = tempMapSubjectAnon;
         mapIndexGraphIRI = tempMapIndexIRI;
         mapIndexGraphBlank = tempMapIndexBlank;
+
+        this.indexStore = new FileStore(directory, FILE_INDEX, isReadonly, config);
+        if (indexStore.isBacked() && !indexStore.isEmpty() && isIndexBuilt()) {
+            mapIndexProperty = new PersistedMap(indexStore, INDEX_MAP_PROPERTY_ENTRY);
+            mapIndexObject = new PersistedMap(indexStore, INDEX_MAP_OBJECT_ENTRY);
+        } else if (!isReadonly) {
+            // the quads may have been written without the secondary indexes, or their building may have been interrupted
+            if (!indexStore.isEmpty())
+                indexStore.clear();
+            createIndexMaps();
+            mapIndexProperty = new PersistedMap(indexStore, INDEX_MAP_PROPERTY_ENTRY);
+            mapIndexObject = new PersistedMap(indexStore, INDEX_MAP_OBJECT_ENTRY);
+            rebuildIndexes();
+        } else {
+            // in readonly mode without complete secondary indexes
+            mapIndexProperty = null;
+            mapIndexObject = null;
+        }
+        String fileName = (new File(directory, FILE_DATA)).getAbsolutePath();
+        this.metricDataset = new MetricComposite(PersistedDataset.class.getCanonicalName() + "[" + fileName + "]",
+                "Persisted Dataset " + fileName,
+                1000000000);
+        metricDataset.addPart(store.getMetric());
+        metricDataset.addPart(indexStore.getMetric());
+    }
+
+    /**
+     * Creates the heads of the maps for the secondary indexes, as well as their state
+     * In an empty store, the heads are always allocated at their fixed entries.
+     * The secondary indexes are marked as not built.
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    private void createIndexMaps() throws StorageException {
+        PersistedMap.create(indexStore);
+        PersistedMap.create(indexStore);
+        long entry = indexStore.allocate(8);
+        try (IOAccess access = indexStore.accessW(entry)) {
+            access.writeLong(INDEX_STATE_PENDING);
+        }
+    }
+
+    /**
+     * Gets whether the secondary indexes are marked as completely built
+     * Index files from previous versions do not have this marker and are considered as not built.
+     *
+     * @return Whether the secondary indexes are completely built
+     */
+    private boolean isIndexBuilt() {
+        try (IOAccess access = indexStore.accessR(INDEX_STATE_ENTRY)) {
+            return access.readLong() == INDEX_STATE_BUILT;
+        } catch (StorageException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Marks the secondary indexes as completely built
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    private void markIndexBuilt() throws StorageException {
+        try (IOAccess access = indexStore.accessW(INDEX_STATE_ENTRY)) {
+            access.writeLong(INDEX_STATE_BUILT);
+        }
+    }
+
+    /**
+     * Rebuilds the secondary indexes from the existing quads
+     *
+     * @throws StorageException When an IO operation failed
+     */
+    private void rebuildIndexes() throws StorageException {
+        Iterator<Long> subjects = getAllSubjects();
+        while (subjects.hasNext()) {
+            long keySubject = subjects.next();
+            long currentProperty;
+            try (IOAccess entry = store.accessR(keySubject)) {
+                currentProperty = entry.seek(8 + 4 + 8).readLong();
+            }
+            while (currentProperty != FileStore.KEY_NULL) {
+                long keyProperty;
+                long currentObject;
+                try (IOAccess entry = store.accessR(currentProperty)) {
+                    currentProperty = entry.readLong();
+                    entry.readInt();
+                    keyProperty = entry.readLong();
+                    currentObject = entry.readLong();
+                }
+                while (currentObject != FileStore.KEY_NULL) {
+                    long keyObject;
+                    long currentGraph;
+                    try (IOAccess entry = store.accessR(currentObject)) {
+                        currentObject = entry.readLong();
+                        entry.readInt();
+                        keyObject = entry.readLong();
+                        currentGraph = entry.readLong();
+                    }
+                    // one index item per quad, whatever its multiplicity
+                    for (Iterator<Long> graphs = new QNodeIterator(store, currentGraph); graphs.hasNext(); graphs.next()) {
+                        indexOn(indexStore, mapIndexProperty, keyProperty, keySubject);
+                        indexOn(indexStore, mapIndexObject, keyObject, keySubject);
+                    }
+                }
+            }
+        }
+        // the marker is only written once all the quads are indexed
+        markIndexBuilt();
+        indexStore.flush();
     }
 
     /**
@@ -317,7 +522,7 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * @return The metric for this store
      */
     public Metric getMetric() {
-        return store.getMetric();
+        return metricDataset;
     }
 
     /**
@@ -327,7 +532,10 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * @return The snapshot
      */
     public MetricSnapshot getMetricSnapshot(long timestamp) {
-        return store.getMetricSnapshot(timestamp);
+        MetricSnapshotComposite snapshot = new MetricSnapshotComposite(timestamp);
+        snapshot.addPart(store.getMetric(), store.getMetricSnapshot(timestamp));
+        snapshot.addPart(indexStore.getMetric(), indexStore.getMetricSnapshot(timestamp));
+        return snapshot;
     }
 
     /**
@@ -336,7 +544,9 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * @return Whether the operation succeeded
      */
     public boolean flush() {
-        return store.flush();
+        boolean success = store.flush();
+        success &= indexStore.flush();
+        return success;
     }
 
     @Override
@@ -377,17 +587,17 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         long bucket = map.get(subject.getKey());
         if (bucket == FileStore.KEY_NULL)
             return 0;
-        bufferQNSubject = bucket;
-        long target = lookupQNode(bufferQNSubject, property, false);
+        // the lookup uses no shared buffer because the readers of snapshots may run concurrently
+        long target = findQNode(bucket, property);
         if (target == FileStore.KEY_NULL)
             return 0;
-        target = lookupQNode(target, object, false);
+        target = findQNode(target, object);
         if (target == FileStore.KEY_NULL)
             return 0;
-        target = lookupQNode(target, graph, false);
+        target = findQNode(target, graph);
         if (target == FileStore.KEY_NULL)
             return 0;
-        try (IOAccess entry = store.accessW(target)) {
+        try (IOAccess entry = store.accessR(target)) {
             return entry.seek(QUAD_ENTRY_SIZE - 8).readLong();
         }
     }
@@ -397,9 +607,30 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         try {
             if (subject != null && subject.getNodeType() != Node.TYPE_VARIABLE)
                 return getAllOnSingleSubject(graph, subject, property, object);
-            if (graph != null && graph.getNodeType() != Node.TYPE_VARIABLE)
-                return getAllOnSingleGraph(graph, property, object);
-            return getAllDefault(property, object);
+            PersistedNode pGraph = null;
+            if (graph != null && graph.getNodeType() != Node.TYPE_VARIABLE) {
+                pGraph = nodes.getPersistent(graph, false);
+                if (pGraph == null)
+                    return new SingleIterator<>(null);
+            }
+            PersistedNode pProperty = null;
+            if (property != null && property.getNodeType() != Node.TYPE_VARIABLE) {
+                pProperty = nodes.getPersistent(property, false);
+                if (pProperty == null)
+                    return new SingleIterator<>(null);
+            }
+            PersistedNode pObject = null;
+            if (object != null && object.getNodeType() != Node.TYPE_VARIABLE) {
+                pObject = nodes.getPersistent(object, false);
+                if (pObject == null)
+                    return new SingleIterator<>(null);
+            }
+            IndexBucket index = selectIndex(pGraph, pProperty, pObject);
+            if (index == null)
+                return getAllDefault(property, object);
+            if (index.entry == FileStore.KEY_NULL)
+                return new SingleIterator<>(null);
+            return getAllOnIndex(index, graph, property, object);
         } catch (StorageException exception) {
             Logging.get().error(exception);
             return new SingleIterator<>(null);
@@ -437,31 +668,23 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
     }
 
     /**
-     * Gets an iterator over all quads from a single graph
+     * Gets an iterator over all quads from the subjects in an index bucket
      *
+     * @param index    The index bucket for the candidate subjects
      * @param graph    A containing graph to match, or null
      * @param property A property to match, or null
      * @param object   An object node to match, or null
      * @return An iterator over the results
-     * @throws UnsupportedNodeType When a specified node is unsupported
-     * @throws StorageException    When an IO operation failed
      */
-    private Iterator<Quad> getAllOnSingleGraph(GraphNode graph, final Property property, final Node object) throws StorageException, UnsupportedNodeType {
-        final PersistedNode pGraph = nodes.getPersistent(graph, false);
-        if (pGraph == null)
-            return new SingleIterator<>(null);
-        PersistedMap map = pGraph.getNodeType() == Node.TYPE_IRI ? mapIndexGraphIRI : mapIndexGraphBlank;
-        long bucket = map.get(pGraph.getKey());
-        if (bucket == FileStore.KEY_NULL)
-            return new SingleIterator<>(null);
-        Iterator<Long> iteratorSubjects = new GraphQNodeIterator(store, bucket);
+    private Iterator<Quad> getAllOnIndex(IndexBucket index, final GraphNode graph, final Property property, final Node object) {
+        Iterator<Long> iteratorSubjects = new IndexQNodeIterator(index.pages, index.entry);
         return new AdaptingIterator<>(new CombiningIterator<>(iteratorSubjects, new Adapter<Long, Iterator<MQuad>>() {
             @Override
             public Iterator<MQuad> adapt(Long element) {
                 long subjectKey = element;
                 try (IOAccess entry = store.accessR(subjectKey)) {
                     long propertyBucket = entry.seek(8 + 4 + 8).readLong();
-                    return getAllOnProperty(propertyBucket, property, object, (GraphNode) pGraph);
+                    return getAllOnProperty(propertyBucket, property, object, graph);
                 } catch (UnsupportedNodeType | StorageException exception) {
                     Logging.get().error(exception);
                     return null;
@@ -815,9 +1038,10 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
             }
             if (pSubject != null)
                 return countOnSingleSubject(pGraph, pSubject, pProperty, pObject);
-            if (pGraph != null)
-                return countOnSingleGraph(pGraph, pProperty, pObject);
-            return countDefault(pProperty, pObject);
+            IndexBucket index = selectIndex(pGraph, pProperty, pObject);
+            if (index == null)
+                return countDefault(pProperty, pObject);
+            return countOnIndex(index, pGraph, pProperty, pObject);
         } catch (StorageException exception) {
             Logging.get().error(exception);
             return 0;
@@ -847,38 +1071,33 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
     }
 
     /**
-     * Counts the quads from a single graph entry
+     * Counts the quads from the subjects in an index bucket
      *
+     * @param index    The index bucket for the candidate subjects
      * @param graph    The graph to match
      * @param property The property to match
      * @param object   The object to match
      * @return The number of matching quads
      * @throws StorageException When an IO operation failed
      */
-    private long countOnSingleGraph(PersistedNode graph, PersistedNode property, PersistedNode object) throws StorageException {
-        PersistedMap map = graph.getNodeType() == Node.TYPE_IRI ? mapIndexGraphIRI : mapIndexGraphBlank;
-        long bucket = map.get(graph.getKey());
-        if (bucket == FileStore.KEY_NULL)
-            return 0;
+    private long countOnIndex(IndexBucket index, PersistedNode graph, PersistedNode property, PersistedNode object) throws StorageException {
         long result = 0;
-        long current = bucket;
+        long current = index.entry;
         while (current != FileStore.KEY_NULL) {
-            try (IOAccess entry = store.accessR(current)) {
+            try (IOAccess entry = index.pages.accessR(current)) {
                 current = entry.readLong();
                 int radical = entry.readInt();
                 int count = entry.readInt();
-                for (int i = 0; i != GINDEX_ENTRY_MAX_ITEM_COUNT; i++) {
+                for (int i = 0; i != GINDEX_ENTRY_MAX_ITEM_COUNT && count > 0; i++) {
                     int sk = entry.readInt();
                     entry.readInt();
-                    if (sk != FileStore.KEY_NULL) {
+                    if (sk != (int) FileStore.KEY_NULL) {
                         long child = FileStore.getFullKey(radical, sk);
                         try (IOAccess subjectEntry = store.accessR(child)) {
                             child = subjectEntry.seek(8 + 4 + 8).readLong();
                         }
                         result += countOnProperty(child, graph, property, object);
                         count--;
-                        if (count == 0)
-                            break;
                     }
                 }
             }
@@ -886,6 +1105,81 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         return result;
     }
 
+    /**
+     * Selects the most selective index for a pattern on an unbound subject
+     *
+     * @param graph    The graph to match, or null
+     * @param property The property to match, or null
+     * @param object   The object to match, or null
+     * @return The bucket of the selected index, or null if no index can be used
+     * @throws StorageException When an IO operation failed
+     */
+    private IndexBucket selectIndex(PersistedNode graph, PersistedNode property, PersistedNode object) throws StorageException {
+        IndexBucket result = null;
+        if (graph != null)
+            result = selectIndex(result, store, graph.getNodeType() == Node.TYPE_IRI ? mapIndexGraphIRI : mapIndexGraphBlank, graph.getKey());
+        if (mapIndexProperty != null) {
+            if (object != null)
+                result = selectIndex(result, indexStore, mapIndexObject, object.getKey());
+            if (property != null)
+                result = selectIndex(result, indexStore, mapIndexProperty, property.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Selects between the currently selected index bucket and the bucket for a key in another index
+     * The sizes of the buckets are only evaluated up to the size of the smallest one.
+     *
+     * @param current The currently selected bucket, or null
+     * @param pages   The store for the entries of the other index
+     * @param map     The map of the other index
+     * @param key     The key to look for in the other index
+     * @return The smallest bucket
+     * @throws StorageException When an IO operation failed
+     */
+    private IndexBucket selectIndex(IndexBucket current, FileStore pages, PersistedMap map, long key) throws StorageException {
+        if (current != null && current.size == 0)
+            return current;
+        long bucket = map.get(key);
+        if (bucket == FileStore.KEY_NULL)
+            return new IndexBucket(pages, FileStore.KEY_NULL, 0);
+        if (current == null)
+            // the size is only evaluated when compared to another bucket
+            return new IndexBucket(pages, bucket, -1);
+        long bound = current.size >= 0 ? current.size : GINDEX_ENTRY_MAX_ITEM_COUNT;
+        while (true) {
+            long sizeCurrent = current.size >= 0 ? current.size : countIndexItems(current.pages, current.entry, bound);
+            long sizeOther = countIndexItems(pages, bucket, bound);
+            if (current.size >= 0 || sizeCurrent < bound || sizeOther < bound) {
+                // the smallest size is exact
+                return sizeOther < sizeCurrent ? new IndexBucket(pages, bucket, sizeOther) : new IndexBucket(current.pages, current.entry, sizeCurrent);
+            }
+            bound *= 4;
+        }
+    }
+
+    /**
+     * Counts the subjects in an index bucket, stopping as soon as the specified bound is reached
+     *
+     * @param pages The store for the entries of the index
+     * @param entry The first entry of the bucket
+     * @param bound The bound for the count
+     * @return The number of subjects, or a value greater or equal to the bound
+     * @throws StorageException When an IO operation failed
+     */
+    private long countIndexItems(FileStore pages, long entry, long bound) throws StorageException {
+        long result = 0;
+        long current = entry;
+        while (current != FileStore.KEY_NULL && result < bound) {
+            try (IOAccess access = pages.accessR(current)) {
+                current = access.readLong();
+                result += access.seek(8 + 4).readInt();
+            }
+        }
+        return result;
+    }
+
     /**
      * Counts the all the quads
      *
@@ -1005,37 +1299,159 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         PersistedNode pProperty = nodes.getPersistent(property, true);
         PersistedNode pObject = nodes.getPersistent(value, true);
         PersistedNode pGraph = nodes.getPersistent(graph, true);
+        return doAddQuad(pSubject, pProperty, pObject, pGraph, false);
+    }
+
+    /**
+     * Executes the insertion of a single instance of multiple quads.
+     * All the nodes of the quads are first checked, so that no node is created when one of them is not supported.
+     * The nodes of the quads are then resolved, each distinct node only once.
+     * Then, the quads are inserted in the order of their subject and property,
+     * so that the consecutive quads on the same subject and property share the lookup of their entries,
+     * and the accessed pages of the backing files are mostly the same from one quad to the next.
+     *
+     * @param quads The quads to insert
+     * @return The operation results, in the iteration order of the quads
+     * @throws UnsupportedNodeType When a specified node is unsupported
+     */
+    @Override
+    public int[] doAddQuads(Collection<Quad> quads) throws UnsupportedNodeType {
+        // check all the nodes before creating any, otherwise the created nodes would be left without reference
+        for (Quad quad : quads) {
+            checkPersistable(quad.getSubject());
+            checkPersistable(quad.getProperty());
+            checkPersistable(quad.getObject());
+            checkPersistable(quad.getGraph());
+        }
+        // resolve all the nodes before touching the dataset
+        Map<Node, PersistedNode> dictionary = new HashMap<>();
+        final PersistedNode[] encoded = new PersistedNode[quads.size() * 4];
+        int index = 0;
+        for (Quad quad : quads) {
+            encoded[index * 4] = encode(dictionary, quad.getSubject());
+            encoded[index * 4 + 1] = encode(dictionary, quad.getProperty());
+            encoded[index * 4 + 2] = encode(dictionary, quad.getObject());
+            encoded[index * 4 + 3] = encode(dictionary, quad.getGraph());
+            index++;
+        }
+        Integer[] order = new Integer[quads.size()];
+        for (int i = 0; i != order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer quad1, Integer quad2) {
+                for (int i = 0; i != 4; i++) {
+                    PersistedNode node1 = encoded[quad1 * 4 + i];
+                    PersistedNode node2 = encoded[quad2 * 4 + i];
+                    int result = Integer.compare(node1.getNodeType(), node2.getNodeType());
+                    if (result == 0)
+                        result = Long.compare(node1.getKey(), node2.getKey());
+                    if (result != 0)
+                        return result;
+                }
+                return 0;
+            }
+        });
+        int[] results = new int[order.length];
+        PersistedNode lastSubject = null;
+        PersistedNode lastProperty = null;
+        for (int i = 0; i != order.length; i++) {
+            int quad = order[i];
+            PersistedNode pSubject = encoded[quad * 4];
+            PersistedNode pProperty = encoded[quad * 4 + 1];
+            boolean reuse = (pSubject == lastSubject && pProperty == lastProperty);
+            results[quad] = doAddQuad(pSubject, pProperty, encoded[quad * 4 + 2], encoded[quad * 4 + 3], reuse);
+            if (results[quad] == ADD_RESULT_UNKNOWN) {
+                lastSubject = null;
+                lastProperty = null;
+            } else {
+                lastSubject = pSubject;
+                lastProperty = pProperty;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Checks that a node of a batch of quads can be persisted
+     *
+     * @param node The node to check
+     * @throws UnsupportedNodeType When the node is unsupported
+     */
+    private static void checkPersistable(Node node) throws UnsupportedNodeType {
+        if (node != null) {
+            switch (node.getNodeType()) {
+                case Node.TYPE_IRI:
+                case Node.TYPE_BLANK:
+                case Node.TYPE_ANONYMOUS:
+                case Node.TYPE_LITERAL:
+                case Node.TYPE_DYNAMIC:
+                    return;
+            }
+        }
+        throw new UnsupportedNodeType(node, "Persistable nodes are IRI, Blank, Anonymous, Literal and Dynamic");
+    }
+
+    /**
+     * Resolves the persisted node for a node of a batch of quads
+     *
+     * @param dictionary The already resolved nodes of the batch
+     * @param node       The node to resolve
+     * @return The persisted node
+     * @throws UnsupportedNodeType When the node is unsupported
+     */
+    private PersistedNode encode(Map<Node, PersistedNode> dictionary, Node node) throws UnsupportedNodeType {
+        PersistedNode result = dictionary.get(node);
+        if (result == null) {
+            result = nodes.getPersistent(node, true);
+            dictionary.put(node, result);
+        }
+        return result;
+    }
+
+    /**
+     * Executes the insertion of a single instance of a quad
+     *
+     * @param subject  The subject
+     * @param property The property
+     * @param object   The object
+     * @param graph    The graph
+     * @param reuse    Whether the subject and property are the same as for the previous insertion
+     * @return The operation result
+     * @throws UnsupportedNodeType When a specified node is unsupported
+     */
+    private int doAddQuad(PersistedNode subject, PersistedNode property, PersistedNode object, PersistedNode graph, boolean reuse) throws UnsupportedNodeType {
         int result;
         try {
-            result = doQuadAdd(pSubject, pProperty, pObject, pGraph);
+            result = doQuadAdd(subject, property, object, graph, reuse);
         } catch (StorageException exception) {
             Logging.get().error(exception);
             return ADD_RESULT_UNKNOWN;
         }
         if (result == ADD_RESULT_NEW) {
             try {
-                doQuadIndex(pSubject, pGraph);
+                doQuadIndex(bufferQNSubject, property, object, graph);
             } catch (StorageException exception) {
                 Logging.get().error(exception);
                 return ADD_RESULT_UNKNOWN;
             }
             try {
-                pSubject.incrementRefCount();
+                subject.incrementRefCount();
             } catch (StorageException exception) {
                 Logging.get().error(exception);
             }
             try {
-                pProperty.incrementRefCount();
+                property.incrementRefCount();
             } catch (StorageException exception) {
                 Logging.get().error(exception);
             }
             try {
-                pObject.incrementRefCount();
+                object.incrementRefCount();
             } catch (StorageException exception) {
                 Logging.get().error(exception);
             }
             try {
-                pGraph.incrementRefCount();
+                graph.incrementRefCount();
             } catch (StorageException exception) {
                 Logging.get().error(exception);
             }
@@ -1050,21 +1466,24 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
      * @param property The property
      * @param object   The object
      * @param graph    The graph
+     * @param reuse    Whether the subject and property are the same as for the previous insertion
      * @return The result of the insertion
      * @throws UnsupportedNodeType When a specified node is unsupported
      * @throws StorageException    When an IO operation failed
      */
-    private int doQuadAdd(PersistedNode subject, PersistedNode property, PersistedNode object, PersistedNode graph) throws UnsupportedNodeType, StorageException {
-        PersistedMap map = mapFor(subject);
-        long bucket = map.get(subject.getKey());
-        if (bucket == FileStore.KEY_NULL) {
-            bufferQNSubject = newEntry(subject);
-            map.tryPut(subject.getKey(), bufferQNSubject);
-        } else {
-            bufferQNSubject = bucket;
+    private int doQuadAdd(PersistedNode subject, PersistedNode property, PersistedNode object, PersistedNode graph, boolean reuse) throws UnsupportedNodeType, StorageException {
+        if (!reuse) {
+            PersistedMap map = mapFor(subject);
+            long bucket = map.get(subject.getKey());
+            if (bucket == FileStore.KEY_NULL) {
+                bufferQNSubject = newEntry(subject);
+                map.tryPut(subject.getKey(), bufferQNSubject);
+            } else {
+                bufferQNSubject = bucket;
+            }
+            bufferQNProperty = lookupQNode(bufferQNSubject, property, true);
         }
-        long target = lookupQNode(bufferQNSubject, property, true);
-        target = lookupQNode(target, object, true);
+        long target = lookupQNode(bufferQNProperty, object, true);
         target = lookupQNode(target, graph, true);
         try (IOAccess entry = store.accessW(target)) {
             long value = entry.seek(QUAD_ENTRY_SIZE - 8).readLong();
@@ -1082,61 +1501,92 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
     /**
      * Indexes a quad into the backend
      *
-     * @param subject The subject
-     * @param graph   The graph
+     * @param qnode    The key to the subject quad node
+     * @param property The property
+     * @param object   The object
+     * @param graph    The graph
      * @throws StorageException When an IO operation failed
      */
-    private void doQuadIndex(PersistedNode subject, PersistedNode graph) throws StorageException {
-        int radical = FileStore.getKeyRadical(subject.getKey());
+    private void doQuadIndex(long qnode, PersistedNode property, PersistedNode object, PersistedNode graph) throws StorageException {
         PersistedMap map = graph.getNodeType() == Node.TYPE_IRI ? mapIndexGraphIRI : mapIndexGraphBlank;
-        long bucket = map.get(graph.getKey());
+        indexOn(store, map, graph.getKey(), qnode);
+        doQuadIndexSecondary(qnode, property, object);
+    }
+
+    /**
+     * Indexes a quad into the secondary indexes on properties and objects
+     *
+     * @param qnode    The key to the subject quad node
+     * @param property The property
+     * @param object   The object
+     * @throws StorageException When an IO operation failed
+     */
+    private void doQuadIndexSecondary(long qnode, PersistedNode property, PersistedNode object) throws StorageException {
+        if (mapIndexProperty == null)
+            return;
+        indexOn(indexStore, mapIndexProperty, property.getKey(), qnode);
+        indexOn(indexStore, mapIndexObject, object.getKey(), qnode);
+    }
+
+    /**
+     * Registers a subject quad node into an index
+     * The index maps a key to a list of entries containing the subject quad nodes, each with a multiplicity.
+     *
+     * @param pages The store for the entries of the index
+     * @param map   The index map
+     * @param key   The indexed key
+     * @param qnode The key to the subject quad node
+     * @throws StorageException When an IO operation failed
+     */
+    private void indexOn(FileStore pages, PersistedMap map, long key, long qnode) throws StorageException {
+        int radical = FileStore.getKeyRadical(qnode);
+        int shortKey = FileStore.getShortKey(qnode);
+        long bucket = map.get(key);
         if (bucket == FileStore.KEY_NULL) {
-            // this is the first quad for this graph
-            long key = writeNewGraphIndex(radical, bufferQNSubject);
-            map.tryPut(graph.getKey(), key);
+            // this is the first quad for this key
+            long entryKey = writeNewIndexEntry(pages, radical, shortKey);
+            map.tryPut(key, entryKey);
             return;
         }
         // look for an appropriate entry
         long emptyEntry = FileStore.KEY_NULL;
-        bufferQNPrevious = FileStore.KEY_NULL;
+        long previous = FileStore.KEY_NULL;
         long current = bucket;
         while (current != FileStore.KEY_NULL) {
-            try (IOAccess entry = store.accessW(current)) {
+            try (IOAccess entry = pages.accessW(current)) {
                 long next = entry.readLong();
                 int eRadical = entry.readInt();
+                previous = current;
+                current = next;
                 if (eRadical != radical)
                     continue;
                 int count = entry.readInt();
                 if (emptyEntry == FileStore.KEY_NULL && count < GINDEX_ENTRY_MAX_ITEM_COUNT)
-                    emptyEntry = current;
-                for (int i = 0; i != GINDEX_ENTRY_MAX_ITEM_COUNT; i++) {
-                    int qnode = entry.readInt();
+                    emptyEntry = previous;
+                for (int i = 0; i != GINDEX_ENTRY_MAX_ITEM_COUNT && count > 0; i++) {
+                    int item = entry.readInt();
                     int multiplicity = entry.readInt();
-                    if (qnode == FileStore.KEY_NULL)
+                    if (item == (int) FileStore.KEY_NULL)
                         continue;
-                    if (qnode == FileStore.getShortKey(bufferQNSubject)) {
+                    if (item == shortKey) {
                         multiplicity++;
                         entry.seek(i * 8 + 8 + 4 + 4 + 4).writeInt(multiplicity);
                         return;
                     }
                     count--;
-                    if (count == 0)
-                        break;
                 }
-                bufferQNPrevious = current;
-                current = next;
             }
         }
         // not found in an entry
         if (emptyEntry != FileStore.KEY_NULL) {
-            try (IOAccess entry = store.accessW(emptyEntry)) {
+            try (IOAccess entry = pages.accessW(emptyEntry)) {
                 int count = entry.seek(12).readInt();
                 for (int i = 0; i != GINDEX_ENTRY_MAX_ITEM_COUNT; i++) {
-                    int qnode = entry.readInt();
+                    int item = entry.readInt();
                     entry.readInt();
-                    if (qnode == FileStore.KEY_NULL) {
+                    if (item == (int) FileStore.KEY_NULL) {
                         entry.seek(i * 8 + 8 + 4 + 4);
-                        entry.writeInt(FileStore.getShortKey(bufferQNSubject));
+                        entry.writeInt(shortKey);
                         entry.writeInt(1);
                         break;
                     }
@@ -1145,28 +1595,29 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
             }
         } else {
             // requires a new entry
-            long key = writeNewGraphIndex(radical, bufferQNSubject);
-            try (IOAccess entry = store.accessW(bufferQNPrevious)) {
-                entry.writeLong(key);
+            long entryKey = writeNewIndexEntry(pages, radical, shortKey);
+            try (IOAccess entry = pages.accessW(previous)) {
+                entry.writeLong(entryKey);
             }
         }
     }
 
     /**
-     * Writes a new graph index entry
+     * Writes a new index entry
      *
-     * @param radical The key radical for this entry
-     * @param qnode   The key to the subject quad node
+     * @param pages    The store for the entries of the index
+     * @param radical  The key radical for this entry
+     * @param shortKey The short key to the subject quad node
      * @return The key to this entry
      * @throws StorageException When an IO operation failed
      */
-    private long writeNewGraphIndex(int radical, long qnode) throws StorageException {
-        long key = store.allocate(GINDEX_ENTRY_SIZE);
-        try (IOAccess entry = store.accessW(key)) {
+    private long writeNewIndexEntry(FileStore pages, int radical, int shortKey) throws StorageException {
+        long key = pages.allocate(GINDEX_ENTRY_SIZE);
+        try (IOAccess entry = pages.accessW(key)) {
             entry.writeLong(FileStore.KEY_NULL);
             entry.writeInt(radical);
             entry.writeInt(1);
-            entry.writeInt(FileStore.getShortKey(qnode));
+            entry.writeInt(shortKey);
             entry.writeInt(1);
             for (int i = 1; i != GINDEX_ENTRY_MAX_ITEM_COUNT; i++) {
                 entry.writeInt((int) FileStore.KEY_NULL);
@@ -1194,7 +1645,7 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         }
         if (result >= REMOVE_RESULT_REMOVED) {
             try {
-                doQuadDeindex(pSubject, pGraph);
+                doQuadDeindex(bufferQNSubject, pProperty, pObject, pGraph);
             } catch (StorageException exception) {
                 Logging.get().error(exception);
             }
@@ -1343,35 +1794,70 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
     /**
      * De-indexes a quad into the backend
      *
-     * @param subject The subject
-     * @param graph   The graph
+     * @param qnode    The key to the subject quad node
+     * @param property The property
+     * @param object   The object
+     * @param graph    The graph
      * @throws StorageException When an IO operation failed
      */
-    private void doQuadDeindex(PersistedNode subject, PersistedNode graph) throws StorageException {
-        int radical = ((int) (subject.getKey() >>> 32));
+    private void doQuadDeindex(long qnode, PersistedNode property, PersistedNode object, PersistedNode graph) throws StorageException {
         PersistedMap map = graph.getNodeType() == Node.TYPE_IRI ? mapIndexGraphIRI : mapIndexGraphBlank;
-        long bucket = map.get(graph.getKey());
+        deindexOn(store, map, graph.getKey(), qnode);
+        doQuadDeindexSecondary(qnode, property, object);
+    }
+
+    /**
+     * De-indexes a quad from the secondary indexes on properties and objects
+     *
+     * @param qnode    The key to the subject quad node
+     * @param property The property
+     * @param object   The object
+     * @throws StorageException When an IO operation failed
+     */
+    private void doQuadDeindexSecondary(long qnode, PersistedNode property, PersistedNode object) throws StorageException {
+        if (mapIndexProperty == null)
+            return;
+        deindexOn(indexStore, mapIndexProperty, property.getKey(), qnode);
+        deindexOn(indexStore, mapIndexObject, object.getKey(), qnode);
+    }
+
+    /**
+     * Unregisters a subject quad node from an index
+     *
+     * @param pages The store for the entries of the index
+     * @param map   The index map
+     * @param key   The indexed key
+     * @param qnode The key to the subject quad node
+     * @throws StorageException When an IO operation failed
+     */
+    private void deindexOn(FileStore pages, PersistedMap map, long key, long qnode) throws StorageException {
+        int radical = FileStore.getKeyRadical(qnode);
+        int shortKey = FileStore.getShortKey(qnode);
+        long bucket = map.get(key);
         if (bucket == FileStore.KEY_NULL) {
-            // this is the first quad for this graph
+            // nothing is indexed for this key
             return;
         }
         // look for an appropriate entry
-        bufferQNPrevious = FileStore.KEY_NULL;
+        long previous = FileStore.KEY_NULL;
         long current = bucket;
         while (current != FileStore.KEY_NULL) {
-            try (IOAccess entry = store.accessW(current)) {
+            try (IOAccess entry = pages.accessW(current)) {
                 long next = entry.readLong();
                 int eRadical = entry.readInt();
-                if (eRadical != radical)
+                if (eRadical != radical) {
+                    previous = current;
+                    current = next;
                     continue;
+                }
                 int count = entry.readInt();
                 int c = count;
-                for (int i = 0; i != GINDEX_ENTRY_MAX_ITEM_COUNT; i++) {
-                    int qnode = entry.readInt();
+                for (int i = 0; i != GINDEX_ENTRY_MAX_ITEM_COUNT && c > 0; i++) {
+                    int item = entry.readInt();
                     int multiplicity = entry.readInt();
-                    if (qnode == FileStore.KEY_NULL)
+                    if (item == (int) FileStore.KEY_NULL)
                         continue;
-                    if (qnode == FileStore.getShortKey(bufferQNSubject)) {
+                    if (item == shortKey) {
                         multiplicity--;
                         if (multiplicity > 0) {
                             entry.seek(i * 8 + 8 + 4 + 4 + 4).writeInt(multiplicity);
@@ -1385,27 +1871,25 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
                             entry.seek(8 + 4).writeInt(count);
                             return;
                         }
-                        if (bufferQNPrevious == FileStore.KEY_NULL) {
+                        if (previous == FileStore.KEY_NULL) {
                             // this is the first entry for this index
                             if (next == FileStore.KEY_NULL) {
                                 // this is the sole entry
-                                map.tryRemove(graph.getKey(), bucket);
+                                map.tryRemove(key, bucket);
                             } else {
-                                map.compareAndSet(graph.getKey(), bucket, next);
+                                map.compareAndSet(key, bucket, next);
                             }
                         } else {
-                            try (IOAccess pe = store.accessW(bufferQNPrevious)) {
+                            try (IOAccess pe = pages.accessW(previous)) {
                                 pe.writeLong(next);
                             }
                         }
-                        store.free(current);
+                        pages.free(current);
                         return;
                     }
                     c--;
-                    if (c == 0)
-                        break;
                 }
-                bufferQNPrevious = current;
+                previous = current;
                 current = next;
             }
         }
@@ -1456,7 +1940,7 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         boolean isEmpty = removeAllOnSubject(key, property, object, graph, bufferDecremented, bufferRemoved);
         for (int i = size; i != bufferRemoved.size(); i++) {
             MQuad quad = bufferRemoved.get(i);
-            doQuadDeindex((PersistedNode) quad.getSubject(), (PersistedNode) quad.getGraph());
+            doQuadDeindex(key, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject(), (PersistedNode) quad.getGraph());
             ((PersistedNode) quad.getSubject()).decrementRefCount();
             ((PersistedNode) quad.getProperty()).decrementRefCount();
             ((PersistedNode) quad.getObject()).decrementRefCount();
@@ -1546,6 +2030,10 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
                 long child = FileStore.getFullKey(radical, sk);
                 int size = bufferRemoved.size();
                 boolean isEmpty = removeAllOnSubject(child, property, object, graph, bufferDecremented, bufferRemoved);
+                for (int j = size; j != bufferRemoved.size(); j++) {
+                    MQuad quad = bufferRemoved.get(j);
+                    doQuadDeindexSecondary(child, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject());
+                }
                 if (isEmpty) {
                     try (IOAccess subjectEntry = store.accessR(child)) {
                         PersistedNode subject = getNode(subjectEntry.seek(8).readInt(), subjectEntry.readLong());
@@ -1602,10 +2090,11 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         Iterator<PersistedMap.Entry> iterator = map.entries();
         while (iterator.hasNext()) {
             int size = bufferRemoved.size();
-            boolean isEmpty = removeAllOnSubject(iterator.next().value, property, object, null, bufferDecremented, bufferRemoved);
+            long key = iterator.next().value;
+            boolean isEmpty = removeAllOnSubject(key, property, object, null, bufferDecremented, bufferRemoved);
             for (int i = size; i != bufferRemoved.size(); i++) {
                 MQuad quad = bufferRemoved.get(i);
-                doQuadDeindex((PersistedNode) quad.getSubject(), (PersistedNode) quad.getGraph());
+                doQuadDeindex(key, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject(), (PersistedNode) quad.getGraph());
                 ((PersistedNode) quad.getSubject()).decrementRefCount();
                 ((PersistedNode) quad.getProperty()).decrementRefCount();
                 ((PersistedNode) quad.getObject()).decrementRefCount();
@@ -1906,6 +2395,15 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
             Logging.get().error(exception);
         }
         store.clear();
+        if (mapIndexProperty != null) {
+            indexStore.clear();
+            try {
+                createIndexMaps();
+                markIndexBuilt();
+            } catch (StorageException exception) {
+                Logging.get().error(exception);
+            }
+        }
     }
 
     @Override
@@ -1975,6 +2473,9 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         for (int i = size; i != buffer.size(); i++) {
             MQuad quad = buffer.get(i);
             quad.setSubject(subject);
+            if (graph != null)
+                // when clearing all the quads, the secondary indexes are wholly reset
+                doQuadDeindexSecondary(key, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject());
             ((PersistedNode) quad.getSubject()).decrementRefCount();
             ((PersistedNode) quad.getProperty()).decrementRefCount();
             ((PersistedNode) quad.getObject()).decrementRefCount();
@@ -2194,18 +2695,19 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         while (iterator.hasNext()) {
             int sizeOld = bufferOld.size();
             int sizeNew = bufferNew.size();
-            boolean isEmpty = copyOnSubject(iterator.next().value, origin, target, bufferOld, bufferNew, overwrite);
+            long key = iterator.next().value;
+            boolean isEmpty = copyOnSubject(key, origin, target, bufferOld, bufferNew, overwrite);
             for (int i = sizeOld; i != bufferOld.size(); i++) {
                 MQuad quad = bufferOld.get(i);
-                doQuadDeindex((PersistedNode) quad.getSubject(), (PersistedNode) quad.getGraph());
+                doQuadDeindex(key, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject(), (PersistedNode) quad.getGraph());
                 ((PersistedNode) quad.getSubject()).decrementRefCount();
                 ((PersistedNode) quad.getProperty()).decrementRefCount();
                 ((PersistedNode) quad.getObject()).decrementRefCount();
                 ((PersistedNode) quad.getGraph()).decrementRefCount();
             }
             for (int i = sizeNew; i != bufferNew.size(); i++) {
-                MQuad quad = bufferOld.get(i);
-                doQuadIndex((PersistedNode) quad.getSubject(), (PersistedNode) quad.getGraph());
+                MQuad quad = bufferNew.get(i);
+                doQuadIndex(key, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject(), (PersistedNode) quad.getGraph());
                 ((PersistedNode) quad.getSubject()).incrementRefCount();
                 ((PersistedNode) quad.getProperty()).incrementRefCount();
                 ((PersistedNode) quad.getObject()).incrementRefCount();
@@ -2492,18 +2994,19 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         while (iterator.hasNext()) {
             int sizeOld = bufferOld.size();
             int sizeNew = bufferNew.size();
-            boolean isEmpty = moveOnSubject(iterator.next().value, origin, target, bufferOld, bufferNew);
+            long key = iterator.next().value;
+            boolean isEmpty = moveOnSubject(key, origin, target, bufferOld, bufferNew);
             for (int i = sizeOld; i != bufferOld.size(); i++) {
                 MQuad quad = bufferOld.get(i);
-                doQuadDeindex((PersistedNode) quad.getSubject(), (PersistedNode) quad.getGraph());
+                doQuadDeindex(key, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject(), (PersistedNode) quad.getGraph());
                 ((PersistedNode) quad.getSubject()).decrementRefCount();
                 ((PersistedNode) quad.getProperty()).decrementRefCount();
                 ((PersistedNode) quad.getObject()).decrementRefCount();
                 ((PersistedNode) quad.getGraph()).decrementRefCount();
             }
             for (int i = sizeNew; i != bufferNew.size(); i++) {
-                MQuad quad = bufferOld.get(i);
-                doQuadIndex((PersistedNode) quad.getSubject(), (PersistedNode) quad.getGraph());
+                MQuad quad = bufferNew.get(i);
+                doQuadIndex(key, (PersistedNode) quad.getProperty(), (PersistedNode) quad.getObject(), (PersistedNode) quad.getGraph());
                 ((PersistedNode) quad.getSubject()).incrementRefCount();
                 ((PersistedNode) quad.getProperty()).incrementRefCount();
                 ((PersistedNode) quad.getObject()).incrementRefCount();
@@ -2773,6 +3276,7 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
     @Override
     public void close() throws Exception {
         store.close();
+        indexStore.close();
     }
 
     /*
@@ -2844,6 +3348,30 @@ public class PersistedDataset extends DatasetImpl implements AutoCloseable {
         return current;
     }
 
+    /**
+     * Finds the quad node entry for the specified node in the children of an entry, without modifying the dataset
+     *
+     * @param from The key to the parent entry
+     * @param node The node to look for
+     * @return The key to the entry for the node, or KEY_NULL if there is none
+     * @throws StorageException When an IO operation failed
+     */
+    private long findQNode(long from, PersistedNode node) throws StorageException {
+        long current;
+        try (IOAccess entry = store.accessR(from)) {
+            current = entry.seek(QUAD_ENTRY_SIZE - 8).readLong();
+        }
+        while (current != FileStore.KEY_NULL) {
+            try (IOAccess entry = store.accessR(current)) {
+                long next = entry.readLong();
+                if (node.getNodeType() == entry.readInt() && node.getKey() == entry.readLong())
+                    return current;
+                current = next;
+            }
+        }
+        return FileStore.KEY_NULL;
+    }
+
     /**
      * Writes the new quad node entry for the specified node
      *
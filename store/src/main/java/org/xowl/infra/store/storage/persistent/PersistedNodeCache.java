@@ -21,6 +21,7 @@ import java.lang.ref.WeakReference;
 
 /**
  * Implements a cache of instantiated persisted nodes
+ * The cache is shared by the concurrent readers of the dataset.
  *
  * @author Laurent Wouters
  */
@@ -63,7 +64,7 @@ class PersistedNodeCache<T extends PersistedNode> {
      * @param key The key to look for
      * @return The cached node, if any
      */
-    public T get(long key) {
+    public synchronized T get(long key) {
         if (length == 0)
             return null;
         for (int i = start; i != SIZE; i++) {
@@ -94,7 +95,7 @@ class PersistedNodeCache<T extends PersistedNode> {
      *
      * @param node The node to cache
      */
-    public void cache(T node) {
+    public synchronized void cache(T node) {
         start--;
         if (start < 0)
             start = SIZE - 1;
@@ -102,4 +103,16 @@ class PersistedNodeCache<T extends PersistedNode> {
         nodes[start] = new WeakReference<>(node);
         length = length == SIZE ? SIZE : length + 1;
     }
+
+    /**
+     * Drops all the cached nodes
+     */
+    public synchronized void clear() {
+        for (int i = 0; i != SIZE; i++) {
+            keys[i] = FileStore.KEY_NULL;
+            nodes[i] = null;
+        }
+        start = SIZE;
+        length = 0;
+    }
 }
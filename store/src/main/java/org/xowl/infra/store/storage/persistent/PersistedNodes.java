@@ -136,7 +136,19 @@ public class PersistedNodes extends NodeManagerImpl implements AutoCloseable {
      * @throws StorageException When the storage is in a bad state
      */
     public PersistedNodes(File directory, boolean isReadonly) throws StorageException {
-        store = new FileStore(directory, FILE_NAME, isReadonly);
+        this(directory, isReadonly, new FileStoreConfig());
+    }
+
+    /**
+     * Initializes this store of nodes
+     *
+     * @param directory  The parent directory containing the backing files
+     * @param isReadonly Whether this store is in readonly mode
+     * @param config     The configuration for the backing files
+     * @throws StorageException When the storage is in a bad state
+     */
+    public PersistedNodes(File directory, boolean isReadonly, FileStoreConfig config) throws StorageException {
+        store = new FileStore(directory, FILE_NAME, isReadonly, config);
         charset = IOUtils.CHARSET;
         PersistedLong tempNextBlank;
         PersistedMap tempStringMap;
@@ -650,6 +662,19 @@ public class PersistedNodes extends NodeManagerImpl implements AutoCloseable {
         return store.flush();
     }
 
+    /**
+     * Drops the cached nodes
+     * This is required when the changes to the backing files have been rolled back,
+     * as a cached node may then no longer correspond to its key.
+     */
+    public void clearCaches() {
+        cacheNodeIRIs.clear();
+        cacheNodeBlanks.clear();
+        cacheNodeAnons.clear();
+        cacheNodeLiterals.clear();
+        cacheNodeDynamics.clear();
+    }
+
     @Override
     public void setExecutionManager(ExecutionManager executionManager) {
         this.executionManager = executionManager;
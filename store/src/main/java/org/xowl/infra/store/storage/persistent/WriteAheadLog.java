@@ -0,0 +1,772 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage.persistent;
+
+import fr.cenotelie.commons.utils.logging.Logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Represents a write-ahead log of block images for the files of a persisted store
+ * The files registered with the log are never written to before the changes are committed in the log.
+ * Changes are committed in three steps:
+ * 1) The images of the dirty blocks of all the files are appended to the log, followed by a commit record
+ * 2) The log is forced to the disk, this is the only synchronous write for a commit
+ * 3) The images appended in the first step are written to the files, without forcing them
+ * When the log grows beyond a threshold, a checkpoint forces the files and truncates the log.
+ * Commits, rollbacks and checkpoints are serialized so that the log is never truncated before the images are written back.
+ * When the log is open, the committed transactions that were not checkpointed are replayed onto the files.
+ * A transaction whose commit record is missing, or does not match the content of the transaction, is ignored.
+ * <p>
+ * Dirty blocks that are reclaimed before a commit are not written to their file.
+ * Their images are appended to the log and read from it when they are loaded again.
+ * Rolling back then only requires to truncate the log to the last commit and to reload the affected blocks.
+ * <p>
+ * Because the files are only written to when the changes are committed, they always contain the last committed version.
+ * A thread can read from a snapshot of this version, without being affected by the concurrent writers.
+ * When a commit overwrites blocks that are read from an older snapshot, their previous images are kept in memory
+ * until the snapshot is ended.
+ * <p>
+ * The records in the log are:
+ * - Block image: byte (1), short (name length), bytes (file name in UTF-8), int (location), bytes (block)
+ * - File removal: byte (2), short (name length), bytes (file name in UTF-8)
+ * - Commit: byte (3), long (CRC32 of the records since the previous commit)
+ *
+ * @author Laurent Wouters
+ */
+public class WriteAheadLog implements Closeable {
+    /**
+     * A snapshot read by a thread
+     */
+    private static class Snapshot {
+        /**
+         * The committed version of the snapshot
+         */
+        public final long version;
+        /**
+         * The number of nested uses of the snapshot by the thread
+         */
+        public int depth;
+
+        /**
+         * Initializes this snapshot
+         *
+         * @param version The committed version of the snapshot
+         */
+        public Snapshot(long version) {
+            this.version = version;
+            this.depth = 1;
+        }
+    }
+
+    /**
+     * The name of the file for the log
+     */
+    public static final String FILE_NAME = "wal.xowl";
+    /**
+     * The size of the log beyond which the log is checkpointed after a commit
+     */
+    public static final long CHECKPOINT_THRESHOLD = 64 * 1024 * 1024;
+
+    /**
+     * The type of record for a block image
+     */
+    private static final byte RECORD_BLOCK = 1;
+    /**
+     * The type of record for the removal of a file
+     */
+    private static final byte RECORD_REMOVE = 2;
+    /**
+     * The type of record for a commit
+     */
+    private static final byte RECORD_COMMIT = 3;
+    /**
+     * The size of a commit record
+     */
+    private static final int RECORD_COMMIT_SIZE = 1 + 8;
+
+    /**
+     * The charset for the file names in the log
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * The directory containing the log and the logged files
+     */
+    private final File directory;
+    /**
+     * Whether the log is in readonly mode
+     */
+    private final boolean isReadonly;
+    /**
+     * The channel to the log file, or null when the log is in readonly mode and does not exist
+     */
+    private final FileChannel channel;
+    /**
+     * The backends that are registered to this log
+     */
+    private final List<FileBackend> backends;
+    /**
+     * For a log in readonly mode, the committed block images that were not checkpointed, for each file
+     */
+    private final Map<String, Map<Integer, Long>> committed;
+    /**
+     * The checksum of the records appended since the last commit
+     */
+    private final CRC32 checksum;
+    /**
+     * The end of the log
+     */
+    private long end;
+    /**
+     * The end of the last commit record
+     */
+    private long committedEnd;
+    /**
+     * The end of the log up to which it is known to be on the disk
+     */
+    private long syncedEnd;
+    /**
+     * The lock for forcing the log to the disk
+     */
+    private final Object syncLock;
+    /**
+     * The lock serializing the commits, rollbacks and checkpoints
+     */
+    private final Object commitLock;
+    /**
+     * The version of the committed changes, incremented by each commit
+     * Guarded by the snapshots.
+     */
+    private long version;
+    /**
+     * The number of snapshots that are read, for each committed version
+     */
+    private final TreeMap<Long, Integer> snapshots;
+    /**
+     * The snapshot read by the current thread, if any
+     */
+    private final ThreadLocal<Snapshot> snapshot;
+
+    /**
+     * Initializes this log
+     * When the log is not in readonly mode, the committed transactions are replayed onto the files.
+     *
+     * @param directory  The directory containing the log and the logged files
+     * @param isReadonly Whether the log is in readonly mode
+     * @throws StorageException When the log cannot be read
+     */
+    public WriteAheadLog(File directory, boolean isReadonly) throws StorageException {
+        File file = new File(directory, FILE_NAME);
+        this.directory = directory;
+        this.isReadonly = isReadonly || (file.exists() && !file.canWrite());
+        this.backends = new ArrayList<>();
+        this.committed = new HashMap<>();
+        this.checksum = new CRC32();
+        this.syncLock = new Object();
+        this.commitLock = new Object();
+        this.version = 0;
+        this.snapshots = new TreeMap<>();
+        this.snapshot = new ThreadLocal<>();
+        try {
+            if (this.isReadonly)
+                this.channel = file.exists() ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+            else
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to open the log " + file.getAbsolutePath());
+        }
+        this.committedEnd = channel == null ? 0 : scan();
+        if (!this.isReadonly)
+            recover();
+        this.end = committedEnd;
+        this.syncedEnd = committedEnd;
+    }
+
+    /**
+     * Gets whether the log has committed block images for the specified file that were not checkpointed
+     * This can only be the case when the log is in readonly mode.
+     *
+     * @param file The logged file
+     * @return Whether there are committed block images for the file
+     */
+    boolean hasBlocksFor(File file) {
+        Map<Integer, Long> blocks = committed.get(file.getName());
+        return blocks != null && !blocks.isEmpty();
+    }
+
+    /**
+     * Gets the committed block images for the specified file that were not checkpointed
+     *
+     * @param file The logged file
+     * @return The offsets in the log of the block images, for the location of the blocks
+     */
+    Map<Integer, Long> getBlocksFor(File file) {
+        Map<Integer, Long> blocks = committed.get(file.getName());
+        return blocks == null ? new HashMap<Integer, Long>() : new HashMap<>(blocks);
+    }
+
+    /**
+     * Registers a backend whose changes are committed through this log
+     *
+     * @param backend The backend to register
+     */
+    void register(FileBackend backend) {
+        synchronized (backends) {
+            backends.add(backend);
+        }
+    }
+
+    /**
+     * Unregisters a backend from this log
+     *
+     * @param backend The backend to unregister
+     */
+    void unregister(FileBackend backend) {
+        synchronized (backends) {
+            backends.remove(backend);
+        }
+    }
+
+    /**
+     * Gets the currently registered backends
+     *
+     * @return The registered backends
+     */
+    private List<FileBackend> getBackends() {
+        synchronized (backends) {
+            return new ArrayList<>(backends);
+        }
+    }
+
+    /**
+     * Scans the log for the last valid commit
+     * When the log is in readonly mode, this also indexes the committed block images.
+     *
+     * @return The end of the last valid commit record
+     * @throws StorageException When the log cannot be read
+     */
+    private long scan() throws StorageException {
+        Map<String, Map<Integer, Long>> transaction = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(3);
+        ByteBuffer block = ByteBuffer.allocate(FileBlock.BLOCK_SIZE);
+        long result = 0;
+        long position = 0;
+        try {
+            long size = channel.size();
+            while (position < size) {
+                if (!readFully(position, header, 1))
+                    break;
+                byte type = header.get(0);
+                if (type == RECORD_COMMIT) {
+                    ByteBuffer record = ByteBuffer.allocate(8);
+                    if (!readFully(position + 1, record, 8) || record.getLong(0) != crc.getValue())
+                        break;
+                    position += RECORD_COMMIT_SIZE;
+                    result = position;
+                    crc.reset();
+                    for (String name : removed)
+                        committed.remove(name);
+                    for (Map.Entry<String, Map<Integer, Long>> entry : transaction.entrySet()) {
+                        Map<Integer, Long> blocks = committed.get(entry.getKey());
+                        if (blocks == null) {
+                            blocks = new HashMap<>();
+                            committed.put(entry.getKey(), blocks);
+                        }
+                        blocks.putAll(entry.getValue());
+                    }
+                    transaction.clear();
+                    removed.clear();
+                    continue;
+                }
+                if (type != RECORD_BLOCK && type != RECORD_REMOVE)
+                    break;
+                if (!readFully(position, header, 3))
+                    break;
+                int nameLength = header.getShort(1) & 0xFFFF;
+                ByteBuffer nameBuffer = ByteBuffer.allocate(nameLength);
+                if (!readFully(position + 3, nameBuffer, nameLength))
+                    break;
+                String name = new String(nameBuffer.array(), CHARSET);
+                crc.update(header.array(), 0, 3);
+                crc.update(nameBuffer.array(), 0, nameLength);
+                position += 3 + nameLength;
+                if (type == RECORD_REMOVE) {
+                    transaction.remove(name);
+                    removed.add(name);
+                    continue;
+                }
+                ByteBuffer location = ByteBuffer.allocate(4);
+                if (!readFully(position, location, 4) || !readFully(position + 4, block, FileBlock.BLOCK_SIZE))
+                    break;
+                crc.update(location.array(), 0, 4);
+                crc.update(block.array(), 0, FileBlock.BLOCK_SIZE);
+                Map<Integer, Long> blocks = transaction.get(name);
+                if (blocks == null) {
+                    blocks = new HashMap<>();
+                    transaction.put(name, blocks);
+                }
+                blocks.put(location.getInt(0), position + 4);
+                position += 4 + FileBlock.BLOCK_SIZE;
+            }
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to read the log in " + directory.getAbsolutePath());
+        }
+        return result;
+    }
+
+    /**
+     * Replays the committed transactions onto the logged files and truncates the log
+     *
+     * @throws StorageException When an IO error occurred
+     */
+    private void recover() throws StorageException {
+        Map<String, FileChannel> files = new HashMap<>();
+        ByteBuffer header = ByteBuffer.allocate(3);
+        ByteBuffer block = ByteBuffer.allocate(FileBlock.BLOCK_SIZE);
+        try {
+            long position = 0;
+            while (position < committedEnd) {
+                readFully(position, header, 1);
+                if (header.get(0) == RECORD_COMMIT) {
+                    position += RECORD_COMMIT_SIZE;
+                    continue;
+                }
+                readFully(position, header, 3);
+                int nameLength = header.getShort(1) & 0xFFFF;
+                ByteBuffer nameBuffer = ByteBuffer.allocate(nameLength);
+                readFully(position + 3, nameBuffer, nameLength);
+                String name = new String(nameBuffer.array(), CHARSET);
+                position += 3 + nameLength;
+                File target = new File(directory, name);
+                if (header.get(0) == RECORD_REMOVE) {
+                    FileChannel file = files.remove(name);
+                    if (file != null)
+                        file.close();
+                    if (target.exists() && !target.delete())
+                        throw new StorageException("Failed to delete file " + target.getAbsolutePath());
+                    continue;
+                }
+                ByteBuffer location = ByteBuffer.allocate(4);
+                readFully(position, location, 4);
+                readFully(position + 4, block, FileBlock.BLOCK_SIZE);
+                position += 4 + FileBlock.BLOCK_SIZE;
+                FileChannel file = files.get(name);
+                if (file == null) {
+                    file = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    files.put(name, file);
+                }
+                writeFully(file, block, location.getInt(0));
+            }
+            for (FileChannel file : files.values())
+                file.force(true);
+            channel.truncate(0);
+            channel.force(true);
+            committedEnd = 0;
+            committed.clear();
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to replay the log in " + directory.getAbsolutePath());
+        } finally {
+            for (FileChannel file : files.values()) {
+                try {
+                    file.close();
+                } catch (IOException exception) {
+                    Logging.get().error(exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the image of a block to this log
+     *
+     * @param file     The logged file
+     * @param location The location of the block in the file
+     * @param buffer   The content of the block
+     * @return The offset of the image in the log
+     * @throws StorageException When an IO error occurred
+     */
+    long appendBlock(File file, int location, ByteBuffer buffer) throws StorageException {
+        byte[] name = file.getName().getBytes(CHARSET);
+        ByteBuffer record = ByteBuffer.allocate(3 + name.length + 4 + FileBlock.BLOCK_SIZE);
+        record.put(RECORD_BLOCK);
+        record.putShort((short) name.length);
+        record.put(name);
+        record.putInt(location);
+        ByteBuffer content = buffer.duplicate();
+        content.position(0);
+        content.limit(FileBlock.BLOCK_SIZE);
+        record.put(content);
+        return append(record) + 3 + name.length + 4;
+    }
+
+    /**
+     * Appends the removal of a file to this log
+     *
+     * @param file The removed file
+     * @throws StorageException When an IO error occurred
+     */
+    void appendRemove(File file) throws StorageException {
+        byte[] name = file.getName().getBytes(CHARSET);
+        ByteBuffer record = ByteBuffer.allocate(3 + name.length);
+        record.put(RECORD_REMOVE);
+        record.putShort((short) name.length);
+        record.put(name);
+        append(record);
+    }
+
+    /**
+     * Appends a record to this log
+     *
+     * @param record The record
+     * @return The offset of the record in the log
+     * @throws StorageException When an IO error occurred
+     */
+    private synchronized long append(ByteBuffer record) throws StorageException {
+        if (isReadonly)
+            throw new StorageException("The log is read only");
+        long offset = end;
+        checksum.update(record.array(), 0, record.capacity());
+        try {
+            writeFully(channel, record, offset);
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to write to the log in " + directory.getAbsolutePath());
+        }
+        end += record.capacity();
+        return offset;
+    }
+
+    /**
+     * Reads the image of a block from this log
+     *
+     * @param offset The offset of the image in the log
+     * @param buffer The buffer to read into
+     * @throws IOException When an IO error occurred
+     */
+    void readBlock(long offset, ByteBuffer buffer) throws IOException {
+        if (!readFully(offset, buffer, FileBlock.BLOCK_SIZE))
+            throw new IOException("Unexpected end of stream");
+    }
+
+    /**
+     * Commits the outstanding changes of all the registered backends
+     *
+     * @throws StorageException When an IO error occurred
+     */
+    public void commit() throws StorageException {
+        if (isReadonly)
+            return;
+        synchronized (commitLock) {
+            doCommit();
+        }
+    }
+
+    /**
+     * Commits the outstanding changes of all the registered backends
+     * The caller must hold the commit lock.
+     *
+     * @throws StorageException When an IO error occurred
+     */
+    private void doCommit() throws StorageException {
+        List<FileBackend> targets = getBackends();
+        for (FileBackend backend : targets)
+            backend.logChanges();
+        long target;
+        synchronized (this) {
+            if (end == committedEnd)
+                // nothing to commit
+                return;
+            ByteBuffer record = ByteBuffer.allocate(RECORD_COMMIT_SIZE);
+            record.put(RECORD_COMMIT);
+            record.putLong(checksum.getValue());
+            try {
+                writeFully(channel, record, end);
+            } catch (IOException exception) {
+                throw new StorageException(exception, "Failed to write to the log in " + directory.getAbsolutePath());
+            }
+            end += RECORD_COMMIT_SIZE;
+            committedEnd = end;
+            checksum.reset();
+            target = end;
+        }
+        sync(target);
+        for (FileBackend backend : targets)
+            backend.beginWriteBack();
+        long imagesVersion;
+        synchronized (snapshots) {
+            // the previous images of the overwritten blocks are only required for the snapshots being read
+            imagesVersion = snapshots.isEmpty() ? -1 : version;
+            version++;
+        }
+        try {
+            for (FileBackend backend : targets)
+                backend.onLogCommitted(imagesVersion);
+        } finally {
+            for (FileBackend backend : targets)
+                backend.endWriteBack();
+        }
+        synchronized (snapshots) {
+            pruneVersions();
+        }
+        if (target >= CHECKPOINT_THRESHOLD)
+            doCheckpoint();
+    }
+
+    /**
+     * Forces this log to the disk up to the specified position
+     *
+     * @param target The position up to which the log must be on the disk
+     * @throws StorageException When an IO error occurred
+     */
+    private void sync(long target) throws StorageException {
+        synchronized (syncLock) {
+            if (syncedEnd >= target)
+                return;
+            long position;
+            synchronized (this) {
+                position = end;
+            }
+            try {
+                channel.force(false);
+            } catch (IOException exception) {
+                throw new StorageException(exception, "Failed to write to the log in " + directory.getAbsolutePath());
+            }
+            syncedEnd = position;
+        }
+    }
+
+    /**
+     * Rolls back the outstanding changes of all the registered backends
+     *
+     * @throws StorageException When an IO error occurred
+     */
+    public void rollback() throws StorageException {
+        if (isReadonly)
+            return;
+        synchronized (commitLock) {
+            synchronized (this) {
+                try {
+                    channel.truncate(committedEnd);
+                } catch (IOException exception) {
+                    throw new StorageException(exception, "Failed to truncate the log in " + directory.getAbsolutePath());
+                }
+                end = committedEnd;
+                checksum.reset();
+            }
+            List<FileBackend> targets = getBackends();
+            for (FileBackend backend : targets)
+                backend.beginWriteBack();
+            try {
+                for (FileBackend backend : targets)
+                    backend.onLogRolledBack();
+            } finally {
+                for (FileBackend backend : targets)
+                    backend.endWriteBack();
+            }
+        }
+    }
+
+    /**
+     * Begins reading from a snapshot of the last committed version, for the current thread
+     * Until the snapshot is ended, the reads of the current thread in the logged files see the content as of this version,
+     * regardless of the changes made by the other threads, committed or not.
+     * The current thread must not write to the logged files while it reads from a snapshot.
+     * Snapshots can be nested, in which case the outermost one is used.
+     */
+    public void beginSnapshot() {
+        Snapshot current = snapshot.get();
+        if (current != null) {
+            current.depth++;
+            return;
+        }
+        synchronized (snapshots) {
+            Integer count = snapshots.get(version);
+            snapshots.put(version, count == null ? 1 : count + 1);
+            snapshot.set(new Snapshot(version));
+        }
+    }
+
+    /**
+     * Ends reading from a snapshot for the current thread
+     */
+    public void endSnapshot() {
+        Snapshot current = snapshot.get();
+        if (current == null)
+            return;
+        current.depth--;
+        if (current.depth > 0)
+            return;
+        snapshot.remove();
+        synchronized (snapshots) {
+            int count = snapshots.get(current.version);
+            if (count == 1)
+                snapshots.remove(current.version);
+            else
+                snapshots.put(current.version, count - 1);
+            pruneVersions();
+        }
+    }
+
+    /**
+     * Gets whether the current thread reads from a snapshot
+     *
+     * @return Whether the current thread reads from a snapshot
+     */
+    public boolean isInSnapshot() {
+        return snapshot.get() != null;
+    }
+
+    /**
+     * Gets the committed version of the snapshot read by the current thread
+     *
+     * @return The committed version, or -1 if the current thread does not read from a snapshot
+     */
+    long getSnapshotVersion() {
+        Snapshot current = snapshot.get();
+        return current == null ? -1 : current.version;
+    }
+
+    /**
+     * Drops the previous images of the blocks that are no longer used by the snapshots
+     * The caller must hold the lock on the snapshots.
+     */
+    private void pruneVersions() {
+        long oldest = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+        for (FileBackend backend : getBackends())
+            backend.pruneVersions(oldest);
+    }
+
+    /**
+     * Forces the committed changes to the logged files and truncates this log
+     * The log is only truncated when there are no outstanding changes in it.
+     *
+     * @throws StorageException When an IO error occurred
+     */
+    public void checkpoint() throws StorageException {
+        if (isReadonly)
+            return;
+        synchronized (commitLock) {
+            doCheckpoint();
+        }
+    }
+
+    /**
+     * Forces the committed changes to the logged files and truncates this log
+     * The caller must hold the commit lock, so that all the committed images are written back.
+     *
+     * @throws StorageException When an IO error occurred
+     */
+    private void doCheckpoint() throws StorageException {
+        for (FileBackend backend : getBackends())
+            backend.force();
+        truncate(false);
+    }
+
+    /**
+     * Truncates this log
+     *
+     * @param discard Whether to discard the outstanding changes in the log
+     * @throws StorageException When an IO error occurred
+     */
+    private synchronized void truncate(boolean discard) throws StorageException {
+        if (!discard && end != committedEnd)
+            return;
+        try {
+            channel.truncate(0);
+            channel.force(true);
+        } catch (IOException exception) {
+            throw new StorageException(exception, "Failed to truncate the log in " + directory.getAbsolutePath());
+        }
+        end = 0;
+        committedEnd = 0;
+        syncedEnd = 0;
+        checksum.reset();
+    }
+
+    /**
+     * Closes this log
+     * The committed changes are forced to the files and the outstanding changes are discarded.
+     *
+     * @throws IOException When an IO error occurred
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel == null)
+            return;
+        try {
+            if (!isReadonly) {
+                synchronized (commitLock) {
+                    for (FileBackend backend : getBackends())
+                        backend.force();
+                    truncate(true);
+                }
+            }
+        } catch (StorageException exception) {
+            throw new IOException(exception);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the specified number of bytes from the log
+     *
+     * @param position The position in the log
+     * @param buffer   The buffer to read into
+     * @param length   The number of bytes to read
+     * @return Whether the bytes could be read, false when the end of the log is reached
+     * @throws IOException When an IO error occurred
+     */
+    private boolean readFully(long position, ByteBuffer buffer, int length) throws IOException {
+        buffer.position(0);
+        buffer.limit(length);
+        int total = 0;
+        while (total < length) {
+            int read = channel.read(buffer, position + total);
+            if (read == -1)
+                return false;
+            total += read;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the content of a buffer at the specified position
+     *
+     * @param target   The target channel
+     * @param buffer   The buffer to write
+     * @param position The position in the target channel
+     * @throws IOException When an IO error occurred
+     */
+    private static void writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        buffer.position(0);
+        int total = 0;
+        while (buffer.hasRemaining())
+            total += target.write(buffer, position + total);
+    }
+}
@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.writers;
+
+import fr.cenotelie.commons.utils.IOUtils;
+import fr.cenotelie.commons.utils.logging.Logger;
+import org.xowl.infra.store.rdf.*;
+import org.xowl.infra.store.storage.UnsupportedNodeType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Represents a serializer of RDF data in the compact binary format
+ * <p>
+ * The output starts with the MAGIC bytes and the VERSION of the format, followed by a sequence of blocks.
+ * A block starts with the BLOCK_DATA tag, the uncompressed and compressed lengths of its content as varints,
+ * followed by the content compressed with deflate.
+ * The end of the output is marked by the BLOCK_END tag.
+ * <p>
+ * The content of the blocks is a sequence of records.
+ * The IRIs, the datatypes and the language tags are written once in a dictionary that is shared by all the blocks,
+ * afterwards they are referred to by their identifier in the dictionary (1-based, in the order of the definitions).
+ * When the dictionary grows over its maximum size, it is reset and the identifiers start over.
+ * The terms of a quad are written in the order: subject, property, object and graph;
+ * a term that is the same as in the previous quad is written as TERM_SAME.
+ * The blank nodes are identified by a number that is scoped to the output.
+ * <p>
+ * All the integers are written as unsigned varints (7 bits per byte, least significant group first).
+ *
+ * @author Laurent Wouters
+ */
+public class BinaryRDFSerializer implements RDFSerializer {
+    /**
+     * The magic bytes at the start of the output
+     */
+    public static final byte[] MAGIC = {'x', 'R', 'D', 'B'};
+    /**
+     * The version of the format
+     */
+    public static final int VERSION = 1;
+    /**
+     * Tag of a compressed block of records
+     */
+    public static final int BLOCK_DATA = 1;
+    /**
+     * Tag for the end of the output
+     */
+    public static final int BLOCK_END = 0;
+    /**
+     * Record that defines a new string in the dictionary: length, UTF-8 bytes
+     */
+    public static final int RECORD_STRING = 1;
+    /**
+     * Record for a quad: subject, property, object and graph terms
+     */
+    public static final int RECORD_QUAD = 2;
+    /**
+     * Record that resets the dictionary
+     */
+    public static final int RECORD_RESET = 3;
+    /**
+     * Term that is the same as in the previous quad
+     */
+    public static final int TERM_SAME = 0;
+    /**
+     * Term for an IRI: identifier of the IRI
+     */
+    public static final int TERM_IRI = 1;
+    /**
+     * Term for a blank node: number of the blank node
+     */
+    public static final int TERM_BLANK = 2;
+    /**
+     * Term for a literal: length and UTF-8 bytes of the lexical value, identifiers of the datatype and language tag (0 if none)
+     */
+    public static final int TERM_LITERAL = 3;
+    /**
+     * The default size of the uncompressed content of a block
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    /**
+     * The maximum size of a block, only exceeded by the blocks with a single quad that is larger than that
+     * When loading, the buffers for such blocks grow with their actual content instead of being allocated upfront.
+     */
+    public static final int MAX_BLOCK_SIZE = DEFAULT_BLOCK_SIZE * 16;
+    /**
+     * The default maximum number of strings in the dictionary
+     */
+    public static final int DEFAULT_MAX_DICTIONARY = 1 << 20;
+
+    /**
+     * The stream to write to
+     */
+    private final OutputStream output;
+    /**
+     * The size of the uncompressed content of a block
+     */
+    private final int blockSize;
+    /**
+     * The maximum number of strings in the dictionary
+     */
+    private final int maxDictionary;
+    /**
+     * The dictionary of the strings written so far, with their identifier
+     */
+    private final Map<String, Integer> dictionary;
+    /**
+     * The uncompressed content of the current block
+     */
+    private final ByteArrayOutputStream block;
+    /**
+     * The compressor for the blocks
+     */
+    private final Deflater deflater;
+    /**
+     * The buffer for the compressed blocks
+     */
+    private byte[] compressed;
+    /**
+     * The terms of the previous quad
+     */
+    private final Node[] previous;
+
+    /**
+     * Initializes this serializer
+     *
+     * @param output The stream to write to
+     */
+    public BinaryRDFSerializer(OutputStream output) {
+        this(output, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_DICTIONARY);
+    }
+
+    /**
+     * Initializes this serializer
+     *
+     * @param output        The stream to write to
+     * @param blockSize     The size of the uncompressed content of a block, at most MAX_BLOCK_SIZE
+     * @param maxDictionary The maximum number of strings in the dictionary
+     * @throws IllegalArgumentException When the size of the blocks is not within the bounds
+     */
+    public BinaryRDFSerializer(OutputStream output, int blockSize, int maxDictionary) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Invalid size of blocks: " + blockSize);
+        this.output = output;
+        this.blockSize = blockSize;
+        this.maxDictionary = maxDictionary;
+        this.dictionary = new HashMap<>();
+        this.block = new ByteArrayOutputStream(blockSize + 1024);
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.compressed = new byte[blockSize];
+        this.previous = new Node[4];
+    }
+
+    @Override
+    public void serialize(Logger logger, Iterator<Quad> quads) {
+        try {
+            output.write(MAGIC);
+            writeVarint(output, VERSION);
+            while (quads.hasNext()) {
+                int mark = block.size();
+                serialize(quads.next());
+                if (block.size() > blockSize)
+                    // the quad goes to the next block, unless it is alone in this one
+                    flushBlock(mark > 0 ? mark : block.size());
+            }
+            flushBlock(block.size());
+            output.write(BLOCK_END);
+            output.flush();
+        } catch (IOException | UnsupportedNodeType exception) {
+            logger.error(exception);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Serializes the specified quad into the current block
+     *
+     * @param quad The quad to serialize
+     * @throws UnsupportedNodeType When a node is not supported
+     */
+    private void serialize(Quad quad) throws UnsupportedNodeType {
+        // a quad defines at most 5 strings, reset the dictionary beforehand so that they all stay defined
+        if (dictionary.size() > maxDictionary - 5) {
+            dictionary.clear();
+            block.write(RECORD_RESET);
+        }
+        // the strings of the quad are defined before the quad
+        define(quad.getSubject());
+        define(quad.getProperty());
+        define(quad.getObject());
+        define(quad.getGraph());
+        block.write(RECORD_QUAD);
+        serialize(quad.getSubject(), 0);
+        serialize(quad.getProperty(), 1);
+        serialize(quad.getObject(), 2);
+        serialize(quad.getGraph(), 3);
+    }
+
+    /**
+     * Writes the definitions of the strings of a node that are not yet in the dictionary
+     *
+     * @param node The node
+     * @throws UnsupportedNodeType When the specified node is not supported
+     */
+    private void define(Node node) throws UnsupportedNodeType {
+        switch (node.getNodeType()) {
+            case Node.TYPE_IRI:
+                define(((IRINode) node).getIRIValue());
+                break;
+            case Node.TYPE_BLANK:
+                break;
+            case Node.TYPE_LITERAL: {
+                LiteralNode literal = (LiteralNode) node;
+                if (literal.getDatatype() != null)
+                    define(literal.getDatatype());
+                if (literal.getLangTag() != null)
+                    define(literal.getLangTag());
+                break;
+            }
+            default:
+                throw new UnsupportedNodeType(node, "Unsupported node type.");
+        }
+    }
+
+    /**
+     * Writes the definition of a string if it is not yet in the dictionary
+     *
+     * @param value The string
+     */
+    private void define(String value) {
+        if (dictionary.containsKey(value))
+            return;
+        dictionary.put(value, dictionary.size() + 1);
+        block.write(RECORD_STRING);
+        writeString(value);
+    }
+
+    /**
+     * Serializes a term of the current quad
+     *
+     * @param node     The node
+     * @param position The position of the term in the quad
+     */
+    private void serialize(Node node, int position) {
+        if (node.equals(previous[position])) {
+            block.write(TERM_SAME);
+            return;
+        }
+        previous[position] = node;
+        switch (node.getNodeType()) {
+            case Node.TYPE_IRI:
+                block.write(TERM_IRI);
+                writeVarint(block, dictionary.get(((IRINode) node).getIRIValue()));
+                break;
+            case Node.TYPE_BLANK:
+                block.write(TERM_BLANK);
+                writeVarint(block, ((BlankNode) node).getBlankID());
+                break;
+            default: {
+                LiteralNode literal = (LiteralNode) node;
+                block.write(TERM_LITERAL);
+                writeString(literal.getLexicalValue());
+                writeVarint(block, literal.getDatatype() == null ? 0 : dictionary.get(literal.getDatatype()));
+                writeVarint(block, literal.getLangTag() == null ? 0 : dictionary.get(literal.getLangTag()));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes a string into the current block
+     *
+     * @param value The string
+     */
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(IOUtils.CHARSET);
+        writeVarint(block, bytes.length);
+        block.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Compresses and writes the start of the current block, if it is not empty
+     * The remaining content is kept as the start of the next block.
+     *
+     * @param count The length of the content to write
+     * @throws IOException When an IO error occurs
+     */
+    private void flushBlock(int count) throws IOException {
+        if (count == 0)
+            return;
+        byte[] content = block.toByteArray();
+        deflater.reset();
+        deflater.setInput(content, 0, count);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] buffer = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, buffer, 0, length);
+                compressed = buffer;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        output.write(BLOCK_DATA);
+        writeVarint(output, count);
+        writeVarint(output, length);
+        output.write(compressed, 0, length);
+        block.reset();
+        block.write(content, count, content.length - count);
+    }
+
+    /**
+     * Writes an unsigned varint
+     *
+     * @param stream The stream to write to
+     * @param value  The value to write
+     */
+    private static void writeVarint(ByteArrayOutputStream stream, long value) {
+        while ((value & ~0x7FL) != 0) {
+            stream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        stream.write((int) value);
+    }
+
+    /**
+     * Writes an unsigned varint
+     *
+     * @param stream The stream to write to
+     * @param value  The value to write
+     * @throws IOException When an IO error occurs
+     */
+    private static void writeVarint(OutputStream stream, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            stream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        stream.write((int) value);
+    }
+}
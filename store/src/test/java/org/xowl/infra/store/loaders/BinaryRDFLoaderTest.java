@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.loaders;
+
+import fr.cenotelie.commons.utils.logging.SinkLogger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.rdf.Quad;
+import org.xowl.infra.store.storage.BaseStore;
+import org.xowl.infra.store.storage.StoreFactory;
+import org.xowl.infra.store.writers.BinaryRDFSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Tests for the compact binary RDF format
+ *
+ * @author Laurent Wouters
+ */
+public class BinaryRDFLoaderTest {
+    /**
+     * The IRI of the default graph for the tests
+     */
+    private static final String GRAPH = "http://xowl.org/infra/tests/g";
+
+    /**
+     * The tested content
+     */
+    private static final String CONTENT = "<http://xowl.org/infra/tests/x> <http://xowl.org/infra/tests/p> <http://xowl.org/infra/tests/y> .\n" +
+            "_:b1 <http://xowl.org/infra/tests/p> \"simple\" .\n" +
+            "_:b1 <http://xowl.org/infra/tests/p> \"esc\\\"aped\\u00E9\"@en-US <http://xowl.org/infra/tests/g2> .\n" +
+            "<http://xowl.org/infra/tests/x> <http://xowl.org/infra/tests/p> \"1\"^^<http://www.w3.org/2001/XMLSchema#integer> _:b2 .\n" +
+            "<http://xowl.org/infra/tests/x> <http://xowl.org/infra/tests/q> _:b1 .\n";
+
+    @Test
+    public void testRoundTrip() {
+        testRoundTrip(BinaryRDFSerializer.DEFAULT_BLOCK_SIZE, BinaryRDFSerializer.DEFAULT_MAX_DICTIONARY);
+    }
+
+    @Test
+    public void testSmallBlocksAndDictionary() {
+        testRoundTrip(16, 6);
+    }
+
+    /**
+     * Tests that the quads are the same after serializing and loading them
+     *
+     * @param blockSize     The size of the uncompressed content of a block
+     * @param maxDictionary The maximum number of strings in the dictionary
+     */
+    private void testRoundTrip(int blockSize, int maxDictionary) {
+        SinkLogger logger = new SinkLogger();
+        BaseStore expectedStore = StoreFactory.create().make();
+        RDFLoaderResult expected = new NQuadsLoader(expectedStore).loadRDF(logger, new StringReader(CONTENT), GRAPH, GRAPH);
+        Assert.assertNotNull(expected);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BinaryRDFSerializer(output, blockSize, maxDictionary).serialize(logger, expected.getQuads().iterator());
+        Assert.assertFalse(logger.isOnError());
+
+        BaseStore store = StoreFactory.create().make();
+        long count = new BinaryRDFLoader(store, 2).load(logger, new ByteArrayInputStream(output.toByteArray()), store);
+        Assert.assertFalse(logger.isOnError());
+        Assert.assertEquals(5, count);
+        List<Quad> tested = new ArrayList<>();
+        Iterator<Quad> iterator = store.getAll();
+        while (iterator.hasNext())
+            tested.add(iterator.next());
+        W3CTestSuite.matchesQuads(expected.getQuads(), tested);
+    }
+
+    @Test
+    public void testLargeLiteral() {
+        BaseStore expectedStore = StoreFactory.create().make();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i != BinaryRDFSerializer.MAX_BLOCK_SIZE * 2; i++)
+            builder.append((char) ('a' + (i % 26)));
+        List<Quad> expected = new ArrayList<>();
+        for (int i = 0; i != 3; i++) {
+            expected.add(new Quad(
+                    expectedStore.getIRINode(GRAPH),
+                    expectedStore.getIRINode(GRAPH + "#s" + i),
+                    expectedStore.getIRINode(GRAPH + "#p"),
+                    expectedStore.getLiteralNode(i == 1 ? builder.toString() : "value", null, null)));
+        }
+
+        // the quad with the large literal is alone in its block
+        SinkLogger logger = new SinkLogger();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BinaryRDFSerializer(output).serialize(logger, expected.iterator());
+        Assert.assertFalse(logger.isOnError());
+
+        BaseStore store = StoreFactory.create().make();
+        long count = new BinaryRDFLoader(store).load(logger, new ByteArrayInputStream(output.toByteArray()), store);
+        Assert.assertFalse(logger.isOnError());
+        Assert.assertEquals(3, count);
+        List<Quad> tested = new ArrayList<>();
+        Iterator<Quad> iterator = store.getAll();
+        while (iterator.hasNext())
+            tested.add(iterator.next());
+        W3CTestSuite.matchesQuads(expected, tested);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBlockSize() {
+        new BinaryRDFSerializer(new ByteArrayOutputStream(), BinaryRDFSerializer.MAX_BLOCK_SIZE + 1, BinaryRDFSerializer.DEFAULT_MAX_DICTIONARY);
+    }
+
+    @Test
+    public void testIterate() {
+        SinkLogger logger = new SinkLogger();
+        BaseStore expectedStore = StoreFactory.create().make();
+        RDFLoaderResult expected = new NQuadsLoader(expectedStore).loadRDF(logger, new StringReader(CONTENT), GRAPH, GRAPH);
+        Assert.assertNotNull(expected);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BinaryRDFSerializer(output, 16, 6).serialize(logger, expected.getQuads().iterator());
+
+        List<Quad> tested = new ArrayList<>();
+        Iterator<Quad> iterator = new BinaryRDFLoader().iterate(logger, new ByteArrayInputStream(output.toByteArray()));
+        while (iterator.hasNext())
+            tested.add(iterator.next());
+        Assert.assertFalse(logger.isOnError());
+        W3CTestSuite.matchesQuads(expected.getQuads(), tested);
+    }
+
+    @Test
+    public void testIterateTruncatedInput() {
+        SinkLogger logger = new SinkLogger();
+        BaseStore expectedStore = StoreFactory.create().make();
+        RDFLoaderResult expected = new NQuadsLoader(expectedStore).loadRDF(logger, new StringReader(CONTENT), GRAPH, GRAPH);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BinaryRDFSerializer(output).serialize(logger, expected.getQuads().iterator());
+        byte[] content = output.toByteArray();
+
+        Iterator<Quad> iterator = new BinaryRDFLoader().iterate(logger, new ByteArrayInputStream(Arrays.copyOf(content, content.length - 1)));
+        while (iterator.hasNext())
+            iterator.next();
+        Assert.assertTrue(logger.isOnError());
+    }
+
+    @Test
+    public void testTruncatedInput() {
+        SinkLogger logger = new SinkLogger();
+        BaseStore expectedStore = StoreFactory.create().make();
+        RDFLoaderResult expected = new NQuadsLoader(expectedStore).loadRDF(logger, new StringReader(CONTENT), GRAPH, GRAPH);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BinaryRDFSerializer(output).serialize(logger, expected.getQuads().iterator());
+        byte[] content = output.toByteArray();
+
+        BaseStore store = StoreFactory.create().make();
+        long count = new BinaryRDFLoader(store).load(logger, new ByteArrayInputStream(Arrays.copyOf(content, content.length - 1)), store);
+        Assert.assertTrue(logger.isOnError());
+        Assert.assertEquals(-1, count);
+    }
+
+    @Test
+    public void testNotBinary() {
+        SinkLogger logger = new SinkLogger();
+        BaseStore store = StoreFactory.create().make();
+        long count = new BinaryRDFLoader(store).load(logger, new ByteArrayInputStream(CONTENT.getBytes()), store);
+        Assert.assertTrue(logger.isOnError());
+        Assert.assertEquals(-1, count);
+    }
+
+    /**
+     * Builds an input in the binary RDF format with a single block
+     *
+     * @param content          The uncompressed content of the block
+     * @param contentLength    The declared uncompressed length of the block
+     * @param compressedLength The declared compressed length of the block, or -1 to use the actual one
+     * @return The input
+     */
+    private static byte[] buildInput(byte[] content, int contentLength, int compressedLength) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(content);
+        deflater.finish();
+        byte[] compressed = new byte[content.length + 64];
+        int length = deflater.deflate(compressed);
+        deflater.end();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(BinaryRDFSerializer.MAGIC, 0, BinaryRDFSerializer.MAGIC.length);
+        writeVarint(output, BinaryRDFSerializer.VERSION);
+        output.write(BinaryRDFSerializer.BLOCK_DATA);
+        writeVarint(output, contentLength);
+        writeVarint(output, compressedLength >= 0 ? compressedLength : length);
+        output.write(compressed, 0, length);
+        output.write(BinaryRDFSerializer.BLOCK_END);
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes an unsigned varint
+     *
+     * @param stream The stream to write to
+     * @param value  The value to write
+     */
+    private static void writeVarint(ByteArrayOutputStream stream, long value) {
+        while ((value & ~0x7FL) != 0) {
+            stream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        stream.write((int) value);
+    }
+
+    @Test
+    public void testTooLargeBlock() {
+        byte[] content = new byte[]{BinaryRDFSerializer.RECORD_RESET};
+        SinkLogger logger = new SinkLogger();
+        BaseStore store = StoreFactory.create().make();
+        // the declared lengths are not trusted for allocating the buffers
+        // the uncompressed length is more than what the compressed content can be inflated to
+        long count = new BinaryRDFLoader(store).load(logger, new ByteArrayInputStream(buildInput(content, Integer.MAX_VALUE, -1)), store);
+        Assert.assertTrue(logger.isOnError());
+        Assert.assertEquals(-1, count);
+
+        // the compressed content is much shorter than declared
+        logger = new SinkLogger();
+        count = new BinaryRDFLoader(store).load(logger, new ByteArrayInputStream(buildInput(content, content.length, Integer.MAX_VALUE)), store);
+        Assert.assertTrue(logger.isOnError());
+        Assert.assertEquals(-1, count);
+
+        // a valid block is still accepted
+        logger = new SinkLogger();
+        count = new BinaryRDFLoader(store).load(logger, new ByteArrayInputStream(buildInput(content, content.length, -1)), store);
+        Assert.assertFalse(logger.isOnError());
+        Assert.assertEquals(0, count);
+    }
+
+    @Test
+    public void testNegativeStringIdentifier() {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(BinaryRDFSerializer.RECORD_STRING);
+        writeVarint(content, GRAPH.length());
+        content.write(GRAPH.getBytes(), 0, GRAPH.length());
+        content.write(BinaryRDFSerializer.RECORD_QUAD);
+        content.write(BinaryRDFSerializer.TERM_IRI);
+        writeVarint(content, 1);
+        content.write(BinaryRDFSerializer.TERM_IRI);
+        writeVarint(content, 1);
+        content.write(BinaryRDFSerializer.TERM_LITERAL);
+        writeVarint(content, 1);
+        content.write('x');
+        // the datatype identifier overflows to -1
+        writeVarint(content, 0xFFFFFFFFL);
+        writeVarint(content, 0);
+        content.write(BinaryRDFSerializer.TERM_IRI);
+        writeVarint(content, 1);
+        byte[] bytes = content.toByteArray();
+
+        SinkLogger logger = new SinkLogger();
+        BaseStore store = StoreFactory.create().make();
+        long count = new BinaryRDFLoader(store).load(logger, new ByteArrayInputStream(buildInput(bytes, bytes.length, -1)), store);
+        Assert.assertTrue(logger.isOnError());
+        Assert.assertEquals(-1, count);
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.loaders;
+
+import fr.cenotelie.commons.utils.logging.SinkLogger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.rdf.Quad;
+import org.xowl.infra.store.storage.BaseStore;
+import org.xowl.infra.store.storage.StoreFactory;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for the streaming N-Triples and N-Quads loader
+ *
+ * @author Laurent Wouters
+ */
+public class NQuadsStreamLoaderTest {
+    /**
+     * The IRI of the default graph for the tests
+     */
+    private static final String GRAPH = "http://xowl.org/infra/tests/g";
+
+    /**
+     * The tested content
+     */
+    private static final String CONTENT = "# comment\n" +
+            "<http://xowl.org/infra/tests/x> <http://xowl.org/infra/tests/p> <http://xowl.org/infra/tests/y> .\n" +
+            "\n" +
+            "_:b1 <http://xowl.org/infra/tests/p> \"simple\" .\n" +
+            "_:b1 <http://xowl.org/infra/tests/p> \"esc\\\"aped\\u00E9\"@en-US <http://xowl.org/infra/tests/g2> .\n" +
+            "<http://xowl.org/infra/tests/x> <http://xowl.org/infra/tests/p> \"1\"^^<http://www.w3.org/2001/XMLSchema#integer> _:b2 . # comment\r\n" +
+            "<http://xowl.org/infra/tests/x>\t<http://xowl.org/infra/tests/p>\t_:b1.\n";
+
+    @Test
+    public void testSameAsLoader() {
+        SinkLogger logger = new SinkLogger();
+        BaseStore expectedStore = StoreFactory.create().make();
+        RDFLoaderResult expected = new NQuadsLoader(expectedStore).loadRDF(logger, new StringReader(CONTENT), GRAPH, GRAPH);
+        Assert.assertNotNull(expected);
+
+        BaseStore store = StoreFactory.create().make();
+        long count = new NQuadsStreamLoader(store, true, 2).load(logger, new StringReader(CONTENT), GRAPH, store);
+        Assert.assertFalse(logger.isOnError());
+        Assert.assertEquals(5, count);
+        List<Quad> tested = new ArrayList<>();
+        Iterator<Quad> iterator = store.getAll();
+        while (iterator.hasNext())
+            tested.add(iterator.next());
+        W3CTestSuite.matchesQuads(expected.getQuads(), tested);
+    }
+
+    @Test
+    public void testParallel() {
+        SinkLogger logger = new SinkLogger();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i != 1000; i++)
+            builder.append("_:b").append(i % 10).append(" <http://xowl.org/infra/tests/p> \"").append(i).append("\" .\n");
+        BaseStore store = StoreFactory.create().make();
+        long count = new NQuadsStreamLoader(store, true, 7, 4).load(logger, new StringReader(builder.toString()), GRAPH, store);
+        Assert.assertFalse(logger.isOnError());
+        Assert.assertEquals(1000, count);
+        Assert.assertEquals(1000, store.count());
+        Iterator<Quad> iterator = store.getAll();
+        List<Object> subjects = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Quad quad = iterator.next();
+            if (!subjects.contains(quad.getSubject()))
+                subjects.add(quad.getSubject());
+        }
+        Assert.assertEquals(10, subjects.size());
+    }
+
+    @Test
+    public void testGraphInTriples() {
+        SinkLogger logger = new SinkLogger();
+        BaseStore store = StoreFactory.create().make();
+        long count = new NQuadsStreamLoader(store, false).load(logger, new StringReader(CONTENT), GRAPH, store);
+        Assert.assertTrue(logger.isOnError());
+        Assert.assertEquals(-1, count);
+    }
+
+    @Test
+    public void testRelativeIRI() {
+        SinkLogger logger = new SinkLogger();
+        BaseStore store = StoreFactory.create().make();
+        long count = new NQuadsStreamLoader(store, true).load(logger, new StringReader("<x> <http://xowl.org/infra/tests/p> <http://xowl.org/infra/tests/y> .\n"), GRAPH, store);
+        Assert.assertTrue(logger.isOnError());
+        Assert.assertEquals(-1, count);
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.rdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.storage.BaseStore;
+import org.xowl.infra.store.storage.StoreFactory;
+import org.xowl.infra.store.storage.UnsupportedNodeType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for the RDF query engine
+ *
+ * @author Laurent Wouters
+ */
+public class RDFQueryEngineTest {
+    /**
+     * The prefix of the test IRIs
+     */
+    private static final String PREFIX = "http://xowl.org/infra/tests/";
+
+    @Test
+    public void testDirectSameAsRETE() throws UnsupportedNodeType {
+        BaseStore store = StoreFactory.create().make();
+        GraphNode graph = store.getIRINode(PREFIX + "g");
+        Property type = store.getIRINode(PREFIX + "type");
+        Property knows = store.getIRINode(PREFIX + "knows");
+        Property name = store.getIRINode(PREFIX + "name");
+        IRINode person = store.getIRINode(PREFIX + "Person");
+        IRINode robot = store.getIRINode(PREFIX + "Robot");
+        for (int i = 0; i != 50; i++) {
+            IRINode x = store.getIRINode(PREFIX + "x" + i);
+            store.add(graph, x, type, i % 7 == 0 ? robot : person);
+            store.add(graph, x, name, store.getLiteralNode("x" + i, null, null));
+            store.add(graph, x, knows, store.getIRINode(PREFIX + "x" + ((i * 3) % 50)));
+            store.add(graph, x, knows, store.getIRINode(PREFIX + "x" + ((i + 1) % 50)));
+        }
+
+        VariableNode x = new VariableNode("x");
+        VariableNode y = new VariableNode("y");
+        VariableNode n = new VariableNode("n");
+        RDFQuery query = new RDFQuery();
+        query.getPositives().add(new Quad(graph, x, type, person));
+        query.getPositives().add(new Quad(graph, x, knows, y));
+        query.getPositives().add(new Quad(graph, y, name, n));
+        query.getNegatives().add(Collections.singletonList(new Quad(graph, y, type, robot)));
+
+        RDFQueryEngine engine = new RDFQueryEngine(store);
+        // the first execution is evaluated directly, the second one through the RETE network
+        Collection<RDFPatternSolution> direct = engine.execute(query);
+        Collection<RDFPatternSolution> rete = engine.execute(query);
+        Assert.assertFalse(direct.isEmpty());
+        Assert.assertEquals(rete.size(), direct.size());
+        List<RDFPatternSolution> remaining = new ArrayList<>(rete);
+        for (RDFPatternSolution solution : direct)
+            Assert.assertTrue("Unexpected solution", remaining.remove(solution));
+        for (RDFPatternSolution solution : direct) {
+            Assert.assertNotNull(solution.get(x));
+            Assert.assertNotNull(solution.get(y));
+            Assert.assertNotNull(solution.get(n));
+        }
+    }
+
+    @Test
+    public void testDirectRepeatedVariable() throws UnsupportedNodeType {
+        BaseStore store = StoreFactory.create().make();
+        GraphNode graph = store.getIRINode(PREFIX + "g");
+        Property knows = store.getIRINode(PREFIX + "knows");
+        for (int i = 0; i != 10; i++) {
+            IRINode x = store.getIRINode(PREFIX + "x" + i);
+            store.add(graph, x, knows, i % 2 == 0 ? x : store.getIRINode(PREFIX + "y"));
+        }
+        VariableNode x = new VariableNode("x");
+        RDFQuery query = new RDFQuery();
+        query.getPositives().add(new Quad(graph, x, knows, x));
+        Collection<RDFPatternSolution> solutions = new RDFQueryEvaluator(store).execute(query);
+        Assert.assertEquals(5, solutions.size());
+    }
+
+    @Test
+    public void testCacheRenamedVariables() throws UnsupportedNodeType {
+        BaseStore store = StoreFactory.create().make();
+        GraphNode graph = store.getIRINode(PREFIX + "g");
+        Property knows = store.getIRINode(PREFIX + "knows");
+        for (int i = 0; i != 10; i++)
+            store.add(graph, store.getIRINode(PREFIX + "x" + i), knows, store.getIRINode(PREFIX + "x" + ((i + 1) % 10)));
+
+        RDFQueryEngine engine = new RDFQueryEngine(store);
+        for (int i = 0; i != 3; i++) {
+            VariableNode a = new VariableNode("a" + i);
+            VariableNode b = new VariableNode("b" + i);
+            VariableNode c = new VariableNode("c" + i);
+            RDFQuery query = new RDFQuery();
+            // evaluated directly, then through a new RETE rule, then from the cache
+            query.getPositives().add(new Quad(graph, a, knows, b));
+            query.getPositives().add(new Quad(graph, b, knows, c));
+            Collection<RDFPatternSolution> solutions = engine.execute(query);
+            Assert.assertEquals(10, solutions.size());
+            for (RDFPatternSolution solution : solutions) {
+                Assert.assertNotNull(solution.get(a));
+                Assert.assertNotNull(solution.get(b));
+                Assert.assertNotNull(solution.get(c));
+            }
+        }
+    }
+}
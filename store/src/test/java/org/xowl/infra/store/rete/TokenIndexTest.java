@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.rete;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.rdf.*;
+import org.xowl.infra.store.storage.BaseStore;
+import org.xowl.infra.store.storage.StoreFactory;
+
+import java.util.Collection;
+
+/**
+ * Tests for the hash indexes of the tokens in the beta memories and for the refined lookups in the alpha memories
+ *
+ * @author Laurent Wouters
+ */
+public class TokenIndexTest {
+    /**
+     * The store for the nodes of the tests
+     */
+    private final BaseStore store = StoreFactory.create().make();
+    /**
+     * The graph of the tested facts
+     */
+    private final GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+    /**
+     * A property of the tested facts
+     */
+    private final Property property = store.getIRINode("http://xowl.org/infra/tests/p");
+    /**
+     * The bound variable
+     */
+    private final VariableNode variable = new VariableNode("x");
+
+    /**
+     * Creates a fact on the test property
+     *
+     * @param subject The subject's name
+     * @param value   The value
+     * @return The fact
+     */
+    private Quad fact(String subject, String value) {
+        return new Quad(graph, store.getIRINode("http://xowl.org/infra/tests/" + subject), property, store.getLiteralNode(value, null, null));
+    }
+
+    /**
+     * Creates a beta memory that binds the variable to the subject of the facts
+     *
+     * @return The beta memory
+     */
+    private BetaMemory newMemory() {
+        return new BetaMemory(new Binder[]{new Binder(variable, QuadField.SUBJECT), null, null, null}, 1);
+    }
+
+    @Test
+    public void testCreateWithoutBoundTests() {
+        Assert.assertNull(TokenIndex.create(null, null, null, null));
+        Assert.assertNotNull(TokenIndex.create(new JoinTestBound(variable, QuadField.SUBJECT), null, null, null));
+    }
+
+    @Test
+    public void testAddRemove() {
+        TokenIndex index = TokenIndex.create(new JoinTestBound(variable, QuadField.SUBJECT));
+        Token token1 = new Token(new Token(), 1);
+        token1.bind(variable, store.getIRINode("http://xowl.org/infra/tests/a"));
+        Token token2 = new Token(new Token(), 1);
+        token2.bind(variable, store.getIRINode("http://xowl.org/infra/tests/a"));
+        Token token3 = new Token(new Token(), 1);
+        token3.bind(variable, store.getIRINode("http://xowl.org/infra/tests/b"));
+        index.add(token1);
+        index.add(token2);
+        index.add(token3);
+        Assert.assertEquals(2, index.get(fact("a", "v")).size());
+        Assert.assertEquals(1, index.get(fact("b", "v")).size());
+        Assert.assertEquals(0, index.get(fact("c", "v")).size());
+        index.remove(token1);
+        Collection<Token> tokens = index.get(fact("a", "v"));
+        Assert.assertEquals(1, tokens.size());
+        Assert.assertSame(token2, tokens.iterator().next());
+        index.remove(token2);
+        Assert.assertEquals(0, index.get(fact("a", "v")).size());
+        index.clear();
+        Assert.assertEquals(0, index.get(fact("b", "v")).size());
+    }
+
+    @Test
+    public void testMemoryActivation() {
+        BetaMemory memory = newMemory();
+        TokenIndex index = memory.createIndex(new JoinTestBound(variable, QuadField.SUBJECT), null, null, null);
+        Token root = new Token();
+        memory.activate(root, fact("a", "1"));
+        memory.activate(root, fact("a", "2"));
+        memory.activate(root, fact("b", "3"));
+        Assert.assertEquals(2, memory.getTokens(index, fact("a", "x")).size());
+        Assert.assertEquals(1, memory.getTokens(index, fact("b", "x")).size());
+        Assert.assertEquals(0, memory.getTokens(index, fact("c", "x")).size());
+        memory.deactivateToken(root);
+        Assert.assertEquals(0, memory.getTokens(index, fact("a", "x")).size());
+        Assert.assertEquals(0, memory.getTokens(index, fact("b", "x")).size());
+    }
+
+    @Test
+    public void testMemoryDeactivateCouple() {
+        BetaMemory memory = newMemory();
+        TokenIndex index = memory.createIndex(new JoinTestBound(variable, QuadField.SUBJECT), null, null, null);
+        Token root = new Token();
+        memory.activate(root, fact("a", "1"));
+        memory.activate(root, fact("b", "2"));
+        memory.deactivateCouple(root, fact("a", "1"));
+        Assert.assertEquals(0, memory.getTokens(index, fact("a", "x")).size());
+        Assert.assertEquals(1, memory.getTokens(index, fact("b", "x")).size());
+        memory.deactivateCouple(root, fact("b", "2"));
+        Assert.assertEquals(0, memory.getTokens(index, fact("b", "x")).size());
+        Assert.assertEquals(0, memory.getTokens().size());
+    }
+
+    @Test
+    public void testCreateIndexOnFilledMemory() {
+        BetaMemory memory = newMemory();
+        Token root = new Token();
+        memory.activate(root, fact("a", "1"));
+        memory.activate(root, fact("b", "2"));
+        TokenIndex index = memory.createIndex(new JoinTestBound(variable, QuadField.SUBJECT), null, null, null);
+        Assert.assertEquals(1, memory.getTokens(index, fact("a", "x")).size());
+        Assert.assertEquals(1, memory.getTokens(index, fact("b", "x")).size());
+        memory.activate(root, fact("a", "3"));
+        Assert.assertEquals(2, memory.getTokens(index, fact("a", "x")).size());
+        memory.removeIndex(index);
+        memory.activate(root, fact("b", "4"));
+        Assert.assertEquals("A removed index is no longer maintained", 1, memory.getTokens(index, fact("b", "x")).size());
+    }
+
+    @Test
+    public void testAlphaFactsForToken() throws Exception {
+        store.add(fact("a", "1"));
+        store.add(fact("b", "2"));
+        AlphaMemory memory = new AlphaMemory(new Quad(new VariableNode("g"), new VariableNode("s"), property, new VariableNode("o")), store);
+        JoinTest test = new JoinTestBound(variable, QuadField.SUBJECT);
+
+        Token token = new Token(new Token(), 1);
+        token.bind(variable, store.getIRINode("http://xowl.org/infra/tests/a"));
+        Collection<Quad> facts = memory.getFacts(token, test, null, null, null);
+        Assert.assertEquals(1, facts.size());
+        Assert.assertEquals(store.getIRINode("http://xowl.org/infra/tests/a"), facts.iterator().next().getSubject());
+
+        // without bound test, all the facts of the pattern
+        Assert.assertEquals(2, memory.getFacts(token, null, null, null, null).size());
+
+        // a value that cannot be a subject does not match any fact
+        Token literal = new Token(new Token(), 1);
+        literal.bind(variable, store.getLiteralNode("1", null, null));
+        Assert.assertEquals(0, memory.getFacts(literal, test, null, null, null).size());
+    }
+}
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.sparql;
+
+import fr.cenotelie.commons.utils.collections.Couple;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.Vocabulary;
+import org.xowl.infra.store.execution.EvaluationException;
+import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
+import org.xowl.infra.store.rdf.VariableNode;
+import org.xowl.infra.store.storage.NodeManager;
+import org.xowl.infra.store.storage.StoreFactory;
+
+import java.util.*;
+
+/**
+ * Tests that the solutions of the graph patterns produced on demand are the same as the materialized ones
+ *
+ * @author Laurent Wouters
+ */
+public class GraphPatternIterateTest {
+    /**
+     * The node manager for the values
+     */
+    private final NodeManager nodes = StoreFactory.create().make();
+    /**
+     * The variable ?x
+     */
+    private final VariableNode x = new VariableNode("x");
+    /**
+     * The variable ?y
+     */
+    private final VariableNode y = new VariableNode("y");
+    /**
+     * The variable ?z
+     */
+    private final VariableNode z = new VariableNode("z");
+
+    /**
+     * A graph pattern that counts the solutions that are retrieved from it
+     */
+    private static class CountingPattern implements GraphPattern {
+        /**
+         * The solutions of this pattern
+         */
+        private final Collection<RDFPatternSolution> data;
+        /**
+         * The number of retrieved solutions
+         */
+        public int retrieved;
+
+        /**
+         * Initializes this pattern
+         *
+         * @param data The solutions of this pattern
+         */
+        public CountingPattern(Collection<RDFPatternSolution> data) {
+            this.data = data;
+        }
+
+        @Override
+        public Solutions eval(EvalContext context) throws EvaluationException {
+            retrieved += data.size();
+            return new SolutionsMultiset(data);
+        }
+
+        @Override
+        public Iterator<RDFPatternSolution> iterate(EvalContext context) throws EvaluationException {
+            final Iterator<RDFPatternSolution> inner = data.iterator();
+            return new Iterator<RDFPatternSolution>() {
+                @Override
+                public boolean hasNext() {
+                    return inner.hasNext();
+                }
+
+                @Override
+                public RDFPatternSolution next() {
+                    retrieved++;
+                    return inner.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void inspect(Inspector inspector) {
+        }
+
+        @Override
+        public GraphPattern clone(Map<String, Node> parameters) {
+            return new CountingPattern(data);
+        }
+    }
+
+    /**
+     * Gets an IRI node
+     *
+     * @param name The local name
+     * @return The node
+     */
+    private Node iri(String name) {
+        return nodes.getIRINode("http://xowl.org/infra/tests/" + name);
+    }
+
+    /**
+     * Gets an integer literal node
+     *
+     * @param value The value
+     * @return The node
+     */
+    private Node integer(int value) {
+        return nodes.getLiteralNode(Integer.toString(value), Vocabulary.xsdInteger, null);
+    }
+
+    /**
+     * Builds a solution
+     *
+     * @param bindings The variables and their values, in sequence
+     * @return The solution
+     */
+    private static RDFPatternSolution solution(Object... bindings) {
+        List<Couple<VariableNode, Node>> result = new ArrayList<>();
+        for (int i = 0; i != bindings.length; i += 2)
+            result.add(new Couple<>((VariableNode) bindings[i], (Node) bindings[i + 1]));
+        return new RDFPatternSolution(result);
+    }
+
+    /**
+     * Gets the pattern for the solutions on the left
+     *
+     * @return The pattern
+     */
+    private GraphPattern left() {
+        return new GraphPatternInlineData(Arrays.asList(
+                solution(x, iri("a"), y, integer(3)),
+                solution(x, iri("b"), y, integer(1)),
+                solution(x, iri("c")),
+                solution(x, iri("a"), y, integer(2)),
+                solution(x, iri("d"), y, integer(1))));
+    }
+
+    /**
+     * Gets the pattern for the solutions on the right
+     *
+     * @return The pattern
+     */
+    private GraphPattern right() {
+        return new GraphPatternInlineData(Arrays.asList(
+                solution(x, iri("a"), z, integer(10)),
+                solution(x, iri("b"), z, integer(11)),
+                solution(x, iri("a"), z, integer(12)),
+                solution(x, iri("e"), z, integer(13))));
+    }
+
+    /**
+     * Gets the solutions of a stream
+     *
+     * @param solutions The stream of solutions
+     * @return The solutions
+     */
+    private static List<RDFPatternSolution> toList(Iterator<RDFPatternSolution> solutions) {
+        List<RDFPatternSolution> result = new ArrayList<>();
+        while (solutions.hasNext())
+            result.add(solutions.next());
+        return result;
+    }
+
+    /**
+     * Asserts that the solutions of a pattern produced on demand are the materialized ones
+     *
+     * @param pattern The pattern to evaluate
+     * @return The number of solutions
+     * @throws EvaluationException When the evaluation failed
+     */
+    private static int assertSame(GraphPattern pattern) throws EvaluationException {
+        List<RDFPatternSolution> expected = toList(pattern.eval(null).iterator());
+        List<RDFPatternSolution> actual = toList(pattern.iterate(null));
+        Assert.assertEquals(expected, actual);
+        return actual.size();
+    }
+
+    /**
+     * Asserts that a modifier gives the same solutions on a stream as on materialized solutions
+     *
+     * @param modifier The modifier to apply
+     * @param pattern  The pattern to evaluate
+     * @return The number of solutions
+     * @throws EvaluationException When the evaluation failed
+     */
+    private static int assertSame(GraphPatternModifier modifier, GraphPattern pattern) throws EvaluationException {
+        List<RDFPatternSolution> expected = toList(modifier.apply(pattern.eval(null), null).iterator());
+        List<RDFPatternSolution> actual = toList(modifier.apply(pattern.iterate(null), null));
+        Assert.assertEquals(expected, actual);
+        return actual.size();
+    }
+
+    @Test
+    public void testJoin() throws EvaluationException {
+        Assert.assertEquals(5, assertSame(new GraphPatternJoin(left(), right())));
+    }
+
+    @Test
+    public void testLeftJoin() throws EvaluationException {
+        Expression expression = new ExpressionOperator(ExpressionOperator.Op.Greater, new ExpressionRDF(z), new ExpressionRDF(integer(10)));
+        Assert.assertEquals(5, assertSame(new GraphPatternLeftJoin(left(), right(), expression)));
+        Assert.assertEquals(5, assertSame(new GraphPatternLeftJoin(left(), right(), new ExpressionConstant(true))));
+    }
+
+    @Test
+    public void testMinus() throws EvaluationException {
+        Assert.assertEquals(2, assertSame(new GraphPatternMinus(left(), right())));
+    }
+
+    @Test
+    public void testUnion() throws EvaluationException {
+        Assert.assertEquals(9, assertSame(new GraphPatternUnion(Arrays.asList(left(), right()))));
+        Assert.assertEquals(0, assertSame(new GraphPatternUnion(new ArrayList<GraphPattern>())));
+    }
+
+    @Test
+    public void testNested() throws EvaluationException {
+        GraphPattern union = new GraphPatternUnion(Arrays.asList(left(), right()));
+        assertSame(new GraphPatternJoin(new GraphPatternMinus(left(), right()), union));
+        assertSame(new GraphPatternLeftJoin(union, new GraphPatternJoin(left(), right()), new ExpressionConstant(true)));
+    }
+
+    @Test
+    public void testModifierSlice() throws EvaluationException {
+        GraphPatternModifier modifier = new GraphPatternModifier();
+        modifier.setOffset(1);
+        modifier.setLimit(2);
+        Assert.assertEquals(2, assertSame(modifier, new GraphPatternJoin(left(), right())));
+        modifier.setOffset(10);
+        Assert.assertEquals(0, assertSame(modifier, new GraphPatternJoin(left(), right())));
+    }
+
+    @Test
+    public void testModifierOrder() throws EvaluationException {
+        GraphPatternModifier modifier = new GraphPatternModifier();
+        modifier.addOrdering(new ExpressionRDF(y), true);
+        modifier.addOrdering(new ExpressionRDF(z));
+        Assert.assertEquals(5, assertSame(modifier, new GraphPatternLeftJoin(left(), right(), new ExpressionConstant(true))));
+        modifier.setLimit(3);
+        Assert.assertEquals(3, assertSame(modifier, new GraphPatternLeftJoin(left(), right(), new ExpressionConstant(true))));
+    }
+
+    @Test
+    public void testModifierHaving() throws EvaluationException {
+        GraphPatternModifier modifier = new GraphPatternModifier();
+        modifier.addConstraint(new ExpressionOperator(ExpressionOperator.Op.Less, new ExpressionRDF(z), new ExpressionRDF(integer(12))));
+        Assert.assertEquals(3, assertSame(modifier, new GraphPatternJoin(left(), right())));
+    }
+
+    @Test
+    public void testLimitStopsRetrieval() throws EvaluationException {
+        List<RDFPatternSolution> data = new ArrayList<>();
+        for (int i = 0; i != 100; i++)
+            data.add(solution(x, iri("a"), y, integer(i)));
+        CountingPattern counting = new CountingPattern(data);
+        GraphPatternModifier modifier = new GraphPatternModifier();
+        modifier.setLimit(2);
+        GraphPatternSelect select = new GraphPatternSelect(false, false, new GraphPatternJoin(counting, right()), modifier, null);
+        Assert.assertEquals(2, toList(select.iterate(null)).size());
+        Assert.assertTrue("The solutions shall be retrieved on demand", counting.retrieved < data.size());
+    }
+}
@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.sparql;
+
+import fr.cenotelie.commons.utils.collections.Couple;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.Vocabulary;
+import org.xowl.infra.store.execution.EvaluationException;
+import org.xowl.infra.store.execution.EvaluationUtils;
+import org.xowl.infra.store.rdf.IRINode;
+import org.xowl.infra.store.rdf.Node;
+import org.xowl.infra.store.rdf.RDFPatternSolution;
+import org.xowl.infra.store.rdf.VariableNode;
+import org.xowl.infra.store.storage.NodeManager;
+import org.xowl.infra.store.storage.StoreFactory;
+
+import java.util.*;
+
+/**
+ * Tests for the hash join, left join and minus operations on solutions, and for the ordering of the first solutions
+ * The results are checked against the nested loops over the solutions and the full sort of the solutions.
+ *
+ * @author Laurent Wouters
+ */
+public class UtilsTest {
+    /**
+     * The node manager for the values
+     */
+    private final NodeManager nodes = StoreFactory.create().make();
+    /**
+     * The variable ?x
+     */
+    private final VariableNode x = new VariableNode("x");
+    /**
+     * The variable ?y
+     */
+    private final VariableNode y = new VariableNode("y");
+    /**
+     * The variable ?z
+     */
+    private final VariableNode z = new VariableNode("z");
+
+    /**
+     * Gets an IRI node
+     *
+     * @param name The local name
+     * @return The node
+     */
+    private Node iri(String name) {
+        return nodes.getIRINode("http://xowl.org/infra/tests/" + name);
+    }
+
+    /**
+     * Gets an integer literal node
+     *
+     * @param value The value
+     * @return The node
+     */
+    private Node integer(int value) {
+        return nodes.getLiteralNode(Integer.toString(value), Vocabulary.xsdInteger, null);
+    }
+
+    /**
+     * Builds a solution
+     *
+     * @param bindings The variables and their values, in sequence
+     * @return The solution
+     */
+    private static RDFPatternSolution solution(Object... bindings) {
+        List<Couple<VariableNode, Node>> result = new ArrayList<>();
+        for (int i = 0; i != bindings.length; i += 2)
+            result.add(new Couple<>((VariableNode) bindings[i], (Node) bindings[i + 1]));
+        return new RDFPatternSolution(result);
+    }
+
+    /**
+     * Computes the join of solutions with nested loops
+     *
+     * @param left  The solutions on the left
+     * @param right The solutions on the right
+     * @return The joined solutions
+     */
+    private static List<RDFPatternSolution> nestedJoin(List<RDFPatternSolution> left, List<RDFPatternSolution> right) {
+        List<RDFPatternSolution> result = new ArrayList<>();
+        for (RDFPatternSolution l : left) {
+            for (RDFPatternSolution r : right) {
+                RDFPatternSolution j = Utils.merge(l, r);
+                if (j != null)
+                    result.add(j);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the left join of solutions with nested loops
+     *
+     * @param left       The solutions on the left
+     * @param right      The solutions on the right
+     * @param expression The expression for the value
+     * @return The joined solutions
+     */
+    private static List<RDFPatternSolution> nestedLeftJoin(List<RDFPatternSolution> left, List<RDFPatternSolution> right, Expression expression) {
+        List<RDFPatternSolution> result = new ArrayList<>();
+        for (RDFPatternSolution l : left) {
+            RDFPatternSolution match = l;
+            for (RDFPatternSolution r : right) {
+                if (Utils.compatible(l, r)) {
+                    RDFPatternSolution merge = Utils.merge(l, r);
+                    try {
+                        if (EvaluationUtils.bool(EvaluationUtils.primitive(expression.eval(null, merge))))
+                            match = merge;
+                    } catch (EvaluationException exception) {
+                        // do nothing
+                    }
+                    break;
+                }
+            }
+            result.add(match);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the difference of solutions with nested loops
+     *
+     * @param left  The solutions on the left
+     * @param right The solutions on the right
+     * @return The solutions on the left that are not compatible with a solution on the right
+     */
+    private static List<RDFPatternSolution> nestedMinus(List<RDFPatternSolution> left, List<RDFPatternSolution> right) {
+        List<RDFPatternSolution> result = new ArrayList<>();
+        for (RDFPatternSolution l : left) {
+            boolean match = false;
+            for (RDFPatternSolution r : right) {
+                if (Utils.compatible(l, r)) {
+                    match = true;
+                    break;
+                }
+            }
+            if (!match)
+                result.add(l);
+        }
+        return result;
+    }
+
+    /**
+     * Asserts that a stream of solutions is the expected sequence of solutions
+     *
+     * @param expected The expected solutions
+     * @param actual   The actual solutions
+     */
+    private static void assertSolutions(List<RDFPatternSolution> expected, Iterator<RDFPatternSolution> actual) {
+        List<RDFPatternSolution> solutions = new ArrayList<>();
+        while (actual.hasNext())
+            solutions.add(actual.next());
+        Assert.assertEquals(expected, solutions);
+    }
+
+    /**
+     * Checks the join, left join and minus of solutions against the nested loops
+     *
+     * @param left  The solutions on the left
+     * @param right The solutions on the right
+     */
+    private void check(List<RDFPatternSolution> left, List<RDFPatternSolution> right) {
+        Expression expression = new ExpressionOperator(ExpressionOperator.Op.Less, new ExpressionRDF(z), new ExpressionRDF(integer(11)));
+        assertSolutions(nestedJoin(left, right), Utils.join(left.iterator(), right.iterator()));
+        assertSolutions(nestedJoin(left, right), Utils.join(new SolutionsMultiset(left), new SolutionsMultiset(right)).iterator());
+        assertSolutions(nestedLeftJoin(left, right, expression), Utils.leftJoin(left.iterator(), right.iterator(), expression, null));
+        assertSolutions(nestedLeftJoin(left, right, expression), Utils.leftJoin(new SolutionsMultiset(left), new SolutionsMultiset(right), expression, null).iterator());
+        assertSolutions(nestedMinus(left, right), Utils.minus(left.iterator(), right.iterator()));
+        assertSolutions(nestedMinus(left, right), Utils.minus(new SolutionsMultiset(left), new SolutionsMultiset(right)).iterator());
+    }
+
+    @Test
+    public void testSharedVariable() {
+        List<RDFPatternSolution> left = Arrays.asList(
+                solution(x, iri("a"), y, integer(1)),
+                solution(x, iri("b"), y, integer(2)),
+                solution(x, iri("c"), y, integer(3)),
+                solution(x, iri("a"), y, integer(4)));
+        List<RDFPatternSolution> right = Arrays.asList(
+                solution(x, iri("a"), z, integer(10)),
+                solution(x, iri("a"), z, integer(11)),
+                solution(x, iri("b"), z, integer(12)),
+                solution(x, iri("d"), z, integer(13)));
+        check(left, right);
+        Assert.assertEquals(5, nestedJoin(left, right).size());
+        Assert.assertEquals(1, nestedMinus(left, right).size());
+    }
+
+    @Test
+    public void testPartiallyBoundOnTheRight() {
+        // ?x and ?z are not bound in all the solutions on the right, they can only be hashed on ?y
+        List<RDFPatternSolution> left = Arrays.asList(
+                solution(x, iri("a"), y, integer(1)),
+                solution(x, iri("b"), y, integer(1)),
+                solution(x, iri("c"), y, integer(2)));
+        List<RDFPatternSolution> right = Arrays.asList(
+                solution(x, iri("a"), y, integer(1), z, integer(10)),
+                solution(y, integer(1)),
+                solution(y, integer(2), z, integer(12)),
+                solution(x, iri("a"), y, integer(2)));
+        check(left, right);
+        Assert.assertEquals(4, nestedJoin(left, right).size());
+    }
+
+    @Test
+    public void testPartiallyBoundOnTheLeft() {
+        // the solutions on the left that do not bind ?x must be checked against all the solutions on the right
+        List<RDFPatternSolution> left = Arrays.asList(
+                solution(x, iri("a"), y, integer(1)),
+                solution(y, integer(2)),
+                solution(x, iri("e")),
+                solution(y, integer(3)));
+        List<RDFPatternSolution> right = Arrays.asList(
+                solution(x, iri("a"), z, integer(10)),
+                solution(x, iri("b")),
+                solution(x, iri("c"), z, integer(12)));
+        check(left, right);
+        Assert.assertEquals(7, nestedJoin(left, right).size());
+    }
+
+    @Test
+    public void testNoSharedVariable() {
+        // no common variable, the index falls back to all the solutions on the right
+        List<RDFPatternSolution> left = Arrays.asList(
+                solution(x, iri("a")),
+                solution(x, iri("b")));
+        List<RDFPatternSolution> right = Arrays.asList(
+                solution(z, integer(10)),
+                solution(z, integer(11)),
+                solution(z, integer(12)));
+        check(left, right);
+        Assert.assertEquals(6, nestedJoin(left, right).size());
+    }
+
+    @Test
+    public void testProbeMissingIndexedVariable() {
+        // the solutions on the right are hashed on ?z that is never bound on the left
+        List<RDFPatternSolution> left = Arrays.asList(
+                solution(x, iri("a"), y, integer(1)),
+                solution(x, iri("b"), y, integer(2)));
+        List<RDFPatternSolution> right = Arrays.asList(
+                solution(x, iri("a"), z, integer(10)),
+                solution(y, integer(2), z, integer(11)),
+                solution(z, integer(12)));
+        check(left, right);
+    }
+
+    @Test
+    public void testEmpty() {
+        List<RDFPatternSolution> left = Arrays.asList(
+                solution(x, iri("a")),
+                solution(x, iri("b")));
+        List<RDFPatternSolution> right = new ArrayList<>();
+        check(left, right);
+        check(right, left);
+    }
+    /**
+     * Gets the solutions for the ordering tests
+     * The solutions bind ?x to distinct values, and ?y and ?z to keys with ties and unbound keys.
+     *
+     * @return The solutions
+     */
+    private List<RDFPatternSolution> getOrderingSolutions() {
+        return Arrays.asList(
+                solution(x, iri("a"), y, integer(3), z, integer(1)),
+                solution(x, iri("b"), y, integer(1), z, integer(2)),
+                solution(x, iri("c")),
+                solution(x, iri("d"), y, integer(2), z, integer(2)),
+                solution(x, iri("e"), y, integer(1), z, integer(1)),
+                solution(x, iri("f"), z, integer(1)),
+                solution(x, iri("g"), y, integer(3), z, integer(2)),
+                solution(x, iri("h"), y, integer(2)),
+                solution(x, iri("i"), y, iri("notANumber")));
+    }
+
+    /**
+     * Gets the values of ?x in a stream of solutions
+     *
+     * @param solutions The solutions
+     * @return The local names of the values of ?x
+     */
+    private String getNames(Iterator<RDFPatternSolution> solutions) {
+        StringBuilder builder = new StringBuilder();
+        while (solutions.hasNext()) {
+            String iri = ((IRINode) solutions.next().get(x)).getIRIValue();
+            builder.append(iri.substring(iri.length() - 1));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Checks the first ordered solutions against the full sort of the solutions
+     *
+     * @param conditions The ordering conditions
+     */
+    private void checkTopK(List<Couple<Expression, Boolean>> conditions) {
+        List<RDFPatternSolution> solutions = getOrderingSolutions();
+        Solutions sorted = Utils.orderBy(new SolutionsMultiset(solutions), conditions, null);
+        for (int count = 1; count <= solutions.size() + 1; count++) {
+            assertSolutions(
+                    toList(Utils.slice(sorted, 0, count).iterator()),
+                    Utils.orderBy(solutions.iterator(), conditions, count, null).iterator());
+        }
+        Assert.assertEquals(0, Utils.orderBy(solutions.iterator(), conditions, 0, null).size());
+    }
+
+    /**
+     * Gets the solutions of a stream
+     *
+     * @param solutions The stream of solutions
+     * @return The solutions
+     */
+    private static List<RDFPatternSolution> toList(Iterator<RDFPatternSolution> solutions) {
+        List<RDFPatternSolution> result = new ArrayList<>();
+        while (solutions.hasNext())
+            result.add(solutions.next());
+        return result;
+    }
+
+    @Test
+    public void testOrderByLimitTies() {
+        List<Couple<Expression, Boolean>> conditions = Collections.singletonList(new Couple<Expression, Boolean>(new ExpressionRDF(y), false));
+        checkTopK(conditions);
+        // the unbound and non-numeric keys come first, the ties keep the original order
+        Assert.assertEquals("cfibe", getNames(Utils.orderBy(getOrderingSolutions().iterator(), conditions, 5, null).iterator()));
+    }
+
+    @Test
+    public void testOrderByLimitDescending() {
+        List<Couple<Expression, Boolean>> conditions = Collections.singletonList(new Couple<Expression, Boolean>(new ExpressionRDF(y), true));
+        checkTopK(conditions);
+        // the unbound and non-numeric keys come last
+        Assert.assertEquals("agdhbecfi", getNames(Utils.orderBy(getOrderingSolutions().iterator(), conditions, 100, null).iterator()));
+    }
+
+    @Test
+    public void testOrderByLimitMultipleKeys() {
+        List<Couple<Expression, Boolean>> conditions = new ArrayList<>();
+        conditions.add(new Couple<Expression, Boolean>(new ExpressionRDF(y), true));
+        conditions.add(new Couple<Expression, Boolean>(new ExpressionRDF(z), false));
+        checkTopK(conditions);
+        Assert.assertEquals("agh", getNames(Utils.orderBy(getOrderingSolutions().iterator(), conditions, 3, null).iterator()));
+    }
+
+    @Test
+    public void testOrderByOffsetLimit() throws Exception {
+        List<RDFPatternSolution> solutions = getOrderingSolutions();
+        List<Couple<Expression, Boolean>> conditions = Collections.singletonList(new Couple<Expression, Boolean>(new ExpressionRDF(y), false));
+        Solutions sorted = Utils.orderBy(new SolutionsMultiset(solutions), conditions, null);
+        for (int offset = 0; offset <= solutions.size() + 1; offset++) {
+            for (int limit = 1; limit <= solutions.size() + 1; limit++) {
+                GraphPatternModifier modifier = new GraphPatternModifier();
+                modifier.addOrdering(new ExpressionRDF(y));
+                modifier.setOffset(offset);
+                modifier.setLimit(limit);
+                List<RDFPatternSolution> expected = toList(Utils.slice(sorted, offset, limit).iterator());
+                assertSolutions(expected, modifier.apply(solutions.iterator(), null));
+                assertSolutions(expected, modifier.apply(new SolutionsMultiset(solutions), null).iterator());
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.IRIs;
+import org.xowl.infra.store.rdf.Quad;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Tests for the store supporting reasoning
+ *
+ * @author Laurent Wouters
+ */
+public class BaseReasonableStoreTest {
+    /**
+     * The prefix of the test IRIs
+     */
+    private static final String PREFIX = "http://xowl.org/infra/tests/";
+
+    /**
+     * Gets a test quad
+     *
+     * @param store The store
+     * @param graph The quad's graph
+     * @param value The name of the quad's object
+     * @return The quad
+     */
+    private static Quad quad(BaseStore store, String graph, String value) {
+        return new Quad(
+                store.getIRINode(graph),
+                store.getIRINode(PREFIX + "x"),
+                store.getIRINode(PREFIX + "p"),
+                store.getIRINode(PREFIX + value));
+    }
+
+    @Test
+    public void testResumePersistedInferences() throws Exception {
+        File directory = Files.createTempDirectory("testResumePersistedInferences").toFile();
+        BaseStore store = StoreFactory.create().onDisk(directory).withReasoning().withPersistedInferences().make();
+        Assert.assertNotNull(store);
+        store.add(quad(store, PREFIX + "g", "ground"));
+        // derived twice
+        store.add(quad(store, IRIs.GRAPH_INFERENCE, "inferred1"));
+        store.add(quad(store, IRIs.GRAPH_INFERENCE, "inferred1"));
+        store.add(quad(store, IRIs.GRAPH_INFERENCE, "inferred2"));
+        store.onReasoningResumed();
+        store.commit();
+        store.close();
+
+        store = StoreFactory.create().onDisk(directory).withReasoning().withPersistedInferences().make();
+        Assert.assertNotNull(store);
+        Assert.assertEquals(2, store.getMultiplicity(quad(store, IRIs.GRAPH_INFERENCE, "inferred1")));
+        // re-derived once, matched against the persisted derivations
+        store.add(quad(store, IRIs.GRAPH_INFERENCE, "inferred1"));
+        Assert.assertEquals(2, store.getMultiplicity(quad(store, IRIs.GRAPH_INFERENCE, "inferred1")));
+        // new derivation
+        store.add(quad(store, IRIs.GRAPH_INFERENCE, "inferred3"));
+        Assert.assertEquals(1, store.getMultiplicity(quad(store, IRIs.GRAPH_INFERENCE, "inferred3")));
+        store.onReasoningResumed();
+        Assert.assertEquals(1, store.getMultiplicity(quad(store, IRIs.GRAPH_INFERENCE, "inferred1")));
+        Assert.assertEquals(0, store.getMultiplicity(quad(store, IRIs.GRAPH_INFERENCE, "inferred2")));
+        Assert.assertEquals(1, store.getMultiplicity(quad(store, IRIs.GRAPH_INFERENCE, "inferred3")));
+        Assert.assertEquals(1, store.getMultiplicity(quad(store, PREFIX + "g", "ground")));
+        store.close();
+    }
+}
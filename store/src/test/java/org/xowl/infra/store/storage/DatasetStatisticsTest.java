@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xowl.infra.store.Vocabulary;
+import org.xowl.infra.store.rdf.GraphNode;
+import org.xowl.infra.store.rdf.IRINode;
+import org.xowl.infra.store.rdf.Property;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tests for the statistics about the quads in a store
+ *
+ * @author Laurent Wouters
+ */
+public class DatasetStatisticsTest {
+    /**
+     * The prefix of the test IRIs
+     */
+    private static final String PREFIX = "http://xowl.org/infra/tests/";
+
+    /**
+     * Fills a store with test data
+     *
+     * @param store The store to fill
+     * @throws UnsupportedNodeType When a node is not supported
+     */
+    private static void fill(BaseStore store) throws UnsupportedNodeType {
+        GraphNode graph = store.getIRINode(PREFIX + "g");
+        Property type = store.getIRINode(Vocabulary.rdfType);
+        Property knows = store.getIRINode(PREFIX + "knows");
+        IRINode person = store.getIRINode(PREFIX + "Person");
+        for (int i = 0; i != 100; i++) {
+            IRINode x = store.getIRINode(PREFIX + "x" + i);
+            store.add(graph, x, type, person);
+            store.add(graph, x, knows, store.getIRINode(PREFIX + "x" + ((i + 1) % 100)));
+            store.add(graph, x, knows, store.getIRINode(PREFIX + "x" + ((i + 2) % 100)));
+        }
+    }
+
+    @Test
+    public void testInMemoryCounts() throws UnsupportedNodeType {
+        BaseStore store = StoreFactory.create().make();
+        fill(store);
+        DatasetStatistics statistics = store.getStatistics();
+        Assert.assertNotNull(statistics);
+        Assert.assertEquals(300, statistics.count());
+        Assert.assertEquals(300, statistics.countGraph(store.getIRINode(PREFIX + "g")));
+        Assert.assertEquals(200, statistics.countProperty(store.getIRINode(PREFIX + "knows")));
+        Assert.assertEquals(100, statistics.countInstances(store.getIRINode(PREFIX + "Person")));
+        Assert.assertEquals(0, statistics.countProperty(store.getIRINode(PREFIX + "unknown")));
+        long subjects = statistics.estimateSubjects(store.getIRINode(PREFIX + "knows"));
+        Assert.assertTrue("Bad estimate " + subjects, subjects >= 90 && subjects <= 110);
+        long knowsOfX = statistics.estimate(null, store.getIRINode(PREFIX + "x0"), store.getIRINode(PREFIX + "knows"), null);
+        Assert.assertTrue("Bad estimate " + knowsOfX, knowsOfX >= 1 && knowsOfX <= 3);
+        Assert.assertEquals(0, statistics.estimate(store.getIRINode(PREFIX + "other"), null, null, null));
+
+        store.remove(store.getIRINode(PREFIX + "g"), store.getIRINode(PREFIX + "x0"), store.getIRINode(Vocabulary.rdfType), store.getIRINode(PREFIX + "Person"));
+        Assert.assertEquals(299, statistics.count());
+        Assert.assertEquals(99, statistics.countInstances(store.getIRINode(PREFIX + "Person")));
+    }
+
+    @Test
+    public void testOnDiskPersisted() throws Exception {
+        Path directory = Files.createTempDirectory("testStatistics");
+        OnDiskStore store = new OnDiskStore(directory.toFile(), false);
+        fill(store);
+        store.commit();
+        store.close();
+
+        store = new OnDiskStore(directory.toFile(), true);
+        DatasetStatistics statistics = store.getStatistics();
+        Assert.assertEquals(300, statistics.count());
+        Assert.assertEquals(200, statistics.countProperty(store.getIRINode(PREFIX + "knows")));
+        Assert.assertEquals(100, statistics.countInstances(store.getIRINode(PREFIX + "Person")));
+        store.close();
+    }
+}
@@ -22,11 +22,17 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.xowl.infra.store.IRIs;
 import org.xowl.infra.store.RepositoryRDF;
-import org.xowl.infra.store.rdf.Quad;
+import org.xowl.infra.store.rdf.*;
+import org.xowl.infra.store.storage.persistent.FileStoreConfig;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Basic tests for the on-disk store
@@ -92,4 +98,303 @@ public class OnDiskStoreTest {
         store.commit();
         store.close();
     }
+
+    @Test
+    public void testUnboundSubject() throws Exception {
+        Path p = Files.createTempDirectory("testUnboundSubject");
+        OnDiskStore store = new OnDiskStore(p.toFile(), false);
+        GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+        Property type = store.getIRINode("http://xowl.org/infra/tests/type");
+        Property other = store.getIRINode("http://xowl.org/infra/tests/other");
+        Node classA = store.getIRINode("http://xowl.org/infra/tests/A");
+        Node classB = store.getIRINode("http://xowl.org/infra/tests/B");
+        for (int i = 0; i != 1000; i++) {
+            SubjectNode subject = store.getIRINode("http://xowl.org/infra/tests/x" + i);
+            store.add(graph, subject, type, i % 10 == 0 ? classA : classB);
+            store.add(graph, subject, other, store.getLiteralNode(Integer.toString(i), null, null));
+        }
+        Assert.assertEquals(100, store.count(null, type, classA));
+        Assert.assertEquals(900, store.count(null, type, classB));
+        Assert.assertEquals(1000, store.count(null, type, null));
+        Assert.assertEquals(100, store.count(null, null, classA));
+        Assert.assertEquals(100, count(store.getAll(null, type, classA)));
+        Assert.assertEquals(1000, count(store.getAll(null, other, null)));
+
+        store.remove(graph, store.getIRINode("http://xowl.org/infra/tests/x0"), type, classA);
+        Assert.assertEquals(99, store.count(null, type, classA));
+        Assert.assertEquals(99, count(store.getAll(null, null, classA)));
+        store.commit();
+        store.close();
+
+        // reopen with the existing indexes
+        store = new OnDiskStore(p.toFile(), true);
+        Assert.assertEquals(99, store.count(null, type, classA));
+        Assert.assertEquals(900, count(store.getAll(null, type, classB)));
+        store.close();
+
+        // rebuild the indexes
+        Files.delete(p.resolve("quads-index000.xowl"));
+        store = new OnDiskStore(p.toFile(), false);
+        Assert.assertEquals(99, store.count(null, type, classA));
+        Assert.assertEquals(900, count(store.getAll(null, type, classB)));
+        Assert.assertEquals(1999, store.count(null, null, null));
+        store.close();
+    }
+
+    @Test
+    public void testInterruptedIndexBuild() throws Exception {
+        Path p = Files.createTempDirectory("testInterruptedIndexBuild");
+        OnDiskStore store = new OnDiskStore(p.toFile(), false);
+        GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+        Property type = store.getIRINode("http://xowl.org/infra/tests/type");
+        Node classA = store.getIRINode("http://xowl.org/infra/tests/A");
+        for (int i = 0; i != 100; i++)
+            store.add(graph, store.getIRINode("http://xowl.org/infra/tests/x" + i), type, classA);
+        store.commit();
+        store.close();
+
+        // drop the marker of the built indexes, as if their building had been interrupted
+        Path index = p.resolve("quads-index000.xowl");
+        byte[] content = Files.readAllBytes(index);
+        int marker = findIndexMarker(content);
+        Assert.assertTrue("The indexes are not marked as built", marker >= 0);
+        for (int i = 0; i != 8; i++)
+            content[marker + i] = 0;
+        Files.write(index, content);
+
+        // reopen in readonly mode without the incomplete indexes
+        store = new OnDiskStore(p.toFile(), true);
+        Assert.assertEquals(100, store.count(null, type, classA));
+        store.close();
+
+        // reopen and rebuild the indexes
+        store = new OnDiskStore(p.toFile(), false);
+        Assert.assertEquals(100, store.count(null, type, classA));
+        Assert.assertEquals(100, count(store.getAll(null, null, classA)));
+        store.close();
+        Assert.assertTrue("The indexes are not marked as built", findIndexMarker(Files.readAllBytes(index)) >= 0);
+    }
+
+    /**
+     * Finds the marker of the built secondary indexes in the content of the index file
+     *
+     * @param content The content of the index file
+     * @return The offset of the marker, or -1 if it is not found
+     */
+    private static int findIndexMarker(byte[] content) {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        for (int i = 0; i <= content.length - 8; i++) {
+            if (buffer.getLong(i) == 0x7849445842554C54L)
+                return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        Path p = Files.createTempDirectory("testRollback");
+        OnDiskStore store = new OnDiskStore(p.toFile(), false);
+        GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+        SubjectNode subject = store.getIRINode("http://xowl.org/infra/tests/x");
+        Property property = store.getIRINode("http://xowl.org/infra/tests/p");
+        store.add(graph, subject, property, store.getIRINode("http://xowl.org/infra/tests/y1"));
+        store.commit();
+        store.add(graph, subject, property, store.getIRINode("http://xowl.org/infra/tests/y2"));
+        store.add(graph, subject, property, store.getIRINode("http://xowl.org/infra/tests/y3"));
+        Assert.assertEquals(3, store.count(graph, subject, property, null));
+        store.rollback();
+        Assert.assertEquals(1, store.count(graph, subject, property, null));
+        store.add(graph, subject, property, store.getIRINode("http://xowl.org/infra/tests/y4"));
+        store.commit();
+        store.add(graph, subject, property, store.getIRINode("http://xowl.org/infra/tests/y5"));
+        store.close();
+
+        // the uncommitted changes are discarded when closing
+        store = new OnDiskStore(p.toFile(), true);
+        Assert.assertEquals(2, store.count(graph, subject, property, null));
+        Assert.assertEquals(1, count(store.getAll(null, null, store.getIRINode("http://xowl.org/infra/tests/y4"))));
+        store.close();
+    }
+
+    @Test
+    public void testBoundedCache() throws Exception {
+        Path p = Files.createTempDirectory("testBoundedCache");
+        OnDiskStore store = new OnDiskStore(p.toFile(), false, new FileStoreConfig(), 400);
+        GraphNode graphSmall = store.getIRINode("http://xowl.org/infra/tests/g1");
+        GraphNode graphLarge = store.getIRINode("http://xowl.org/infra/tests/g2");
+        Property property = store.getIRINode("http://xowl.org/infra/tests/p");
+        for (int i = 0; i != 1000; i++) {
+            SubjectNode subject = store.getIRINode("http://xowl.org/infra/tests/x" + i);
+            store.add(graphLarge, subject, property, store.getLiteralNode(Integer.toString(i), null, null));
+            if (i < 50)
+                store.add(graphSmall, subject, property, store.getLiteralNode(Integer.toString(i), null, null));
+        }
+        // the large graph is too large to be cached
+        Assert.assertEquals(1000, store.count(graphLarge, null, null, null));
+        Assert.assertEquals(1000, count(store.getAll(graphLarge, null, null, null)));
+        Assert.assertEquals(50, store.count(graphSmall, null, null, null));
+        // more subjects than can be cached
+        for (int i = 0; i != 1000; i++) {
+            SubjectNode subject = store.getIRINode("http://xowl.org/infra/tests/x" + i);
+            Assert.assertEquals(i < 50 ? 2 : 1, store.count(null, subject, property, null));
+        }
+        store.add(graphLarge, store.getIRINode("http://xowl.org/infra/tests/x0"), property, store.getIRINode("http://xowl.org/infra/tests/y"));
+        Assert.assertEquals(1001, store.count(graphLarge, null, null, null));
+        Assert.assertEquals(3, store.count(null, store.getIRINode("http://xowl.org/infra/tests/x0"), property, null));
+        store.close();
+    }
+
+    @Test
+    public void testCacheWriteThrough() throws Exception {
+        Path p = Files.createTempDirectory("testCacheWriteThrough");
+        OnDiskStore store = new OnDiskStore(p.toFile(), false);
+        GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+        SubjectNode subject = store.getIRINode("http://xowl.org/infra/tests/x");
+        Property property = store.getIRINode("http://xowl.org/infra/tests/p");
+        Node value1 = store.getIRINode("http://xowl.org/infra/tests/y1");
+        Node value2 = store.getIRINode("http://xowl.org/infra/tests/y2");
+        store.add(graph, subject, property, value1);
+        // load the subject and the graph into the cache
+        Assert.assertEquals(1, store.count(null, subject, null, null));
+        Assert.assertEquals(1, store.count(graph, null, null, null));
+
+        store.add(graph, subject, property, value2);
+        store.add(graph, subject, property, value2);
+        Assert.assertEquals(2, store.count(null, subject, null, null));
+        Assert.assertEquals(2, count(store.getAll(graph, null, property, null)));
+        Assert.assertEquals(2, store.getMultiplicity(graph, subject, property, value2));
+
+        store.remove(graph, subject, property, value2);
+        Assert.assertEquals(1, store.getMultiplicity(graph, subject, property, value2));
+        store.remove(graph, subject, property, value1);
+        Assert.assertEquals(1, store.count(null, subject, null, null));
+        Assert.assertEquals(1, store.count(graph, null, null, null));
+        Assert.assertEquals(0, store.count(graph, null, null, value1));
+        store.close();
+    }
+
+    @Test
+    public void testCacheConcurrentReadWrite() throws Exception {
+        Path p = Files.createTempDirectory("testCacheConcurrentReadWrite");
+        final OnDiskStore store = new OnDiskStore(p.toFile(), false);
+        final GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+        final SubjectNode subject = store.getIRINode("http://xowl.org/infra/tests/x");
+        final Property property = store.getIRINode("http://xowl.org/infra/tests/p");
+        for (int i = 0; i != 100; i++)
+            store.add(graph, subject, property, store.getLiteralNode(Integer.toString(i), null, null));
+        // load the subject and the graph into the cache
+        Assert.assertEquals(100, store.count(null, subject, null, null));
+        Assert.assertEquals(100, store.count(graph, null, null, null));
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // each step inserts a quad and removes another one, the readers see 100 or 101 quads
+                    for (int i = 100; i != 2100; i++) {
+                        store.add(graph, subject, property, store.getLiteralNode(Integer.toString(i), null, null));
+                        store.remove(graph, subject, property, store.getLiteralNode(Integer.toString(i - 100), null, null));
+                    }
+                } catch (Throwable throwable) {
+                    errors.add(throwable);
+                } finally {
+                    done.set(true);
+                }
+            }
+        });
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i != readers.length; i++) {
+            final boolean onGraph = (i % 2 == 1);
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            int found = onGraph ? count(store.getAll(graph, null, property, null)) : count(store.getAll(null, subject, property, null));
+                            if (found != 100 && found != 101)
+                                throw new AssertionError("Unexpected number of quads: " + found);
+                        }
+                    } catch (Throwable throwable) {
+                        errors.add(throwable);
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers)
+            reader.start();
+        writer.join();
+        for (Thread reader : readers)
+            reader.join();
+        if (!errors.isEmpty())
+            throw new AssertionError(errors.get(0));
+        Assert.assertEquals(100, store.count(null, subject, null, null));
+        Assert.assertEquals(100, store.count(graph, null, null, null));
+        store.close();
+    }
+
+    @Test
+    public void testBatchInsert() throws Exception {
+        Path p = Files.createTempDirectory("testBatchInsert");
+        OnDiskStore store = new OnDiskStore(p.toFile(), false);
+        GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+        Property property1 = store.getIRINode("http://xowl.org/infra/tests/p1");
+        Property property2 = store.getIRINode("http://xowl.org/infra/tests/p2");
+        List<Quad> quads = new ArrayList<>();
+        for (int i = 0; i != 1000; i++) {
+            SubjectNode subject = store.getIRINode("http://xowl.org/infra/tests/x" + (i % 100));
+            Property property = (i / 100) % 2 == 0 ? property1 : property2;
+            quads.add(new Quad(graph, subject, property, store.getLiteralNode(Integer.toString(i % 300), null, null)));
+        }
+        store.insert(Changeset.fromAdded(quads));
+        Assert.assertEquals(600, store.count(graph, null, null, null));
+        Assert.assertEquals(300, store.count(null, null, property1, null));
+        Assert.assertEquals(2, store.getMultiplicity(graph, store.getIRINode("http://xowl.org/infra/tests/x0"), property1, store.getLiteralNode("0", null, null)));
+        store.commit();
+        store.close();
+
+        store = new OnDiskStore(p.toFile(), true);
+        Assert.assertEquals(600, store.count(null, null, null, null));
+        Assert.assertEquals(6, count(store.getAll(null, store.getIRINode("http://xowl.org/infra/tests/x42"), null, null)));
+        store.close();
+    }
+
+    @Test
+    public void testBatchInsertUnsupported() throws Exception {
+        Path p = Files.createTempDirectory("testBatchInsertUnsupported");
+        OnDiskStore store = new OnDiskStore(p.toFile(), false);
+        GraphNode graph = store.getIRINode("http://xowl.org/infra/tests/g");
+        Property property = store.getIRINode("http://xowl.org/infra/tests/p");
+        // a node of another store, that is only resolved in this one when the quads are inserted
+        IRINode fresh = StoreFactory.create().make().getIRINode("http://xowl.org/infra/tests/fresh");
+        List<Quad> quads = new ArrayList<>();
+        quads.add(new Quad(graph, store.getIRINode("http://xowl.org/infra/tests/x"), property, fresh));
+        quads.add(new Quad(graph, store.getIRINode("http://xowl.org/infra/tests/x"), property, new VariableNode("v")));
+        try {
+            store.insert(Changeset.fromAdded(quads));
+            Assert.fail("The batch should have been rejected");
+        } catch (UnsupportedNodeType exception) {
+            // expected
+        }
+        Assert.assertEquals(0, store.count());
+        Assert.assertNull("No node shall be created for a rejected batch", store.getExistingIRINode("http://xowl.org/infra/tests/fresh"));
+        store.close();
+    }
+
+    /**
+     * Counts the elements of an iterator
+     *
+     * @param iterator The iterator
+     * @return The number of elements
+     */
+    private static int count(Iterator<Quad> iterator) {
+        int result = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            result++;
+        }
+        return result;
+    }
 }
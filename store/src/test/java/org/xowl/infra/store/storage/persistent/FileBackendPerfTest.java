@@ -44,11 +44,17 @@ public class FileBackendPerfTest {
      * The size of each write
      */
     private static final int WRITE_SIZE = 100;
+    /**
+     * The number of hits per block for the hit performance test
+     */
+    private static final int HIT_COUNT = 1024;
 
     public static void main(String[] args) {
         FileBackendPerfTest program = new FileBackendPerfTest();
         try {
             program.testWritePerf();
+            for (int blocks = 64; blocks <= 16384; blocks <<= 2)
+                program.testHitPerf(blocks);
         } catch (IOException | StorageException exception) {
             exception.printStackTrace();
         }
@@ -109,4 +115,39 @@ public class FileBackendPerfTest {
             System.out.println("Performance: " + (totalSize / time) + " Mo/s");
         }
     }
+
+    /**
+     * Performance test for the accesses to blocks that are already loaded
+     * The cost of a hit is expected to be independent from the number of loaded blocks.
+     *
+     * @param blockCount The number of loaded blocks
+     * @throws IOException      When an IO exception occurs
+     * @throws StorageException When an IO exception occurs
+     */
+    public void testHitPerf(int blockCount) throws IOException, StorageException {
+        File file = File.createTempFile("test", ".bin");
+        try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withLoadedBlocks(blockCount))) {
+            // load all the blocks
+            for (int i = 0; i != blockCount; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, true)) {
+                    access.writeInt(i);
+                }
+            }
+
+            long begin = System.nanoTime();
+            int sum = 0;
+            for (int j = 0; j != HIT_COUNT; j++) {
+                for (int i = 0; i != blockCount; i++) {
+                    try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, false)) {
+                        sum += access.readInt();
+                    }
+                }
+            }
+            long end = System.nanoTime();
+
+            float hits = (float) blockCount * HIT_COUNT;
+            System.out.println("Loaded blocks: " + blockCount + " (checksum " + sum + ")");
+            System.out.println("Mean cost of a hit: " + (((float) (end - begin)) / hits) + " ns");
+        }
+    }
 }
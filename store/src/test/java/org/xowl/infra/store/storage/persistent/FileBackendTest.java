@@ -22,6 +22,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 
@@ -533,4 +534,255 @@ public class FileBackendTest {
             access2.close();
         }
     }
+
+    @Test
+    public void testReclaimBlocks() throws IOException, StorageException {
+        File file = File.createTempFile("test", ".bin");
+        try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withLoadedBlocks(4))) {
+            for (int i = 0; i != 32; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, true)) {
+                    access.writeInt(i);
+                }
+            }
+            for (int i = 0; i != 32; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, false)) {
+                    Assert.assertEquals("Unexpected content", i, access.readInt());
+                }
+            }
+            pf.flush();
+        }
+        Assert.assertEquals("Unexpected file length", (long) FileBlock.BLOCK_SIZE * 32, file.length());
+        try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withLoadedBlocks(4))) {
+            for (int i = 31; i >= 0; i--) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, false)) {
+                    Assert.assertEquals("Unexpected content", i, access.readInt());
+                }
+            }
+        }
+    }
+
+    /**
+     * A file backend that fails to write back the reclaimed blocks on demand
+     */
+    private static class FailingBackend extends FileBackendBuffered {
+        /**
+         * Whether the writes shall fail
+         */
+        public volatile boolean failing;
+
+        /**
+         * Initializes this backend
+         *
+         * @param file            The file location
+         * @param maxLoadedBlocks The maximum number of blocks that can be loaded at the same time
+         * @throws StorageException When the initialization failed
+         */
+        public FailingBackend(File file, int maxLoadedBlocks) throws StorageException {
+            super(file, false, maxLoadedBlocks);
+        }
+
+        @Override
+        void writeBlock(FileBlock block) throws IOException, StorageException {
+            if (failing)
+                throw new IOException("Failed to write the block");
+            super.writeBlock(block);
+        }
+    }
+
+    @Test
+    public void testReclaimFailureKeepsBlock() throws IOException, StorageException {
+        File file = File.createTempFile("test", ".bin");
+        try (FailingBackend backend = new FailingBackend(file, 2)) {
+            for (int i = 0; i != 2; i++) {
+                try (IOAccess access = backend.access(i * FileBlock.BLOCK_SIZE, 4, true)) {
+                    access.writeInt(i + 1);
+                }
+            }
+            backend.failing = true;
+            try {
+                backend.access(2 * FileBlock.BLOCK_SIZE, 4, true).close();
+                Assert.fail("Expected the reclaim to fail");
+            } catch (StorageException exception) {
+                // expected
+            }
+            backend.failing = false;
+            // the dirty blocks are still the ones found for their location, no stale copy is loaded from the file
+            for (int i = 0; i != 2; i++) {
+                try (IOAccess access = backend.access(i * FileBlock.BLOCK_SIZE, 4, false)) {
+                    Assert.assertEquals("Unexpected content", i + 1, access.readInt());
+                }
+            }
+            try (IOAccess access = backend.access(2 * FileBlock.BLOCK_SIZE, 4, true)) {
+                access.writeInt(3);
+            }
+            backend.flush();
+        }
+        try (FileStoreFile pf = new FileStoreFile(file, true, true)) {
+            for (int i = 0; i != 3; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, false)) {
+                    Assert.assertEquals("Unexpected content", i + 1, access.readInt());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBackgroundWriter() throws IOException, StorageException, InterruptedException {
+        File file = File.createTempFile("test", ".bin");
+        try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withWriterInterval(10))) {
+            for (int i = 0; i != 32; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, true)) {
+                    access.writeInt(i);
+                }
+            }
+            // the dirty blocks are written without flushing the file
+            long deadline = System.currentTimeMillis() + 10000;
+            while (file.length() < (long) FileBlock.BLOCK_SIZE * 32 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            Assert.assertEquals("Unexpected file length", (long) FileBlock.BLOCK_SIZE * 32, file.length());
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            for (int i = 0; i != 32; i++)
+                Assert.assertEquals("Unexpected content", i, buffer.getInt(i * FileBlock.BLOCK_SIZE));
+            try (IOAccess access = pf.access(0, 4, true)) {
+                access.writeInt(55);
+            }
+            pf.flush();
+        }
+        try (FileStoreFile pf = new FileStoreFile(file, true, true)) {
+            try (IOAccess access = pf.access(0, 4, false)) {
+                Assert.assertEquals("Unexpected content", 55, access.readInt());
+            }
+        }
+    }
+
+    @Test
+    public void testBackgroundWriterStore() throws IOException, StorageException, InterruptedException {
+        File directory = Files.createTempDirectory("testBackgroundWriterStore").toFile();
+        File file = new File(directory, "store000.xowl");
+        long[] keys = new long[64];
+        try (FileStore store = new FileStore(directory, "store", false, new FileStoreConfig().withWriterInterval(10))) {
+            for (int i = 0; i != keys.length; i++) {
+                keys[i] = store.allocateDirect(1024);
+                try (IOAccess access = store.accessW(keys[i])) {
+                    access.writeInt(i + 1);
+                }
+            }
+            // the store is not logged, its dirty blocks are written without flushing it
+            int last = FileStore.getShortKey(keys[keys.length - 1]);
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((buffer.limit() < last + 4 || buffer.getInt(last) != keys.length) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            }
+            Assert.assertTrue("Unexpected file length", buffer.limit() >= last + 4);
+            for (int i = 0; i != keys.length; i++)
+                Assert.assertEquals("Unexpected content", i + 1, buffer.getInt(FileStore.getShortKey(keys[i])));
+        }
+    }
+
+    @Test
+    public void testLoadNewBlockBeyondEnd() throws IOException, StorageException {
+        File file = File.createTempFile("test", ".bin");
+        try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withWriterInterval(0))) {
+            try (IOAccess access = pf.access(5 * FileBlock.BLOCK_SIZE, 4, true)) {
+                access.writeInt(5);
+            }
+            // the block before the written one is newly allocated and is not in the file
+            try (IOAccess access = pf.access(4 * FileBlock.BLOCK_SIZE, 4, false)) {
+                Assert.assertEquals("Unexpected content", 0, access.readInt());
+            }
+        }
+    }
+
+    @Test
+    public void testLoadTruncatedFile() throws IOException, StorageException {
+        File file = File.createTempFile("test", ".bin");
+        try (FileStoreFile pf = new FileStoreFile(file, false, true)) {
+            for (int i = 0; i != 2; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, true)) {
+                    access.writeInt(i + 1);
+                }
+            }
+            pf.flush();
+        }
+        try (FileStoreFile pf = new FileStoreFile(file, true, true)) {
+            try (IOAccess access = pf.access(0, 4, false)) {
+                Assert.assertEquals("Unexpected content", 1, access.readInt());
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(FileBlock.BLOCK_SIZE + 100);
+            }
+            // the second block was in the file when it was opened, it must not be silently zeroed
+            try (IOAccess access = pf.access(FileBlock.BLOCK_SIZE + 200, 4, false)) {
+                Assert.fail("Expected the truncated block to be rejected, read " + access.readInt());
+            } catch (StorageException exception) {
+                Assert.assertTrue(exception.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void testMappedSameLayout() throws IOException, StorageException {
+        File file = File.createTempFile("test", ".bin");
+        try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().mapped())) {
+            try (IOAccess access = pf.access(0, 12, true)) {
+                access.writeInt(55);
+            }
+            try (IOAccess access = pf.access(FileBlock.BLOCK_SIZE, 12, true)) {
+                access.writeInt(66);
+            }
+            pf.flush();
+        }
+        Assert.assertEquals("Unexpected file length", (long) FileBlock.BLOCK_SIZE * 2, file.length());
+
+        try (FileStoreFile pf = new FileStoreFile(file, false, true)) {
+            try (IOAccess access = pf.access(0, 12, false)) {
+                Assert.assertEquals("Unexpected content", 55, access.readInt());
+            }
+            try (IOAccess access = pf.access(FileBlock.BLOCK_SIZE, 12, true)) {
+                Assert.assertEquals("Unexpected content", 66, access.readInt());
+                access.writeInt(77);
+            }
+            pf.flush();
+        }
+
+        try (FileStoreFile pf = new FileStoreFile(file, true, true, new FileStoreConfig().mapped())) {
+            try (IOAccess access = pf.access(FileBlock.BLOCK_SIZE, 12, false)) {
+                Assert.assertEquals("Unexpected content", 66, access.readInt());
+                Assert.assertEquals("Unexpected content", 77, access.readInt());
+            }
+        }
+    }
+
+    @Test
+    public void testMappedGrowsOnDemand() throws IOException, StorageException {
+        File file = File.createTempFile("test", ".bin");
+        try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().mapped())) {
+            try (IOAccess access = pf.access(0, 4, true)) {
+                access.writeInt(55);
+            }
+            pf.flush();
+            // the mapping does not extend the file up to the end of the segment
+            Assert.assertTrue("Unexpected file length", file.length() < 1 << 20);
+            for (int i = 1; i != 200; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, true)) {
+                    access.writeInt(i);
+                }
+            }
+            pf.flush();
+            try (IOAccess access = pf.access(0, 4, false)) {
+                Assert.assertEquals("Unexpected content", 55, access.readInt());
+            }
+        }
+        Assert.assertEquals("Unexpected file length", (long) FileBlock.BLOCK_SIZE * 200, file.length());
+
+        try (FileStoreFile pf = new FileStoreFile(file, true, true, new FileStoreConfig().mapped())) {
+            for (int i = 1; i != 200; i++) {
+                try (IOAccess access = pf.access(i * FileBlock.BLOCK_SIZE, 4, false)) {
+                    Assert.assertEquals("Unexpected content", i, access.readInt());
+                }
+            }
+        }
+    }
 }
@@ -23,6 +23,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Tests for the correct management of the IO accesses
@@ -38,6 +39,10 @@ public class IOAccessManagerTest {
      * The number of entries to insert
      */
     private static final int ACCESSES_COUNT = 8192;
+    /**
+     * Numbers of threads for the test with many threads
+     */
+    private static final int MANY_THREADS_COUNT = 256;
 
 
     /**
@@ -94,4 +99,74 @@ public class IOAccessManagerTest {
             Assert.assertTrue(successes[i]);
         }
     }
+
+    /**
+     * Tests that overlapping writing accesses are exclusive with many threads
+     */
+    @Test
+    public void testConcurrentWriters() {
+        Collection<Thread> threads = new ArrayList<>();
+        final boolean successes[] = new boolean[MANY_THREADS_COUNT];
+        // the number of current accesses on each byte, -1 when writing
+        final AtomicIntegerArray owners = new AtomicIntegerArray(4 * FileBlock.BLOCK_SIZE);
+        final IOAccessManager manager = new IOAccessManager(new IOBackend() {
+            @Override
+            public IOElement onAccessRequested(IOAccess access) throws StorageException {
+                return null;
+            }
+
+            @Override
+            public void onAccessTerminated(IOAccess access, IOElement element) throws StorageException {
+                // do nothing
+            }
+        });
+
+        for (int i = 0; i != MANY_THREADS_COUNT; i++) {
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    boolean success = true;
+                    for (int i = 0; i != ACCESSES_COUNT / 16; i++) {
+                        // accesses may span two blocks
+                        int location = random.nextInt(owners.length() - 256);
+                        int length = 1 + random.nextInt(255);
+                        boolean writable = random.nextInt(8) == 0;
+                        try (IOAccess access = manager.get(location, length, writable)) {
+                            for (int j = location; j != location + length; j++) {
+                                if (writable)
+                                    success &= owners.compareAndSet(j, 0, -1);
+                                else
+                                    success &= owners.getAndIncrement(j) >= 0;
+                            }
+                            for (int j = location; j != location + length; j++) {
+                                if (writable)
+                                    owners.set(j, 0);
+                                else
+                                    owners.decrementAndGet(j);
+                            }
+                            Assert.assertEquals(location, access.getLocation());
+                        } catch (StorageException exception) {
+                            exception.printStackTrace();
+                            success = false;
+                        }
+                    }
+                    successes[index] = success;
+                }
+            }, "Test Thread " + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException exception) {
+                exception.printStackTrace();
+            }
+        }
+        for (int i = 0; i != MANY_THREADS_COUNT; i++) {
+            Assert.assertTrue(successes[i]);
+        }
+    }
 }
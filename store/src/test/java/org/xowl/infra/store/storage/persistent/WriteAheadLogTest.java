@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Association Cénotélie (cenotelie.fr)
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.xowl.infra.store.storage.persistent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests the WriteAheadLog class
+ *
+ * @author Laurent Wouters
+ */
+public class WriteAheadLogTest {
+    @Test
+    public void testCommitWritesFile() throws IOException, StorageException {
+        File directory = Files.createTempDirectory("testCommitWritesFile").toFile();
+        File file = new File(directory, "test000.xowl");
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withLog(log))) {
+                writeByte(pf, 0, 5);
+                writeByte(pf, FileBlock.BLOCK_SIZE, 6);
+                pf.flush();
+                Assert.assertEquals("Uncommitted changes must not be written to the file", 0, file.length());
+                log.commit();
+                Assert.assertEquals("Unexpected file length", (long) FileBlock.BLOCK_SIZE * 2, file.length());
+            }
+        }
+        Assert.assertEquals("The log must be truncated when closed", 0, new File(directory, WriteAheadLog.FILE_NAME).length());
+        byte[] content = Files.readAllBytes(file.toPath());
+        Assert.assertEquals("Unexpected content", 5, content[0]);
+        Assert.assertEquals("Unexpected content", 6, content[FileBlock.BLOCK_SIZE]);
+    }
+
+    @Test
+    public void testNoBackgroundWriterWhenLogged() throws IOException, StorageException, InterruptedException {
+        File directory = Files.createTempDirectory("testNoBackgroundWriterWhenLogged").toFile();
+        File file = new File(directory, "test000.xowl");
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withWriterInterval(10).withLog(log))) {
+                for (int i = 0; i != 8; i++)
+                    writeByte(pf, i * FileBlock.BLOCK_SIZE, i + 1);
+                Thread.sleep(200);
+                Assert.assertEquals("Uncommitted changes must not be written to the file", 0, file.length());
+                log.commit();
+                Assert.assertEquals("Unexpected file length", (long) FileBlock.BLOCK_SIZE * 8, file.length());
+            }
+        }
+    }
+
+    @Test
+    public void testRollback() throws IOException, StorageException {
+        testRollback(new FileStoreConfig());
+    }
+
+    @Test
+    public void testRollbackMapped() throws IOException, StorageException {
+        testRollback(new FileStoreConfig().mapped());
+    }
+
+    /**
+     * Tests the rollback of changes for the specified configuration
+     *
+     * @param config The configuration to use
+     * @throws IOException      When an IO error occurred
+     * @throws StorageException When an IO error occurred
+     */
+    private void testRollback(FileStoreConfig config) throws IOException, StorageException {
+        File directory = Files.createTempDirectory("testRollback").toFile();
+        File file = new File(directory, "test000.xowl");
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            try (FileStoreFile pf = new FileStoreFile(file, false, true, config.withLog(log))) {
+                writeByte(pf, 0, 5);
+                log.commit();
+                writeByte(pf, 0, 6);
+                writeByte(pf, FileBlock.BLOCK_SIZE, 7);
+                Assert.assertEquals("Unexpected content", 6, readByte(pf, 0));
+                log.rollback();
+                Assert.assertEquals("Unexpected content", 5, readByte(pf, 0));
+                Assert.assertEquals("Unexpected length", FileBlock.BLOCK_SIZE, pf.getSize());
+            }
+        }
+        try (FileStoreFile pf = new FileStoreFile(file, true, true)) {
+            Assert.assertEquals("Unexpected content", 5, readByte(pf, 0));
+        }
+    }
+
+    @Test
+    public void testCommitOnlyWritesLoggedImages() throws IOException, StorageException {
+        File directory = Files.createTempDirectory("testCommitOnlyWritesLoggedImages").toFile();
+        File file = new File(directory, "test000.xowl");
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            final boolean[] interleaved = new boolean[1];
+            FileBackend backend = new FileBackendBuffered(file, false, 4, log) {
+                @Override
+                void onLogCommitted(long imagesVersion) throws StorageException {
+                    if (!interleaved[0]) {
+                        // another writer changes the block after its image was appended to the log
+                        interleaved[0] = true;
+                        try (IOAccess access = access(0, 1, true)) {
+                            access.writeByte((byte) 9);
+                        }
+                    }
+                    super.onLogCommitted(imagesVersion);
+                }
+            };
+            log.register(backend);
+            try {
+                try (IOAccess access = backend.access(0, 1, true)) {
+                    access.writeByte((byte) 5);
+                }
+                log.commit();
+                Assert.assertEquals("Uncommitted changes must not be written to the file", 5, Files.readAllBytes(file.toPath())[0]);
+                try (IOAccess access = backend.access(0, 1, false)) {
+                    Assert.assertEquals("Unexpected content", 9, access.readByte());
+                }
+                log.rollback();
+                try (IOAccess access = backend.access(0, 1, false)) {
+                    Assert.assertEquals("Unexpected content", 5, access.readByte());
+                }
+            } finally {
+                backend.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReclaimedBlocksAreLogged() throws IOException, StorageException {
+        File directory = Files.createTempDirectory("testReclaimedBlocksAreLogged").toFile();
+        File file = new File(directory, "test000.xowl");
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withLoadedBlocks(2).withLog(log))) {
+                for (int i = 0; i != 8; i++)
+                    writeByte(pf, i * FileBlock.BLOCK_SIZE, i + 1);
+                Assert.assertEquals("Reclaimed blocks must not be written to the file", 0, file.length());
+                for (int i = 0; i != 8; i++)
+                    Assert.assertEquals("Unexpected content", i + 1, readByte(pf, i * FileBlock.BLOCK_SIZE));
+                log.rollback();
+                Assert.assertEquals("Unexpected length", 0, pf.getSize());
+                for (int i = 0; i != 8; i++)
+                    writeByte(pf, i * FileBlock.BLOCK_SIZE, 10 + i);
+                log.commit();
+            }
+        }
+        try (FileStoreFile pf = new FileStoreFile(file, true, true)) {
+            for (int i = 0; i != 8; i++)
+                Assert.assertEquals("Unexpected content", 10 + i, readByte(pf, i * FileBlock.BLOCK_SIZE));
+        }
+    }
+
+    @Test
+    public void testReplay() throws IOException, StorageException {
+        File directory = Files.createTempDirectory("testReplay").toFile();
+        File file = new File(directory, "test000.xowl");
+        File logFile = new File(directory, WriteAheadLog.FILE_NAME);
+        byte[] logContent;
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            try (FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withLog(log))) {
+                writeByte(pf, 0, 5);
+                log.commit();
+                writeByte(pf, 0, 6);
+                writeByte(pf, FileBlock.BLOCK_SIZE, 7);
+                log.commit();
+                logContent = Files.readAllBytes(logFile.toPath());
+            }
+        }
+
+        // simulates a crash before the changes reached the file and the last commit record was fully written
+        Files.write(file.toPath(), new byte[FileBlock.BLOCK_SIZE]);
+        Files.write(logFile.toPath(), Arrays.copyOf(logContent, logContent.length - 1));
+        try (WriteAheadLog log = new WriteAheadLog(directory, true)) {
+            try (FileStoreFile pf = new FileStoreFile(file, true, true, new FileStoreConfig().withLog(log))) {
+                Assert.assertEquals("Unexpected content", 5, readByte(pf, 0));
+            }
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            Assert.assertEquals("The log must be truncated after a replay", 0, logFile.length());
+        }
+        try (FileStoreFile pf = new FileStoreFile(file, true, true)) {
+            Assert.assertEquals("Unexpected content", 5, readByte(pf, 0));
+            Assert.assertEquals("Unexpected length", FileBlock.BLOCK_SIZE, pf.getSize());
+        }
+
+        // simulates a crash before the changes reached the file
+        Files.write(file.toPath(), new byte[FileBlock.BLOCK_SIZE]);
+        Files.write(logFile.toPath(), logContent);
+        try (WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            Assert.assertEquals("The log must be truncated after a replay", 0, logFile.length());
+        }
+        try (FileStoreFile pf = new FileStoreFile(file, true, true)) {
+            Assert.assertEquals("Unexpected content", 6, readByte(pf, 0));
+            Assert.assertEquals("Unexpected content", 7, readByte(pf, FileBlock.BLOCK_SIZE));
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        File directory = Files.createTempDirectory("testSnapshot").toFile();
+        File file = new File(directory, "test000.xowl");
+        // the snapshots are bound to threads, the reader is a single other thread
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try (final WriteAheadLog log = new WriteAheadLog(directory, false)) {
+            try (final FileStoreFile pf = new FileStoreFile(file, false, true, new FileStoreConfig().withLog(log))) {
+                writeByte(pf, 0, 5);
+                writeByte(pf, FileBlock.BLOCK_SIZE, 7);
+                log.commit();
+                Callable<Integer> read = new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return readByte(pf, 0);
+                    }
+                };
+
+                reader.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        log.beginSnapshot();
+                        return null;
+                    }
+                }).get();
+                writeByte(pf, 0, 6);
+                Assert.assertEquals("Uncommitted changes must not be visible from a snapshot", 5, (int) reader.submit(read).get());
+                Assert.assertEquals("Unexpected content", 6, readByte(pf, 0));
+                log.commit();
+                Assert.assertEquals("Committed changes must not be visible from a previous snapshot", 5, (int) reader.submit(read).get());
+                writeByte(pf, 0, 8);
+                log.rollback();
+                Assert.assertEquals("Unexpected content", 5, (int) reader.submit(read).get());
+                reader.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        log.endSnapshot();
+                        log.beginSnapshot();
+                        return null;
+                    }
+                }).get();
+                Assert.assertEquals("Committed changes must be visible from a new snapshot", 6, (int) reader.submit(read).get());
+                Assert.assertEquals("Unexpected content", 7, (int) reader.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return readByte(pf, FileBlock.BLOCK_SIZE);
+                    }
+                }).get());
+                reader.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        log.endSnapshot();
+                        return null;
+                    }
+                }).get();
+            }
+        } finally {
+            reader.shutdown();
+        }
+    }
+
+    /**
+     * Writes a byte in a file
+     *
+     * @param file  The file
+     * @param index The index to write at
+     * @param value The value to write
+     * @throws StorageException When an IO error occurred
+     */
+    private static void writeByte(FileStoreFile file, int index, int value) throws StorageException {
+        try (IOAccess access = file.access(index, 1, true)) {
+            access.writeByte((byte) value);
+        }
+    }
+
+    /**
+     * Reads a byte in a file
+     *
+     * @param file  The file
+     * @param index The index to read at
+     * @return The read value
+     * @throws StorageException When an IO error occurred
+     */
+    private static int readByte(FileStoreFile file, int index) throws StorageException {
+        try (IOAccess access = file.access(index, 1, false)) {
+            return access.readByte();
+        }
+    }
+}